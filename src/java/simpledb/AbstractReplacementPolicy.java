@@ -0,0 +1,83 @@
+package simpledb;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Helper for implementing ReplacementPolicies. Keeps the hit/miss counters
+ * and a logical clock, and folds prefetched pages into the ordinary
+ * admit/hit sequence; subclasses only need to implement the bookkeeping in
+ * {@link #onHit}, {@link #onAdmit}, {@link #onRemove} and
+ * {@link #evictionOrder}.
+ */
+public abstract class AbstractReplacementPolicy implements ReplacementPolicy {
+
+    private final AtomicLong hits = new AtomicLong(0);
+    private final AtomicLong misses = new AtomicLong(0);
+    private final AtomicLong clock = new AtomicLong(0);
+    private final ConcurrentHashMap<PageId, Boolean> unreferenced = new ConcurrentHashMap<PageId, Boolean>();
+
+    public void pageHit(PageId pid) {
+        hits.incrementAndGet();
+        // the prefetch already stood in for a page's first reference
+        if (unreferenced.remove(pid) == null)
+            onHit(pid, tick());
+    }
+
+    public void pageAdmitted(PageId pid) {
+        misses.incrementAndGet();
+        onAdmit(pid, tick());
+    }
+
+    public void pagePrefetched(PageId pid) {
+        unreferenced.put(pid, Boolean.TRUE);
+        onAdmit(pid, tick());
+    }
+
+    public void pageRemoved(PageId pid) {
+        unreferenced.remove(pid);
+        onRemove(pid);
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public void resetStats() {
+        hits.set(0);
+        misses.set(0);
+    }
+
+    /** @return the next value of the logical clock used to order accesses */
+    protected long tick() {
+        return clock.incrementAndGet();
+    }
+
+    /**
+     * Record a reference to a resident page.
+     * @param pid the page that was referenced
+     * @param now the logical time of the reference
+     */
+    protected abstract void onHit(PageId pid, long now);
+
+    /**
+     * Record that a page has just been read into the pool.
+     * @param pid the page that was admitted
+     * @param now the logical time of the admission
+     */
+    protected abstract void onAdmit(PageId pid, long now);
+
+    /**
+     * Forget a page that has left the pool.
+     * @param pid the page that was removed
+     */
+    protected abstract void onRemove(PageId pid);
+
+    public String toString() {
+        return getClass().getSimpleName() + "(hits=" + getHits() + ", misses=" + getMisses() + ")";
+    }
+}
@@ -5,12 +5,20 @@ import java.util.*;
 /**
  * The Aggregation operator that computes an aggregate (e.g., sum, avg, max,
  * min). Note that we only support aggregates over a single column, grouped by a
- * single column.
+ * single column. It can be read a tuple at a time or a batch at a time, and
+ * consumes its child a batch at a time whenever the child supports it.
  */
-public class Aggregate extends Operator {
+public class Aggregate extends Operator implements BatchOpIterator {
 
     private static final long serialVersionUID = 1L;
 
+    private OpIterator child;
+    private final int afield;
+    private final int gfield;
+    private final Aggregator.Op aop;
+    private TupleDesc td;
+    transient private OpIterator aggIt;
+
     /**
      * Constructor.
      * 
@@ -30,7 +38,28 @@ public class Aggregate extends Operator {
      *            The aggregation operator to use
      */
     public Aggregate(OpIterator child, int afield, int gfield, Aggregator.Op aop) {
-	// some code goes here
+	this.child = child;
+	this.afield = afield;
+	this.gfield = gfield;
+	this.aop = aop;
+	this.td = makeTupleDesc();
+    }
+
+    private TupleDesc makeTupleDesc() {
+	TupleDesc childTd = this.child.getTupleDesc();
+	String aggName = nameOfAggregatorOp(this.aop) + "(" + childTd.getFieldName(this.afield) + ")";
+	if (this.gfield == Aggregator.NO_GROUPING)
+	    return new TupleDesc(new Type[] { Type.INT_TYPE }, new String[] { aggName });
+	return new TupleDesc(new Type[] { childTd.getFieldType(this.gfield), Type.INT_TYPE },
+		new String[] { childTd.getFieldName(this.gfield), aggName });
+    }
+
+    private Aggregator makeAggregator() {
+	TupleDesc childTd = this.child.getTupleDesc();
+	Type gtype = this.gfield == Aggregator.NO_GROUPING ? null : childTd.getFieldType(this.gfield);
+	if (childTd.getFieldType(this.afield) == Type.INT_TYPE)
+	    return new IntegerAggregator(this.gfield, gtype, this.afield, this.aop);
+	return new StringAggregator(this.gfield, gtype, this.afield, this.aop);
     }
 
     /**
@@ -39,8 +68,7 @@ public class Aggregate extends Operator {
      *         {@link simpledb.Aggregator#NO_GROUPING}
      * */
     public int groupField() {
-	// some code goes here
-	return -1;
+	return this.gfield;
     }
 
     /**
@@ -49,16 +77,16 @@ public class Aggregate extends Operator {
      *         null;
      * */
     public String groupFieldName() {
-	// some code goes here
-	return null;
+	if (this.gfield == Aggregator.NO_GROUPING)
+	    return null;
+	return this.td.getFieldName(0);
     }
 
     /**
      * @return the aggregate field
      * */
     public int aggregateField() {
-	// some code goes here
-	return -1;
+	return this.afield;
     }
 
     /**
@@ -66,16 +94,14 @@ public class Aggregate extends Operator {
      *         tuples
      * */
     public String aggregateFieldName() {
-	// some code goes here
-	return null;
+	return this.td.getFieldName(this.td.numFields() - 1);
     }
 
     /**
      * @return return the aggregate operator
      * */
     public Aggregator.Op aggregateOp() {
-	// some code goes here
-	return null;
+	return this.aop;
     }
 
     public static String nameOfAggregatorOp(Aggregator.Op aop) {
@@ -84,7 +110,20 @@ public class Aggregate extends Operator {
 
     public void open() throws NoSuchElementException, DbException,
 	    TransactionAbortedException {
-	// some code goes here
+	this.child.open();
+	Aggregator aggregator = makeAggregator();
+	if (this.child instanceof BatchOpIterator) {
+	    BatchOpIterator in = (BatchOpIterator) this.child;
+	    TupleBatch batch;
+	    while ((batch = in.nextBatch()) != null)
+		aggregator.mergeBatchIntoGroup(batch);
+	} else {
+	    while (this.child.hasNext())
+		aggregator.mergeTupleIntoGroup(this.child.next());
+	}
+	this.aggIt = aggregator.iterator();
+	this.aggIt.open();
+	super.open();
     }
 
     /**
@@ -95,12 +134,28 @@ public class Aggregate extends Operator {
      * aggregate. Should return null if there are no more tuples.
      */
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
-	// some code goes here
-	return null;
+	if (!this.aggIt.hasNext())
+	    return null;
+	Tuple t = this.aggIt.next();
+	t.resetTupleDesc(this.td);
+	return t;
+    }
+
+    /**
+     * Returns the next batch of aggregate results, in the same format as
+     * fetchNext.
+     */
+    public TupleBatch nextBatch() throws TransactionAbortedException, DbException {
+	if (!this.aggIt.hasNext())
+	    return null;
+	TupleBatch batch = new TupleBatch(this.td);
+	while (!batch.isFull() && this.aggIt.hasNext())
+	    batch.add(this.aggIt.next());
+	return batch;
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
-	// some code goes here
+	this.aggIt.rewind();
     }
 
     /**
@@ -115,23 +170,27 @@ public class Aggregate extends Operator {
      * iterator.
      */
     public TupleDesc getTupleDesc() {
-	// some code goes here
-	return null;
+	return this.td;
     }
 
     public void close() {
-	// some code goes here
+	super.close();
+	this.child.close();
+	if (this.aggIt != null) {
+	    this.aggIt.close();
+	    this.aggIt = null;
+	}
     }
 
     @Override
     public OpIterator[] getChildren() {
-	// some code goes here
-	return null;
+	return new OpIterator[] { this.child };
     }
 
     @Override
     public void setChildren(OpIterator[] children) {
-	// some code goes here
+	this.child = children[0];
+	this.td = makeTupleDesc();
     }
     
 }
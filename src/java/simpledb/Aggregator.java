@@ -76,6 +76,14 @@ public interface Aggregator extends Serializable {
      */
     public void mergeTupleIntoGroup(Tuple tup);
 
+    /**
+     * Merge every row of a batch into the aggregate; equivalent to calling
+     * mergeTupleIntoGroup on each row, without materializing the tuples.
+     *
+     * @param batch the rows to merge, with an aggregate field and a group-by field
+     */
+    public void mergeBatchIntoGroup(TupleBatch batch);
+
     /**
      * Create a OpIterator over group aggregate results.
      * @see simpledb.TupleIterator for a possible helper
@@ -2,6 +2,8 @@ package simpledb;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 import simpledb.Predicate.Op;
 
@@ -11,6 +13,18 @@ import simpledb.Predicate.Op;
  * a set of internal pages, and a set of leaf pages, which contain a collection of tuples
  * in sorted order. BTreeFile works closely with BTreeLeafPage, BTreeInternalPage,
  * and BTreeRootPtrPage. The format of these pages is described in their constructors.
+ * <p>
+ * Searches do not lock the internal pages they pass through: they read each
+ * one under its page latch, and lock only the leaf they end at for the
+ * transaction. Writers still lock every page they change, and change internal
+ * pages and the root pointer under their latches. A split only moves keys
+ * right, into a new right sibling, so a search that read pages in the middle of
+ * a split ends at most left of its key; a search follows the right-sibling links
+ * of the leaves from there. Merges, redistributions and rollbacks can move keys
+ * either way, and a search that reads pages in the middle of one may be sent
+ * right of its key; it starts again from the root if one of them was changing
+ * a page it read when it read it, or has started changing one since. Merges
+ * and redistributions elsewhere in the tree do not send it back.
  * 
  * @see simpledb.BTreeLeafPage#BTreeLeafPage
  * @see simpledb.BTreeInternalPage#BTreeInternalPage
@@ -24,6 +38,14 @@ public class BTreeFile implements DbFile {
 	private final TupleDesc td;
 	private final int tableid ;
 	private int keyField;
+	private volatile MappedPageReader mappedReader;
+	// version stamps of the pages merges and redistributions change: the
+	// number of moves that have started changing a page, and the number that
+	// have finished, by page number modulo MOVE_STRIPES; see findLeafPage
+	private static final int MOVE_STRIPES = 1024;
+	private final AtomicLongArray movesStarted = new AtomicLongArray(MOVE_STRIPES);
+	private final AtomicLongArray movesDone = new AtomicLongArray(MOVE_STRIPES);
+	private final AtomicLong searchRestarts = new AtomicLong(0);
 
 	/**
 	 * Constructs a B+ tree file backed by the specified file.
@@ -38,6 +60,20 @@ public class BTreeFile implements DbFile {
 		this.tableid = f.getAbsoluteFile().hashCode();
 		this.keyField = key;
 		this.td = td;
+		if (MappedPageReader.DEFAULT_ENABLED)
+			this.mappedReader = new MappedPageReader(f);
+	}
+
+	/**
+	 * Turn memory-mapped page reads on or off for this file.
+	 * 
+	 * @see MappedPageReader
+	 */
+	public void setMemoryMapped(boolean enabled) throws IOException {
+		MappedPageReader old = this.mappedReader;
+		this.mappedReader = enabled ? new MappedPageReader(this.f) : null;
+		if (old != null)
+			old.close();
 	}
 
 	/**
@@ -78,6 +114,12 @@ public class BTreeFile implements DbFile {
 	 */
 	public Page readPage(PageId pid) {
 		BTreePageId id = (BTreePageId) pid;
+		MappedPageReader reader = this.mappedReader;
+		if (reader != null) {
+			Page p = readMappedPage(reader, id);
+			if (p != null)
+				return p;
+		}
 		BufferedInputStream bis = null;
 
 		try {
@@ -138,6 +180,35 @@ public class BTreeFile implements DbFile {
 		}
 	}
 
+	/**
+	 * Read a page out of the memory mapping of this file.
+	 * 
+	 * @return the page, or null if it could not be served from the mapping
+	 */
+	private Page readMappedPage(MappedPageReader reader, BTreePageId id) {
+		try {
+			if(id.pgcateg() == BTreePageId.ROOT_PTR) {
+				byte pageBuf[] = new byte[BTreeRootPtrPage.getPageSize()];
+				if (!reader.read(0, pageBuf, pageBuf.length))
+					return null;
+				return new BTreeRootPtrPage(id, pageBuf);
+			}
+			byte pageBuf[] = new byte[BufferPool.getPageSize()];
+			long offset = BTreeRootPtrPage.getPageSize() + (long) (id.getPageNumber()-1) * BufferPool.getPageSize();
+			if (!reader.read(offset, pageBuf, pageBuf.length))
+				return null;
+			Debug.log(1, "BTreeFile.readPage: read mapped page %d", id.getPageNumber());
+			if(id.pgcateg() == BTreePageId.INTERNAL)
+				return new BTreeInternalPage(id, pageBuf, keyField);
+			else if(id.pgcateg() == BTreePageId.LEAF)
+				return new BTreeLeafPage(id, pageBuf, keyField);
+			else
+				return new BTreeHeaderPage(id, pageBuf);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
 	/**
 	 * Write a page to disk.  This should not be called directly but should 
 	 * be called from the BufferPool when pages are flushed to disk
@@ -176,10 +247,14 @@ public class BTreeFile implements DbFile {
 	}
 
 	/**
-	 * Recursive function which finds and locks the leaf page in the B+ tree corresponding to
-	 * the left-most page possibly containing the key field f. It locks all internal
-	 * nodes along the path to the leaf node with READ_ONLY permission, and locks the 
-	 * leaf node with permission perm.
+	 * Function which finds and locks the leaf page in the B+ tree corresponding to
+	 * the left-most page possibly containing the key field f. It reads the internal
+	 * nodes along the path to the leaf node under their latches, without locking them,
+	 * and locks the leaf node with permission perm.
+	 * 
+	 * If the search may have overlapped a merge or redistribution of a page it read, or
+	 * a rollback, it starts again from the root. An insert (perm READ_WRITE) moves right along the leaves to the
+	 * page its key belongs in, in case it overlapped a split.
 	 * 
 	 * If f is null, it finds the left-most leaf page -- used for the iterator
 	 * 
@@ -194,8 +269,186 @@ public class BTreeFile implements DbFile {
 	private BTreeLeafPage findLeafPage(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreePageId pid, Permissions perm,
 			Field f) 
 					throws DbException, TransactionAbortedException {
-		// some code goes here
-        return null;
+		BufferPool pool = Database.getBufferPool();
+		boolean snapshot = pool.getVersionStore().isSnapshot(tid);
+		// the stripes of the pages the search read, and the moves done on
+		// each when it read them
+		int[] stripes = new int[8];
+		long[] stamps = new long[8];
+		while(pid != null) {
+			long rollbacks = pool.getRollbackStamp();
+			int depth = 0;
+			BTreePageId id = pid;
+			while(id != null) {
+				if(depth == stripes.length) {
+					stripes = Arrays.copyOf(stripes, depth * 2);
+					stamps = Arrays.copyOf(stamps, depth * 2);
+				}
+				stripes[depth] = stripe(id);
+				stamps[depth] = movesDone.get(stripes[depth]);
+				depth++;
+				if(id.pgcateg() != BTreePageId.INTERNAL) {
+					break;
+				}
+				id = childFor((BTreeInternalPage) getPage(tid, dirtypages, id, Permissions.READ_ONLY), f);
+			}
+			if(id != null) {
+				boolean held = dirtypages.containsKey(id) || pool.holdsLock(tid, id);
+				BTreeLeafPage leaf = (BTreeLeafPage) getPage(tid, dirtypages, id, perm);
+				// a snapshot reads pages that no one changes
+				// no merge or redistribution was changing a page on the path
+				// when the search read it, and none has started on one since;
+				// nor has a rollback
+				if(snapshot || (!movedSince(stripes, stamps, depth) && !pool.rolledBackSince(rollbacks))) {
+					if(perm == Permissions.READ_WRITE && f != null) {
+						leaf = moveRight(tid, dirtypages, leaf, held, f);
+					}
+					return leaf;
+				}
+				if(!held) {
+					unlockPage(tid, dirtypages, id);
+				}
+			}
+			// the search reached a page that was emptied, or may have been
+			// sent right of its key: start again from the root
+			searchRestarts.incrementAndGet();
+			Thread.yield();
+			pid = getRootId(tid, dirtypages);
+		}
+		return null;
+	}
+
+	/**
+	 * Read the child of an internal page to search for f in, under the page latch.
+	 * 
+	 * @param page - the internal page
+	 * @param f - the field to search for, or null for the left-most child
+	 * @return the child to search, or null if the page has no entries
+	 */
+	private static BTreePageId childFor(BTreeInternalPage page, Field f) {
+		synchronized(page) {
+			Iterator<BTreeEntry> it = page.iterator();
+			BTreeEntry e = null;
+			while(it.hasNext()) {
+				e = it.next();
+				if(f == null || f.compare(Op.LESS_THAN_OR_EQ, e.getKey())) {
+					return e.getLeftChild();
+				}
+			}
+			return e == null ? null : e.getRightChild();
+		}
+	}
+
+	/**
+	 * Move an insert right along the leaf pages, past leaves whose keys are all below f,
+	 * to the page f belongs in, if a split sent the search left of it. Each page moved
+	 * to is locked with READ_WRITE permission, and the page moved off is unlocked 
+	 * unless the transaction held it before.
+	 * 
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param leaf - the leaf page the search ended at, locked with READ_WRITE permission
+	 * @param held - whether the transaction held a lock on leaf before the search
+	 * @param f - the field to insert
+	 * @return the leaf page to insert f into
+	 */
+	private BTreeLeafPage moveRight(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreeLeafPage leaf,
+			boolean held, Field f) throws DbException, TransactionAbortedException {
+		BufferPool pool = Database.getBufferPool();
+		while(leaf.getRightSiblingId() != null) {
+			Iterator<Tuple> last = leaf.reverseIterator();
+			if(last.hasNext() && f.compare(Op.LESS_THAN_OR_EQ, last.next().getField(keyField))) {
+				break;
+			}
+			BTreePageId rightId = leaf.getRightSiblingId();
+			boolean rightHeld = dirtypages.containsKey(rightId) || pool.holdsLock(tid, rightId);
+			BTreeLeafPage right = (BTreeLeafPage) getPage(tid, dirtypages, rightId, Permissions.READ_WRITE);
+			Iterator<Tuple> first = right.iterator();
+			if(!first.hasNext() || f.compare(Op.LESS_THAN_OR_EQ, first.next().getField(keyField))) {
+				if(!rightHeld) {
+					unlockPage(tid, dirtypages, rightId);
+				}
+				break;
+			}
+			if(!held) {
+				unlockPage(tid, dirtypages, leaf.getId());
+			}
+			leaf = right;
+			held = rightHeld;
+		}
+		return leaf;
+	}
+
+	/**
+	 * Give up the lock on a page that the search locked only to look at.
+	 * 
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param pid - the id of the page to unlock
+	 */
+	private void unlockPage(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreePageId pid) {
+		dirtypages.remove(pid);
+		Database.getBufferPool().releasePage(tid, pid);
+	}
+
+	/**
+	 * @return the stripe of the move stamps that covers the given page
+	 */
+	private static int stripe(PageId pid) {
+		return pid.getPageNumber() % MOVE_STRIPES;
+	}
+
+	/**
+	 * @return whether a move has started on any of the first n stripes since the
+	 *         given stamps of them were taken, or was running when they were
+	 */
+	private boolean movedSince(int[] stripes, long[] stamps, int n) {
+		for(int i = 0; i < n; i++) {
+			if(movesStarted.get(stripes[i]) != stamps[i]) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Start changing pages for a merge or redistribution. Until the matching endMove,
+	 * a search that reads the pages may be sent right of its key; findLeafPage starts
+	 * searches that read one of them again. The pages must be locked already, so that
+	 * no lock waits happen before endMove.
+	 * 
+	 * @param pages - the pages the move changes; null entries are skipped
+	 * @return the stripes to pass to endMove
+	 */
+	int[] beginMove(Page... pages) {
+		int[] stripes = new int[pages.length];
+		int n = 0;
+		for(Page p : pages) {
+			if(p != null) {
+				stripes[n] = stripe(p.getId());
+				movesStarted.incrementAndGet(stripes[n++]);
+			}
+		}
+		return Arrays.copyOf(stripes, n);
+	}
+
+	/**
+	 * Finish the changes started by beginMove.
+	 * 
+	 * @param stripes - what beginMove returned
+	 */
+	void endMove(int[] stripes) {
+		for(int s : stripes) {
+			movesDone.incrementAndGet(s);
+		}
+	}
+
+	/**
+	 * @return the number of times a search started again from the root because it
+	 *         may have overlapped a move or rollback
+	 */
+	public long getSearchRestarts() {
+		return searchRestarts.get();
 	}
 	
 	/**
@@ -239,16 +492,45 @@ public class BTreeFile implements DbFile {
 	 */
 	protected BTreeLeafPage splitLeafPage(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreeLeafPage page, Field field) 
 			throws DbException, IOException, TransactionAbortedException {
-		// some code goes here
-        //
-        // Split the leaf page by adding a new page on the right of the existing
-		// page and moving half of the tuples to the new page.  Copy the middle key up
-		// into the parent page, and recursively split the parent as needed to accommodate
-		// the new entry.  getParentWithEmtpySlots() will be useful here.  Don't forget to update
-		// the sibling pointers of all the affected leaf pages.  Return the page into which a 
-		// tuple with the given key field should be inserted.
-        return null;
-		
+		BTreeLeafPage newPage = (BTreeLeafPage) getEmptyPage(tid, dirtypages, BTreePageId.LEAF);
+
+		// move the upper half of the tuples to the new page
+		int numToMove = page.getNumTuples() / 2;
+		ArrayList<Tuple> moving = new ArrayList<Tuple>();
+		Iterator<Tuple> it = page.reverseIterator();
+		while(moving.size() < numToMove && it.hasNext()) {
+			moving.add(it.next());
+		}
+		for(Tuple t : moving) {
+			page.deleteTuple(t);
+			newPage.insertTuple(t);
+		}
+
+		// link the new page in to the right of the page
+		BTreePageId oldRightId = page.getRightSiblingId();
+		if(oldRightId != null) {
+			BTreeLeafPage oldRight = (BTreeLeafPage) getPage(tid, dirtypages, oldRightId, Permissions.READ_WRITE);
+			oldRight.setLeftSiblingId(newPage.getId());
+		}
+		newPage.setRightSiblingId(oldRightId);
+		newPage.setLeftSiblingId(page.getId());
+		page.setRightSiblingId(newPage.getId());
+
+		// copy the first key of the new page up into the parent, once the new
+		// page is filled in, so that searches that read the parent find the keys
+		Field key = newPage.iterator().next().getField(keyField);
+		BTreeInternalPage parent = getParentWithEmptySlots(tid, dirtypages, page.getParentId(), key);
+		synchronized(parent) {
+			parent.insertEntry(new BTreeEntry(key, page.getId(), newPage.getId()));
+		}
+		page.setParentId(parent.getId());
+		newPage.setParentId(parent.getId());
+		publishRoot(tid, dirtypages, parent);
+
+		if(field.compare(Op.GREATER_THAN, key)) {
+			return newPage;
+		}
+		return page;
 	}
 	
 	/**
@@ -276,22 +558,52 @@ public class BTreeFile implements DbFile {
 	protected BTreeInternalPage splitInternalPage(TransactionId tid, HashMap<PageId, Page> dirtypages, 
 			BTreeInternalPage page, Field field) 
 					throws DbException, IOException, TransactionAbortedException {
-		// some code goes here
-        //
-        // Split the internal page by adding a new page on the right of the existing
-		// page and moving half of the entries to the new page.  Push the middle key up
-		// into the parent page, and recursively split the parent as needed to accommodate
-		// the new entry.  getParentWithEmtpySlots() will be useful here.  Don't forget to update
-		// the parent pointers of all the children moving to the new page.  updateParentPointers()
-		// will be useful here.  Return the page into which an entry with the given key field
-		// should be inserted.
-		return null;
+		BTreeInternalPage newPage = (BTreeInternalPage) getEmptyPage(tid, dirtypages, BTreePageId.INTERNAL);
+
+		// the upper half of the entries move to the new page, and the highest
+		// entry left behind is pushed up into the parent
+		int numToMove = page.getNumEntries() / 2;
+		ArrayList<BTreeEntry> moving = new ArrayList<BTreeEntry>();
+		Iterator<BTreeEntry> it = page.reverseIterator();
+		while(moving.size() < numToMove && it.hasNext()) {
+			moving.add(it.next());
+		}
+		BTreeEntry middle = it.next();
+
+		// fill in the new page and link it into the parent before the entries
+		// leave the page, so that a search reading any of the pages meanwhile
+		// finds the right child for its key
+		for(int i = moving.size() - 1; i >= 0; i--) {
+			BTreeEntry e = moving.get(i);
+			newPage.insertEntry(new BTreeEntry(e.getKey(), e.getLeftChild(), e.getRightChild()));
+		}
+		BTreeInternalPage parent = getParentWithEmptySlots(tid, dirtypages, page.getParentId(), middle.getKey());
+		synchronized(parent) {
+			parent.insertEntry(new BTreeEntry(middle.getKey(), page.getId(), newPage.getId()));
+		}
+		synchronized(page) {
+			for(BTreeEntry e : moving) {
+				page.deleteKeyAndRightChild(e);
+			}
+			page.deleteKeyAndRightChild(middle);
+		}
+		page.setParentId(parent.getId());
+		newPage.setParentId(parent.getId());
+		updateParentPointers(tid, dirtypages, newPage);
+		publishRoot(tid, dirtypages, parent);
+
+		if(field.compare(Op.GREATER_THAN, middle.getKey())) {
+			return newPage;
+		}
+		return page;
 	}
 	
 	/**
 	 * Method to encapsulate the process of getting a parent page ready to accept new entries.
 	 * This may mean creating a page to become the new root of the tree, splitting the existing 
 	 * parent page if there are no empty slots, or simply locking and returning the existing parent page.
+	 * A new root is not yet pointed to by the root pointer: the caller publishes it with 
+	 * publishRoot once it has inserted the entry, so that searches never find the root empty.
 	 *
 	 * @param tid - the transaction id
 	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
@@ -314,12 +626,12 @@ public class BTreeFile implements DbFile {
 		// this will be the new root of the tree
 		if(parentId.pgcateg() == BTreePageId.ROOT_PTR) {
 			parent = (BTreeInternalPage) getEmptyPage(tid, dirtypages, BTreePageId.INTERNAL);
+			parent.setParentId(parentId);
 
-			// update the root pointer
+			// lock the root pointer now; publishRoot updates it
 			BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages,
 					BTreeRootPtrPage.getId(tableid), Permissions.READ_WRITE);
-			BTreePageId prevRootId = rootPtr.getRootId(); //save prev id before overwriting.
-			rootPtr.setRootId(parent.getId());
+			BTreePageId prevRootId = rootPtr.getRootId();
 
 			// update the previous root to now point to this new root.
 			BTreePage prevRootPage = (BTreePage)getPage(tid, dirtypages, prevRootId, Permissions.READ_WRITE);
@@ -340,6 +652,32 @@ public class BTreeFile implements DbFile {
 
 	}
 
+	/**
+	 * Point the root pointer at a page whose parent is the root pointer page, if it does not
+	 * point there already. The page must have an entry by now.
+	 * 
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param page - the page which may be a new root
+	 * @see #getParentWithEmptySlots(TransactionId, HashMap, BTreePageId, Field)
+	 * 
+	 * @throws DbException
+	 * @throws TransactionAbortedException
+	 */
+	private void publishRoot(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreeInternalPage page)
+			throws DbException, TransactionAbortedException {
+		if(page.getParentId().pgcateg() != BTreePageId.ROOT_PTR) {
+			return;
+		}
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages,
+				BTreeRootPtrPage.getId(tableid), Permissions.READ_WRITE);
+		synchronized(rootPtr) {
+			if(!page.getId().equals(rootPtr.getRootId())) {
+				rootPtr.setRootId(page.getId());
+			}
+		}
+	}
+
 	/**
 	 * Helper function to update the parent pointer of a node.
 	 * 
@@ -394,7 +732,8 @@ public class BTreeFile implements DbFile {
 	 * Method to encapsulate the process of locking/fetching a page.  First the method checks the local 
 	 * cache ("dirtypages"), and if it can't find the requested page there, it fetches it from the buffer pool.  
 	 * It also adds pages to the dirtypages cache if they are fetched with read-write permission, since 
-	 * presumably they will soon be dirtied by this transaction.
+	 * presumably they will soon be dirtied by this transaction. Internal pages fetched with read-only
+	 * permission are not locked; read them under their latches.
 	 * 
 	 * This method is needed to ensure that page updates are not lost if the same pages are
 	 * accessed multiple times.
@@ -414,6 +753,10 @@ public class BTreeFile implements DbFile {
 		if(dirtypages.containsKey(pid)) {
 			return dirtypages.get(pid);
 		}
+		else if(perm == Permissions.READ_ONLY && pid.pgcateg() == BTreePageId.INTERNAL) {
+			// internal pages are only read under their latches
+			return Database.getBufferPool().getPageUnlocked(tid, pid);
+		}
 		else {
 			Page p = Database.getBufferPool().getPage(tid, pid, perm);
 			if(perm == Permissions.READ_WRITE) {
@@ -436,32 +779,59 @@ public class BTreeFile implements DbFile {
 	public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
 			throws DbException, IOException, TransactionAbortedException {
 		HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
+		boolean done = false;
+		try {
+			// locate the root page through the root pointer page
+			createIfEmpty();
+			BTreePageId rootId = getRootId(tid, dirtypages);
+
+			if(rootId == null) { // the root has just been created, so set the root pointer to point to it		
+				BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_WRITE);
+				synchronized(rootPtr) {
+					rootId = rootPtr.getRootId();
+					if(rootId == null) {
+						rootId = new BTreePageId(tableid, numPages(), BTreePageId.LEAF);
+						rootPtr.setRootId(rootId);
+					}
+				}
+			}
 
-		// get a read lock on the root pointer page and use it to locate the root page
-		BTreeRootPtrPage rootPtr = getRootPtrPage(tid, dirtypages);
-		BTreePageId rootId = rootPtr.getRootId();
+			// find and lock the left-most leaf page corresponding to the key field,
+			// and split the leaf page if there are no more slots available
+			BTreeLeafPage leafPage = findLeafPage(tid, dirtypages, rootId, Permissions.READ_WRITE, t.getField(keyField));
+			if(leafPage.getNumEmptySlots() == 0) {
+				leafPage = splitLeafPage(tid, dirtypages, leafPage, t.getField(keyField));	
+			}
 
-		if(rootId == null) { // the root has just been created, so set the root pointer to point to it		
-			rootId = new BTreePageId(tableid, numPages(), BTreePageId.LEAF);
-			rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_WRITE);
-			rootPtr.setRootId(rootId);
+			// insert the tuple into the leaf page
+			leafPage.insertTuple(t);
+			done = true;
 		}
-
-		// find and lock the left-most leaf page corresponding to the key field,
-		// and split the leaf page if there are no more slots available
-		BTreeLeafPage leafPage = findLeafPage(tid, dirtypages, rootId, Permissions.READ_WRITE, t.getField(keyField));
-		if(leafPage.getNumEmptySlots() == 0) {
-			leafPage = splitLeafPage(tid, dirtypages, leafPage, t.getField(keyField));	
+		finally {
+			if(!done) {
+				markDirtied(tid, dirtypages);
+			}
 		}
 
-		// insert the tuple into the leaf page
-		leafPage.insertTuple(t);
-
 		ArrayList<Page> dirtyPagesArr = new ArrayList<Page>();
 		dirtyPagesArr.addAll(dirtypages.values());
 		return dirtyPagesArr;
 	}
 	
+	/**
+	 * Mark the pages that an insert or delete changed dirty when it fails part way, for
+	 * instance when a lock wait aborts the transaction in the middle of a split or merge,
+	 * so that aborting the transaction rolls back the changes it made so far.
+	 * 
+	 * @param tid - the transaction id
+	 * @param dirtypages - the pages the insert or delete locked for writing
+	 */
+	private void markDirtied(TransactionId tid, HashMap<PageId, Page> dirtypages) {
+		for(Page p : dirtypages.values()) {
+			p.markDirty(true, tid);
+		}
+	}
+
 	/**
 	 * Handle the case when a B+ tree page becomes less than half full due to deletions.
 	 * If one of its siblings has extra tuples/entries, redistribute those tuples/entries.
@@ -576,11 +946,30 @@ public class BTreeFile implements DbFile {
 	 */
 	protected void stealFromLeafPage(BTreeLeafPage page, BTreeLeafPage sibling,
 			BTreeInternalPage parent, BTreeEntry entry, boolean isRightSibling) throws DbException {
-		// some code goes here
-        //
-        // Move some of the tuples from the sibling to the page so
-		// that the tuples are evenly distributed. Be sure to update
-		// the corresponding parent entry.
+		// move the tuples of the sibling nearest the page until both have half
+		int numToMove = sibling.getNumTuples() - (page.getNumTuples() + sibling.getNumTuples()) / 2;
+		ArrayList<Tuple> moving = new ArrayList<Tuple>();
+		Iterator<Tuple> it = isRightSibling ? sibling.iterator() : sibling.reverseIterator();
+		while(moving.size() < numToMove && it.hasNext()) {
+			moving.add(it.next());
+		}
+		int[] move = beginMove(page, sibling, parent);
+		try {
+			for(Tuple t : moving) {
+				sibling.deleteTuple(t);
+				page.insertTuple(t);
+			}
+
+			// the parent key is the first key of the right-hand page
+			BTreeLeafPage right = isRightSibling ? sibling : page;
+			entry.setKey(right.iterator().next().getField(keyField));
+			synchronized(parent) {
+				parent.updateEntry(entry);
+			}
+		}
+		finally {
+			endMove(move);
+		}
 	}
 
 	/**
@@ -656,11 +1045,43 @@ public class BTreeFile implements DbFile {
 	protected void stealFromLeftInternalPage(TransactionId tid, HashMap<PageId, Page> dirtypages, 
 			BTreeInternalPage page, BTreeInternalPage leftSibling, BTreeInternalPage parent,
 			BTreeEntry parentEntry) throws DbException, IOException, TransactionAbortedException {
-		// some code goes here
-        // Move some of the entries from the left sibling to the page so
-		// that the entries are evenly distributed. Be sure to update
-		// the corresponding parent entry. Be sure to update the parent
-		// pointers of all children in the entries that were moved.
+		int numToMove = (leftSibling.getNumEntries() - page.getNumEntries()) / 2;
+		ArrayList<BTreeEntry> moving = new ArrayList<BTreeEntry>();
+		Iterator<BTreeEntry> it = leftSibling.reverseIterator();
+		while(moving.size() < numToMove && it.hasNext()) {
+			moving.add(it.next());
+		}
+
+		// rotate the keys through the parent: the parent key comes down in front
+		// of the page's entries with the right child of the last entry of the
+		// sibling, whose key goes up, and so on. The page gets its entries
+		// first, then the parent its key, then the sibling loses its entries,
+		// so that a search reading the pages meanwhile finds the right child.
+		Field key = parentEntry.getKey();
+		BTreePageId child = page.iterator().next().getLeftChild();
+		int[] move = beginMove(page, leftSibling, parent);
+		try {
+			synchronized(page) {
+				for(BTreeEntry e : moving) {
+					page.insertEntry(new BTreeEntry(key, e.getRightChild(), child));
+					key = e.getKey();
+					child = e.getRightChild();
+				}
+			}
+			parentEntry.setKey(key);
+			synchronized(parent) {
+				parent.updateEntry(parentEntry);
+			}
+			synchronized(leftSibling) {
+				for(BTreeEntry e : moving) {
+					leftSibling.deleteKeyAndRightChild(e);
+				}
+			}
+		}
+		finally {
+			endMove(move);
+		}
+		updateParentPointers(tid, dirtypages, page);
 	}
 	
 	/**
@@ -684,11 +1105,42 @@ public class BTreeFile implements DbFile {
 	protected void stealFromRightInternalPage(TransactionId tid, HashMap<PageId, Page> dirtypages, 
 			BTreeInternalPage page, BTreeInternalPage rightSibling, BTreeInternalPage parent,
 			BTreeEntry parentEntry) throws DbException, IOException, TransactionAbortedException {
-		// some code goes here
-        // Move some of the entries from the right sibling to the page so
-		// that the entries are evenly distributed. Be sure to update
-		// the corresponding parent entry. Be sure to update the parent
-		// pointers of all children in the entries that were moved.
+		int numToMove = (rightSibling.getNumEntries() - page.getNumEntries()) / 2;
+		ArrayList<BTreeEntry> moving = new ArrayList<BTreeEntry>();
+		Iterator<BTreeEntry> it = rightSibling.iterator();
+		while(moving.size() < numToMove && it.hasNext()) {
+			moving.add(it.next());
+		}
+
+		// rotate the keys through the parent, in the same order as
+		// stealFromLeftInternalPage
+		Field key = parentEntry.getKey();
+		BTreePageId child = page.reverseIterator().next().getRightChild();
+		int[] move = beginMove(page, rightSibling, parent);
+		try {
+			synchronized(page) {
+				for(BTreeEntry e : moving) {
+					page.insertEntry(new BTreeEntry(key, child, e.getLeftChild()));
+					key = e.getKey();
+					child = e.getLeftChild();
+				}
+			}
+			parentEntry.setKey(key);
+			synchronized(parent) {
+				parent.updateEntry(parentEntry);
+			}
+			// a search that read the parent before its key went up finds the
+			// sibling without these entries and is sent right of its key
+			synchronized(rightSibling) {
+				for(BTreeEntry e : moving) {
+					rightSibling.deleteKeyAndLeftChild(e);
+				}
+			}
+		}
+		finally {
+			endMove(move);
+		}
+		updateParentPointers(tid, dirtypages, page);
 	}
 	
 	/**
@@ -713,12 +1165,28 @@ public class BTreeFile implements DbFile {
 			BTreeLeafPage leftPage, BTreeLeafPage rightPage, BTreeInternalPage parent, BTreeEntry parentEntry) 
 					throws DbException, IOException, TransactionAbortedException {
 
-		// some code goes here
-        //
-		// Move all the tuples from the right page to the left page, update
-		// the sibling pointers, and make the right page available for reuse.
-		// Delete the entry in the parent corresponding to the two pages that are merging -
-		// deleteParentEntry() will be useful here
+		ArrayList<Tuple> moving = new ArrayList<Tuple>();
+		Iterator<Tuple> it = rightPage.iterator();
+		while(it.hasNext()) {
+			moving.add(it.next());
+		}
+		for(Tuple t : moving) {
+			rightPage.deleteTuple(t);
+			leftPage.insertTuple(t);
+		}
+
+		// unlink the right page
+		BTreePageId nextId = rightPage.getRightSiblingId();
+		if(nextId != null) {
+			BTreeLeafPage next = (BTreeLeafPage) getPage(tid, dirtypages, nextId, Permissions.READ_WRITE);
+			next.setLeftSiblingId(leftPage.getId());
+		}
+		leftPage.setRightSiblingId(nextId);
+		rightPage.setLeftSiblingId(null);
+		rightPage.setRightSiblingId(null);
+
+		setEmptyPage(tid, dirtypages, rightPage.getId().getPageNumber());
+		deleteParentEntry(tid, dirtypages, leftPage, parent, parentEntry);
 	}
 
 	/**
@@ -745,13 +1213,34 @@ public class BTreeFile implements DbFile {
 			BTreeInternalPage leftPage, BTreeInternalPage rightPage, BTreeInternalPage parent, BTreeEntry parentEntry) 
 					throws DbException, IOException, TransactionAbortedException {
 		
-		// some code goes here
-        //
-        // Move all the entries from the right page to the left page, update
-		// the parent pointers of the children in the entries that were moved, 
-		// and make the right page available for reuse
-		// Delete the entry in the parent corresponding to the two pages that are merging -
-		// deleteParentEntry() will be useful here
+		ArrayList<BTreeEntry> moving = new ArrayList<BTreeEntry>();
+		Iterator<BTreeEntry> it = rightPage.iterator();
+		while(it.hasNext()) {
+			moving.add(it.next());
+		}
+
+		// pull the parent key down between the entries of the two pages. The
+		// left page gets the entries before the parent entry goes, and the
+		// right page is emptied after, so that a search reading the pages
+		// meanwhile finds the right child.
+		if(!moving.isEmpty()) {
+			BTreePageId child = leftPage.reverseIterator().next().getRightChild();
+			synchronized(leftPage) {
+				leftPage.insertEntry(new BTreeEntry(parentEntry.getKey(), child, moving.get(0).getLeftChild()));
+				for(BTreeEntry e : moving) {
+					leftPage.insertEntry(new BTreeEntry(e.getKey(), e.getLeftChild(), e.getRightChild()));
+				}
+			}
+		}
+		updateParentPointers(tid, dirtypages, leftPage);
+
+		deleteParentEntry(tid, dirtypages, leftPage, parent, parentEntry);
+		synchronized(rightPage) {
+			for(BTreeEntry e : moving) {
+				rightPage.deleteKeyAndLeftChild(e);
+			}
+		}
+		setEmptyPage(tid, dirtypages, rightPage.getId().getPageNumber());
 	}
 	
 	/**
@@ -776,22 +1265,41 @@ public class BTreeFile implements DbFile {
 			BTreePage leftPage, BTreeInternalPage parent, BTreeEntry parentEntry) 
 					throws DbException, IOException, TransactionAbortedException {		
 		
-		// delete the entry in the parent.  If
-		// the parent is below minimum occupancy, get some tuples from its siblings
-		// or merge with one of the siblings
-		parent.deleteKeyAndRightChild(parentEntry);
+		// If this is the last entry in the root, the parent (root node) should be
+		// deleted, and the merged page will become the new root. Point the root
+		// pointer at it first, so that searches never find the root empty.
+		// A search that read the parent before the entry goes may still reach
+		// the right child once the merge has emptied it.
+		BTreePageId rootPtrId = parent.getParentId();
+		BTreeRootPtrPage rootPtr = null;
+		if(parent.getNumEntries() == 1 && rootPtrId.pgcateg() == BTreePageId.ROOT_PTR) {
+			rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, rootPtrId, Permissions.READ_WRITE);
+		}
+		int[] move = beginMove(rootPtr, parent);
+		try {
+			if(rootPtr != null) {
+				leftPage.setParentId(rootPtrId);
+				synchronized(rootPtr) {
+					rootPtr.setRootId(leftPage.getId());
+				}
+			}
+
+			// delete the entry in the parent.  If
+			// the parent is below minimum occupancy, get some tuples from its siblings
+			// or merge with one of the siblings
+			synchronized(parent) {
+				parent.deleteKeyAndRightChild(parentEntry);
+			}
+		}
+		finally {
+			endMove(move);
+		}
 		int maxEmptySlots = parent.getMaxEntries() - parent.getMaxEntries()/2; // ceiling
 		if(parent.getNumEmptySlots() == parent.getMaxEntries()) {
 			// This was the last entry in the parent.
-			// In this case, the parent (root node) should be deleted, and the merged 
-			// page will become the new root
-			BTreePageId rootPtrId = parent.getParentId();
 			if(rootPtrId.pgcateg() != BTreePageId.ROOT_PTR) {
 				throw new DbException("attempting to delete a non-root node");
 			}
-			BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, rootPtrId, Permissions.READ_WRITE);
-			leftPage.setParentId(rootPtrId);
-			rootPtr.setRootId(leftPage.getId());
 
 			// release the parent page for reuse
 			setEmptyPage(tid, dirtypages, parent.getId().getPageNumber());
@@ -818,14 +1326,23 @@ public class BTreeFile implements DbFile {
 
 		BTreePageId pageId = new BTreePageId(tableid, t.getRecordId().getPageId().getPageNumber(),
 				BTreePageId.LEAF);
-		BTreeLeafPage page = (BTreeLeafPage) getPage(tid, dirtypages, pageId, Permissions.READ_WRITE);
-		page.deleteTuple(t);
-
-		// if the page is below minimum occupancy, get some tuples from its siblings
-		// or merge with one of the siblings
-		int maxEmptySlots = page.getMaxTuples() - page.getMaxTuples()/2; // ceiling
-		if(page.getNumEmptySlots() > maxEmptySlots) { 
-			handleMinOccupancyPage(tid, dirtypages, page);
+		boolean done = false;
+		try {
+			BTreeLeafPage page = (BTreeLeafPage) getPage(tid, dirtypages, pageId, Permissions.READ_WRITE);
+			page.deleteTuple(t);
+
+			// if the page is below minimum occupancy, get some tuples from its siblings
+			// or merge with one of the siblings
+			int maxEmptySlots = page.getMaxTuples() - page.getMaxTuples()/2; // ceiling
+			if(page.getNumEmptySlots() > maxEmptySlots) { 
+				handleMinOccupancyPage(tid, dirtypages, page);
+			}
+			done = true;
+		}
+		finally {
+			if(!done) {
+				markDirtied(tid, dirtypages);
+			}
 		}
 
 		ArrayList<Page> dirtyPagesArr = new ArrayList<Page>();
@@ -845,6 +1362,18 @@ public class BTreeFile implements DbFile {
 	 * @throws TransactionAbortedException
 	 */
 	BTreeRootPtrPage getRootPtrPage(TransactionId tid, HashMap<PageId, Page> dirtypages) throws DbException, IOException, TransactionAbortedException {
+		createIfEmpty();
+
+		// get a read lock on the root pointer page
+		return (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_ONLY);
+	}
+
+	/**
+	 * Create the root pointer page and root page if the file is empty.
+	 * 
+	 * @throws IOException
+	 */
+	private void createIfEmpty() throws IOException {
 		synchronized(this) {
 			if(f.length() == 0) {
 				// create the root pointer page and the root page
@@ -857,9 +1386,41 @@ public class BTreeFile implements DbFile {
 				bw.close();
 			}
 		}
+	}
 
-		// get a read lock on the root pointer page
-		return (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_ONLY);
+	/**
+	 * Read the id of the root page under the latch of the root pointer page, without
+	 * locking it, the way searches read internal pages. Used by the BTreeFile iterators.
+	 * 
+	 * @param tid - the transaction id
+	 * @return the id of the root page, or null if the tree has none yet
+	 * @throws DbException
+	 * @throws TransactionAbortedException
+	 */
+	BTreePageId getRootId(TransactionId tid) throws DbException, TransactionAbortedException {
+		return getRootId(tid, new HashMap<PageId, Page>());
+	}
+
+	/**
+	 * Read the id of the root page under the latch of the root pointer page, without
+	 * locking it, unless this transaction has the root pointer page in dirtypages.
+	 * 
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @return the id of the root page, or null if the tree has none yet
+	 * @throws DbException
+	 * @throws TransactionAbortedException
+	 */
+	private BTreePageId getRootId(TransactionId tid, HashMap<PageId, Page> dirtypages)
+			throws DbException, TransactionAbortedException {
+		BTreePageId rootPtrId = BTreeRootPtrPage.getId(tableid);
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) dirtypages.get(rootPtrId);
+		if(rootPtr == null) {
+			rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPageUnlocked(tid, rootPtrId);
+		}
+		synchronized(rootPtr) {
+			return rootPtr.getRootId();
+		}
 	}
 
 	/**
@@ -1096,11 +1657,9 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 	 * Open this iterator by getting an iterator on the first leaf page
 	 */
 	public void open() throws DbException, TransactionAbortedException {
-		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
-				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
-		BTreePageId root = rootPtr.getRootId();
+		BTreePageId root = f.getRootId(tid);
 		curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, null);
-		it = curp.iterator();
+		it = curp == null ? null : curp.iterator();
 	}
 
 	/**
@@ -1181,9 +1740,7 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 	 * for the given predicate operation
 	 */
 	public void open() throws DbException, TransactionAbortedException {
-		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
-				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
-		BTreePageId root = rootPtr.getRootId();
+		BTreePageId root = f.getRootId(tid);
 		if(ipred.getOp() == Op.EQUALS || ipred.getOp() == Op.GREATER_THAN 
 				|| ipred.getOp() == Op.GREATER_THAN_OR_EQ) {
 			curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, ipred.getField());
@@ -1191,7 +1748,7 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 		else {
 			curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, null);
 		}
-		it = curp.iterator();
+		it = curp == null ? null : curp.iterator();
 	}
 
 	/**
@@ -335,6 +335,204 @@ public class BTreeFileEncoder {
 		return bf;
 	}
 
+	/** Default fraction of each page filled by {@link #bulkLoad}. */
+	public static final double DEFAULT_FILL_FACTOR = 1.0;
+
+	/**
+	 * Bulk load a B+ tree from a text file: the file is converted to a heap
+	 * file first, then loaded with {@link #bulkLoad(OpIterator, File, int, double)}.
+	 * 
+	 * @param inFile - the raw text file containing the tuples
+	 * @param hFile - the file to temporarily store the data as a heap file on disk
+	 * @param bFile - the file on disk to back the resulting BTreeFile
+	 * @param keyField - the index of the key field for this B+ tree
+	 * @param numFields - the number of fields in each tuple
+	 * @param fillFactor - the fraction of each page to fill, in (0, 1]
+	 * @return the BTreeFile
+	 */
+	public static BTreeFile bulkLoad(File inFile, File hFile, File bFile,
+			int keyField, int numFields, double fillFactor)
+					throws IOException, DbException, TransactionAbortedException {
+		HeapFileEncoder.convert(inFile, hFile, BufferPool.getPageSize(), numFields);
+		HeapFile heapf = Utility.openHeapFile(numFields, hFile);
+		TransactionId tid = new TransactionId();
+		BTreeFile bf = bulkLoad(new SeqScan(tid, heapf.getId(), null), bFile, keyField, fillFactor);
+		Database.getBufferPool().transactionComplete(tid);
+		return bf;
+	}
+
+	/**
+	 * Bulk load a B+ tree bottom-up. The input is sorted on the key field
+	 * (externally, if it does not fit in memory) and written out sequentially
+	 * as packed leaf pages followed by each level of internal pages, with all
+	 * parent and sibling pointers filled in, so no page is ever split or read
+	 * back. Pages are filled to at least fillFactor of their capacity, with
+	 * tuples spread evenly so that no page is much emptier than the others;
+	 * a fill factor below 1 leaves room for later inserts. A fill factor
+	 * below 0.5 is raised to 0.5, so that every page but the root is at
+	 * least half full, as BTreeFile keeps them.
+	 * <p>
+	 * bFile is overwritten, and must not have pages cached in the buffer pool.
+	 * The new BTreeFile is added to the catalog.
+	 * 
+	 * @param input - the tuples to load, in any order
+	 * @param bFile - the file on disk to back the resulting BTreeFile
+	 * @param keyField - the index of the key field for this B+ tree
+	 * @param fillFactor - the fraction of each page to fill, in (0, 1];
+	 *            values below 0.5 are treated as 0.5
+	 * @return the BTreeFile
+	 */
+	public static BTreeFile bulkLoad(OpIterator input, File bFile, int keyField, double fillFactor)
+			throws IOException, DbException, TransactionAbortedException {
+		if (fillFactor <= 0 || fillFactor > 1)
+			throw new IllegalArgumentException("fill factor must be in (0, 1]");
+		fillFactor = Math.max(fillFactor, 0.5);
+		TupleDesc td = input.getTupleDesc();
+		int numFields = td.numFields();
+		Type[] typeAr = new Type[numFields];
+		int nrecbytes = 0;
+		for (int i = 0; i < numFields; i++) {
+			typeAr[i] = td.getFieldType(i);
+			nrecbytes += typeAr[i].getLen();
+		}
+		Type keyType = typeAr[keyField];
+		int npagebytes = BufferPool.getPageSize();
+
+		// same capacities as in convert above
+		int leafpointerbytes = 3 * BTreeLeafPage.INDEX_SIZE; 
+		int nrecords = (npagebytes * 8 - leafpointerbytes * 8) /  (nrecbytes * 8 + 1);
+		int nentrybytes = keyType.getLen() + BTreeInternalPage.INDEX_SIZE;
+		int internalpointerbytes = 2 * BTreeLeafPage.INDEX_SIZE + 1; 
+		int nentries = (npagebytes * 8 - internalpointerbytes * 8 - 1) /  (nentrybytes * 8 + 1);
+		// tuples per leaf and children per internal page to aim for; at
+		// least three children, so no internal page is left with only one
+		int perLeaf = Math.max(1, (int) (nrecords * fillFactor));
+		int perNode = Math.max(3, (int) (nentries * fillFactor) + 1);
+
+		OrderBy sorted = new OrderBy(keyField, true, input);
+		sorted.open();
+		long ntuples = 0;
+		while (sorted.hasNext()) {
+			sorted.next();
+			ntuples++;
+		}
+		sorted.rewind();
+
+		// lay out the tree: levels[h] is the number of pages on level h
+		// (0 = leaves), and base[h] the page number of the first of them.
+		// Pages are numbered level by level, so the root is the last page.
+		ArrayList<Integer> levels = new ArrayList<Integer>();
+		if (ntuples > 0) {
+			long nleaves = pagesFor(ntuples, nrecords, perLeaf);
+			if (nleaves > Integer.MAX_VALUE)
+				throw new DbException("too many tuples to bulk load");
+			levels.add((int) nleaves);
+			while (levels.get(levels.size() - 1) > 1) {
+				int children = levels.get(levels.size() - 1);
+				levels.add((int) pagesFor(children, nentries + 1, perNode));
+			}
+		}
+		int[] base = new int[levels.size() + 1];
+		base[0] = 1;
+		for (int h = 0; h < levels.size(); h++)
+			base[h + 1] = base[h] + levels.get(h);
+
+		BTreeFile bf = new BTreeFile(bFile, keyField, td);
+		int tableid = bf.getId();
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(bFile), npagebytes * 16));
+		try {
+			int root = levels.isEmpty() ? 0 : base[levels.size()] - 1;
+			int rootCategory = levels.size() > 1 ? BTreePageId.INTERNAL : BTreePageId.LEAF;
+			out.write(convertToRootPtrPage(root, rootCategory, 0));
+
+			// the leaves, remembering the first key of each but the first
+			ArrayList<Field> separators = new ArrayList<Field>();
+			if (!levels.isEmpty()) {
+				int nleaves = levels.get(0);
+				ArrayList<Tuple> page = new ArrayList<Tuple>();
+				for (int i = 0; i < nleaves; i++) {
+					page.clear();
+					int n = groupSize(i, ntuples, nleaves);
+					for (int t = 0; t < n; t++)
+						page.add(sorted.next());
+					if (i > 0)
+						separators.add(page.get(0).getField(keyField));
+					byte[] data = convertToLeafPage(page, npagebytes, numFields, typeAr, keyField);
+					putInt(data, 0, levels.size() > 1 ? base[1] + groupOf(i, nleaves, levels.get(1)) : 0);
+					putInt(data, 4, i > 0 ? base[0] + i - 1 : 0);
+					putInt(data, 8, i < nleaves - 1 ? base[0] + i + 1 : 0);
+					out.write(data);
+				}
+			}
+
+			// each level of internal pages, from the separators of the level below
+			for (int h = 1; h < levels.size(); h++) {
+				int children = levels.get(h - 1);
+				int nodes = levels.get(h);
+				int childCategory = h == 1 ? BTreePageId.LEAF : BTreePageId.INTERNAL;
+				ArrayList<Field> upper = new ArrayList<Field>();
+				int first = 0;
+				for (int j = 0; j < nodes; j++) {
+					int n = groupSize(j, children, nodes);
+					if (j > 0)
+						upper.add(separators.get(first - 1));
+					ArrayList<BTreeEntry> entries = new ArrayList<BTreeEntry>();
+					for (int k = first + 1; k < first + n; k++) {
+						entries.add(new BTreeEntry(separators.get(k - 1),
+								new BTreePageId(tableid, base[h - 1] + k - 1, childCategory),
+								new BTreePageId(tableid, base[h - 1] + k, childCategory)));
+					}
+					byte[] data = convertToInternalPage(entries, npagebytes, keyType, childCategory);
+					putInt(data, 0, h + 1 < levels.size() ? base[h + 1] + groupOf(j, nodes, levels.get(h + 1)) : 0);
+					out.write(data);
+					first += n;
+				}
+				separators = upper;
+			}
+		} finally {
+			out.close();
+			sorted.close();
+		}
+
+		Database.getCatalog().addTable(bf, UUID.randomUUID().toString());
+		return bf;
+	}
+
+	/**
+	 * The number of pages to spread the given number of items over, so that
+	 * each page holds at least target items but no more than capacity: as
+	 * many pages as target items fill, unless that overfills them.  Either
+	 * way, each page but a lone root is at least half full when target is.
+	 */
+	private static long pagesFor(long items, int capacity, int target) {
+		long full = (items + capacity - 1) / capacity;
+		return Math.max(1, Math.max(full, items / target));
+	}
+
+	/**
+	 * Size of group i when total items are spread as evenly as possible
+	 * over the given number of groups (the first total % groups get one extra).
+	 */
+	private static int groupSize(int i, long total, int groups) {
+		return (int) (total / groups + (i < total % groups ? 1 : 0));
+	}
+
+	/** The group that item i falls into, for the spreading of groupSize. */
+	private static int groupOf(int i, int total, int groups) {
+		int q = total / groups, r = total % groups;
+		if (i < r * (q + 1))
+			return i / (q + 1);
+		return r + (i - r * (q + 1)) / q;
+	}
+
+	private static void putInt(byte[] data, int offset, int v) {
+		data[offset] = (byte) (v >>> 24);
+		data[offset + 1] = (byte) (v >>> 16);
+		data[offset + 2] = (byte) (v >>> 8);
+		data[offset + 3] = (byte) v;
+	}
+
 	/**
 	 * Set all the right sibling pointers by following the left sibling pointers
 	 * 
@@ -0,0 +1,50 @@
+package simpledb;
+import java.io.Serializable;
+
+/**
+ * BatchOpIterator is the batch-at-a-time counterpart of {@link OpIterator}:
+ * instead of one Tuple per call, nextBatch returns a column-oriented
+ * {@link TupleBatch}. Operators that implement both interfaces share open,
+ * rewind, close and getTupleDesc between them, but a caller should use
+ * either next() or nextBatch() on a given operator between open and close,
+ * not both.
+ * <p>
+ * Use {@link RowToBatchAdapter} to read a plain OpIterator in batches, and
+ * {@link BatchToRowAdapter} to hand a BatchOpIterator to code that expects
+ * an OpIterator.
+ */
+public interface BatchOpIterator extends Serializable {
+  /**
+   * Opens the iterator. This must be called before any of the other methods.
+   * @throws DbException when there are problems opening/accessing the database.
+   */
+  public void open()
+      throws DbException, TransactionAbortedException;
+
+  /**
+   * Returns the next batch of tuples. Batches are never empty.
+   *
+   * @return the next batch, or null if there are no more tuples.
+   * @throws IllegalStateException If the iterator has not been opened
+   */
+  public TupleBatch nextBatch() throws DbException, TransactionAbortedException;
+
+  /**
+   * Resets the iterator to the start.
+   * @throws DbException when rewind is unsupported.
+   * @throws IllegalStateException If the iterator has not been opened
+   */
+  public void rewind() throws DbException, TransactionAbortedException;
+
+  /**
+   * Returns the TupleDesc of the batches returned by this iterator.
+   * @return the TupleDesc associated with this BatchOpIterator.
+   */
+  public TupleDesc getTupleDesc();
+
+  /**
+   * Closes the iterator.
+   */
+  public void close();
+
+}
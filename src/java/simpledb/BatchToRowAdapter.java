@@ -0,0 +1,62 @@
+package simpledb;
+
+/**
+ * BatchToRowAdapter presents a BatchOpIterator as an ordinary OpIterator,
+ * returning the rows of each batch one at a time.
+ */
+public class BatchToRowAdapter extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    private BatchOpIterator child;
+    private transient TupleBatch batch;
+    private transient int row;
+
+    public BatchToRowAdapter(BatchOpIterator child) {
+        this.child = child;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return child.getTupleDesc();
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+        child.open();
+        batch = null;
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        child.close();
+        batch = null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        child.rewind();
+        batch = null;
+    }
+
+    protected Tuple fetchNext() throws DbException, TransactionAbortedException {
+        while (batch == null || row >= batch.size()) {
+            batch = child.nextBatch();
+            row = 0;
+            if (batch == null)
+                return null;
+        }
+        return batch.getTuple(row++);
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        if (child instanceof OpIterator)
+            return new OpIterator[] { (OpIterator) child };
+        return new OpIterator[0];
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        if (children.length > 0 && children[0] instanceof BatchOpIterator)
+            this.child = (BatchOpIterator) children[0];
+    }
+}
@@ -3,11 +3,17 @@ package simpledb;
 import java.io.*;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.WeakHashMap;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * BufferPool manages the reading and writing of pages into memory from
@@ -17,6 +23,29 @@ import java.util.concurrent.locks.ReentrantReadWriteLock;
  * The BufferPool is also responsible for locking;  when a transaction fetches
  * a page, BufferPool checks that the transaction has the appropriate
  * locks to read/write the page.
+ * <p>
+ * The page table is a ConcurrentHashMap, so a hit never takes a lock.
+ * Misses, flushes and evictions lock only the stripe that the page id
+ * hashes to; two misses on different stripes proceed in parallel.
+ * <p>
+ * Commits do not force pages to disk: the pages a transaction dirtied are
+ * logged when it commits and stay dirty in the pool.  A background
+ * {@link PageWriter} writes such committed pages out ahead of eviction
+ * once the pool is nearly full, so that evictions rarely have to write.
+ * <p>
+ * Locks are granted by a {@link LockManager}.  getPage locks whole pages;
+ * getTuplePage locks single rows, so that transactions updating different
+ * rows of a page do not wait for each other.  Changes to a page by
+ * row-locked transactions are made while holding the page object's
+ * monitor (the page latch) and are logged at once, each under the
+ * transaction that made it.  Flushes, evictions and rollbacks take the
+ * latch too, after the page's stripe lock.
+ * <p>
+ * Read-only transactions that begin with {@link #beginSnapshot} take no
+ * locks at all.  getPage hands them a private copy of each page as it was
+ * committed when they began, rebuilt from the page's logged image and the
+ * changes kept in a {@link VersionStore}, so long scans neither block
+ * writers nor wait for them.
  * 
  * @Threadsafe, all fields are final
  */
@@ -31,18 +60,203 @@ public class BufferPool {
     constructor instead. */
     public static final int DEFAULT_PAGES = 50;
 
-    private ConcurrentHashMap<PageId, Page> pages;
+    /** Number of lock stripes protecting the page table. */
+    public static final int NUM_STRIPES = 16;
+
+    /** Fraction of the pool in use at which misses wake the page writer. */
+    public static final double WRITE_AHEAD_THRESHOLD = 0.9;
+
+    private final int numPages;
+
+    private final ConcurrentHashMap<PageId, Page> pages;
+
+    /** Number of resident pages plus slots reserved by in-flight misses. */
+    private final AtomicInteger numResident;
+
+    private final ReentrantLock[] stripes;
+
+    private final ReplacementPolicy policy;
+
+    private final Prefetcher prefetcher;
 
-    private ReadWriteLock rwLock;
+    private final PageWriter writer;
+
+    private final LockManager lockManager;
+
+    private final VersionStore versions;
+
+    /** For each dirty page that has been logged, the LSN its last update
+        ends at; the log must be on disk up to there before it is written. */
+    private final ConcurrentHashMap<PageId, Long> pageLSNs;
+    // the page objects dropped from the pool, by identity (pages do not
+    // override equals): a DbFile may still hand one back to cacheDirtied
+    private final Set<Page> dropped = Collections.synchronizedSet(
+            Collections.newSetFromMap(new WeakHashMap<Page, Boolean>()));
+
+    private final int writeAheadPages;
+    private final AtomicLong evictions = new AtomicLong(0);
+    private final AtomicLong dirtyEvictions = new AtomicLong(0);
+    private final AtomicLong evictionStallNanos = new AtomicLong(0);
+    // rollbacks of transactions that have started, and that have finished
+    private final AtomicLong rollbacksStarted = new AtomicLong(0);
+    private final AtomicLong rollbacksDone = new AtomicLong(0);
 
     /**
-     * Creates a BufferPool that caches up to numPages pages.
+     * Creates a BufferPool that caches up to numPages pages, using LRU-2
+     * to choose which page to evict.
      *
      * @param numPages maximum number of pages in this buffer pool.
      */
     public BufferPool(int numPages) {
+        this(numPages, new LruKReplacementPolicy(numPages));
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     * @param policy the policy used to choose which page to evict
+     */
+    public BufferPool(int numPages, ReplacementPolicy policy) {
+        this.numPages = numPages;
         this.pages = new ConcurrentHashMap<>(numPages);
-        this.rwLock = new ReentrantReadWriteLock();
+        this.numResident = new AtomicInteger(0);
+        this.stripes = new ReentrantLock[NUM_STRIPES];
+        for (int i = 0; i < NUM_STRIPES; i++) {
+            this.stripes[i] = new ReentrantLock();
+        }
+        this.policy = policy;
+        this.prefetcher = new Prefetcher(this, Prefetcher.DEFAULT_WINDOW);
+        this.writer = new PageWriter(this);
+        this.lockManager = new LockManager();
+        this.versions = new VersionStore();
+        this.pageLSNs = new ConcurrentHashMap<>();
+        this.writeAheadPages = (int) (numPages * WRITE_AHEAD_THRESHOLD);
+    }
+
+    /** @return the lock guarding the page table partition that pid hashes to */
+    private Lock stripeFor(PageId pid) {
+        return this.stripes[(pid.hashCode() & 0x7fffffff) % NUM_STRIPES];
+    }
+
+    /**
+     * @return the replacement policy of this buffer pool, which also keeps
+     *         its hit/miss counters
+     */
+    public ReplacementPolicy getReplacementPolicy() {
+        return this.policy;
+    }
+
+    /**
+     * @return the sequential read-ahead of this buffer pool; use
+     *         {@link Prefetcher#setWindow} to size or disable it
+     */
+    public Prefetcher getPrefetcher() {
+        return this.prefetcher;
+    }
+
+    /**
+     * @return the background writer that checkpoints use to trickle dirty
+     *         pages of this buffer pool out to disk
+     */
+    public PageWriter getPageWriter() {
+        return this.writer;
+    }
+
+    /** @return the lock manager that grants the locks on pages and rows */
+    public LockManager getLockManager() {
+        return this.lockManager;
+    }
+
+    /** @return the page versions kept for the snapshots of read-only
+        transactions */
+    public VersionStore getVersionStore() {
+        return this.versions;
+    }
+
+    /**
+     * Begin a snapshot for a read-only transaction: from now on, tid reads
+     * the pages as they were committed at this moment, without locks, and
+     * may not change any.  transactionComplete ends the snapshot.
+     */
+    public void beginSnapshot(TransactionId tid) {
+        this.versions.beginSnapshot(tid);
+    }
+
+    /** @return the number of pages in the pool or being read in, never
+        more than its capacity */
+    int getNumResident() {
+        return this.numResident.get();
+    }
+
+    /** @return the number of pages in the pool's page table */
+    int getNumCached() {
+        return this.pages.size();
+    }
+
+    /** @return the number of pages evicted */
+    public long getEvictions() {
+        return this.evictions.get();
+    }
+
+    /**
+     * @return the number of evictions that stalled to write a dirty page
+     *         on behalf of the miss that caused them
+     */
+    public long getDirtyEvictions() {
+        return this.dirtyEvictions.get();
+    }
+
+    /** @return the total time misses spent writing dirty evicted pages */
+    public long getEvictionStallNanos() {
+        return this.evictionStallNanos.get();
+    }
+
+    /**
+     * @return a stamp to take before reading pages without locks, and to
+     *         pass to {@link #rolledBackSince} afterwards
+     */
+    long getRollbackStamp() {
+        return this.rollbacksDone.get();
+    }
+
+    /**
+     * @return whether a rollback was running when stamp was taken, or has
+     *         started since; pages read without locks in between may hold
+     *         a mix of rolled back and not yet rolled back changes
+     */
+    boolean rolledBackSince(long stamp) {
+        return this.rollbacksStarted.get() != stamp;
+    }
+
+    /** Start rolling back a transaction's pages; see rolledBackSince. */
+    void beginRollback() {
+        this.rollbacksStarted.incrementAndGet();
+    }
+
+    /** Finish the rollback started by beginRollback. */
+    void endRollback() {
+        this.rollbacksDone.incrementAndGet();
+    }
+
+    /** @return the ids of the pages that are dirty right now */
+    ArrayList<PageId> dirtyPageIds() {
+        ArrayList<PageId> dirty = new ArrayList<PageId>();
+        for (Page page : this.pages.values()) {
+            if (page.isDirty() != null)
+                dirty.add(page.getId());
+        }
+        return dirty;
+    }
+
+    /** @return the ids of the pages that tid has dirtied */
+    ArrayList<PageId> dirtyPageIds(TransactionId tid) {
+        ArrayList<PageId> dirty = new ArrayList<PageId>();
+        for (Page page : this.pages.values()) {
+            if (tid.equals(page.isDirty()))
+                dirty.add(page.getId());
+        }
+        return dirty;
     }
     
     public static int getPageSize() {
@@ -76,18 +290,203 @@ public class BufferPool {
      */
     public Page getPage(TransactionId tid, PageId pid, Permissions perm)
         throws TransactionAbortedException, DbException {
-        rwLock.readLock().lock();
+        if (this.versions.isSnapshot(tid))
+            return getSnapshotPage(tid, pid, perm);
+        this.lockManager.lockPage(tid, pid, perm);
+        return fetchPage(pid);
+    }
+
+    /**
+     * Build the version of a page that a read-only transaction's snapshot
+     * sees, as a copy that is not cached.
+     */
+    private Page getSnapshotPage(TransactionId tid, PageId pid, Permissions perm)
+        throws DbException {
+        if (perm == Permissions.READ_WRITE)
+            throw new DbException("transaction " + tid.getId() + " is read-only");
+        while (true) {
+            Page page = fetchPage(pid);
+            byte[] data;
+            synchronized (page) {
+                // a page rolled back since it was fetched has a stale
+                // logged image
+                if (!isResident(page))
+                    continue;
+                data = this.versions.rebuild(tid, pid, page.getBeforeImage().getPageData());
+            }
+            try {
+                return LogFile.makePage(page.getClass().getName(), pid, data);
+            } catch (IOException e) {
+                throw new DbException("could not rebuild page " + pid + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Retrieve a page without locking it, for searches that only read it
+     * under its latch, as BTreeFile does with internal pages.  The page may
+     * hold changes of running transactions.
+     */
+    Page getPageUnlocked(TransactionId tid, PageId pid) throws DbException {
+        if (this.versions.isSnapshot(tid))
+            return getSnapshotPage(tid, pid, Permissions.READ_ONLY);
+        return fetchPage(pid);
+    }
+
+    /**
+     * Retrieve the page holding the specified tuple, locking only the tuple
+     * (and taking intention locks on its page and table).  The caller may
+     * read or, with READ_WRITE, change only that tuple of the page, and
+     * must change it under the page latch, as HeapFile.deleteTuple does.
+     *
+     * @param tid the ID of the transaction requesting the page
+     * @param rid the tuple to lock
+     * @param perm the requested permissions on the tuple
+     */
+    public Page getTuplePage(TransactionId tid, RecordId rid, Permissions perm)
+        throws TransactionAbortedException, DbException {
+        if (this.versions.isSnapshot(tid))
+            return getSnapshotPage(tid, rid.getPageId(), perm);
+        this.lockManager.lockRecord(tid, rid, perm);
+        return fetchPage(rid.getPageId());
+    }
+
+    /**
+     * Retrieve a page to insert a tuple into, taking only intention locks.
+     * The caller must then lock the slot it fills with
+     * {@link LockManager#tryLockRecord}.
+     */
+    Page getPageForInsert(TransactionId tid, PageId pid)
+        throws TransactionAbortedException, DbException {
+        if (this.versions.isSnapshot(tid))
+            throw new DbException("transaction " + tid.getId() + " is read-only");
+        this.lockManager.lockPageIntention(tid, pid, Permissions.READ_WRITE);
+        return fetchPage(pid);
+    }
+
+    /**
+     * @return whether page is the pool's copy of its page; a page that was
+     *         rolled back or evicted since it was fetched must be fetched
+     *         again before it is changed.  Call with the page latch held.
+     */
+    boolean isResident(Page page) {
+        return this.pages.get(page.getId()) == page;
+    }
 
+    /**
+     * Log a change just made to a page by a row-locked transaction and mark
+     * the page dirty.  Call with the page latch held, so that no other
+     * change is logged under tid.  A transaction that was not started
+     * through Transaction.start begins in the log here, so that its
+     * changes can be rolled back like any other.
+     */
+    void logRowUpdate(TransactionId tid, Page page) throws IOException {
+        LogFile log = Database.getLogFile();
+        log.logXactionBeginIfNew(tid);
+        logPage(log, tid, page);
+        page.markDirty(true, tid);
+    }
+
+    /** Look up a page, reading it in if it is not resident. */
+    private Page fetchPage(PageId pid) throws DbException {
         Page result = this.pages.get(pid);
-        if (result == null) {
-            if (this.pages.size() >= DEFAULT_PAGES)
-                evictPage();
-            DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
-            result = file.readPage(pid);
-            this.pages.put(pid, result);
+        if (result != null) {
+            this.policy.pageHit(pid);
+            return result;
+        }
+
+        Lock stripe = stripeFor(pid);
+        stripe.lock();
+        try {
+            result = this.pages.get(pid);
+            if (result != null) {
+                this.policy.pageHit(pid);
+                return result;
+            }
+            reserveSlot();
+            try {
+                DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
+                result = file.readPage(pid);
+                this.pages.put(pid, result);
+            } catch (RuntimeException e) {
+                this.numResident.decrementAndGet();
+                throw e;
+            }
+            this.policy.pageAdmitted(pid);
+            return result;
+        } finally {
+            stripe.unlock();
+        }
+    }
+
+    /**
+     * Read a page into the buffer pool ahead of any request for it. No locks
+     * are taken on behalf of a transaction; whoever later asks for the page
+     * goes through getPage as usual.
+     *
+     * @param pid the page to read
+     * @return true if the page was read, false if it was already resident or
+     *         there was no room for it without writing a dirty page
+     */
+    boolean prefetchPage(PageId pid) {
+        if (this.pages.containsKey(pid))
+            return false;
+        Lock stripe = stripeFor(pid);
+        stripe.lock();
+        try {
+            if (this.pages.containsKey(pid) || !reserveCleanSlot())
+                return false;
+            try {
+                DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
+                this.pages.put(pid, file.readPage(pid));
+            } catch (RuntimeException e) {
+                this.numResident.decrementAndGet();
+                return false;
+            }
+            this.policy.pagePrefetched(pid);
+            return true;
+        } finally {
+            stripe.unlock();
+        }
+    }
+
+    /**
+     * Reserve room for one more page, evicting pages until there is some.
+     */
+    private void reserveSlot() throws DbException {
+        while (true) {
+            int n = this.numResident.get();
+            if (n >= this.writeAheadPages)
+                this.writer.wakeUp();
+            if (n < this.numPages) {
+                if (this.numResident.compareAndSet(n, n + 1))
+                    return;
+            } else {
+                evictPage(false);
+            }
+        }
+    }
+
+    /**
+     * Reserve room for one more page without writing any: take a free slot
+     * or evict a clean page.
+     * @return false if every page is dirty or in use by another thread
+     */
+    private boolean reserveCleanSlot() {
+        while (true) {
+            int n = this.numResident.get();
+            if (n < this.numPages) {
+                if (this.numResident.compareAndSet(n, n + 1))
+                    return true;
+            } else {
+                try {
+                    if (!evictPage(true))
+                        return false;
+                } catch (DbException e) {
+                    return false;
+                }
+            }
         }
-        rwLock.readLock().unlock();
-        return result;
     }
 
     /**
@@ -100,8 +499,7 @@ public class BufferPool {
      * @param pid the ID of the page to unlock
      */
     public  void releasePage(TransactionId tid, PageId pid) {
-        // some code goes here
-        // not necessary for lab1|lab2
+        this.lockManager.releasePage(tid, pid);
     }
 
     /**
@@ -110,28 +508,65 @@ public class BufferPool {
      * @param tid the ID of the transaction requesting the unlock
      */
     public void transactionComplete(TransactionId tid) throws IOException {
-        // some code goes here
-        // not necessary for lab1|lab2
+        transactionComplete(tid, true);
     }
 
     /** Return true if the specified transaction has a lock on the specified page */
     public boolean holdsLock(TransactionId tid, PageId p) {
-        // some code goes here
-        // not necessary for lab1|lab2
-        return false;
+        return this.lockManager.holdsLock(tid, p);
     }
 
     /**
      * Commit or abort a given transaction; release all locks associated to
      * the transaction.
+     * <p>
+     * On commit, pages whose changes by tid were never logged are written
+     * out, since no log record could redo them; logged pages stay dirty.
+     * A transaction that is still active in the log, because it wrote
+     * rows without going through Transaction, is finished there too: on
+     * commit its pages are logged and a COMMIT record forced; on abort
+     * LogFile.logAbort rolls it back, including the pages that were stolen
+     * to disk before it finished.  Otherwise, on abort, the changes tid
+     * made since its pages were last logged are dropped.
      *
      * @param tid the ID of the transaction requesting the unlock
      * @param commit a flag indicating whether we should commit or abort
      */
     public void transactionComplete(TransactionId tid, boolean commit)
         throws IOException {
-        // some code goes here
-        // not necessary for lab1|lab2
+        if (this.versions.endSnapshot(tid))
+            return; // read-only: nothing to write and no locks
+        try {
+            LogFile log = Database.getLogFile();
+            if (log.isActive(tid)) {
+                if (commit) {
+                    logPages(tid);
+                    log.logCommit(tid);
+                } else {
+                    log.logAbort(tid);
+                }
+            }
+            if (commit) {
+                for (PageId pid : dirtyPageIds(tid)) {
+                    if (!this.pageLSNs.containsKey(pid))
+                        flushPage(pid);
+                }
+            } else {
+                beginRollback();
+                try {
+                    for (PageId pid : dirtyPageIds(tid))
+                        rollbackPage(tid, pid, new ArrayList<LogFile.UpdateRecord>());
+                } finally {
+                    endRollback();
+                }
+            }
+        } finally {
+            if (commit)
+                this.versions.committed(tid);
+            else
+                this.versions.aborted(tid);
+            this.lockManager.releaseAll(tid);
+        }
     }
 
     /**
@@ -151,8 +586,10 @@ public class BufferPool {
      */
     public void insertTuple(TransactionId tid, int tableId, Tuple t)
         throws DbException, IOException, TransactionAbortedException {
-        // some code goes here
-        // not necessary for lab1
+        if (this.versions.isSnapshot(tid))
+            throw new DbException("transaction " + tid.getId() + " is read-only");
+        DbFile file = Database.getCatalog().getDatabaseFile(tableId);
+        cacheDirtied(tid, file.insertTuple(tid, t));
     }
 
     /**
@@ -170,8 +607,43 @@ public class BufferPool {
      */
     public  void deleteTuple(TransactionId tid, Tuple t)
         throws DbException, IOException, TransactionAbortedException {
-        // some code goes here
-        // not necessary for lab1
+        RecordId rid = t.getRecordId();
+        if (rid == null)
+            throw new DbException("tuple has no record id");
+        if (this.versions.isSnapshot(tid))
+            throw new DbException("transaction " + tid.getId() + " is read-only");
+        DbFile file = Database.getCatalog().getDatabaseFile(rid.getPageId().getTableId());
+        cacheDirtied(tid, file.deleteTuple(tid, t));
+    }
+
+    /** Mark the pages a DbFile changed for tid dirty and make sure they
+        are the pool's copies.  A page the pool dropped after the change,
+        by writing it out or rolling it back, is not cached again, since
+        a copy read in since may hold later changes. */
+    private void cacheDirtied(TransactionId tid, List<Page> dirtied) throws DbException {
+        for (Page page : dirtied) {
+            PageId pid = page.getId();
+            synchronized (page) {
+                if (isResident(page)) {
+                    page.markDirty(true, tid);
+                    continue;
+                }
+            }
+            if (this.dropped.contains(page))
+                continue;
+            Lock stripe = stripeFor(pid);
+            stripe.lock();
+            try {
+                if (!this.pages.containsKey(pid)) {
+                    reserveSlot();
+                    this.policy.pageAdmitted(pid);
+                }
+                page.markDirty(true, tid);
+                this.pages.put(pid, page);
+            } finally {
+                stripe.unlock();
+            }
+        }
     }
 
     /**
@@ -179,10 +651,30 @@ public class BufferPool {
      * NB: Be careful using this routine -- it writes dirty data to disk so will
      *     break simpledb if running in NO STEAL mode.
      */
-    public synchronized void flushAllPages() throws IOException {
-        // some code goes here
-        // not necessary for lab1
+    public void flushAllPages() throws IOException {
+        for (PageId pid : this.pages.keySet()) {
+            flushPage(pid);
+        }
+        saveSideMaps();
+    }
 
+    /**
+     * Save the free space and zone maps of every heap and column file in
+     * the catalog to their side files.
+     * @see FreeSpaceMap
+     * @see ZoneMap
+     */
+    void saveSideMaps() throws IOException {
+        Catalog catalog = Database.getCatalog();
+        Iterator<Integer> tables = catalog.tableIdIterator();
+        while (tables.hasNext()) {
+            DbFile f = catalog.getDatabaseFile(tables.next());
+            if (f instanceof HeapFile) {
+                ((HeapFile) f).getFreeSpaceMap().save();
+                ((HeapFile) f).getZoneMap().save();
+            } else if (f instanceof ColumnFile)
+                ((ColumnFile) f).getFreeSpaceMap().save();
+        }
     }
 
     /** Remove the specific page id from the buffer pool.
@@ -193,34 +685,272 @@ public class BufferPool {
         Also used by B+ tree files to ensure that deleted pages
         are removed from the cache so they can be reused safely
     */
-    public synchronized void discardPage(PageId pid) {
-        // some code goes here
-        // not necessary for lab1
+    public void discardPage(PageId pid) {
+        Lock stripe = stripeFor(pid);
+        stripe.lock();
+        try {
+            Page page = this.pages.get(pid);
+            if (page == null)
+                return;
+            synchronized (page) {
+                removePage(pid);
+            }
+        } finally {
+            stripe.unlock();
+        }
+    }
+
+    /** Drop a page from the pool.  Call with its stripe and latch held. */
+    private void removePage(PageId pid) {
+        Page page = this.pages.remove(pid);
+        if (page != null) {
+            this.dropped.add(page);
+            this.numResident.decrementAndGet();
+            this.policy.pageRemoved(pid);
+        }
+        this.pageLSNs.remove(pid);
     }
 
     /**
-     * Flushes a certain page to disk
+     * Flushes a certain page to disk.  Following the write-ahead rule, the
+     * changes made to the page since it was last logged are logged and the
+     * log is forced up to the page's last update before the page is
+     * written.
      * @param pid an ID indicating the page to flush
+     * @return true if the page was dirty and has been written
+     */
+    boolean flushPage(PageId pid) throws IOException {
+        return flushPage(pid, false);
+    }
+
+    /**
+     * Flushes a page to disk, as flushPage(pid), unless committedOnly is set
+     * and the page was last dirtied by a transaction that is still running.
+     * @return true if the page was dirty and has been written
+     */
+    boolean flushPage(PageId pid, boolean committedOnly) throws IOException {
+        Lock stripe = stripeFor(pid);
+        stripe.lock();
+        try {
+            Page page = this.pages.get(pid);
+            if (page == null)
+                return false;
+            synchronized (page) {
+                TransactionId dirtier = page.isDirty();
+                if (dirtier == null)
+                    return false;
+                LogFile log = Database.getLogFile();
+                if (committedOnly && isRunning(dirtier))
+                    return false;
+                log.forceTo(logPage(log, dirtier, page));
+                DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
+                file.writePage(page);
+                page.markDirty(false, null);
+                this.pageLSNs.remove(pid);
+                log.pageFlushed(pid);
+                return true;
+            }
+        } finally {
+            stripe.unlock();
+        }
+    }
+
+    /**
+     * Log the changes made to a page since it was last logged, and keep
+     * them for snapshots until tid finishes.  Call with the page latch held.
+     * @return the LSN of the page's last logged update, or 0 if it has none
+     */
+    private long logPage(LogFile log, TransactionId tid, Page page) throws IOException {
+        Page before = page.getBeforeImage();
+        long lsn = log.logWrite(tid, before, page);
+        if (lsn >= 0)
+            this.versions.logged(tid, page.getId(), before.getPageData(), page.getPageData());
+        page.setBeforeImage();
+        if (lsn >= 0) {
+            this.pageLSNs.put(page.getId(), lsn);
+            return lsn;
+        }
+        Long last = this.pageLSNs.get(page.getId());
+        return last == null ? 0 : last;
+    }
+
+    /**
+     * Log the pages the specified transaction dirtied, without writing
+     * them; a commit record forced after this makes the changes durable
+     * and leaves the pages to be written later.
+     */
+    public void logPages(TransactionId tid) throws IOException {
+        LogFile log = Database.getLogFile();
+        for (Page page : this.pages.values()) {
+            if (!tid.equals(page.isDirty()))
+                continue;
+            Lock stripe = stripeFor(page.getId());
+            stripe.lock();
+            try {
+                synchronized (page) {
+                    if (this.pages.get(page.getId()) == page && tid.equals(page.isDirty()))
+                        logPage(log, tid, page);
+                }
+            } finally {
+                stripe.unlock();
+            }
+        }
+    }
+
+    /**
+     * @return the dirty pages that no running transaction dirtied last, in
+     *         the order they are laid out on disk
+     */
+    ArrayList<PageId> committedDirtyPageIds() {
+        LogFile log = Database.getLogFile();
+        ArrayList<PageId> dirty = new ArrayList<PageId>();
+        for (Page page : this.pages.values()) {
+            TransactionId dirtier = page.isDirty();
+            if (dirtier != null && !log.isActive(dirtier))
+                dirty.add(page.getId());
+        }
+        dirty.sort(PageWriter.FILE_ORDER);
+        return dirty;
+    }
+
+    /**
+     * @return whether tid may still change the pages it dirtied: it is
+     *         active in the log, or holds locks without having begun there
+     */
+    private boolean isRunning(TransactionId tid) {
+        return Database.getLogFile().isActive(tid) || this.lockManager.holdsLocks(tid);
+    }
+
+    /**
+     * Roll back tid's changes to a page for the recovery manager.  The
+     * changes not yet logged are dropped, the logged updates are reversed,
+     * newest first, and the restored page is logged as a compensating
+     * update of tid, written to disk and removed from the pool.
+     * @param tid the transaction being rolled back
+     * @param pid the page to restore
+     * @param updates tid's logged updates to the page, newest first
      */
-    private synchronized  void flushPage(PageId pid) throws IOException {
-        // some code goes here
-        // not necessary for lab1
+    void rollbackPage(TransactionId tid, PageId pid, List<LogFile.UpdateRecord> updates)
+        throws IOException {
+        Lock stripe = stripeFor(pid);
+        stripe.lock();
+        try {
+            Page page = this.pages.get(pid);
+            if (page == null) {
+                rollbackPage(tid, pid, null, updates);
+            } else {
+                synchronized (page) {
+                    rollbackPage(tid, pid, page, updates);
+                }
+            }
+        } finally {
+            stripe.unlock();
+        }
+    }
+
+    private void rollbackPage(TransactionId tid, PageId pid, Page page,
+                              List<LogFile.UpdateRecord> updates) throws IOException {
+        Page logged;
+        if (page == null)
+            logged = LogFile.readFromDisk(pid);
+        else if (page.isDirty() != null)
+            logged = page.getBeforeImage();
+        else
+            logged = page;
+
+        Page image = logged;
+        for (LogFile.UpdateRecord u : updates)
+            image = u.undo(image);
+        if (image == null)
+            image = updates.get(0).emptyPage();
+
+        // the logged state of a dirty page may hold committed changes
+        // that are not on disk yet, so it is written even if unchanged
+        if (image != logged || (page != null && page.isDirty() != null)) {
+            LogFile log = Database.getLogFile();
+            if (logged == null)
+                logged = updates.get(0).emptyPage();
+            log.logWrite(tid, logged, image);
+            log.force();
+            Database.getCatalog().getDatabaseFile(pid.getTableId()).writePage(image);
+            log.pageFlushed(pid);
+        }
+        this.versions.rolledBack(tid, pid);
+        removePage(pid);
     }
 
     /** Write all pages of the specified transaction to disk.
      */
-    public synchronized  void flushPages(TransactionId tid) throws IOException {
-        // some code goes here
-        // not necessary for lab1|lab2
+    public void flushPages(TransactionId tid) throws IOException {
+        for (Page page : this.pages.values()) {
+            if (tid.equals(page.isDirty()))
+                flushPage(page.getId());
+        }
     }
 
     /**
      * Discards a page from the buffer pool.
      * Flushes the page to disk to ensure dirty pages are updated on disk.
+     * A page dirtied by a running transaction is written only if the
+     * transaction began in the log, so that LogFile.rollback can undo it
+     * from disk; pages whose only changes are unlogged ones of a running
+     * transaction with no BEGIN record stay in the pool until it finishes.
+     * @param cleanOnly evict only a page that is not dirty, and give up
+     *        rather than wait for one
+     * @return true if a page was evicted or the caller should look again;
+     *         false if cleanOnly is set and no clean page could be evicted
      */
-    private synchronized  void evictPage() throws DbException {
-        // some code goes here
-        // not necessary for lab1
+    private boolean evictPage(boolean cleanOnly) throws DbException {
+        Iterator<PageId> candidates = this.policy.evictionOrder();
+        boolean contended = false;
+        while (candidates.hasNext()) {
+            PageId pid = candidates.next();
+            // never wait on another partition here: the caller may already
+            // hold its own stripe, and the next candidate is as good
+            Lock stripe = stripeFor(pid);
+            if (!stripe.tryLock()) {
+                contended = true;
+                continue;
+            }
+            try {
+                Page page = this.pages.get(pid);
+                if (page == null) {
+                    contended = true; // evicted by another thread meanwhile
+                    continue;
+                }
+                synchronized (page) {
+                    TransactionId dirtier = page.isDirty();
+                    if (cleanOnly && dirtier != null)
+                        continue;
+                    if (dirtier != null && !Database.getLogFile().isActive(dirtier)
+                            && this.lockManager.holdsLocks(dirtier))
+                        continue; // could not be rolled back once on disk
+                    long start = System.nanoTime();
+                    try {
+                        if (flushPage(pid)) {
+                            this.dirtyEvictions.incrementAndGet();
+                            this.evictionStallNanos.addAndGet(System.nanoTime() - start);
+                        }
+                    } catch (IOException e) {
+                        throw new DbException("could not flush page " + pid + " before eviction: " + e.getMessage());
+                    }
+                    removePage(pid);
+                }
+                this.evictions.incrementAndGet();
+                return true;
+            } finally {
+                stripe.unlock();
+            }
+        }
+        if (cleanOnly)
+            return false;
+        // another thread may have made room, or may be about to: let the
+        // caller retry instead of failing
+        if (contended || this.numResident.get() > this.pages.size()) {
+            Thread.yield();
+            return true;
+        }
+        throw new DbException("no page can be evicted from the buffer pool");
     }
 
 }
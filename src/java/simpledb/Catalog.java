@@ -134,7 +134,14 @@ public class Catalog {
     
     /**
      * Reads the schema from a file and creates the appropriate tables in the database.
+     * Each line describes a table as
+     * <pre>name (field type [pk], field type [pk], ...) [slotted|columnar]</pre>
+     * where type is int or string.  Tables marked slotted are stored in
+     * slotted pages with variable-length records, and tables marked
+     * columnar in a ColumnFile, one page chain per column.
      * @param catalogFile
+     * @see HeapFile.PageFormat
+     * @see ColumnFile
      */
     public void loadSchema(String catalogFile) {
         String line = "";
@@ -171,10 +178,22 @@ public class Catalog {
                         }
                     }
                 }
+                HeapFile.PageFormat format = HeapFile.PageFormat.FIXED;
+                boolean columnar = false;
+                String options = line.substring(line.indexOf(")") + 1).trim();
+                if (options.toLowerCase().equals("slotted"))
+                    format = HeapFile.PageFormat.SLOTTED;
+                else if (options.toLowerCase().equals("columnar"))
+                    columnar = true;
+                else if (!options.isEmpty()) {
+                    System.out.println("Unknown table option " + options);
+                    System.exit(0);
+                }
                 Type[] typeAr = types.toArray(new Type[0]);
                 String[] namesAr = names.toArray(new String[0]);
                 TupleDesc t = new TupleDesc(typeAr, namesAr);
-                HeapFile tabHf = new HeapFile(new File(baseFolder+"/"+name + ".dat"), t);
+                File f = new File(baseFolder+"/"+name + ".dat");
+                DbFile tabHf = columnar ? new ColumnFile(f, t) : new HeapFile(f, t, format);
                 addTable(tabHf,name,primaryKey);
                 System.out.println("Added table : " + name + " with schema " + t);
             }
@@ -184,6 +203,9 @@ public class Catalog {
         } catch (IndexOutOfBoundsException e) {
             System.out.println ("Invalid catalog entry : " + line);
             System.exit(0);
+        } catch (IllegalArgumentException e) {
+            System.out.println ("Cannot open table of catalog entry " + line + " : " + e.getMessage());
+            System.exit(0);
         }
     }
 }
@@ -0,0 +1,374 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * ColumnFile is an implementation of a DbFile that stores each column of a
+ * table in its own chain of pages, so that a scan which needs only some of
+ * the columns reads and decodes only their pages.  Column i is stored in
+ * the file named after the table's file with ".col" and i appended; each
+ * file is a sequence of {@link ColumnPage}s of the column's values.
+ * <p>
+ * Rows are numbered, and row r lives in slot r % n of page r / n of every
+ * column's chain, where n is the number of slots on a page of that column.
+ * A row exists when its slot is in use; the pages of every column agree on
+ * that, since inserts and deletes change them all in one transaction.  The
+ * RecordId of a row is its slot on the page of the first column.
+ * <p>
+ * Inserts and deletes lock the pages they change in column order, the
+ * first column's page first, so that two transactions changing the same
+ * row contend on that page.  A FreeSpaceMap over the first column's chain
+ * finds the pages with empty rows.
+ *
+ * @see ColumnPage
+ * @see Catalog#loadSchema
+ */
+public class ColumnFile implements DbFile {
+
+    private final File file;
+    private final TupleDesc tupleDesc;
+    private final File[] columns;
+    private final int[] slotsPerPage;
+    private final FreeSpaceMap freeRows;
+
+    /**
+     * Constructs a column file for a table with the given TupleDesc, whose
+     * columns are stored next to the given file.
+     *
+     * @param f
+     *            the file that names the table; its columns are stored in
+     *            files of the same name with ".col" and the column number
+     *            appended.
+     */
+    public ColumnFile(File f, TupleDesc td) {
+        this.file = f;
+        this.tupleDesc = td;
+        this.columns = new File[td.numFields()];
+        this.slotsPerPage = new int[td.numFields()];
+        for (int i = 0; i < td.numFields(); i++) {
+            this.columns[i] = new File(f.getPath() + ".col" + i);
+            this.slotsPerPage[i] = ColumnPage.getNumSlots(td.getFieldType(i));
+        }
+        this.freeRows = new FreeSpaceMap(new File(f.getPath() + ".fsm"), 1);
+    }
+
+    /**
+     * Returns the File naming this table; see the constructor.
+     */
+    public File getFile() {
+        return this.file;
+    }
+
+    /** Returns the File storing the given column. */
+    public File getColumnFile(int column) {
+        return this.columns[column];
+    }
+
+    /**
+     * Returns the map of the pages of the first column that have empty
+     * rows.
+     *
+     * @see FreeSpaceMap
+     */
+    public FreeSpaceMap getFreeSpaceMap() {
+        return this.freeRows;
+    }
+
+    /**
+     * Returns an ID uniquely identifying this ColumnFile, the hash code of
+     * the absolute name of the file given to the constructor.
+     */
+    public int getId() {
+        return this.file.getAbsoluteFile().hashCode();
+    }
+
+    public TupleDesc getTupleDesc() {
+        return this.tupleDesc;
+    }
+
+    /** Returns the number of pages in the chain of the given column. */
+    public int numPages(int column) {
+        return (int) (this.columns[column].length() / BufferPool.getPageSize());
+    }
+
+    // see DbFile.java for javadocs
+    public Page readPage(PageId pid) {
+        if (!(pid instanceof ColumnPageId) || pid.getTableId() != getId())
+            throw new IllegalArgumentException("page " + pid + " is not in this file");
+        ColumnPageId cpid = (ColumnPageId) pid;
+        if (cpid.getColumn() < 0 || cpid.getColumn() >= this.columns.length
+                || cpid.getPageNumber() < 0 || cpid.getPageNumber() >= numPages(cpid.getColumn()))
+            throw new IllegalArgumentException("page " + pid + " does not exist");
+        int pageSize = BufferPool.getPageSize();
+        byte[] buffer = new byte[pageSize];
+        try {
+            RandomAccessFile rfile = new RandomAccessFile(this.columns[cpid.getColumn()], "r");
+            try {
+                rfile.seek((long) cpid.getPageNumber() * pageSize);
+                rfile.readFully(buffer);
+            } finally {
+                rfile.close();
+            }
+            return learn(new ColumnPage(cpid, buffer));
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    // see DbFile.java for javadocs
+    public void writePage(Page page) throws IOException {
+        ColumnPageId pid = (ColumnPageId) page.getId();
+        RandomAccessFile rfile = new RandomAccessFile(this.columns[pid.getColumn()], "rw");
+        try {
+            rfile.seek((long) pid.getPageNumber() * BufferPool.getPageSize());
+            rfile.write(page.getPageData());
+        } finally {
+            rfile.close();
+        }
+        learn((ColumnPage) page);
+    }
+
+    /** Note the empty rows of a page of the first column. */
+    private ColumnPage learn(ColumnPage page) {
+        if (page.getId().getColumn() == 0)
+            this.freeRows.set(page.getId().getPageNumber(), page.getNumEmptySlots());
+        return page;
+    }
+
+    /**
+     * Append empty pages to the chain of a column until it has page pageNo.
+     */
+    private synchronized void appendEmptyPages(int column, int pageNo) throws IOException {
+        int n = numPages(column);
+        if (n > pageNo)
+            return;
+        RandomAccessFile rfile = new RandomAccessFile(this.columns[column], "rw");
+        try {
+            rfile.seek((long) n * BufferPool.getPageSize());
+            for (; n <= pageNo; n++)
+                rfile.write(ColumnPage.createEmptyPageData());
+        } finally {
+            rfile.close();
+        }
+    }
+
+    private RecordId recordId(int row) {
+        return new RecordId(new ColumnPageId(getId(), 0, row / this.slotsPerPage[0]),
+                row % this.slotsPerPage[0]);
+    }
+
+    // see DbFile.java for javadocs
+    public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
+            throws DbException, IOException, TransactionAbortedException {
+        if (!this.tupleDesc.equals(t.getTupleDesc()))
+            throw new DbException("tupledesc is mismatch");
+        BufferPool pool = Database.getBufferPool();
+        ArrayList<Page> dirtied = new ArrayList<Page>();
+
+        // claim an empty row on a page of the first column
+        int row = -1;
+        int pageNo = this.freeRows.findPage(0, 1);
+        while (row < 0) {
+            appendEmptyPages(0, pageNo);
+            ColumnPageId pid = new ColumnPageId(getId(), 0, pageNo);
+            boolean locked = pool.holdsLock(tid, pid);
+            ColumnPage page = (ColumnPage) pool.getPage(tid, pid, Permissions.READ_WRITE);
+            synchronized (page) {
+                if (!pool.isResident(page))
+                    continue; // rolled back or evicted meanwhile; fetch it again
+                int slot = page.firstEmptySlot();
+                if (slot >= 0) {
+                    page.setValue(slot, t.getField(0));
+                    pool.logRowUpdate(tid, page);
+                    dirtied.add(page);
+                    row = pageNo * this.slotsPerPage[0] + slot;
+                }
+                learn(page);
+            }
+            if (row < 0) {
+                if (!locked)
+                    pool.releasePage(tid, pid);
+                pageNo = this.freeRows.findPage(pageNo + 1, 1);
+            }
+        }
+
+        for (int c = 1; c < this.columns.length; c++)
+            dirtied.add(updateRow(tid, c, row, t.getField(c)));
+        t.setRecordId(recordId(row));
+        return dirtied;
+    }
+
+    /**
+     * Set the value of a column in a row, or clear it if value is null,
+     * and log the change.
+     * @return the page changed
+     */
+    private ColumnPage updateRow(TransactionId tid, int column, int row, Field value)
+            throws DbException, IOException, TransactionAbortedException {
+        BufferPool pool = Database.getBufferPool();
+        int pageNo = row / this.slotsPerPage[column];
+        int slot = row % this.slotsPerPage[column];
+        appendEmptyPages(column, pageNo);
+        ColumnPageId pid = new ColumnPageId(getId(), column, pageNo);
+        while (true) {
+            ColumnPage page = (ColumnPage) pool.getPage(tid, pid, Permissions.READ_WRITE);
+            synchronized (page) {
+                if (!pool.isResident(page))
+                    continue;
+                if (value == null)
+                    page.clearSlot(slot);
+                else
+                    page.setValue(slot, value);
+                pool.logRowUpdate(tid, page);
+                learn(page);
+                return page;
+            }
+        }
+    }
+
+    // see DbFile.java for javadocs
+    public ArrayList<Page> deleteTuple(TransactionId tid, Tuple t)
+            throws DbException, IOException, TransactionAbortedException {
+        RecordId rid = t.getRecordId();
+        if (rid == null || rid.getPageId().getTableId() != getId()
+                || !(rid.getPageId() instanceof ColumnPageId)
+                || ((ColumnPageId) rid.getPageId()).getColumn() != 0)
+            throw new DbException("tuple is not in this table");
+        int row = rid.getPageId().getPageNumber() * this.slotsPerPage[0] + rid.getTupleNumber();
+        ArrayList<Page> dirtied = new ArrayList<Page>();
+        // the first column's page fails the delete if the row is not there
+        for (int c = 0; c < this.columns.length; c++)
+            dirtied.add(updateRow(tid, c, row, null));
+        return dirtied;
+    }
+
+    // see DbFile.java for javadocs
+    public DbFileIterator iterator(TransactionId tid) {
+        int[] fields = new int[this.tupleDesc.numFields()];
+        for (int i = 0; i < fields.length; i++)
+            fields[i] = i;
+        return iterator(tid, fields);
+    }
+
+    /**
+     * Returns an iterator over the rows of this file that reads only the
+     * given columns.  Its tuples have just the given fields, in the given
+     * order, and the RecordIds of the rows, so they can be deleted.
+     *
+     * @param fields the columns to read; must not be empty
+     * @throws IllegalArgumentException if fields is empty or names a
+     *         column the table does not have
+     */
+    public DbFileIterator iterator(TransactionId tid, int[] fields) {
+        if (fields.length == 0)
+            throw new IllegalArgumentException("no fields to read");
+        Type[] types = new Type[fields.length];
+        String[] names = new String[fields.length];
+        for (int i = 0; i < fields.length; i++) {
+            if (fields[i] < 0 || fields[i] >= this.tupleDesc.numFields())
+                throw new IllegalArgumentException("no field " + fields[i]);
+            types[i] = this.tupleDesc.getFieldType(fields[i]);
+            names[i] = this.tupleDesc.getFieldName(fields[i]);
+        }
+        return new ColumnIterator(tid, fields.clone(), new TupleDesc(types, names));
+    }
+
+    /**
+     * Walks the rows of the file, reading the pages of the projected
+     * columns side by side.  Pages are fetched in column order, as writers
+     * lock them.
+     */
+    private class ColumnIterator implements DbFileIterator {
+
+        private final TransactionId tid;
+        private final int[] fields;  // the projected columns, in output order
+        private final int[] columns; // the projected columns, ascending, once each
+        private final TupleDesc td;
+        private final ColumnPage[] pages = new ColumnPage[tupleDesc.numFields()];
+        private int numRows;
+        private int row;
+        private Tuple next;
+        private boolean isOpen = false;
+
+        ColumnIterator(TransactionId tid, int[] fields, TupleDesc td) {
+            this.tid = tid;
+            this.fields = fields;
+            this.td = td;
+            TreeSet<Integer> distinct = new TreeSet<Integer>();
+            for (int f : fields)
+                distinct.add(f);
+            this.columns = new int[distinct.size()];
+            int i = 0;
+            for (int c : distinct)
+                this.columns[i++] = c;
+        }
+
+        public void open() throws DbException, TransactionAbortedException {
+            // whether a row exists is read from the first projected column
+            this.numRows = numPages(this.columns[0]) * slotsPerPage[this.columns[0]];
+            this.row = 0;
+            this.next = null;
+            this.isOpen = true;
+        }
+
+        private ColumnPage page(int column, int row)
+                throws DbException, TransactionAbortedException {
+            int pageNo = row / slotsPerPage[column];
+            ColumnPage page = this.pages[column];
+            if (page == null || page.getId().getPageNumber() != pageNo) {
+                page = (ColumnPage) Database.getBufferPool().getPage(this.tid,
+                        new ColumnPageId(getId(), column, pageNo), Permissions.READ_ONLY);
+                this.pages[column] = page;
+            }
+            return page;
+        }
+
+        public boolean hasNext() throws DbException, TransactionAbortedException {
+            if (!this.isOpen)
+                return false;
+            int driver = this.columns[0];
+            int perPage = slotsPerPage[driver];
+            while (this.next == null && this.row < this.numRows) {
+                ColumnPage rows = page(driver, this.row);
+                if (rows.getNumEmptySlots() == perPage) {
+                    // skip a page with no rows at once
+                    this.row = (this.row / perPage + 1) * perPage;
+                    continue;
+                }
+                int r = this.row++;
+                if (!rows.isSlotUsed(r % perPage))
+                    continue;
+                for (int c : this.columns)
+                    page(c, r);
+                Tuple t = new Tuple(this.td);
+                for (int i = 0; i < this.fields.length; i++) {
+                    int c = this.fields[i];
+                    t.setField(i, this.pages[c].getValue(r % slotsPerPage[c]));
+                }
+                t.setRecordId(recordId(r));
+                this.next = t;
+            }
+            return this.next != null;
+        }
+
+        public Tuple next() throws DbException, TransactionAbortedException, NoSuchElementException {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            Tuple t = this.next;
+            this.next = null;
+            return t;
+        }
+
+        public void rewind() throws DbException, TransactionAbortedException {
+            close();
+            open();
+        }
+
+        public void close() {
+            this.isOpen = false;
+            this.next = null;
+            Arrays.fill(this.pages, null);
+        }
+    }
+}
@@ -0,0 +1,213 @@
+package simpledb;
+
+import java.io.*;
+
+/**
+ * ColumnPage stores the values of one column for a run of rows of a
+ * ColumnFile, and implements the Page interface that is used by
+ * BufferPool.  Slot i of page p of column c holds the value of c in row
+ * p * (slots per page of c) + i.
+ *
+ * @see ColumnFile
+ * @see BufferPool
+ */
+public class ColumnPage implements Page {
+
+    final ColumnPageId pid;
+    final Type type;
+    final byte header[];
+    final Field values[];
+    final int numSlots;
+
+    private byte[] oldData;
+    private final Object oldDataLock = new Object();
+
+    private volatile TransactionId dirtier;
+
+    /**
+     * Create a ColumnPage from a set of bytes of data read from disk.
+     * The format of a ColumnPage is that of a HeapPage whose tuples have
+     * the one field of the page's column: a header of one bit per slot
+     * telling whether the slot is in use, followed by the slots.  The
+     * number of slots is equal to:
+     * <p>
+     *          floor((BufferPool.getPageSize()*8) / (field size * 8 + 1))
+     * <p>
+     * The column's type is found via {@link Catalog#getTupleDesc}.
+     *
+     * @see #getNumSlots(Type)
+     */
+    public ColumnPage(ColumnPageId id, byte[] data) throws IOException {
+        this.pid = id;
+        this.type = Database.getCatalog().getTupleDesc(id.getTableId()).getFieldType(id.getColumn());
+        this.numSlots = getNumSlots(this.type);
+        this.header = new byte[(this.numSlots + 7) / 8];
+        this.values = new Field[this.numSlots];
+
+        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+        dis.readFully(this.header);
+        try {
+            for (int i = 0; i < this.numSlots; i++) {
+                if (isSlotUsed(i))
+                    this.values[i] = this.type.parse(dis);
+                else
+                    dis.skipBytes(this.type.getLen());
+            }
+        } catch (java.text.ParseException e) {
+            throw new IOException("could not parse column value: " + e.getMessage());
+        }
+        dis.close();
+
+        setBeforeImage();
+    }
+
+    /** @return the number of slots on a page of a column of the given type */
+    public static int getNumSlots(Type type) {
+        return (BufferPool.getPageSize() * 8) / (type.getLen() * 8 + 1);
+    }
+
+    /**
+     * Static method to generate a byte array corresponding to an empty
+     * ColumnPage, with no slots in use.
+     */
+    public static byte[] createEmptyPageData() {
+        return new byte[BufferPool.getPageSize()]; //all 0
+    }
+
+    /** Return a view of this page before it was modified
+        -- used by recovery */
+    public ColumnPage getBeforeImage() {
+        byte[] oldDataRef;
+        synchronized (oldDataLock) {
+            oldDataRef = oldData;
+        }
+        try {
+            return new ColumnPage(pid, oldDataRef);
+        } catch (IOException e) {
+            e.printStackTrace();
+            //should never happen -- we parsed it OK before!
+            System.exit(1);
+        }
+        return null;
+    }
+
+    public void setBeforeImage() {
+        synchronized (oldDataLock) {
+            oldData = getPageData().clone();
+        }
+    }
+
+    /**
+     * @return the PageId associated with this page.
+     */
+    public ColumnPageId getId() {
+        return this.pid;
+    }
+
+    /**
+     * Generates a byte array representing the contents of this page, in
+     * the format read by the constructor.
+     */
+    public byte[] getPageData() {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(BufferPool.getPageSize());
+        DataOutputStream dos = new DataOutputStream(baos);
+        try {
+            dos.write(this.header);
+            byte[] empty = new byte[this.type.getLen()];
+            for (int i = 0; i < this.numSlots; i++) {
+                if (isSlotUsed(i))
+                    this.values[i].serialize(dos);
+                else
+                    dos.write(empty);
+            }
+            dos.write(new byte[BufferPool.getPageSize() - dos.size()]);
+            dos.flush();
+        } catch (IOException e) {
+            // this really shouldn't happen
+            e.printStackTrace();
+        }
+        return baos.toByteArray();
+    }
+
+    /** @return the number of slots on this page */
+    public int getNumSlots() {
+        return this.numSlots;
+    }
+
+    /**
+     * Returns the number of empty slots on this page.
+     */
+    public int getNumEmptySlots() {
+        int used = 0;
+        for (byte b : this.header)
+            used += Integer.bitCount(b & 0xFF);
+        return this.numSlots - used;
+    }
+
+    /**
+     * @return the first empty slot on this page, or -1 if the page is full
+     */
+    public int firstEmptySlot() {
+        for (int i = 0; i < this.numSlots; i++) {
+            if (!isSlotUsed(i))
+                return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Returns true if associated slot on this page is filled.
+     */
+    public boolean isSlotUsed(int i) {
+        return (this.header[i / 8] & (1 << (i % 8))) != 0;
+    }
+
+    /**
+     * @return the value in slot i, or null if the slot is empty
+     */
+    public Field getValue(int i) {
+        return this.values[i];
+    }
+
+    /**
+     * Fill an empty slot with a value.
+     * @throws DbException if the slot is in use or the value is not of the
+     *         column's type
+     */
+    public void setValue(int i, Field value) throws DbException {
+        if (value == null || value.getType() != this.type)
+            throw new DbException("value is not of type " + this.type);
+        if (i < 0 || i >= this.numSlots)
+            throw new DbException("no slot " + i + " on this page");
+        if (isSlotUsed(i))
+            throw new DbException("slot " + i + " is in use");
+        this.header[i / 8] |= (byte) (1 << (i % 8));
+        this.values[i] = value;
+    }
+
+    /**
+     * Empty a slot.
+     * @throws DbException if the slot is already empty
+     */
+    public void clearSlot(int i) throws DbException {
+        if (i < 0 || i >= this.numSlots || !isSlotUsed(i))
+            throw new DbException("slot " + i + " is already empty");
+        this.header[i / 8] &= (byte) ~(1 << (i % 8));
+        this.values[i] = null;
+    }
+
+    /**
+     * Marks this page as dirty/not dirty and record that transaction
+     * that did the dirtying
+     */
+    public void markDirty(boolean dirty, TransactionId tid) {
+        this.dirtier = dirty ? tid : null;
+    }
+
+    /**
+     * Returns the tid of the transaction that last dirtied this page, or null if the page is not dirty
+     */
+    public TransactionId isDirty() {
+        return this.dirtier;
+    }
+}
@@ -0,0 +1,67 @@
+package simpledb;
+
+/** Unique identifier for ColumnPage objects. */
+public class ColumnPageId implements PageId {
+
+    private final int tableId;
+    private final int column;
+    private final int pgNo;
+
+    /**
+     * Constructor. Create a page id structure for a page of one column of a
+     * specific table.
+     *
+     * @param tableId The table that is being referenced
+     * @param column The column whose page chain the page belongs to
+     * @param pgNo The page number in that column's chain
+     */
+    public ColumnPageId(int tableId, int column, int pgNo) {
+        this.tableId = tableId;
+        this.column = column;
+        this.pgNo = pgNo;
+    }
+
+    /** @return the table associated with this PageId */
+    public int getTableId() {
+        return this.tableId;
+    }
+
+    /** @return the column whose values this page holds */
+    public int getColumn() {
+        return this.column;
+    }
+
+    /**
+     * @return the page number in the chain of getColumn() associated with
+     *   this PageId
+     */
+    public int getPageNumber() {
+        return this.pgNo;
+    }
+
+    public int hashCode() {
+        return (this.tableId * 31 + this.column) * 31 + this.pgNo;
+    }
+
+    public boolean equals(Object o) {
+        if (!(o instanceof ColumnPageId))
+            return false;
+        ColumnPageId other = (ColumnPageId) o;
+        return other.tableId == this.tableId && other.column == this.column
+                && other.pgNo == this.pgNo;
+    }
+
+    /**
+     *  Return a representation of this object as an array of
+     *  integers, for writing to disk.  Size of returned array must contain
+     *  number of integers that corresponds to number of args to one of the
+     *  constructors.
+     */
+    public int[] serialize() {
+        return new int[]{this.tableId, this.column, this.pgNo};
+    }
+
+    public String toString() {
+        return "ColumnPageId(" + this.tableId + ", " + this.column + ", " + this.pgNo + ")";
+    }
+}
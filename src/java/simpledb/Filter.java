@@ -3,12 +3,17 @@ package simpledb;
 import java.util.*;
 
 /**
- * Filter is an operator that implements a relational select.
+ * Filter is an operator that implements a relational select. It can be read
+ * a tuple at a time or a batch at a time.
  */
-public class Filter extends Operator {
+public class Filter extends Operator implements BatchOpIterator {
 
     private static final long serialVersionUID = 1L;
 
+    private Predicate predicate;
+    private OpIterator child;
+    transient private int[] selection;
+
     /**
      * Constructor accepts a predicate to apply and a child operator to read
      * tuples to filter from.
@@ -19,30 +24,47 @@ public class Filter extends Operator {
      *            The child operator
      */
     public Filter(Predicate p, OpIterator child) {
-        // some code goes here
+        this.predicate = p;
+        this.child = child;
     }
 
     public Predicate getPredicate() {
-        // some code goes here
-        return null;
+        return this.predicate;
     }
 
     public TupleDesc getTupleDesc() {
-        // some code goes here
-        return null;
+        return this.child.getTupleDesc();
     }
 
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
-        // some code goes here
+        // a scan under this filter, and perhaps other filters, need not
+        // read pages on which no tuple passes
+        SeqScan scan = scanBelow();
+        if (scan != null)
+            scan.skipPagesFailing(this);
+        this.child.open();
+        super.open();
     }
 
     public void close() {
-        // some code goes here
+        super.close();
+        this.child.close();
+        SeqScan scan = scanBelow();
+        if (scan != null)
+            scan.stopSkipping(this);
+    }
+
+    /** @return the SeqScan this filter reads from through other filters, if any */
+    private SeqScan scanBelow() {
+        OpIterator scan = this.child;
+        while (scan instanceof Filter)
+            scan = ((Filter) scan).child;
+        return scan instanceof SeqScan ? (SeqScan) scan : null;
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
-        // some code goes here
+        this.child.rewind();
     }
 
     /**
@@ -56,19 +78,94 @@ public class Filter extends Operator {
      */
     protected Tuple fetchNext() throws NoSuchElementException,
             TransactionAbortedException, DbException {
-        // some code goes here
+        while (this.child.hasNext()) {
+            Tuple t = this.child.next();
+            if (this.predicate.filter(t))
+                return t;
+        }
+        return null;
+    }
+
+    /**
+     * Returns the next batch of tuples that pass the predicate. Integer
+     * comparisons are evaluated in a tight loop over the column.
+     * 
+     * @return The next non-empty batch of matching tuples, or null if there
+     *         are no more tuples
+     */
+    public TupleBatch nextBatch() throws TransactionAbortedException, DbException {
+        BatchOpIterator in = RowToBatchAdapter.of(this.child);
+        TupleBatch batch;
+        while ((batch = in.nextBatch()) != null) {
+            if (this.selection == null || this.selection.length < batch.size())
+                this.selection = new int[batch.capacity()];
+            int n = select(batch, this.selection);
+            if (n > 0) {
+                batch.retain(this.selection, n);
+                return batch;
+            }
+        }
         return null;
     }
 
+    /**
+     * Fill sel with the indexes of the rows of batch that pass the predicate.
+     * @return the number of matching rows
+     */
+    private int select(TupleBatch batch, int[] sel) {
+        int field = this.predicate.getField();
+        Field operand = this.predicate.getOperand();
+        int size = batch.size();
+        int n = 0;
+        if (operand instanceof IntField && batch.getTupleDesc().getFieldType(field) == Type.INT_TYPE) {
+            int[] col = batch.intColumn(field);
+            int v = ((IntField) operand).getValue();
+            switch (this.predicate.getOp()) {
+            case EQUALS:
+            case LIKE:
+                for (int i = 0; i < size; i++)
+                    if (col[i] == v) sel[n++] = i;
+                return n;
+            case NOT_EQUALS:
+                for (int i = 0; i < size; i++)
+                    if (col[i] != v) sel[n++] = i;
+                return n;
+            case GREATER_THAN:
+                for (int i = 0; i < size; i++)
+                    if (col[i] > v) sel[n++] = i;
+                return n;
+            case GREATER_THAN_OR_EQ:
+                for (int i = 0; i < size; i++)
+                    if (col[i] >= v) sel[n++] = i;
+                return n;
+            case LESS_THAN:
+                for (int i = 0; i < size; i++)
+                    if (col[i] < v) sel[n++] = i;
+                return n;
+            case LESS_THAN_OR_EQ:
+                for (int i = 0; i < size; i++)
+                    if (col[i] <= v) sel[n++] = i;
+                return n;
+            }
+        }
+        for (int i = 0; i < size; i++) {
+            if (batch.getField(field, i).compare(this.predicate.getOp(), operand))
+                sel[n++] = i;
+        }
+        return n;
+    }
+
     @Override
     public OpIterator[] getChildren() {
-        // some code goes here
-        return null;
+        return new OpIterator[] { this.child };
     }
 
     @Override
     public void setChildren(OpIterator[] children) {
-        // some code goes here
+        SeqScan scan = scanBelow();
+        if (scan != null)
+            scan.stopSkipping(this);
+        this.child = children[0];
     }
 
 }
@@ -0,0 +1,170 @@
+package simpledb;
+
+import java.io.*;
+import java.util.Arrays;
+
+/**
+ * FreeSpaceMap records how much free space each page of a HeapFile has,
+ * so that inserts go straight to a page with room instead of walking the
+ * file from its first page. Free space is measured as the file's pages
+ * report it ({@link HeapPage#getFreeSpace}): empty slots for pages of
+ * fixed-size slots, bytes for slotted pages. The map keeps one byte per
+ * page: the free space in units of a given size, rounded down and capped
+ * at {@link #MAX_FREE}, or {@link #UNKNOWN} for pages it has not seen,
+ * which inserts try as if they had room.
+ * <p>
+ * The map is a hint. Inserts check the page itself under its latch and
+ * correct the map when it is wrong, so the map is not logged. It is kept
+ * in memory, learns from every page the file reads, writes, inserts into
+ * or deletes from, and is saved to a side file next to the heap file
+ * (the heap file's name with ".fsm" appended) by {@link #save}, which
+ * BufferPool calls from flushAllPages and checkpoints.
+ * <p>
+ * A cursor remembers the lowest page that may have room, so that finding
+ * a page skips the full pages at the front of the file in constant time.
+ * <p>
+ * ColumnFile keeps a map of the empty rows of its first column's pages.
+ *
+ * @see HeapFile#insertTuple
+ * @see ColumnFile#insertTuple
+ */
+public class FreeSpaceMap {
+
+    /** The entry of a page the map has not seen. */
+    static final int UNKNOWN = 0xFF;
+
+    /** The largest entry, in units of free space. */
+    static final int MAX_FREE = 0xFE;
+
+    private static final int MAGIC = 0x46534d31; // "FSM1"
+
+    private final File file;
+    private final int unit;
+    private byte[] free;
+    private int known;  // the number of pages with an entry
+    private int cursor; // no page below this has room
+    private boolean dirty;
+
+    /**
+     * Open the map saved in the given side file, or an empty map if there
+     * is none, it cannot be read, or it was saved with another unit.
+     *
+     * @param unit the amount of free space one step of an entry stands for
+     */
+    public FreeSpaceMap(File file, int unit) {
+        if (unit < 1)
+            throw new IllegalArgumentException("unit must be positive");
+        this.file = file;
+        this.unit = unit;
+        this.free = new byte[64];
+        Arrays.fill(this.free, (byte) UNKNOWN);
+        try {
+            load();
+        } catch (IOException e) {
+            // the map is only a hint; start again from what pages show
+            Arrays.fill(this.free, (byte) UNKNOWN);
+            this.known = 0;
+        }
+    }
+
+    /** @return the side file the map is saved in */
+    public File getFile() {
+        return file;
+    }
+
+    private void load() throws IOException {
+        if (!file.exists())
+            return;
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(file)));
+        try {
+            if (in.readInt() != MAGIC)
+                throw new IOException("not a free space map: " + file);
+            if (in.readInt() != unit)
+                throw new IOException("free space map was saved with another unit: " + file);
+            int n = in.readInt();
+            grow(n);
+            in.readFully(free, 0, n);
+            known = n;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Write the map to its side file if it changed since it was last saved.
+     */
+    public synchronized void save() throws IOException {
+        if (!dirty)
+            return;
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(file)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(unit);
+            out.writeInt(known);
+            out.write(free, 0, known);
+        } finally {
+            out.close();
+        }
+        dirty = false;
+    }
+
+    private void grow(int n) {
+        if (n <= free.length)
+            return;
+        int old = free.length;
+        free = Arrays.copyOf(free, Math.max(n, old * 2));
+        Arrays.fill(free, old, free.length, (byte) UNKNOWN);
+    }
+
+    /** @return the amount of free space one step of an entry stands for */
+    public int getUnit() {
+        return unit;
+    }
+
+    /**
+     * @return the entry of a page: its free space in units, or
+     *         {@link #UNKNOWN}
+     */
+    public synchronized int get(int pageNo) {
+        return pageNo < known ? free[pageNo] & 0xFF : UNKNOWN;
+    }
+
+    /** Record the free space a page has. */
+    public synchronized void set(int pageNo, int freeSpace) {
+        byte b = (byte) Math.min(freeSpace / unit, MAX_FREE);
+        if (pageNo >= known) {
+            grow(pageNo + 1);
+            known = pageNo + 1;
+        } else if (free[pageNo] == b) {
+            return;
+        }
+        free[pageNo] = b;
+        dirty = true;
+        if (b != 0 && pageNo < cursor)
+            cursor = pageNo;
+    }
+
+    /** Record the free space of a page as the file changes, reads or writes it. */
+    public void update(HeapPage page) {
+        set(page.getId().getPageNumber(), page.getFreeSpace());
+    }
+
+    /**
+     * @return the first page at or after from that may have the given free
+     *         space; pages the map has not seen may, so this is at most the
+     *         number of pages it knows
+     */
+    public synchronized int findPage(int from, int needed) {
+        int steps = Math.min(MAX_FREE, Math.max(1, (needed + unit - 1) / unit));
+        if (from <= cursor) {
+            while (cursor < known && free[cursor] == 0)
+                cursor++;
+        }
+        int p = Math.max(from, cursor);
+        while (p < known && (free[p] & 0xFF) < steps)
+            p++;
+        return p;
+    }
+}
@@ -1,11 +1,20 @@
 package simpledb;
 
+import java.io.IOException;
 import java.util.*;
 
 /**
- * The Join operator implements the relational join operation.
+ * The Join operator implements the relational join operation. It can be read
+ * a tuple at a time or a batch at a time.
+ * <p>
+ * The left child is the build side. If it fits in the memory budget (by
+ * default MAP_SIZE tuples) it is joined in memory against one pass over the
+ * right child. Otherwise the join falls back to a Grace hash join: both
+ * children are hash-partitioned on the join key into temporary files, and
+ * matching partitions are then joined pairwise, so the right child is read
+ * only once however large the left one is.
  */
-public class HashEquiJoin extends Operator {
+public class HashEquiJoin extends Operator implements BatchOpIterator {
 
     private static final long serialVersionUID = 1L;
     private JoinPredicate pred;
@@ -52,49 +61,203 @@ public class HashEquiJoin extends Operator {
     
     HashMap<Object, ArrayList<Tuple>> map = new HashMap<Object, ArrayList<Tuple>>();
     public final static int MAP_SIZE = 20000;
+    /** Default number of partitions each input is split into when spilling. */
+    public final static int DEFAULT_PARTITIONS = 32;
 
-    private boolean loadMap() throws DbException, TransactionAbortedException {
+    private int memoryBudget = MAP_SIZE;
+    private int numPartitions = DEFAULT_PARTITIONS;
+
+    /** The iterators currently being joined: the children, or a pair of partitions. */
+    transient private OpIterator build = null;
+    transient private OpIterator probe = null;
+    transient private SpillFile[] leftPartitions = null;
+    transient private SpillFile[] rightPartitions = null;
+    transient private int partition = -1;
+
+    /**
+     * Set the maximum number of build-side tuples held in memory at once.
+     * Must be called before open.
+     */
+    public void setMemoryBudget(int tuples) {
+        this.memoryBudget = tuples;
+    }
+
+    /**
+     * Set the number of partitions each input is split into if the build side
+     * exceeds the memory budget. Must be called before open.
+     */
+    public void setNumPartitions(int partitions) {
+        this.numPartitions = partitions;
+    }
+
+    /** @return true if this join has spilled its inputs to disk */
+    public boolean isSpilled() {
+        return leftPartitions != null;
+    }
+
+    /**
+     * Load the next chunk of the build side into the hash table.
+     * @return true if the chunk was full, i.e. the build side may have more
+     *         tuples; false if the hash table holds the rest of it
+     */
+    private boolean fillMap() throws DbException, TransactionAbortedException {
         int cnt = 0;
         map.clear();
-        while (child1.hasNext()) {
-            t1 = child1.next();
+        while (build.hasNext()) {
+            t1 = build.next();
             ArrayList<Tuple> list = map.get(t1.getField(pred.getField1()));
             if (list == null) {
                 list = new ArrayList<Tuple>();
                 map.put(t1.getField(pred.getField1()), list);
             }
             list.add(t1);
-            if (cnt++ == MAP_SIZE)
+            if (++cnt >= memoryBudget)
                 return true;
         }
-        return cnt > 0;
+        return false;
+    }
 
+    /**
+     * Load the next chunk of the current build side.
+     * @return false if the build side is exhausted
+     */
+    private boolean loadMap() throws DbException, TransactionAbortedException {
+        if (!build.hasNext()) {
+            map.clear();
+            return false;
+        }
+        fillMap();
+        return true;
     }
 
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         child1.open();
         child2.open();
-        loadMap();
+        build = child1;
+        probe = child2;
+        if (fillMap() && child1.hasNext()) {
+            try {
+                spill();
+            } catch (IOException e) {
+                throw new DbException("could not spill hash join partitions: " + e.getMessage());
+            }
+            nextPartition();
+        }
         super.open();
     }
 
+    private int partitionOf(Field key) {
+        int h = key.hashCode() * 0x9E3779B9;
+        return ((h ^ (h >>> 16)) & 0x7fffffff) % numPartitions;
+    }
+
+    /**
+     * Partition both children into temporary files on the join key: the
+     * tuples already in the hash table, the rest of the left child, and all
+     * of the right child.
+     */
+    private void spill() throws IOException, DbException, TransactionAbortedException {
+        leftPartitions = new SpillFile[numPartitions];
+        rightPartitions = new SpillFile[numPartitions];
+        for (int i = 0; i < numPartitions; i++) {
+            leftPartitions[i] = new SpillFile(child1.getTupleDesc());
+            rightPartitions[i] = new SpillFile(child2.getTupleDesc());
+        }
+        for (ArrayList<Tuple> list : map.values()) {
+            for (Tuple t : list)
+                leftPartitions[partitionOf(t.getField(pred.getField1()))].add(t);
+        }
+        map.clear();
+        while (child1.hasNext()) {
+            Tuple t = child1.next();
+            leftPartitions[partitionOf(t.getField(pred.getField1()))].add(t);
+        }
+        while (child2.hasNext()) {
+            Tuple t = child2.next();
+            rightPartitions[partitionOf(t.getField(pred.getField2()))].add(t);
+        }
+        partition = -1;
+    }
+
+    /**
+     * Move on to the next pair of partitions with tuples on both sides, and
+     * load the first chunk of its left partition.
+     * @return false if there are no more partitions
+     */
+    private boolean nextPartition() throws DbException, TransactionAbortedException {
+        if (leftPartitions == null)
+            return false;
+        closePartition();
+        while (++partition < numPartitions) {
+            if (leftPartitions[partition].size() == 0 || rightPartitions[partition].size() == 0)
+                continue;
+            try {
+                build = leftPartitions[partition].iterator();
+                probe = rightPartitions[partition].iterator();
+            } catch (IOException e) {
+                throw new DbException("could not read hash join partition: " + e.getMessage());
+            }
+            build.open();
+            probe.open();
+            fillMap();
+            return true;
+        }
+        return false;
+    }
+
+    private void closePartition() {
+        if (build != null && build != child1) {
+            build.close();
+            probe.close();
+        }
+        build = child1;
+        probe = child2;
+    }
+
+    private void deletePartitions() {
+        closePartition();
+        if (leftPartitions != null) {
+            for (int i = 0; i < numPartitions; i++) {
+                leftPartitions[i].delete();
+                rightPartitions[i].delete();
+            }
+        }
+        leftPartitions = null;
+        rightPartitions = null;
+    }
+
     public void close() {
         super.close();
+        deletePartitions();
         child2.close();
         child1.close();
         this.t1=null;
         this.t2=null;
         this.listIt=null;
+        this.fetchDone = false;
         this.map.clear();
+        resetBatchState();
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
+        this.listIt = null;
+        this.fetchDone = false;
+        resetBatchState();
+        if (leftPartitions != null) {
+            partition = -1;
+            nextPartition();
+            return;
+        }
         child1.rewind();
         child2.rewind();
+        fillMap();
     }
 
     transient Iterator<Tuple> listIt = null;
+    // whether fetchNext has returned null; until rewind, it returns null
+    // without touching the children again
+    transient private boolean fetchDone = false;
 
     /**
      * Returns the next tuple generated by the join, or null if there are no
@@ -131,32 +294,83 @@ public class HashEquiJoin extends Operator {
     }
 
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
-        if (listIt != null && listIt.hasNext()) {
-            return processList();
-        }
+        if (fetchDone)
+            return null;
+        while (true) {
+            if (listIt != null && listIt.hasNext()) {
+                return processList();
+            }
 
-        // loop around child2
-        while (child2.hasNext()) {
-            t2 = child2.next();
+            // loop around the probe side
+            while (probe.hasNext()) {
+                t2 = probe.next();
 
-            // if match, create a combined tuple and fill it with the values
-            // from both tuples
-            ArrayList<Tuple> l = map.get(t2.getField(pred.getField2()));
-            if (l == null)
-                continue;
-            listIt = l.iterator();
+                // if match, create a combined tuple and fill it with the values
+                // from both tuples
+                ArrayList<Tuple> l = map.get(t2.getField(pred.getField2()));
+                if (l == null)
+                    continue;
+                listIt = l.iterator();
 
-            return processList();
+                return processList();
 
-        }
+            }
 
-        // child2 is done: advance child1
-        child2.rewind();
-        if (loadMap()) {
-            return fetchNext();
+            // probe side is done: advance the build side, then the partition
+            probe.rewind();
+            if (!loadMap() && !nextPartition()) {
+                fetchDone = true;
+                return null;
+            }
         }
+    }
 
-        return null;
+    transient private TupleBatch probeBatch = null;
+    transient private int probeRow = 0;
+    transient private Iterator<Tuple> batchMatches = null;
+    transient private boolean batchDone = false;
+
+    private void resetBatchState() {
+        this.probeBatch = null;
+        this.probeRow = 0;
+        this.batchMatches = null;
+        this.batchDone = false;
+    }
+
+    /**
+     * Returns the next batch of joined tuples. The right (inner) side is
+     * probed a batch at a time against the hash table built from the left
+     * side, partition by partition if the join has spilled.
+     * 
+     * @return The next batch of matching tuples, or null if there are no more
+     */
+    public TupleBatch nextBatch() throws TransactionAbortedException, DbException {
+        if (batchDone)
+            return null;
+        int field2 = pred.getField2();
+        TupleBatch out = new TupleBatch(comboTD);
+        while (!out.isFull()) {
+            if (batchMatches != null && batchMatches.hasNext()) {
+                out.addJoined(batchMatches.next(), probeBatch, probeRow - 1);
+                continue;
+            }
+            if (probeBatch == null || probeRow >= probeBatch.size()) {
+                probeBatch = RowToBatchAdapter.of(probe).nextBatch();
+                probeRow = 0;
+                if (probeBatch == null) {
+                    // probe side is done: advance the build side, then the partition
+                    probe.rewind();
+                    if (!loadMap() && !nextPartition()) {
+                        batchDone = true;
+                        break;
+                    }
+                    continue;
+                }
+            }
+            ArrayList<Tuple> l = map.get(probeBatch.getField(field2, probeRow++));
+            batchMatches = l == null ? null : l.iterator();
+        }
+        return out.isEmpty() ? null : out;
     }
 
     @Override
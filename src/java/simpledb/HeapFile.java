@@ -10,26 +10,123 @@ import java.util.*;
  * in no particular order. Tuples are stored on pages, each of which is a fixed
  * size, and the file is simply a collection of those pages. HeapFile works
  * closely with HeapPage. The format of HeapPages is described in the HeapPage
- * constructor.
+ * constructor; files may instead use the variable-length records of
+ * SlottedHeapPage, chosen per table in the Catalog.
  *
  * @see simpledb.HeapPage#HeapPage
+ * @see simpledb.SlottedHeapPage
  * @author Sam Madden
  */
 public class HeapFile implements DbFile {
 
+    /** How the pages of a heap file lay out their tuples. */
+    public enum PageFormat {
+        /** Fixed-size slots, as described in the HeapPage constructor. */
+        FIXED,
+        /** A slot directory and variable-length records; see SlottedHeapPage. */
+        SLOTTED
+    }
+
     private File file;
     private TupleDesc tupleDesc;
+    private final PageFormat format;
+    private volatile MappedPageReader mappedReader;
+    private final FreeSpaceMap freeSpace;
+    private final ZoneMap zones;
 
     /**
-     * Constructs a heap file backed by the specified file.
+     * Constructs a heap file backed by the specified file, with pages of
+     * fixed-size slots.
      *
      * @param f
      *            the file that stores the on-disk backing store for this heap
      *            file.
      */
     public HeapFile(File f, TupleDesc td) {
+        this(f, td, PageFormat.FIXED);
+    }
+
+    /**
+     * Constructs a heap file backed by the specified file, whose pages have
+     * the given format.  A file opened as SLOTTED must have been written in
+     * that format, by HeapFile itself or by HeapFileEncoder; its first page
+     * is checked, so that a file of fixed-format pages is refused here
+     * rather than misread later.
+     *
+     * @param f
+     *            the file that stores the on-disk backing store for this heap
+     *            file.
+     * @throws IllegalArgumentException if the file is opened as SLOTTED
+     *            and its first page is not a slotted page
+     */
+    public HeapFile(File f, TupleDesc td, PageFormat format) {
         this.file = f;
         this.tupleDesc = td;
+        this.format = format;
+        if (format == PageFormat.SLOTTED)
+            checkSlotted(f, td);
+        // fixed pages count free space in slots, slotted pages in bytes
+        int unit = format == PageFormat.SLOTTED
+                ? (BufferPool.getPageSize() + FreeSpaceMap.MAX_FREE - 1) / FreeSpaceMap.MAX_FREE
+                : 1;
+        this.freeSpace = new FreeSpaceMap(new File(f.getPath() + ".fsm"), unit);
+        this.zones = new ZoneMap(new File(f.getPath() + ".zm"), f, td);
+        if (MappedPageReader.DEFAULT_ENABLED)
+            this.mappedReader = new MappedPageReader(f);
+    }
+
+    private static void checkSlotted(File f, TupleDesc td) {
+        int pageSize = BufferPool.getPageSize();
+        if (f.length() < pageSize)
+            return;
+        byte[] data = new byte[pageSize];
+        try {
+            RandomAccessFile rfile = new RandomAccessFile(f, "r");
+            try {
+                rfile.readFully(data);
+            } finally {
+                rfile.close();
+            }
+            SlottedHeapPage.checkPageData(data, td);
+        } catch (IOException e) {
+            throw new IllegalArgumentException(f + " is not a file of slotted pages: " + e.getMessage());
+        }
+    }
+
+    /** Returns the format of the pages of this file. */
+    public PageFormat getPageFormat() {
+        return this.format;
+    }
+
+    /**
+     * Turn memory-mapped page reads on or off for this file.
+     *
+     * @see MappedPageReader
+     */
+    public void setMemoryMapped(boolean enabled) throws IOException {
+        MappedPageReader old = this.mappedReader;
+        this.mappedReader = enabled ? new MappedPageReader(this.file) : null;
+        if (old != null)
+            old.close();
+    }
+
+    /**
+     * Returns the map of the pages of this file that have room for inserts.
+     *
+     * @see FreeSpaceMap
+     */
+    public FreeSpaceMap getFreeSpaceMap() {
+        return this.freeSpace;
+    }
+
+    /**
+     * Returns the map of the range of values of each INT column on each
+     * page of this file.
+     *
+     * @see ZoneMap
+     */
+    public ZoneMap getZoneMap() {
+        return this.zones;
     }
 
     /**
@@ -66,6 +163,17 @@ public class HeapFile implements DbFile {
     // see DbFile.java for javadocs
     // 创建HeapPage，打开文件，然后读取对应的page
     public Page readPage(PageId pid) {
+        MappedPageReader reader = this.mappedReader;
+        if (reader != null) {
+            int pageSize = BufferPool.getPageSize();
+            byte[] buffer = new byte[pageSize];
+            try {
+                if (reader.read((long) pid.getPageNumber() * pageSize, buffer, pageSize))
+                    return learn(newPage(pid, buffer));
+            } catch (IOException e) {
+                throw new IllegalArgumentException(e);
+            }
+        }
         try {
             RandomAccessFile rfile = new RandomAccessFile(file, "r");
             int pageSize = BufferPool.getPageSize();
@@ -80,7 +188,7 @@ public class HeapFile implements DbFile {
                 return null;
             }
             rfile.close();
-            return new HeapPage(new HeapPageId(pid.getTableId(), pid.getPageNumber()), buffer);
+            return learn(newPage(pid, buffer));
         } catch (Exception e) {
             throw new IllegalArgumentException();
         }
@@ -88,8 +196,30 @@ public class HeapFile implements DbFile {
 
     // see DbFile.java for javadocs
     public void writePage(Page page) throws IOException {
-        // some code goes here
-        // not necessary for lab1
+        // the zone map must cover the page before it is on disk
+        this.zones.beforeWrite((HeapPage) page);
+        RandomAccessFile rfile = new RandomAccessFile(file, "rw");
+        try {
+            rfile.seek((long) page.getId().getPageNumber() * BufferPool.getPageSize());
+            rfile.write(page.getPageData());
+        } finally {
+            rfile.close();
+        }
+        this.freeSpace.update((HeapPage) page);
+    }
+
+    private HeapPage newPage(PageId pid, byte[] data) throws IOException {
+        HeapPageId id = new HeapPageId(pid.getTableId(), pid.getPageNumber());
+        if (this.format == PageFormat.SLOTTED)
+            return new SlottedHeapPage(id, data);
+        return new HeapPage(id, data);
+    }
+
+    /** Note the free space and values of a page as it comes from disk. */
+    private HeapPage learn(HeapPage page) {
+        this.freeSpace.update(page);
+        this.zones.learnRead(page);
+        return page;
     }
 
     /**
@@ -99,28 +229,158 @@ public class HeapFile implements DbFile {
         return (int) (this.file.length() / BufferPool.getPageSize());
     }
 
+    /**
+     * Append an empty page to the file, unless another thread has already
+     * appended page pageNo.
+     */
+    private synchronized void appendEmptyPage(int pageNo) throws IOException {
+        if (numPages() > pageNo)
+            return;
+        this.zones.beforeAppend();
+        RandomAccessFile rfile = new RandomAccessFile(file, "rw");
+        try {
+            rfile.seek((long) pageNo * BufferPool.getPageSize());
+            rfile.write(HeapPage.createEmptyPageData());
+        } finally {
+            rfile.close();
+        }
+    }
+
     // see DbFile.java for javadocs
+    // 行级锁：只对插入的slot加X锁，页和表上只加IX意向锁，
+    // 同一页上不同行的插入不会互相等待
+    // 空闲空间表(FreeSpaceMap)指出可能有空位的页，跳过已满的页
     public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
             throws DbException, IOException, TransactionAbortedException {
-        // some code goes here
-        return null;
-        // not necessary for lab1
+        if (!this.tupleDesc.equals(t.getTupleDesc()))
+            throw new DbException("tupledesc is mismatch");
+        if (this.format == PageFormat.SLOTTED)
+            return insertSlotted(tid, t);
+        BufferPool pool = Database.getBufferPool();
+        LockManager locks = pool.getLockManager();
+        int pageNo = this.freeSpace.findPage(0, 1);
+        while (true) {
+            if (pageNo >= numPages())
+                appendEmptyPage(pageNo);
+            HeapPageId pid = new HeapPageId(getId(), pageNo);
+            boolean locked = locks.holdsLock(tid, pid);
+            HeapPage page = (HeapPage) pool.getPageForInsert(tid, pid);
+            synchronized (page) {
+                if (!pool.isResident(page))
+                    continue; // rolled back or evicted meanwhile; fetch it again
+                int free = page.getNumEmptySlots();
+                for (int i = 0; i < page.numSlots && free > 0; i++) {
+                    // a slot emptied by a transaction that is still running
+                    // stays locked, since that transaction may roll back
+                    if (page.isSlotUsed(i))
+                        continue;
+                    free--;
+                    if (locks.tryLockRecord(tid, new RecordId(pid, i), Permissions.READ_WRITE)) {
+                        this.zones.add(pageNo, t);
+                        page.insertTuple(t, i);
+                        pool.logRowUpdate(tid, page);
+                        this.freeSpace.update(page);
+                        ArrayList<Page> dirtied = new ArrayList<Page>();
+                        dirtied.add(page);
+                        return dirtied;
+                    }
+                }
+                this.freeSpace.update(page);
+            }
+            if (!locked)
+                locks.releasePage(tid, pid);
+            pageNo = this.freeSpace.findPage(pageNo + 1, 1);
+        }
+    }
+
+    /**
+     * Insert into a file of slotted pages.  Records there move when the page
+     * is compacted and share the page's free space, so the page is locked
+     * whole rather than just the slot filled.
+     */
+    private ArrayList<Page> insertSlotted(TransactionId tid, Tuple t)
+            throws DbException, IOException, TransactionAbortedException {
+        int needed = SlottedHeapPage.spaceNeeded(t);
+        if (needed > BufferPool.getPageSize() - SlottedHeapPage.HEADER_SIZE)
+            throw new DbException("tuple does not fit on a page");
+        BufferPool pool = Database.getBufferPool();
+        int pageNo = this.freeSpace.findPage(0, needed);
+        while (true) {
+            if (pageNo >= numPages())
+                appendEmptyPage(pageNo);
+            HeapPageId pid = new HeapPageId(getId(), pageNo);
+            boolean locked = pool.holdsLock(tid, pid);
+            SlottedHeapPage page = (SlottedHeapPage) pool.getPage(tid, pid, Permissions.READ_WRITE);
+            synchronized (page) {
+                if (!pool.isResident(page))
+                    continue; // rolled back or evicted meanwhile; fetch it again
+                int slot = page.slotFor(t);
+                if (slot >= 0) {
+                    this.zones.add(pageNo, t);
+                    page.insertTuple(t, slot);
+                    pool.logRowUpdate(tid, page);
+                    this.freeSpace.update(page);
+                    ArrayList<Page> dirtied = new ArrayList<Page>();
+                    dirtied.add(page);
+                    return dirtied;
+                }
+                this.freeSpace.update(page);
+            }
+            if (!locked)
+                pool.releasePage(tid, pid);
+            pageNo = this.freeSpace.findPage(pageNo + 1, needed);
+        }
     }
 
     // see DbFile.java for javadocs
     public ArrayList<Page> deleteTuple(TransactionId tid, Tuple t) throws DbException,
             TransactionAbortedException {
-        // some code goes here
-        return null;
-        // not necessary for lab1
+        RecordId rid = t.getRecordId();
+        if (rid == null || rid.getPageId().getTableId() != getId())
+            throw new DbException("tuple is not in this table");
+        BufferPool pool = Database.getBufferPool();
+        while (true) {
+            // deleting from a slotted page changes its shared free space
+            HeapPage page = (HeapPage) (this.format == PageFormat.SLOTTED
+                    ? pool.getPage(tid, rid.getPageId(), Permissions.READ_WRITE)
+                    : pool.getTuplePage(tid, rid, Permissions.READ_WRITE));
+            synchronized (page) {
+                if (!pool.isResident(page))
+                    continue;
+                page.deleteTuple(t);
+                this.freeSpace.update(page);
+                try {
+                    pool.logRowUpdate(tid, page);
+                } catch (IOException e) {
+                    throw new DbException("could not log delete: " + e.getMessage());
+                }
+                ArrayList<Page> dirtied = new ArrayList<Page>();
+                dirtied.add(page);
+                return dirtied;
+            }
+        }
     }
 
     // see DbFile.java for javadocs
     public DbFileIterator iterator(TransactionId tid) {
+        return iterator(tid, Collections.<Predicate>emptyList());
+    }
+
+    /**
+     * Returns an iterator over the tuples of this file that skips the pages
+     * on which, as the zone map shows, no tuple can satisfy one of the
+     * given predicates.  Tuples on the pages it reads are returned whether
+     * they satisfy the predicates or not; a Filter above applies them.
+     * Predicates added to the list before the iterator is opened or
+     * rewound are taken into account.
+     *
+     * @see ZoneMap#mayMatch
+     */
+    public DbFileIterator iterator(TransactionId tid, final List<Predicate> skip) {
 
         return new DbFileIterator() {
 
-            private int numPage = numPages();
+            private int numPage;
             private int pid = 0;
             private BufferPool bufferPool = Database.getBufferPool();
             private HeapPage currPage;
@@ -130,17 +390,37 @@ public class HeapFile implements DbFile {
             @Override
             public void open() throws DbException, TransactionAbortedException {
                 isOpen = true;
-                getPage(pid++);
+                numPage = numPages();
             }
 
             @Override
             public boolean hasNext() throws DbException, TransactionAbortedException {
-                return isOpen && pid < numPage || (pid == numPage && currTupleIter.hasNext());
+                if (!isOpen)
+                    return false;
+                // 删除之后可能有空页，跳过
+                while (currTupleIter == null || !currTupleIter.hasNext()) {
+                    while (pid < numPage && !mayMatch(pid))
+                        pid++;
+                    if (pid >= numPage)
+                        return false;
+                    getPage(pid++);
+                }
+                return true;
+            }
+
+            private boolean mayMatch(int pageNo) {
+                for (Predicate p : skip) {
+                    if (!zones.mayMatch(pageNo, p))
+                        return false;
+                }
+                return true;
             }
 
             private boolean getPage(int pid) throws TransactionAbortedException, DbException {
                 if (!isOpen) throw new DbException("not open");
-                currPage = (HeapPage) bufferPool.getPage(tid, new HeapPageId(getId(), pid), Permissions.READ_ONLY);
+                HeapPageId id = new HeapPageId(getId(), pid);
+                bufferPool.getPrefetcher().pageRequested(id);
+                currPage = (HeapPage) bufferPool.getPage(tid, id, Permissions.READ_ONLY);
                 if (currPage == null) return false;
                 currTupleIter = currPage.iterator();
                 return true;
@@ -148,11 +428,8 @@ public class HeapFile implements DbFile {
 
             @Override
             public Tuple next() throws DbException, TransactionAbortedException, NoSuchElementException {
-                if (!isOpen || currTupleIter == null)
+                if (!hasNext())
                     throw new NoSuchElementException();
-                if (!currTupleIter.hasNext()) {
-                    getPage(pid++);
-                }
                 return currTupleIter.next();
             }
 
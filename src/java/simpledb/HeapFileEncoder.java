@@ -2,6 +2,7 @@ package simpledb;
 
 import java.io.*;
 import java.util.ArrayList;
+import java.util.Arrays;
 
 /**
  * HeapFileEncoder reads a comma delimited text file or accepts
@@ -29,6 +30,16 @@ public class HeapFileEncoder {
    * @throws IOException if the temporary/output file can't be opened
    */
   public static void convert(ArrayList<ArrayList<Integer>> tuples, File outFile, int npagebytes, int numFields) throws IOException {
+      convert(tuples, outFile, npagebytes, numFields, HeapFile.PageFormat.FIXED);
+  }
+
+  /** Convert the specified tuple list (with only integer fields) into a binary
+   * page file whose pages have the given format.
+   *
+   * @see #convert(ArrayList, File, int, int)
+   */
+  public static void convert(ArrayList<ArrayList<Integer>> tuples, File outFile, int npagebytes,
+                 int numFields, HeapFile.PageFormat format) throws IOException {
       File tempInput = File.createTempFile("tempTable", ".txt");
       tempInput.deleteOnExit();
       BufferedWriter bw = new BufferedWriter(new FileWriter(tempInput));
@@ -48,7 +59,9 @@ public class HeapFileEncoder {
           bw.write('\n');
       }
       bw.close();
-      convert(tempInput, outFile, npagebytes, numFields);
+      Type[] ts = new Type[numFields];
+      Arrays.fill(ts, Type.INT_TYPE);
+      convert(tempInput, outFile, npagebytes, numFields, ts, ',', format);
   }
 
       public static void convert(File inFile, File outFile, int npagebytes,
@@ -90,6 +103,27 @@ public class HeapFileEncoder {
   public static void convert(File inFile, File outFile, int npagebytes,
                  int numFields, Type[] typeAr, char fieldSeparator)
       throws IOException {
+      convert(inFile, outFile, npagebytes, numFields, typeAr, fieldSeparator,
+              HeapFile.PageFormat.FIXED);
+  }
+
+   /** Convert the specified input text file into a binary page file whose
+    * pages have the given format: fixed-size slots as described in
+    * HeapPage, or the slot directory and variable-length records of
+    * SlottedHeapPage.  A slotted file fills each page with as many records
+    * as fit, and its pages must be BufferPool.getPageSize() bytes, the size
+    * SlottedHeapPage reads.
+    *
+    * @see #convert(File, File, int, int, Type[], char)
+    * @see SlottedHeapPage
+    */
+  public static void convert(File inFile, File outFile, int npagebytes,
+                 int numFields, Type[] typeAr, char fieldSeparator, HeapFile.PageFormat format)
+      throws IOException {
+      if (format == HeapFile.PageFormat.SLOTTED) {
+          convertSlotted(inFile, outFile, npagebytes, numFields, typeAr, fieldSeparator);
+          return;
+      }
 
       int nrecbytes = 0;
       for (int i = 0; i < numFields ; i++) {
@@ -223,4 +257,64 @@ public class HeapFileEncoder {
     br.close();
     os.close();
   }
+
+  private static void convertSlotted(File inFile, File outFile, int npagebytes,
+                 int numFields, Type[] typeAr, char fieldSeparator)
+      throws IOException {
+      if (npagebytes != BufferPool.getPageSize())
+          throw new IllegalArgumentException("slotted pages must be "
+                  + BufferPool.getPageSize() + " bytes, not " + npagebytes);
+      TupleDesc td = new TupleDesc(Arrays.copyOf(typeAr, numFields));
+      int maxSlots = SlottedHeapPage.maxSlots(td);
+
+      BufferedReader br = new BufferedReader(new FileReader(inFile));
+      FileOutputStream os = new FileOutputStream(outFile);
+      try {
+          ArrayList<Tuple> page = new ArrayList<Tuple>();
+          int free = npagebytes - SlottedHeapPage.HEADER_SIZE;
+          int npages = 0;
+          String line;
+          while ((line = br.readLine()) != null) {
+              if (line.trim().isEmpty())
+                  continue;
+              Tuple t = parseTuple(line, td, fieldSeparator);
+              int needed = SlottedHeapPage.spaceNeeded(t);
+              if (page.size() == maxSlots || needed > free) {
+                  os.write(SlottedHeapPage.createPageData(page));
+                  npages++;
+                  page.clear();
+                  free = npagebytes - SlottedHeapPage.HEADER_SIZE;
+              }
+              page.add(t);
+              free -= needed;
+          }
+          // like fixed files, an empty input still gets one empty page
+          if (!page.isEmpty() || npages == 0)
+              os.write(SlottedHeapPage.createPageData(page));
+      } finally {
+          br.close();
+          os.close();
+      }
+  }
+
+  private static Tuple parseTuple(String line, TupleDesc td, char fieldSeparator)
+      throws IOException {
+      String[] values = line.split(java.util.regex.Pattern.quote(String.valueOf(fieldSeparator)), -1);
+      if (values.length != td.numFields())
+          throw new IOException("expected " + td.numFields() + " fields: " + line);
+      Tuple t = new Tuple(td);
+      for (int i = 0; i < values.length; i++) {
+          String s = values[i].trim();
+          if (td.getFieldType(i) == Type.INT_TYPE) {
+              try {
+                  t.setField(i, new IntField(Integer.parseInt(s)));
+              } catch (NumberFormatException e) {
+                  throw new IOException("BAD LINE : " + line);
+              }
+          } else {
+              t.setField(i, new StringField(s, Type.STRING_LEN));
+          }
+      }
+      return t;
+  }
 }
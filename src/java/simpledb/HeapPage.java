@@ -19,9 +19,16 @@ public class HeapPage implements Page {
     final Tuple tuples[];
     final int numSlots;
 
+    // the bytes the page was read from, never changed; a used slot that
+    // has not been filled since holds its tuple there
+    final byte[] data;
+    final boolean[] filled;
+
     byte[] oldData;
     private final Byte oldDataLock=new Byte((byte)0);
 
+    private volatile TransactionId dirtier;
+
     /**
      * Create a HeapPage from a set of bytes of data read from disk.
      * The format of a HeapPage is a set of header bytes indicating
@@ -34,6 +41,12 @@ public class HeapPage implements Page {
      * <p>
      *      ceiling(no. tuple slots / 8)
      * <p>
+     * <p>
+     * Only the header is read here.  The page keeps a copy of data, and
+     * the tuple of a slot is made when it is first asked for, with fields
+     * that are decoded from the page's bytes as they are read; see
+     * {@link #tupleAt}.
+     *
      * @see Database#getCatalog
      * @see Catalog#getTupleDesc
      * @see BufferPool#getPageSize()
@@ -42,26 +55,33 @@ public class HeapPage implements Page {
         this.pid = id;
         this.td = Database.getCatalog().getTupleDesc(id.getTableId());
         this.numSlots = getNumTuples();
-        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
-
-        // allocate and read the header slots of this page
-        header = new byte[getHeaderSize()];
-        for (int i=0; i<header.length; i++)
-            header[i] = dis.readByte();
-        
-        tuples = new Tuple[numSlots];
-        try{
-            // allocate and read the actual records of this page
-            for (int i=0; i<tuples.length; i++)
-                tuples[i] = readNextTuple(dis,i);
-        }catch(NoSuchElementException e){
-            e.printStackTrace();
-        }
-        dis.close();
+        if (data.length < BufferPool.getPageSize())
+            throw new IOException("short page " + id.getPageNumber());
+        this.data = data.clone();
+        this.header = Arrays.copyOf(this.data, getHeaderSize());
+        this.tuples = new Tuple[numSlots];
+        this.filled = new boolean[numSlots];
 
         setBeforeImage();
     }
 
+    /**
+     * Create a page with the given number of slots, all empty, for
+     * subclasses that lay out their pages differently and read the slots
+     * from data in their own format with {@link #decode}.  The subclass
+     * marks the used slots and sets the before image once it has read its
+     * header.
+     */
+    HeapPage(HeapPageId id, int numSlots, byte[] data) {
+        this.pid = id;
+        this.td = Database.getCatalog().getTupleDesc(id.getTableId());
+        this.numSlots = numSlots;
+        this.header = new byte[(numSlots + 7) / 8];
+        this.tuples = new Tuple[numSlots];
+        this.filled = new boolean[numSlots];
+        this.data = data.clone();
+    }
+
     /** Retrieve the number of tuples on this page.
         @return the number of tuples on this page
     */
@@ -88,7 +108,7 @@ public class HeapPage implements Page {
             {
                 oldDataRef = oldData;
             }
-            return new HeapPage(pid,oldDataRef);
+            return pageFrom(oldDataRef);
         } catch (IOException e) {
             e.printStackTrace();
             //should never happen -- we parsed it OK before!
@@ -97,6 +117,14 @@ public class HeapPage implements Page {
         return null;
     }
     
+    /**
+     * @return a page of this page's class read from data, as the
+     *         constructor would
+     */
+    HeapPage pageFrom(byte[] data) throws IOException {
+        return new HeapPage(pid, data);
+    }
+
     public void setBeforeImage() {
         synchronized(oldDataLock)
         {
@@ -112,36 +140,29 @@ public class HeapPage implements Page {
     }
 
     /**
-     * Suck up tuples from the source file.
+     * @return the tuple in a slot, or null if the slot is empty.  The
+     *         tuple of a slot that has not been filled since the page was
+     *         read is made from the page's bytes the first time.
      */
-    private Tuple readNextTuple(DataInputStream dis, int slotId) throws NoSuchElementException {
-        // if associated bit is not set, read forward to the next tuple, and
-        // return null.
-        if (!isSlotUsed(slotId)) {
-            for (int i=0; i<td.getSize(); i++) {
-                try {
-                    dis.readByte();
-                } catch (IOException e) {
-                    throw new NoSuchElementException("error reading empty tuple");
-                }
-            }
+    Tuple tupleAt(int slot) {
+        if (!isSlotUsed(slot))
             return null;
+        Tuple t = this.tuples[slot];
+        if (t == null && !this.filled[slot]) {
+            // racing readers may both decode the slot; either tuple will do
+            t = decode(slot);
+            this.tuples[slot] = t;
         }
+        return t;
+    }
 
-        // read fields in the tuple
-        Tuple t = new Tuple(td);
-        RecordId rid = new RecordId(pid, slotId);
-        t.setRecordId(rid);
-        try {
-            for (int j=0; j<td.numFields(); j++) {
-                Field f = td.getFieldType(j).parse(dis);
-                t.setField(j, f);
-            }
-        } catch (java.text.ParseException e) {
-            e.printStackTrace();
-            throw new NoSuchElementException("parsing error!");
-        }
-
+    /**
+     * Make the tuple of a used slot that has not been filled since the
+     * page was read, from the page's bytes.
+     */
+    Tuple decode(int slot) {
+        Tuple t = new Tuple(td, this.data, this.header.length + slot * td.getSize());
+        t.setRecordId(new RecordId(pid, slot));
         return t;
     }
 
@@ -157,61 +178,36 @@ public class HeapPage implements Page {
      * @return A byte array correspond to the bytes of this page.
      */
     public byte[] getPageData() {
-        int len = BufferPool.getPageSize();
-        ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
+        // slots that have not been filled since the page was read keep
+        // their bytes; only the header and the filled slots are written
+        byte[] out = Arrays.copyOf(this.data, BufferPool.getPageSize());
+        System.arraycopy(this.header, 0, out, 0, this.header.length);
+        int size = td.getSize();
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(size);
         DataOutputStream dos = new DataOutputStream(baos);
-
-        // create the header of the page
-        for (int i=0; i<header.length; i++) {
+        for (int i = 0; i < this.numSlots; i++) {
+            int off = this.header.length + i * size;
+            if (!isSlotUsed(i)) {
+                Arrays.fill(out, off, off + size, (byte) 0);
+                continue;
+            }
+            if (!this.filled[i])
+                continue;
+            baos.reset();
             try {
-                dos.writeByte(header[i]);
+                for (int j = 0; j < td.numFields(); j++)
+                    tuples[i].getField(j).serialize(dos);
+                dos.flush();
             } catch (IOException e) {
                 // this really shouldn't happen
                 e.printStackTrace();
             }
-        }
-
-        // create the tuples
-        for (int i=0; i<tuples.length; i++) {
-            // empty slot
-            if (!isSlotUsed(i)) {
-                for (int j=0; j<td.getSize(); j++) {
-                    try {
-                        dos.writeByte(0);
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-                }
-                continue;
-            }
-
-            // non-empty slot
-            for (int j=0; j<td.numFields(); j++) {
-                Field f = tuples[i].getField(j);
-                try {
-                    f.serialize(dos);
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
+            System.arraycopy(baos.toByteArray(), 0, out, off, size);
         }
 
         // padding
-        int zerolen = BufferPool.getPageSize() - (header.length + td.getSize() * tuples.length); //- numSlots * td.getSize();
-        byte[] zeroes = new byte[zerolen];
-        try {
-            dos.write(zeroes, 0, zerolen);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        try {
-            dos.flush();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        return baos.toByteArray();
+        Arrays.fill(out, this.header.length + size * this.numSlots, out.length, (byte) 0);
+        return out;
     }
 
     /**
@@ -236,8 +232,14 @@ public class HeapPage implements Page {
      * @param t The tuple to delete
      */
     public void deleteTuple(Tuple t) throws DbException {
-        // some code goes here
-        // not necessary for lab1
+        RecordId rid = t.getRecordId();
+        if (rid == null || !this.pid.equals(rid.getPageId()))
+            throw new DbException("tuple is not on this page");
+        int slot = rid.getTupleNumber();
+        if (slot < 0 || slot >= this.numSlots || !isSlotUsed(slot))
+            throw new DbException("tuple slot is already empty");
+        markSlotUsed(slot, false);
+        this.tuples[slot] = null;
     }
 
     /**
@@ -248,8 +250,29 @@ public class HeapPage implements Page {
      * @param t The tuple to add.
      */
     public void insertTuple(Tuple t) throws DbException {
-        // some code goes here
-        // not necessary for lab1
+        for (int i = 0; i < this.numSlots; i++) {
+            if (!isSlotUsed(i)) {
+                insertTuple(t, i);
+                return;
+            }
+        }
+        throw new DbException("page is full");
+    }
+
+    /**
+     * Adds the specified tuple to the page in the given slot, which must be
+     * empty.
+     * @throws DbException if the slot is in use or tupledesc is mismatch.
+     */
+    void insertTuple(Tuple t, int slot) throws DbException {
+        if (!this.td.equals(t.getTupleDesc()))
+            throw new DbException("tupledesc is mismatch");
+        if (isSlotUsed(slot))
+            throw new DbException("slot " + slot + " is in use");
+        markSlotUsed(slot, true);
+        t.setRecordId(new RecordId(this.pid, slot));
+        this.tuples[slot] = t;
+        this.filled[slot] = true;
     }
 
     /**
@@ -257,17 +280,14 @@ public class HeapPage implements Page {
      * that did the dirtying
      */
     public void markDirty(boolean dirty, TransactionId tid) {
-        // some code goes here
-	// not necessary for lab1
+        this.dirtier = dirty ? tid : null;
     }
 
     /**
      * Returns the tid of the transaction that last dirtied this page, or null if the page is not dirty
      */
     public TransactionId isDirty() {
-        // some code goes here
-	// Not necessary for lab1
-        return null;      
+        return this.dirtier;
     }
 
     /**
@@ -281,7 +301,15 @@ public class HeapPage implements Page {
                 b &= (b-1);
             }
         }
-        return getNumTuples() - numUsedSlots;
+        return this.numSlots - numUsedSlots;
+    }
+
+    /**
+     * Returns the free space on this page, in the measure the file's
+     * {@link FreeSpaceMap} records: here, the number of empty slots.
+     */
+    public int getFreeSpace() {
+        return getNumEmptySlots();
     }
 
     /**
@@ -295,9 +323,11 @@ public class HeapPage implements Page {
     /**
      * Abstraction to fill or clear a slot on this page.
      */
-    private void markSlotUsed(int i, boolean value) {
-        // some code goes here
-        // not necessary for lab1
+    void markSlotUsed(int i, boolean value) {
+        if (value)
+            this.header[i / 8] |= (byte) (1 << (i % 8));
+        else
+            this.header[i / 8] &= (byte) ~(1 << (i % 8));
     }
 
     /**
@@ -310,8 +340,11 @@ public class HeapPage implements Page {
 
             @Override
             public boolean hasNext() {
-                // 这里注意，后面没有用为null，应该排除
-                return this.nextSlot < numSlots - getNumEmptySlots();
+                // 跳过空的slot，删除之后中间也可能有空的slot
+                while (this.nextSlot < numSlots && !isSlotUsed(this.nextSlot)) {
+                    this.nextSlot += 1;
+                }
+                return this.nextSlot < numSlots;
             }
 
             @Override
@@ -319,10 +352,7 @@ public class HeapPage implements Page {
                 if (!hasNext()) {
                     throw new NoSuchElementException();
                 }
-                while (!isSlotUsed(nextSlot)) {
-                    this.nextSlot += 1;
-                }
-                return tuples[this.nextSlot++];
+                return tupleAt(this.nextSlot++);
             }
         };
     }
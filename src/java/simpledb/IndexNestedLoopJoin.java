@@ -0,0 +1,177 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * IndexNestedLoopJoin joins its left child against a table stored in a
+ * BTreeFile whose key is the join field. Instead of scanning the table, it
+ * probes the tree once per left tuple with
+ * {@link BTreeFile#indexIterator}, so each probe reads only the pages on the
+ * path to the matching leaves. This is far cheaper than a scan of the right
+ * side when the left side is small.
+ * <p>
+ * The right child is the scan of the indexed table; it is used for its
+ * TupleDesc and table, and is never opened itself. Joins on LIKE and
+ * NOT_EQUALS cannot be answered by the tree and are rejected.
+ */
+public class IndexNestedLoopJoin extends Operator {
+
+    private static final long serialVersionUID = 1L;
+    private JoinPredicate pred;
+    private OpIterator child1;
+    private SeqScan child2;
+    private TupleDesc comboTD;
+    transient private BTreeFile index = null;
+    transient private Tuple t1 = null;
+    transient private DbFileIterator matches = null;
+    transient private long probes = 0;
+
+    /**
+     * Constructor.
+     *
+     * @param p
+     *            The predicate to use to join the children
+     * @param child1
+     *            Iterator for the left(outer) relation to join
+     * @param child2
+     *            Scan of the right(inner) relation, which must be stored in a
+     *            BTreeFile keyed on the right join field
+     * @throws IllegalArgumentException
+     *             if the right relation has no index on its join field, or
+     *             the tree cannot answer the predicate's operator
+     */
+    public IndexNestedLoopJoin(JoinPredicate p, OpIterator child1, SeqScan child2) {
+        if (!canProbe(p.getOperator()))
+            throw new IllegalArgumentException("cannot probe an index with " + p.getOperator());
+        DbFile f = Database.getCatalog().getDatabaseFile(child2.getTableId());
+        if (!(f instanceof BTreeFile) || ((BTreeFile) f).keyField() != p.getField2())
+            throw new IllegalArgumentException("table " + child2.getTableName()
+                    + " has no index on " + child2.getTupleDesc().getFieldName(p.getField2()));
+        this.pred = p;
+        this.child1 = child1;
+        this.child2 = child2;
+        this.index = (BTreeFile) f;
+        comboTD = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+    }
+
+    /** @return whether a B+ tree can answer a join on op */
+    public static boolean canProbe(Predicate.Op op) {
+        return op != Predicate.Op.LIKE && op != Predicate.Op.NOT_EQUALS;
+    }
+
+    /**
+     * Turn the join predicate around, so that it compares the index key
+     * against the left tuple's value: t1 &lt; t2 holds when t2 &gt; t1.
+     */
+    private static Predicate.Op reverse(Predicate.Op op) {
+        switch (op) {
+        case LESS_THAN:
+            return Predicate.Op.GREATER_THAN;
+        case LESS_THAN_OR_EQ:
+            return Predicate.Op.GREATER_THAN_OR_EQ;
+        case GREATER_THAN:
+            return Predicate.Op.LESS_THAN;
+        case GREATER_THAN_OR_EQ:
+            return Predicate.Op.LESS_THAN_OR_EQ;
+        default:
+            return op;
+        }
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return pred;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return comboTD;
+    }
+
+    public String getJoinField1Name() {
+        return this.child1.getTupleDesc().getFieldName(this.pred.getField1());
+    }
+
+    public String getJoinField2Name() {
+        return this.child2.getTupleDesc().getFieldName(this.pred.getField2());
+    }
+
+    /** @return the number of times the index has been probed */
+    public long getProbes() {
+        return probes;
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        if (index == null)
+            index = (BTreeFile) Database.getCatalog().getDatabaseFile(child2.getTableId());
+        child1.open();
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        closeMatches();
+        child1.close();
+        t1 = null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        closeMatches();
+        child1.rewind();
+        t1 = null;
+    }
+
+    private void closeMatches() {
+        if (matches != null) {
+            matches.close();
+            matches = null;
+        }
+    }
+
+    /**
+     * Returns the next tuple generated by the join, or null if there are no
+     * more tuples. Each left tuple is followed by the tuples the index finds
+     * for its join value, in key order.
+     *
+     * @return The next matching tuple.
+     * @see JoinPredicate#filter
+     */
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        while (true) {
+            if (matches != null && matches.hasNext()) {
+                Tuple t2 = matches.next();
+                int td1n = t1.getTupleDesc().numFields();
+                int td2n = t2.getTupleDesc().numFields();
+
+                // set fields in combined tuple
+                Tuple t = new Tuple(comboTD);
+                for (int i = 0; i < td1n; i++)
+                    t.setField(i, t1.getField(i));
+                for (int i = 0; i < td2n; i++)
+                    t.setField(td1n + i, t2.getField(i));
+                return t;
+            }
+            closeMatches();
+            if (!child1.hasNext())
+                return null;
+            t1 = child1.next();
+            IndexPredicate ipred = new IndexPredicate(reverse(pred.getOperator()),
+                    t1.getField(pred.getField1()));
+            matches = index.indexIterator(child2.getTransactionId(), ipred);
+            matches.open();
+            probes++;
+        }
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[]{this.child1, this.child2};
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        this.child1 = children[0];
+        this.child2 = (SeqScan) children[1];
+        this.index = null;
+    }
+
+}
@@ -0,0 +1,131 @@
+package simpledb;
+
+import java.io.Serializable;
+
+/**
+ * IntGroupTable is an open-addressing hash table from int group keys to the
+ * running count, sum, min and max of a group, used by IntegerAggregator when
+ * grouping on an INT_TYPE field. Keys and state live in flat primitive
+ * arrays (linear probing, power-of-two capacity, at most half full), so
+ * merging a value allocates nothing and never boxes the key.
+ *
+ * @see IntegerAggregator
+ */
+public class IntGroupTable implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Number of longs of state per group: count, sum, min, max. */
+    private static final int WIDTH = 4;
+
+    private int[] keys;
+    private boolean[] used;
+    private long[] state;
+    private int mask;
+    private int size;
+
+    /**
+     * @param expectedGroups the number of groups to size the table for; the
+     *            table grows as needed
+     */
+    public IntGroupTable(int expectedGroups) {
+        int capacity = 16;
+        while (capacity < expectedGroups * 2)
+            capacity <<= 1;
+        allocate(capacity);
+    }
+
+    public IntGroupTable() {
+        this(16);
+    }
+
+    private void allocate(int capacity) {
+        this.keys = new int[capacity];
+        this.used = new boolean[capacity];
+        this.state = new long[capacity * WIDTH];
+        this.mask = capacity - 1;
+        this.size = 0;
+    }
+
+    private static int hash(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Fold value into the group of key, creating the group if needed.
+     */
+    public void merge(int key, int value) {
+        int slot = hash(key) & mask;
+        while (used[slot] && keys[slot] != key)
+            slot = (slot + 1) & mask;
+        int base = slot * WIDTH;
+        if (!used[slot]) {
+            if ((size + 1) * 2 > keys.length) {
+                grow();
+                merge(key, value);
+                return;
+            }
+            used[slot] = true;
+            keys[slot] = key;
+            state[base + IntegerAggregator.COUNT] = 0;
+            state[base + IntegerAggregator.SUM] = 0;
+            state[base + IntegerAggregator.MIN] = Long.MAX_VALUE;
+            state[base + IntegerAggregator.MAX] = Long.MIN_VALUE;
+            size++;
+        }
+        state[base + IntegerAggregator.COUNT]++;
+        state[base + IntegerAggregator.SUM] += value;
+        if (value < state[base + IntegerAggregator.MIN])
+            state[base + IntegerAggregator.MIN] = value;
+        if (value > state[base + IntegerAggregator.MAX])
+            state[base + IntegerAggregator.MAX] = value;
+    }
+
+    private void grow() {
+        int[] oldKeys = keys;
+        boolean[] oldUsed = used;
+        long[] oldState = state;
+        int oldSize = size;
+        allocate(oldKeys.length * 2);
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (!oldUsed[i])
+                continue;
+            int slot = hash(oldKeys[i]) & mask;
+            while (used[slot])
+                slot = (slot + 1) & mask;
+            used[slot] = true;
+            keys[slot] = oldKeys[i];
+            System.arraycopy(oldState, i * WIDTH, state, slot * WIDTH, WIDTH);
+        }
+        size = oldSize;
+    }
+
+    /** @return the number of groups in the table */
+    public int size() {
+        return size;
+    }
+
+    /** @return the number of slots; valid slot numbers are 0 to capacity()-1 */
+    public int capacity() {
+        return keys.length;
+    }
+
+    /** @return true if slot holds a group */
+    public boolean isUsed(int slot) {
+        return used[slot];
+    }
+
+    /** @return the group key held in slot */
+    public int key(int slot) {
+        return keys[slot];
+    }
+
+    /**
+     * @param what one of IntegerAggregator.COUNT, SUM, MIN or MAX
+     * @return that part of the running state of the group held in slot
+     */
+    public long get(int slot, int what) {
+        return state[slot * WIDTH + what];
+    }
+}
@@ -1,12 +1,31 @@
 package simpledb;
 
+import java.util.*;
+
 /**
  * Knows how to compute some aggregate over a set of IntFields.
+ * <p>
+ * Every group keeps its running count, sum, min and max. Groups on an
+ * INT_TYPE field are kept in an {@link IntGroupTable}, so merging a tuple
+ * neither allocates nor boxes the group key; other group types use a map
+ * keyed by Field.
  */
 public class IntegerAggregator implements Aggregator {
 
     private static final long serialVersionUID = 1L;
 
+    /** Positions of the running state kept for every group. */
+    static final int COUNT = 0, SUM = 1, MIN = 2, MAX = 3;
+
+    private final int gbfield;
+    private final Type gbfieldtype;
+    private final int afield;
+    private final Op what;
+    private final TupleDesc td;
+    private final long[] total;
+    private final IntGroupTable intGroups;
+    private final LinkedHashMap<Field, long[]> groups;
+
     /**
      * Aggregate constructor
      * 
@@ -20,10 +39,65 @@ public class IntegerAggregator implements Aggregator {
      *            the 0-based index of the aggregate field in the tuple
      * @param what
      *            the aggregation operator
+     * @throws IllegalArgumentException if what is SUM_COUNT or SC_AVG
      */
 
     public IntegerAggregator(int gbfield, Type gbfieldtype, int afield, Op what) {
-        // some code goes here
+        if (what == Op.SUM_COUNT || what == Op.SC_AVG)
+            throw new IllegalArgumentException("unsupported aggregate: " + what);
+        this.gbfield = gbfield;
+        this.gbfieldtype = gbfieldtype;
+        this.afield = afield;
+        this.what = what;
+        if (gbfield == NO_GROUPING)
+            this.td = new TupleDesc(new Type[] { Type.INT_TYPE });
+        else
+            this.td = new TupleDesc(new Type[] { gbfieldtype, Type.INT_TYPE });
+        this.total = gbfield == NO_GROUPING ? newState() : null;
+        this.intGroups = gbfield != NO_GROUPING && gbfieldtype == Type.INT_TYPE ? new IntGroupTable() : null;
+        this.groups = new LinkedHashMap<Field, long[]>();
+    }
+
+    /** @return a fresh running state for a group */
+    static long[] newState() {
+        return new long[] { 0, 0, Long.MAX_VALUE, Long.MIN_VALUE };
+    }
+
+    /** Fold one value into a group's running state. */
+    static void merge(long[] state, int value) {
+        state[COUNT]++;
+        state[SUM] += value;
+        if (value < state[MIN])
+            state[MIN] = value;
+        if (value > state[MAX])
+            state[MAX] = value;
+    }
+
+    /** @return the aggregate value of a group's running state */
+    static int result(Op what, long count, long sum, long min, long max) {
+        switch (what) {
+        case MIN:
+            return (int) min;
+        case MAX:
+            return (int) max;
+        case SUM:
+            return (int) sum;
+        case AVG:
+            return (int) (sum / count);
+        case COUNT:
+            return (int) count;
+        default:
+            throw new IllegalStateException("impossible to reach here");
+        }
+    }
+
+    private long[] stateOf(Field key) {
+        long[] state = this.groups.get(key);
+        if (state == null) {
+            state = newState();
+            this.groups.put(key, state);
+        }
+        return state;
     }
 
     /**
@@ -34,7 +108,31 @@ public class IntegerAggregator implements Aggregator {
      *            the Tuple containing an aggregate field and a group-by field
      */
     public void mergeTupleIntoGroup(Tuple tup) {
-        // some code goes here
+        int value = ((IntField) tup.getField(this.afield)).getValue();
+        if (this.total != null)
+            merge(this.total, value);
+        else if (this.intGroups != null)
+            this.intGroups.merge(((IntField) tup.getField(this.gbfield)).getValue(), value);
+        else
+            merge(stateOf(tup.getField(this.gbfield)), value);
+    }
+
+    public void mergeBatchIntoGroup(TupleBatch batch) {
+        int[] values = batch.intColumn(this.afield);
+        int size = batch.size();
+        if (this.total != null) {
+            for (int i = 0; i < size; i++)
+                merge(this.total, values[i]);
+            return;
+        }
+        if (this.intGroups != null) {
+            int[] keys = batch.intColumn(this.gbfield);
+            for (int i = 0; i < size; i++)
+                this.intGroups.merge(keys[i], values[i]);
+            return;
+        }
+        for (int i = 0; i < size; i++)
+            merge(stateOf(batch.getField(this.gbfield, i)), values[i]);
     }
 
     /**
@@ -43,12 +141,42 @@ public class IntegerAggregator implements Aggregator {
      * @return a OpIterator whose tuples are the pair (groupVal, aggregateVal)
      *         if using group, or a single (aggregateVal) if no grouping. The
      *         aggregateVal is determined by the type of aggregate specified in
-     *         the constructor.
+     *         the constructor. Without grouping, a COUNT of no tuples is a
+     *         single 0, and the other aggregates of no tuples have no tuple.
      */
     public OpIterator iterator() {
-        // some code goes here
-        throw new
-        UnsupportedOperationException("please implement me for lab2");
+        ArrayList<Tuple> results = new ArrayList<Tuple>();
+        if (this.total != null) {
+            // over no rows at all, COUNT is 0 and the others have no value
+            if (this.total[COUNT] > 0 || this.what == Op.COUNT) {
+                Tuple t = new Tuple(this.td);
+                t.setField(0, new IntField(result(this.what, this.total[COUNT], this.total[SUM],
+                        this.total[MIN], this.total[MAX])));
+                results.add(t);
+            }
+            return new TupleIterator(this.td, results);
+        }
+        if (this.intGroups != null) {
+            IntGroupTable g = this.intGroups;
+            for (int slot = 0; slot < g.capacity(); slot++) {
+                if (!g.isUsed(slot))
+                    continue;
+                Tuple t = new Tuple(this.td);
+                t.setField(0, new IntField(g.key(slot)));
+                t.setField(1, new IntField(result(this.what, g.get(slot, COUNT), g.get(slot, SUM),
+                        g.get(slot, MIN), g.get(slot, MAX))));
+                results.add(t);
+            }
+            return new TupleIterator(this.td, results);
+        }
+        for (Map.Entry<Field, long[]> e : this.groups.entrySet()) {
+            long[] s = e.getValue();
+            Tuple t = new Tuple(this.td);
+            t.setField(0, e.getKey());
+            t.setField(1, new IntField(result(this.what, s[COUNT], s[SUM], s[MIN], s[MAX])));
+            results.add(t);
+        }
+        return new TupleIterator(this.td, results);
     }
 
 }
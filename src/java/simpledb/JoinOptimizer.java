@@ -68,12 +68,79 @@ public class JoinOptimizer {
 
         JoinPredicate p = new JoinPredicate(t1id, lj.p, t2id);
 
-        j = new Join(p,plan1,plan2);
+        if (!(lj instanceof LogicalSubplanJoinNode)) {
+            j = instantiateIndexJoin(lj, p, plan1, plan2);
+            if (j != null)
+                return j;
+        }
+        if (lj.p == Predicate.Op.EQUALS)
+            j = new HashEquiJoin(p, plan1, plan2);
+        else
+            j = new Join(p,plan1,plan2);
 
         return j;
 
     }
 
+    /**
+     * Instantiate the join as an {@link IndexNestedLoopJoin} if plan2 scans
+     * a table with a B+ tree on the join field, perhaps under filters, which
+     * are then applied to the output of the join, and the statistics of
+     * both sides say probing is cheaper than the join that would be used
+     * instead: a hash join for equality, and nested loops for a range, where
+     * each probe of a large left side may read much of the tree. The left
+     * side must be a scan too, as nothing is known about the size of the
+     * output of other operators here.
+     *
+     * @return the join, or null if it should not probe an index
+     */
+    private static OpIterator instantiateIndexJoin(LogicalJoinNode lj,
+            JoinPredicate p, OpIterator plan1, OpIterator plan2) {
+        if (!IndexNestedLoopJoin.canProbe(lj.p))
+            return null;
+        ArrayList<Predicate> filters = new ArrayList<Predicate>();
+        OpIterator inner = plan2;
+        while (inner instanceof Filter) {
+            filters.add(((Filter) inner).getPredicate());
+            inner = ((Filter) inner).getChildren()[0];
+        }
+        if (!(inner instanceof SeqScan))
+            return null;
+        SeqScan scan = (SeqScan) inner;
+        BTreeFile index = indexOn(scan.getTableId(), lj.f2PureName);
+        if (index == null)
+            return null;
+
+        OpIterator outer = plan1;
+        while (outer instanceof Filter)
+            outer = ((Filter) outer).getChildren()[0];
+        if (!(outer instanceof SeqScan))
+            return null;
+        TableStats s1 = TableStats.getTableStats(((SeqScan) outer).getTableName());
+        TableStats s2 = TableStats.getTableStats(scan.getTableName());
+        if (s1 == null || s2 == null)
+            return null;
+        int card1 = s1.estimateTableCardinality(1.0);
+        int card2 = s2.estimateTableCardinality(1.0);
+        double cost1 = s1.estimateScanCost(), cost2 = s2.estimateScanCost();
+        double probe = indexJoinCost(index, card1, card2, cost1, cost2,
+                matchesPerProbe(scan.getTableId(), lj.f2PureName, lj.p, card2));
+        double other = nestedLoopCost(card1, card2, cost1, cost2);
+        if (lj.p == Predicate.Op.EQUALS)
+            other = Math.min(other, hashJoinCost(card1, card2, cost1, cost2));
+        if (probe >= other)
+            return null;
+
+        OpIterator j = new IndexNestedLoopJoin(p, plan1, scan);
+        int width = plan1.getTupleDesc().numFields();
+        for (int i = filters.size() - 1; i >= 0; i--) {
+            Predicate f = filters.get(i);
+            j = new Filter(new Predicate(width + f.getField(), f.getOp(),
+                    f.getOperand()), j);
+        }
+        return j;
+    }
+
     /**
      * Estimate the cost of a join.
      * 
@@ -102,19 +169,118 @@ public class JoinOptimizer {
      */
     public double estimateJoinCost(LogicalJoinNode j, int card1, int card2,
             double cost1, double cost2) {
+        return estimateJoinCost(j, card1, card2, cost1, cost2, true);
+    }
+
+    /**
+     * Estimate the cost of a join as {@link #estimateJoinCost} does.
+     *
+     * @param innerIsTable
+     *            whether the right-hand side is a base table, rather than
+     *            the result of other joins, so that it may be probed through
+     *            an index on the join field
+     */
+    private double estimateJoinCost(LogicalJoinNode j, int card1, int card2,
+            double cost1, double cost2, boolean innerIsTable) {
         if (j instanceof LogicalSubplanJoinNode) {
             // A LogicalSubplanJoinNode represents a subquery.
             // You do not need to implement proper support for these for Lab 3.
             return card1 + cost1 + cost2;
         } else {
-            // Insert your code here.
-            // HINT: You may need to use the variable "j" if you implemented
-            // a join algorithm that's more complicated than a basic
-            // nested-loops join.
-            return -1.0;
+            double cost = nestedLoopCost(card1, card2, cost1, cost2);
+            if (j.p == Predicate.Op.EQUALS)
+                cost = Math.min(cost, hashJoinCost(card1, card2, cost1, cost2));
+            Integer t2id = !innerIsTable || j.t2Alias == null ? null
+                    : p.getTableId(j.t2Alias);
+            BTreeFile index = t2id == null ? null : indexOn(t2id, j.f2PureName);
+            if (index != null && IndexNestedLoopJoin.canProbe(j.p)) {
+                cost = Math.min(cost, indexJoinCost(index, card1, card2, cost1,
+                        cost2, matchesPerProbe(t2id, j.f2PureName, j.p, card2)));
+            }
+            return cost;
         }
     }
 
+    /** Selectivity assumed for a range join on a table without statistics. */
+    static final double RANGE_JOIN_SELECTIVITY = 0.3;
+
+    /**
+     * The cost of a nested loops join: one scan of the left side, one scan
+     * of the right side per left tuple, and a predicate per pair.
+     */
+    static double nestedLoopCost(int card1, int card2, double cost1, double cost2) {
+        return cost1 + (double) card1 * cost2 + (double) card1 * card2;
+    }
+
+    /**
+     * The cost of a {@link HashEquiJoin} that fits in memory: one scan of each
+     * side, and a hash of each tuple.
+     */
+    static double hashJoinCost(int card1, int card2, double cost1, double cost2) {
+        return cost1 + cost2 + card1 + card2;
+    }
+
+    /**
+     * The cost of an {@link IndexNestedLoopJoin}: one scan of the left side,
+     * and per left tuple, a descent of the tree, the leaves holding the
+     * matches, and a predicate per match. A page costs what it costs in a
+     * scan of the right side.
+     *
+     * @param matches the number of right tuples each probe is expected to
+     *            find
+     */
+    static double indexJoinCost(BTreeFile index, int card1, int card2,
+            double cost1, double cost2, double matches) {
+        int leaves = Math.max(1, index.numPages());
+        double pageCost = cost2 / leaves;
+        double perLeaf = Math.max(1.0, (double) card2 / leaves);
+        // entries an internal page holds, as BTreeInternalPage lays them out
+        int keyLen = index.getTupleDesc().getFieldType(index.keyField()).getLen();
+        int fanout = Math.max(2, BufferPool.getPageSize() * 8
+                / ((keyLen + BTreeInternalPage.INDEX_SIZE) * 8 + 1));
+        double depth = Math.ceil(Math.log(leaves) / Math.log(fanout)) + 1;
+        double pages = depth + Math.max(0, Math.ceil(matches / perLeaf) - 1);
+        return cost1 + card1 * (pages * pageCost + matches);
+    }
+
+    /**
+     * @return the number of tuples of a table of card tuples expected to
+     *         match one value of the join under op
+     */
+    private static double matchesPerProbe(int tableid, String field,
+            Predicate.Op op, int card) {
+        if (op == Predicate.Op.EQUALS
+                && field.equals(Database.getCatalog().getPrimaryKey(tableid)))
+            return Math.min(1, card);
+        TableStats s = TableStats.getTableStats(Database.getCatalog().getTableName(tableid));
+        double sel;
+        if (s != null)
+            sel = s.avgSelectivity(Database.getCatalog().getTupleDesc(tableid)
+                    .fieldNameToIndex(field), op);
+        else
+            sel = op == Predicate.Op.EQUALS ? 1.0 / Math.max(1, card)
+                    : RANGE_JOIN_SELECTIVITY;
+        return card * sel;
+    }
+
+    /**
+     * @return the B+ tree the table is stored in if it is keyed on the given
+     *         field, or null
+     */
+    private static BTreeFile indexOn(int tableid, String field) {
+        DbFile f;
+        try {
+            f = Database.getCatalog().getDatabaseFile(tableid);
+        } catch (NoSuchElementException e) {
+            return null;
+        }
+        if (!(f instanceof BTreeFile))
+            return null;
+        BTreeFile index = (BTreeFile) f;
+        String key = index.getTupleDesc().getFieldName(index.keyField());
+        return key != null && key.equals(field) ? index : null;
+    }
+
     /**
      * Estimate the cardinality of a join. The cardinality of a join is the
      * number of tuples produced by the join.
@@ -286,6 +452,8 @@ public class JoinOptimizer {
         double t1cost, t2cost;
         int t1card, t2card;
         boolean leftPkey, rightPkey;
+        // whether each side is a base table, rather than earlier joins
+        boolean t1IsTable = true, t2IsTable = true;
 
         if (news.isEmpty()) { // base case -- both are base relations
             prevBest = new Vector<LogicalJoinNode>();
@@ -320,6 +488,7 @@ public class JoinOptimizer {
                                        // left
                 // subtree is
                 t1card = bestCard;
+                t1IsTable = false;
                 leftPkey = hasPkey(prevBest);
 
                 t2cost = j.t2Alias == null ? 0 : stats.get(table2Name)
@@ -336,6 +505,7 @@ public class JoinOptimizer {
                                        // left
                 // subtree is
                 t2card = bestCard;
+                t2IsTable = false;
                 rightPkey = hasPkey(prevBest);
                 t1cost = stats.get(table1Name).estimateScanCost();
                 t1card = stats.get(table1Name).estimateTableCardinality(
@@ -350,10 +520,12 @@ public class JoinOptimizer {
         }
 
         // case where prevbest is left
-        double cost1 = estimateJoinCost(j, t1card, t2card, t1cost, t2cost);
+        double cost1 = estimateJoinCost(j, t1card, t2card, t1cost, t2cost,
+                t2IsTable);
 
         LogicalJoinNode j2 = j.swapInnerOuter();
-        double cost2 = estimateJoinCost(j2, t2card, t1card, t2cost, t1cost);
+        double cost2 = estimateJoinCost(j2, t2card, t1card, t2cost, t1cost,
+                t1IsTable);
         if (cost2 < cost1) {
             boolean tmp;
             j = j2;
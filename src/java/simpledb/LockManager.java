@@ -0,0 +1,462 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * LockManager grants the locks of strict two-phase locking at three
+ * granularities: tables, pages and rows. Before a transaction locks a page
+ * it takes an intention lock on the page's table, and before it locks a
+ * row it takes intention locks on the row's table and page. So a row lock
+ * and a page lock that covers the same row always meet at the page, and
+ * transactions updating different rows of one page only share intention
+ * locks, which do not conflict.
+ * <p>
+ * When a transaction holds more than a given number of row locks on one
+ * page, the lock manager tries to trade them for a single lock on the page
+ * (lock escalation). Escalation never waits: if another transaction holds
+ * a conflicting lock on the page, the row locks are kept.
+ * <p>
+ * Deadlocks are detected with a waits-for graph: a transaction that has to
+ * wait records an edge to every transaction holding a conflicting lock,
+ * and looks for a cycle through itself. If there is one, the transaction
+ * in the cycle that is cheapest to abort, the one that has logged the
+ * fewest updates, is chosen as the victim and gets a
+ * TransactionAbortedException from the lock request it is waiting on.
+ * Since the graph is checked whenever an edge is added, no cycle goes
+ * unnoticed, and no transaction is aborted just for being slow.
+ * <p>
+ * Tables are locked by their id (an Integer), pages by PageId and rows by
+ * RecordId. All state is guarded by the LockManager's monitor, on which
+ * waiting transactions also sleep.
+ *
+ * @see BufferPool#getPage
+ * @see BufferPool#getTuplePage
+ */
+public class LockManager {
+
+    /** Lock modes, from weakest to strongest. */
+    public enum Mode {
+        /** Intention to read rows or pages below. */
+        IS,
+        /** Intention to update rows or pages below. */
+        IX,
+        /** Shared: read everything below. */
+        S,
+        /** Shared with intention to update some of it. */
+        SIX,
+        /** Exclusive. */
+        X;
+
+        private static final boolean[][] COMPATIBLE = {
+            //          IS     IX     S      SIX    X
+            /* IS  */ { true,  true,  true,  true,  false },
+            /* IX  */ { true,  true,  false, false, false },
+            /* S   */ { true,  false, true,  false, false },
+            /* SIX */ { true,  false, false, false, false },
+            /* X   */ { false, false, false, false, false },
+        };
+
+        /** @return whether two transactions may hold this and m at once */
+        public boolean isCompatible(Mode m) {
+            return COMPATIBLE[ordinal()][m.ordinal()];
+        }
+
+        /** @return the weakest mode that grants both this and m */
+        public Mode join(Mode m) {
+            if (this == m || m == IS)
+                return this;
+            if (this == IS)
+                return m;
+            if (this == X || m == X)
+                return X;
+            return SIX; // IX and S, or either with SIX
+        }
+
+        /** @return whether holding this mode grants m */
+        public boolean covers(Mode m) {
+            return join(m) == this;
+        }
+    }
+
+    /** A lock request a transaction is waiting on. */
+    private static class Request {
+        final Object resource;
+        final Mode mode;
+
+        Request(Object resource, Mode mode) {
+            this.resource = resource;
+            this.mode = mode;
+        }
+    }
+
+    /** Default number of row locks on one page that triggers escalation. */
+    public static final int DEFAULT_ESCALATION_THRESHOLD = 64;
+
+    // for each locked table, page or row, the transactions holding it
+    private final HashMap<Object, HashMap<TransactionId, Mode>> locks =
+            new HashMap<Object, HashMap<TransactionId, Mode>>();
+    // for each transaction, the tables, pages and rows it holds locks on
+    private final HashMap<TransactionId, HashSet<Object>> held =
+            new HashMap<TransactionId, HashSet<Object>>();
+    // for each transaction, its row locks by page
+    private final HashMap<TransactionId, HashMap<PageId, ArrayList<RecordId>>> rowLocks =
+            new HashMap<TransactionId, HashMap<PageId, ArrayList<RecordId>>>();
+
+    // waits-for graph: for each waiting transaction, the lock it asked
+    // for; its edges go to the holders of conflicting locks
+    private final HashMap<TransactionId, Request> waitsFor =
+            new HashMap<TransactionId, Request>();
+    // waiting transactions chosen as deadlock victims
+    private final HashSet<TransactionId> victims = new HashSet<TransactionId>();
+
+    private int escalationThreshold = DEFAULT_ESCALATION_THRESHOLD;
+    private long escalations = 0;
+    private long waits = 0;
+    private long waitNanos = 0;
+    private long deadlocks = 0;
+
+    /** Set the number of row locks on one page that triggers escalation. */
+    public synchronized void setEscalationThreshold(int rows) {
+        if (rows < 1)
+            throw new IllegalArgumentException("escalation threshold must be positive");
+        this.escalationThreshold = rows;
+    }
+
+    /** @return the number of times row locks were traded for a page lock */
+    public synchronized long getEscalations() {
+        return escalations;
+    }
+
+    /** @return the number of lock requests that had to wait */
+    public synchronized long getWaits() {
+        return waits;
+    }
+
+    /** @return the total time lock requests spent waiting */
+    public synchronized long getWaitNanos() {
+        return waitNanos;
+    }
+
+    /** @return the number of deadlocks found, each ended by one abort */
+    public synchronized long getDeadlocks() {
+        return deadlocks;
+    }
+
+    /**
+     * @return the mode in which tid holds resource (a table id, PageId or
+     *         RecordId), or null if it holds no lock on it
+     */
+    public synchronized Mode getMode(TransactionId tid, Object resource) {
+        HashMap<TransactionId, Mode> holders = locks.get(resource);
+        return holders == null ? null : holders.get(tid);
+    }
+
+    /** @return whether tid holds any lock on resource */
+    public synchronized boolean holdsLock(TransactionId tid, Object resource) {
+        return getMode(tid, resource) != null;
+    }
+
+    /** @return whether tid holds any lock, so has not completed */
+    public synchronized boolean holdsLocks(TransactionId tid) {
+        HashSet<Object> mine = held.get(tid);
+        return mine != null && !mine.isEmpty();
+    }
+
+    /**
+     * Lock a page for reading (S) or writing (X), with the matching
+     * intention lock on its table.
+     *
+     * @throws TransactionAbortedException if tid was chosen as a deadlock victim
+     */
+    public void lockPage(TransactionId tid, PageId pid, Permissions perm)
+            throws TransactionAbortedException {
+        boolean write = perm == Permissions.READ_WRITE;
+        acquire(tid, pid.getTableId(), write ? Mode.IX : Mode.IS, true);
+        acquire(tid, pid, write ? Mode.X : Mode.S, true);
+    }
+
+    /**
+     * Take the intention locks on a page and its table that precede row
+     * locks on the page.
+     *
+     * @throws TransactionAbortedException if tid was chosen as a deadlock
+     *             victim
+     */
+    public void lockPageIntention(TransactionId tid, PageId pid, Permissions perm)
+            throws TransactionAbortedException {
+        Mode intention = perm == Permissions.READ_WRITE ? Mode.IX : Mode.IS;
+        acquire(tid, pid.getTableId(), intention, true);
+        acquire(tid, pid, intention, true);
+    }
+
+    /**
+     * Lock a row for reading (S) or writing (X), with intention locks on its
+     * page and table. Nothing is locked if tid's lock on the page already
+     * covers the row.
+     *
+     * @throws TransactionAbortedException if tid was chosen as a deadlock victim
+     */
+    public void lockRecord(TransactionId tid, RecordId rid, Permissions perm)
+            throws TransactionAbortedException {
+        lockRecord(tid, rid, perm, true);
+    }
+
+    /**
+     * Lock a row as lockRecord does, but only if that needs no waiting.
+     *
+     * @return whether tid now holds the lock
+     */
+    public boolean tryLockRecord(TransactionId tid, RecordId rid, Permissions perm) {
+        try {
+            return lockRecord(tid, rid, perm, false);
+        } catch (TransactionAbortedException e) {
+            return false; // not thrown without waiting
+        }
+    }
+
+    private synchronized boolean lockRecord(TransactionId tid, RecordId rid, Permissions perm,
+            boolean wait) throws TransactionAbortedException {
+        if (tid == null)
+            return true;
+        boolean write = perm == Permissions.READ_WRITE;
+        Mode mode = write ? Mode.X : Mode.S;
+        Mode intention = write ? Mode.IX : Mode.IS;
+        PageId pid = rid.getPageId();
+        Mode pageMode = getMode(tid, pid);
+        if (pageMode != null && pageMode.covers(mode))
+            return true;
+        Mode rowMode = getMode(tid, rid);
+        if (!acquire(tid, pid.getTableId(), intention, wait)
+                || !acquire(tid, pid, intention, wait)
+                || !acquire(tid, rid, mode, wait))
+            return false;
+        if (rowMode == null) {
+            HashMap<PageId, ArrayList<RecordId>> byPage = rowLocks.get(tid);
+            if (byPage == null) {
+                byPage = new HashMap<PageId, ArrayList<RecordId>>();
+                rowLocks.put(tid, byPage);
+            }
+            ArrayList<RecordId> rows = byPage.get(pid);
+            if (rows == null) {
+                rows = new ArrayList<RecordId>();
+                byPage.put(pid, rows);
+            }
+            rows.add(rid);
+            if (rows.size() > escalationThreshold)
+                escalate(tid, pid, rows);
+        }
+        return true;
+    }
+
+    /** Try to replace tid's row locks on a page by one page lock. */
+    private void escalate(TransactionId tid, PageId pid, ArrayList<RecordId> rows)
+            throws TransactionAbortedException {
+        Mode mode = Mode.S;
+        for (RecordId rid : rows) {
+            if (getMode(tid, rid) == Mode.X) {
+                mode = Mode.X;
+                break;
+            }
+        }
+        if (!acquire(tid, pid, mode, false))
+            return;
+        for (RecordId rid : rows)
+            unlock(tid, rid);
+        rowLocks.get(tid).remove(pid);
+        escalations++;
+    }
+
+    /**
+     * Grant tid the lock on resource in the given mode, or in the join of
+     * that and the mode it already holds.
+     *
+     * @param wait whether to wait for conflicting locks to be released
+     * @return whether the lock was granted; false only if wait is false
+     * @throws TransactionAbortedException if tid was chosen as the victim
+     *             of a deadlock while waiting
+     */
+    private synchronized boolean acquire(TransactionId tid, Object resource, Mode mode,
+            boolean wait) throws TransactionAbortedException {
+        if (tid == null)
+            return true;
+        HashMap<TransactionId, Mode> holders = locks.get(resource);
+        if (holders == null) {
+            holders = new HashMap<TransactionId, Mode>();
+            locks.put(resource, holders);
+        }
+        Mode cur = holders.get(tid);
+        Mode want = cur == null ? mode : cur.join(mode);
+        if (want == cur)
+            return true;
+
+        long start = 0;
+        boolean granted = false;
+        try {
+            while (true) {
+                if (victims.remove(tid))
+                    throw new TransactionAbortedException();
+                if (conflicting(holders, tid, want).isEmpty())
+                    break;
+                if (!wait)
+                    return false;
+                if (start == 0) {
+                    start = System.nanoTime();
+                    waits++;
+                    waitsFor.put(tid, new Request(resource, want));
+                }
+                List<TransactionId> cycle = findCycle(tid);
+                if (cycle != null) {
+                    deadlocks++;
+                    TransactionId victim = chooseVictim(cycle);
+                    if (victim.equals(tid))
+                        throw new TransactionAbortedException();
+                    victims.add(victim);
+                    notifyAll();
+                }
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new TransactionAbortedException();
+                }
+                // the entry may have been dropped while we slept
+                holders = locks.get(resource);
+                if (holders == null) {
+                    holders = new HashMap<TransactionId, Mode>();
+                    locks.put(resource, holders);
+                }
+            }
+            holders.put(tid, want);
+            granted = true;
+        } finally {
+            if (start != 0) {
+                waitsFor.remove(tid);
+                waitNanos += System.nanoTime() - start;
+            }
+            if (!granted && holders.isEmpty())
+                locks.remove(resource);
+        }
+        HashSet<Object> mine = held.get(tid);
+        if (mine == null) {
+            mine = new HashSet<Object>();
+            held.put(tid, mine);
+        }
+        mine.add(resource);
+        return true;
+    }
+
+    /** @return the other transactions whose locks conflict with want */
+    private static HashSet<TransactionId> conflicting(HashMap<TransactionId, Mode> holders,
+            TransactionId tid, Mode want) {
+        HashSet<TransactionId> blockers = new HashSet<TransactionId>();
+        for (Map.Entry<TransactionId, Mode> e : holders.entrySet()) {
+            if (!e.getKey().equals(tid) && !e.getValue().isCompatible(want))
+                blockers.add(e.getKey());
+        }
+        return blockers;
+    }
+
+    /**
+     * Look for a cycle in the waits-for graph through tid, depth first.
+     *
+     * @return the transactions on the cycle, or null if there is none
+     */
+    private List<TransactionId> findCycle(TransactionId tid) {
+        ArrayList<TransactionId> path = new ArrayList<TransactionId>();
+        path.add(tid);
+        return findCycle(tid, path, new HashSet<TransactionId>()) ? path : null;
+    }
+
+    private boolean findCycle(TransactionId target, ArrayList<TransactionId> path,
+            HashSet<TransactionId> visited) {
+        TransactionId last = path.get(path.size() - 1);
+        Request r = waitsFor.get(last);
+        if (r == null)
+            return false;
+        HashMap<TransactionId, Mode> holders = locks.get(r.resource);
+        if (holders == null)
+            return false;
+        for (TransactionId t : conflicting(holders, last, r.mode)) {
+            if (t.equals(target))
+                return true;
+            // a victim already chosen is about to give up its locks
+            if (victims.contains(t) || !visited.add(t))
+                continue;
+            path.add(t);
+            if (findCycle(target, path, visited))
+                return true;
+            path.remove(path.size() - 1);
+        }
+        return false;
+    }
+
+    /**
+     * @return the transaction of the cycle that is cheapest to abort: the
+     *         one that has logged the fewest updates, then the one holding
+     *         the fewest locks, then the youngest
+     */
+    private TransactionId chooseVictim(List<TransactionId> cycle) {
+        LogFile log = Database.getLogFile();
+        TransactionId best = null;
+        long bestUpdates = 0;
+        int bestLocks = 0;
+        for (TransactionId t : cycle) {
+            long updates = log.getUpdateCount(t);
+            HashSet<Object> mine = held.get(t);
+            int nlocks = mine == null ? 0 : mine.size();
+            if (best == null || updates < bestUpdates
+                    || (updates == bestUpdates && (nlocks < bestLocks
+                            || (nlocks == bestLocks && t.getId() > best.getId())))) {
+                best = t;
+                bestUpdates = updates;
+                bestLocks = nlocks;
+            }
+        }
+        return best;
+    }
+
+    /** Drop tid's lock on resource, waking up waiting transactions. */
+    private void unlock(TransactionId tid, Object resource) {
+        HashMap<TransactionId, Mode> holders = locks.get(resource);
+        if (holders == null || holders.remove(tid) == null)
+            return;
+        if (holders.isEmpty())
+            locks.remove(resource);
+        HashSet<Object> mine = held.get(tid);
+        if (mine != null)
+            mine.remove(resource);
+        notifyAll();
+    }
+
+    /**
+     * Release tid's lock on a page and its row locks on the page. Calling
+     * this before tid completes breaks two-phase locking; it is for pages
+     * tid has only looked at.
+     */
+    public synchronized void releasePage(TransactionId tid, PageId pid) {
+        HashMap<PageId, ArrayList<RecordId>> byPage = rowLocks.get(tid);
+        ArrayList<RecordId> rows = byPage == null ? null : byPage.remove(pid);
+        if (rows != null) {
+            for (RecordId rid : rows)
+                unlock(tid, rid);
+        }
+        unlock(tid, pid);
+    }
+
+    /** Release all locks held by tid. */
+    public synchronized void releaseAll(TransactionId tid) {
+        HashSet<Object> mine = held.remove(tid);
+        rowLocks.remove(tid);
+        if (mine == null)
+            return;
+        for (Object resource : mine) {
+            HashMap<TransactionId, Mode> holders = locks.get(resource);
+            if (holders != null) {
+                holders.remove(tid);
+                if (holders.isEmpty())
+                    locks.remove(resource);
+            }
+        }
+        notifyAll();
+    }
+}
@@ -3,7 +3,10 @@ package simpledb;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
 import java.lang.reflect.*;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
 
 /**
 LogFile implements the recovery subsystem of SimpleDb.  This class is
@@ -32,6 +35,32 @@ must not be declared synchronized and must begin with a block like:
        }
     }
 </pre>
+
+The BufferPool itself no longer synchronizes on the pool object; its
+flushes take the lock of the page's partition and then call logWrite.
+So a LogFile method must not flush or read pages while holding the
+LogFile lock: logCheckpoint, shutdown, rollback and recover touch the
+BufferPool only outside it.
+
+<u> Group commit: </u>
+<p>
+
+logCommit appends its record under the LogFile lock but waits for the
+force outside it. The first committer to find no force in progress
+becomes the leader: it optionally waits up to the group commit window
+for more commits to join the batch, then forces the log once for every
+commit appended so far and wakes the others. Committers that arrive
+while a force is running are covered by the next one.
+
+<u> Rollback and recovery: </u>
+<p>
+
+Rolling back a transaction logs each page it restores as an ordinary
+update (a compensation record) by the same transaction, followed by an
+ABORT record, so recovery treats aborted transactions like committed
+ones and only needs to undo transactions that never finished.  recover
+runs the ARIES analysis, redo and undo passes; redo is split across
+threads by page id.
 */
 
 /**
@@ -51,8 +80,8 @@ transaction id.
 <li> Each log record ends with a long integer file offset representing
 the position in the log file where the record began.
 
-<li> There are five record types: ABORT, COMMIT, UPDATE, BEGIN, and
-CHECKPOINT
+<li> There are six record types: ABORT, COMMIT, UPDATE, DELTA, BEGIN,
+and CHECKPOINT
 
 <li> ABORT, COMMIT, and BEGIN records contain no additional data
 
@@ -61,11 +90,20 @@ after image.  These images are serialized Page objects, and can be
 accessed with the LogFile.readPageData() and LogFile.writePageData()
 methods.  See LogFile.print() for an example.
 
+<li>DELTA records are compact UPDATE records: a serialized PageDelta
+holding only the byte ranges of the page that changed, with their old
+and new contents.  logWrite writes one instead of an UPDATE record
+whenever the two images have the same size.
+
 <li> CHECKPOINT records consist of active transactions at the time
-the checkpoint was taken and their first log record on disk.  The format
-of the record is an integer count of the number of transactions, as well
-as a long integer transaction id and a long integer first record offset
-for each active transaction.
+the checkpoint was taken and their first log record on disk, followed by
+the dirty page table: the pages with logged updates that had not yet
+reached disk, each with the offset of the first such update (its
+recLSN).  The format of the record is an integer count of the number of
+transactions, as well as a long integer transaction id and a long
+integer first record offset for each active transaction; then an
+integer count of dirty pages, and for each a page id (see writePageId)
+and a long integer recLSN.
 
 </ul>
 
@@ -82,6 +120,7 @@ public class LogFile {
     static final int UPDATE_RECORD = 3;
     static final int BEGIN_RECORD = 4;
     static final int CHECKPOINT_RECORD = 5;
+    static final int DELTA_RECORD = 6;
     static final long NO_CHECKPOINT_ID = -1;
 
     final static int INT_SIZE = 4;
@@ -93,6 +132,39 @@ public class LogFile {
 
     HashMap<Long,Long> tidToFirstLogRecord = new HashMap<Long,Long>();
 
+    // number of update records written by each active transaction, the
+    // cost of rolling it back. protected by this
+    HashMap<Long,Long> tidToUpdateCount = new HashMap<Long,Long>();
+
+    // dirty page table: for each page with logged updates that are not
+    // yet on disk, the offset of the first of them. protected by this
+    HashMap<PageId,Long> dirtyPages = new HashMap<PageId,Long>();
+
+    /** Default number of commits a group commit leader waits for. */
+    public static final int DEFAULT_GROUP_COMMIT_SIZE = 32;
+    /** Default time a group commit leader waits for its batch to fill. */
+    public static final long DEFAULT_GROUP_COMMIT_WINDOW_MICROS = 0;
+
+    // commit records are numbered in log order; a commit is durable once
+    // flushedCommits reaches its number. Offsets can't be used for this
+    // because logTruncate moves records.
+    private volatile long appendedCommits = 0; // written under this
+    private long flushedCommits = 0; // protected by flushLock
+
+    // log sequence numbers are byte positions in the log as if it had
+    // never been truncated: the offset of a position plus lsnBase, which
+    // grows by the bytes each logTruncate drops
+    private long lsnBase = 0; // protected by this
+    private volatile long flushedLSN = 0; // written under flushLock
+    private boolean flushing = false; // protected by flushLock
+    private final Object flushLock = new Object();
+    private volatile boolean groupCommit = true;
+    private volatile boolean deltaLogging = true;
+    private volatile int recoveryThreads = Runtime.getRuntime().availableProcessors();
+    private volatile int groupCommitSize = DEFAULT_GROUP_COMMIT_SIZE;
+    private volatile long groupCommitWindowNanos =
+        TimeUnit.MICROSECONDS.toNanos(DEFAULT_GROUP_COMMIT_WINDOW_MICROS);
+
     /** Constructor.
         Initialize and back the log file with the specified file.
         We're not sure yet whether the caller is creating a brand new DB,
@@ -144,61 +216,203 @@ public class LogFile {
         @param tid The aborting transaction.
     */
     public void logAbort(TransactionId tid) throws IOException {
-        // must have buffer pool lock before proceeding, since this
-        // calls rollback
-
-        synchronized (Database.getBufferPool()) {
+        // must do this first, since rollback only works for
+        // live transactions (needs tidToFirstLogRecord); it takes
+        // buffer pool locks, so not while holding this one
+        rollback(tid);
+
+        synchronized(this) {
+            preAppend();
+            //Debug.log("ABORT");
+            writeAbortRecord(tid.getId());
+            force();
+        }
+    }
 
-            synchronized(this) {
-                preAppend();
-                //Debug.log("ABORT");
-                //should we verify that this is a live transaction?
+    private void writeAbortRecord(long tid) throws IOException {
+        raf.writeInt(ABORT_RECORD);
+        raf.writeLong(tid);
+        raf.writeLong(currentOffset);
+        currentOffset = raf.getFilePointer();
+        tidToFirstLogRecord.remove(tid);
+        tidToUpdateCount.remove(tid);
+    }
 
-                // must do this here, since rollback only works for
-                // live transactions (needs tidToFirstLogRecord)
-                rollback(tid);
+    /** Write a commit record to disk for the specified tid,
+        and force the log to disk.  Returns once the record is durable;
+        with group commit enabled, concurrent commits share one force.
 
-                raf.writeInt(ABORT_RECORD);
-                raf.writeLong(tid.getId());
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
+        @param tid The committing transaction.
+    */
+    public void logCommit(TransactionId tid) throws IOException {
+        long commit;
+        synchronized (this) {
+            preAppend();
+            Debug.log("COMMIT " + tid.getId());
+            //should we verify that this is a live transaction?
+
+            raf.writeInt(COMMIT_RECORD);
+            raf.writeLong(tid.getId());
+            raf.writeLong(currentOffset);
+            currentOffset = raf.getFilePointer();
+            tidToFirstLogRecord.remove(tid.getId());
+            tidToUpdateCount.remove(tid.getId());
+            commit = ++appendedCommits;
+            if (!groupCommit) {
                 force();
-                tidToFirstLogRecord.remove(tid.getId());
+                return;
             }
         }
+        awaitForced(commit);
     }
 
-    /** Write a commit record to disk for the specified tid,
-        and force the log to disk.
+    /** Enable or disable group commit.  When disabled, every commit
+        forces the log itself while holding the LogFile lock. */
+    public void setGroupCommitEnabled(boolean enabled) {
+        groupCommit = enabled;
+    }
 
-        @param tid The committing transaction.
+    public boolean isGroupCommitEnabled() {
+        return groupCommit;
+    }
+
+    /** Configure group commit: a leader forces the log as soon as
+        size commits are waiting, or once windowMicros have passed,
+        whichever comes first.  A window of 0 forces immediately,
+        batching only the commits that arrived during the previous force.
+
+        @param size The number of commits to wait for
+        @param windowMicros The longest time to wait for them
     */
-    public synchronized void logCommit(TransactionId tid) throws IOException {
-        preAppend();
-        Debug.log("COMMIT " + tid.getId());
-        //should we verify that this is a live transaction?
+    public void setGroupCommit(int size, long windowMicros) {
+        if (size < 1 || windowMicros < 0)
+            throw new IllegalArgumentException("group commit size must be positive and window non-negative");
+        groupCommitSize = size;
+        groupCommitWindowNanos = TimeUnit.MICROSECONDS.toNanos(windowMicros);
+    }
 
-        raf.writeInt(COMMIT_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
-        force();
-        tidToFirstLogRecord.remove(tid.getId());
+    /** Wait until commit record number commit is on disk, forcing the
+        log if no other thread is doing so. */
+    private void awaitForced(long commit) throws IOException {
+        try {
+            synchronized (flushLock) {
+                // a leader waiting out its window may now have a full batch
+                flushLock.notifyAll();
+                while (flushedCommits < commit && flushing)
+                    flushLock.wait();
+                if (flushedCommits >= commit)
+                    return;
+                flushing = true;
+                long deadline = System.nanoTime() + groupCommitWindowNanos;
+                long remaining;
+                while (appendedCommits - flushedCommits < groupCommitSize
+                       && (remaining = deadline - System.nanoTime()) > 0)
+                    TimeUnit.NANOSECONDS.timedWait(flushLock, remaining);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted waiting for group commit");
+        }
+
+        boolean forced = false;
+        long target = 0;
+        long targetLSN = 0;
+        FileChannel channel;
+        try {
+            synchronized (this) {
+                target = appendedCommits;
+                targetLSN = endLSN();
+                channel = raf.getChannel();
+            }
+            try {
+                channel.force(true);
+            } catch (ClosedChannelException e) {
+                // logTruncate replaced the file; force the new one
+                synchronized (this) {
+                    target = appendedCommits;
+                    targetLSN = endLSN();
+                    raf.getChannel().force(true);
+                }
+            }
+            forced = true;
+        } finally {
+            synchronized (flushLock) {
+                if (forced) {
+                    if (target > flushedCommits)
+                        flushedCommits = target;
+                    if (targetLSN > flushedLSN)
+                        flushedLSN = targetLSN;
+                }
+                flushing = false;
+                flushLock.notifyAll();
+            }
+        }
+    }
+
+    /** @return the LSN of the end of the log.  Call with this lock held. */
+    private long endLSN() {
+        return currentOffset < 0 ? lsnBase : lsnBase + currentOffset;
+    }
+
+    /** @return the LSN up to which the log is known to be on disk */
+    public long getFlushedLSN() {
+        return flushedLSN;
+    }
+
+    /** Make sure the log is on disk up to lsn, forcing it only if a
+        previous force did not already cover it.  This is the write-ahead
+        check before a page whose last update ends at lsn is written.
+        @param lsn An LSN returned by logWrite
+    */
+    public void forceTo(long lsn) throws IOException {
+        if (lsn > flushedLSN)
+            force();
     }
 
     /** Write an UPDATE record to disk for the specified tid and page
-        (with provided         before and after images.)
+        (with provided         before and after images.)  Unless delta
+        logging is off, only the bytes that changed are logged, as a
+        DELTA record.
         @param tid The transaction performing the write
         @param before The before image of the page
         @param after The after image of the page
+        @return The LSN of the end of the record, to pass to forceTo
+        before the page is written, or -1 if nothing changed and no
+        record was written
 
         @see simpledb.Page#getBeforeImage
     */
-    public  synchronized void logWrite(TransactionId tid, Page before,
+    public  synchronized long logWrite(TransactionId tid, Page before,
                                        Page after)
         throws IOException  {
         Debug.log("WRITE, offset = " + raf.getFilePointer());
+        PageDelta delta = deltaLogging ? PageDelta.diff(before, after) : null;
+        if (delta != null && delta.numRanges() == 0)
+            return -1; // nothing changed since the page was last logged
         preAppend();
+        Long updates = tidToUpdateCount.get(tid.getId());
+        tidToUpdateCount.put(tid.getId(), updates == null ? 1 : updates + 1);
+        if (!dirtyPages.containsKey(after.getId()))
+            dirtyPages.put(after.getId(), currentOffset);
+        if (delta != null) {
+            /* delta record consists of
+
+               record type
+               transaction id
+               delta (see PageDelta.write)
+               start offset
+            */
+            ByteArrayOutputStream buf = new ByteArrayOutputStream();
+            DataOutputStream dos = new DataOutputStream(buf);
+            dos.writeInt(DELTA_RECORD);
+            dos.writeLong(tid.getId());
+            delta.write(dos);
+            dos.writeLong(currentOffset);
+            raf.write(buf.toByteArray());
+            currentOffset = raf.getFilePointer();
+            Debug.log("WRITE OFFSET = " + currentOffset);
+            return endLSN();
+        }
         /* update record conists of
 
            record type
@@ -216,6 +430,47 @@ public class LogFile {
         currentOffset = raf.getFilePointer();
 
         Debug.log("WRITE OFFSET = " + currentOffset);
+        return endLSN();
+    }
+
+    /** Note that a page has been written to disk, so that recovery need
+        not redo its updates logged so far.
+        @param pid The page that was written
+    */
+    public synchronized void pageFlushed(PageId pid) {
+        dirtyPages.remove(pid);
+    }
+
+    /** Write a page id as its class name, followed by the number of
+        integers in its serialized form and the integers themselves. */
+    static void writePageId(DataOutput out, PageId pid) throws IOException {
+        out.writeUTF(pid.getClass().getName());
+        int[] pageInfo = pid.serialize();
+        out.writeInt(pageInfo.length);
+        for (int i = 0; i < pageInfo.length; i++) {
+            out.writeInt(pageInfo[i]);
+        }
+    }
+
+    /** Read a page id written by writePageId. */
+    static PageId readPageId(DataInput in) throws IOException {
+        String idClassName = in.readUTF();
+        int numIdArgs = in.readInt();
+        int idArgs[] = new int[numIdArgs];
+        for (int i = 0; i < numIdArgs; i++) {
+            idArgs[i] = in.readInt();
+        }
+        return makePageId(idClassName, idArgs);
+    }
+
+    /** Turn DELTA records on or off; when off, logWrite always logs
+        full before and after images. */
+    public void setDeltaLogging(boolean enabled) {
+        deltaLogging = enabled;
+    }
+
+    public boolean isDeltaLogging() {
+        return deltaLogging;
     }
 
     void writePageData(RandomAccessFile raf, Page p) throws IOException{
@@ -253,31 +508,35 @@ public class LogFile {
         String pageClassName = raf.readUTF();
         String idClassName = raf.readUTF();
 
-        try {
-            Class<?> idClass = Class.forName(idClassName);
-            Class<?> pageClass = Class.forName(pageClassName);
-
-            Constructor<?>[] idConsts = idClass.getDeclaredConstructors();
-            int numIdArgs = raf.readInt();
-            Object idArgs[] = new Object[numIdArgs];
-            for (int i = 0; i<numIdArgs;i++) {
-                idArgs[i] = new Integer(raf.readInt());
-            }
-            pid = (PageId)idConsts[0].newInstance(idArgs);
+        int numIdArgs = raf.readInt();
+        int idArgs[] = new int[numIdArgs];
+        for (int i = 0; i<numIdArgs;i++) {
+            idArgs[i] = raf.readInt();
+        }
+        pid = makePageId(idClassName, idArgs);
 
-            Constructor<?>[] pageConsts = pageClass.getDeclaredConstructors();
-            int pageSize = raf.readInt();
+        int pageSize = raf.readInt();
 
-            byte[] pageData = new byte[pageSize];
-            raf.read(pageData); //read before image
+        byte[] pageData = new byte[pageSize];
+        raf.readFully(pageData); //read before image
 
-            Object[] pageArgs = new Object[2];
-            pageArgs[0] = pid;
-            pageArgs[1] = pageData;
+        newPage = makePage(pageClassName, pid, pageData);
+        //            Debug.log("READ PAGE OF TYPE " + pageClassName + ", table = " + newPage.getId().getTableId() + ", page = " + newPage.getId().pageno());
+        return newPage;
 
-            newPage = (Page)pageConsts[0].newInstance(pageArgs);
+    }
 
-            //            Debug.log("READ PAGE OF TYPE " + pageClassName + ", table = " + newPage.getId().getTableId() + ", page = " + newPage.getId().pageno());
+    /** Construct a PageId of the named class from its serialized form
+        (see PageId.serialize) */
+    static PageId makePageId(String idClassName, int[] idArgs) throws IOException {
+        try {
+            Class<?> idClass = Class.forName(idClassName);
+            Constructor<?>[] idConsts = idClass.getDeclaredConstructors();
+            Object args[] = new Object[idArgs.length];
+            for (int i = 0; i < idArgs.length; i++) {
+                args[i] = new Integer(idArgs[i]);
+            }
+            return (PageId)idConsts[0].newInstance(args);
         } catch (ClassNotFoundException e){
             e.printStackTrace();
             throw new IOException();
@@ -291,8 +550,39 @@ public class LogFile {
             e.printStackTrace();
             throw new IOException();
         }
-        return newPage;
+    }
 
+    /** Construct a page of the named class from its id and data.  Pages
+        of B+ trees also need the key field, which is looked up in the
+        catalog. */
+    static Page makePage(String pageClassName, PageId pid, byte[] pageData) throws IOException {
+        try {
+            Class<?> pageClass = Class.forName(pageClassName);
+            for (Constructor<?> c : pageClass.getDeclaredConstructors()) {
+                Class<?>[] params = c.getParameterTypes();
+                if (params.length < 2 || !params[0].isInstance(pid) || params[1] != byte[].class)
+                    continue;
+                if (params.length == 2)
+                    return (Page)c.newInstance(pid, pageData);
+                if (params.length == 3 && params[2] == int.class) {
+                    DbFile f = Database.getCatalog().getDatabaseFile(pid.getTableId());
+                    return (Page)c.newInstance(pid, pageData, ((BTreeFile) f).keyField());
+                }
+            }
+            throw new IOException("no constructor for page class " + pageClassName);
+        } catch (ClassNotFoundException e){
+            e.printStackTrace();
+            throw new IOException();
+        } catch (InstantiationException e) {
+            e.printStackTrace();
+            throw new IOException();
+        } catch (IllegalAccessException e) {
+            e.printStackTrace();
+            throw new IOException();
+        } catch (InvocationTargetException e) {
+            e.printStackTrace();
+            throw new IOException();
+        }
     }
 
     /** Write a BEGIN record for the specified transaction
@@ -316,44 +606,69 @@ public class LogFile {
         Debug.log("BEGIN OFFSET = " + currentOffset);
     }
 
-    /** Checkpoint the log and write a checkpoint record. */
+    /** Write a BEGIN record for the specified transaction unless it is
+        already active, for transactions that log updates without having
+        been started through Transaction.start.
+        @param tid The transaction that is writing
+    */
+    public synchronized void logXactionBeginIfNew(TransactionId tid)
+        throws IOException {
+        if (!tidToFirstLogRecord.containsKey(tid.getId()))
+            logXactionBegin(tid);
+    }
+
+    /** Checkpoint the log and write a checkpoint record.  The checkpoint
+        is fuzzy: it records the active transactions and the dirty page
+        table without flushing the buffer pool, so transactions keep
+        running; the pages that are dirty are then trickled out to disk
+        by the buffer pool's background PageWriter. */
     public void logCheckpoint() throws IOException {
-        //make sure we have buffer pool lock before proceeding
-        synchronized (Database.getBufferPool()) {
-            synchronized (this) {
-                //Debug.log("CHECKPOINT, offset = " + raf.getFilePointer());
-                preAppend();
-                long startCpOffset, endCpOffset;
-                Set<Long> keys = tidToFirstLogRecord.keySet();
-                Iterator<Long> els = keys.iterator();
-                force();
-                Database.getBufferPool().flushAllPages();
-                startCpOffset = raf.getFilePointer();
-                raf.writeInt(CHECKPOINT_RECORD);
-                raf.writeLong(-1); //no tid , but leave space for convenience
-
-                //write list of outstanding transactions
-                raf.writeInt(keys.size());
-                while (els.hasNext()) {
-                    Long key = els.next();
-                    Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + key);
-                    raf.writeLong(key);
-                    //Debug.log("WRITING CHECKPOINT TRANSACTION OFFSET: " + tidToFirstLogRecord.get(key));
-                    raf.writeLong(tidToFirstLogRecord.get(key));
-                }
+        synchronized (this) {
+            //Debug.log("CHECKPOINT, offset = " + raf.getFilePointer());
+            preAppend();
+            long startCpOffset, endCpOffset;
+            Set<Long> keys = tidToFirstLogRecord.keySet();
+            Iterator<Long> els = keys.iterator();
+            startCpOffset = raf.getFilePointer();
+            ByteArrayOutputStream buf = new ByteArrayOutputStream();
+            DataOutputStream dos = new DataOutputStream(buf);
+            dos.writeInt(CHECKPOINT_RECORD);
+            dos.writeLong(-1); //no tid , but leave space for convenience
+
+            //write list of outstanding transactions
+            dos.writeInt(keys.size());
+            while (els.hasNext()) {
+                Long key = els.next();
+                Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + key);
+                dos.writeLong(key);
+                //Debug.log("WRITING CHECKPOINT TRANSACTION OFFSET: " + tidToFirstLogRecord.get(key));
+                dos.writeLong(tidToFirstLogRecord.get(key));
+            }
 
-                //once the CP is written, make sure the CP location at the
-                // beginning of the log file is updated
-                endCpOffset = raf.getFilePointer();
-                raf.seek(0);
-                raf.writeLong(startCpOffset);
-                raf.seek(endCpOffset);
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
-                //Debug.log("CP OFFSET = " + currentOffset);
+            //write the dirty page table
+            dos.writeInt(dirtyPages.size());
+            for (Map.Entry<PageId,Long> e : dirtyPages.entrySet()) {
+                writePageId(dos, e.getKey());
+                dos.writeLong(e.getValue());
             }
+            raf.write(buf.toByteArray());
+
+            //once the CP is written, make sure the CP location at the
+            // beginning of the log file is updated
+            endCpOffset = raf.getFilePointer();
+            raf.seek(0);
+            raf.writeLong(startCpOffset);
+            raf.seek(endCpOffset);
+            raf.writeLong(currentOffset);
+            currentOffset = raf.getFilePointer();
+            force();
+            //Debug.log("CP OFFSET = " + currentOffset);
         }
 
+        BufferPool pool = Database.getBufferPool();
+        pool.getPageWriter().schedule(pool.dirtyPageIds());
+        pool.saveSideMaps();
+
         logTruncate();
     }
 
@@ -386,6 +701,16 @@ public class LogFile {
                     minLogRecord = firstLogRecord;
                 }
             }
+
+            // updates not yet on disk are still needed for redo
+            int numDirty = raf.readInt();
+            for (int i = 0; i < numDirty; i++) {
+                readPageId(raf);
+                long recLSN = raf.readLong();
+                if (recLSN < minLogRecord) {
+                    minLogRecord = recLSN;
+                }
+            }
         }
 
         // we can truncate everything before minLogRecord
@@ -416,6 +741,9 @@ public class LogFile {
                     writePageData(logNew, before);
                     writePageData(logNew, after);
                     break;
+                case DELTA_RECORD:
+                    PageDelta.read(raf).write(logNew);
+                    break;
                 case CHECKPOINT_RECORD:
                     int numXactions = raf.readInt();
                     logNew.writeInt(numXactions);
@@ -425,9 +753,16 @@ public class LogFile {
                         logNew.writeLong(xid);
                         logNew.writeLong((xoffset - minLogRecord) + LONG_SIZE);
                     }
+                    int numDirty = raf.readInt();
+                    logNew.writeInt(numDirty);
+                    while (numDirty-- > 0) {
+                        writePageId(logNew, readPageId(raf));
+                        logNew.writeLong((raf.readLong() - minLogRecord) + LONG_SIZE);
+                    }
                     break;
                 case BEGIN_RECORD:
-                    tidToFirstLogRecord.put(record_tid,newStart);
+                    if (tidToFirstLogRecord.containsKey(record_tid))
+                        tidToFirstLogRecord.put(record_tid,newStart);
                     break;
                 }
 
@@ -442,6 +777,13 @@ public class LogFile {
 
         Debug.log("TRUNCATING LOG;  WAS " + raf.length() + " BYTES ; NEW START : " + minLogRecord + " NEW LENGTH: " + (raf.length() - minLogRecord));
 
+        for (Map.Entry<PageId,Long> e : dirtyPages.entrySet()) {
+            e.setValue((e.getValue() - minLogRecord) + LONG_SIZE);
+        }
+        lsnBase += minLogRecord - LONG_SIZE;
+
+        logNew.getChannel().force(true);
+        logNew.close();
         raf.close();
         logFile.delete();
         newFile.renameTo(logFile);
@@ -458,53 +800,504 @@ public class LogFile {
         transaction semantics, this should not be called on
         transactions that have already committed (though this may not
         be enforced by this method.)
+        <p>
+        The transaction's logged updates are reversed newest first, page
+        by page, and each restored page is logged as a compensating
+        update before it is written; changes the transaction made that
+        were never logged are simply dropped.  Because of the
+        compensating updates, recovery can redo an aborted transaction
+        like a committed one.
 
         @param tid The transaction to rollback
+        @throws NoSuchElementException if tid has no BEGIN record
     */
     public void rollback(TransactionId tid)
         throws NoSuchElementException, IOException {
-        synchronized (Database.getBufferPool()) {
-            synchronized(this) {
-                preAppend();
-                // some code goes here
+        LinkedHashMap<PageId, ArrayList<UpdateRecord>> updates;
+        synchronized(this) {
+            preAppend();
+            Long first = tidToFirstLogRecord.get(tid.getId());
+            if (first == null)
+                throw new NoSuchElementException("transaction " + tid.getId() + " is not active");
+            updates = readUpdates(Collections.singleton(tid.getId()), first);
+        }
+
+        BufferPool pool = Database.getBufferPool();
+        pool.beginRollback();
+        try {
+            for (Map.Entry<PageId, ArrayList<UpdateRecord>> e : updates.entrySet()) {
+                pool.rollbackPage(tid, e.getKey(), e.getValue());
+            }
+            ArrayList<UpdateRecord> none = new ArrayList<UpdateRecord>();
+            for (PageId pid : pool.dirtyPageIds(tid)) {
+                if (!updates.containsKey(pid))
+                    pool.rollbackPage(tid, pid, none);
             }
+        } finally {
+            pool.endRollback();
         }
     }
 
+    /** Collect the update records of the given transactions, from the
+        record at offset from to the end of the log.
+        @return for each page updated, its updates, newest first
+    */
+    private LinkedHashMap<PageId, ArrayList<UpdateRecord>> readUpdates(Set<Long> tids, long from)
+        throws IOException {
+        LinkedHashMap<PageId, ArrayList<UpdateRecord>> updates =
+            new LinkedHashMap<PageId, ArrayList<UpdateRecord>>();
+        long end = currentOffset;
+        raf.seek(from);
+        try {
+            while (raf.getFilePointer() < end) {
+                LogRecord r = readRecord(raf);
+                if (r.update == null || !tids.contains(r.tid))
+                    continue;
+                ArrayList<UpdateRecord> l = updates.get(r.update.getPageId());
+                if (l == null) {
+                    l = new ArrayList<UpdateRecord>();
+                    updates.put(r.update.getPageId(), l);
+                }
+                l.add(0, r.update);
+            }
+        } finally {
+            raf.seek(end);
+        }
+        return updates;
+    }
+
     /** Shutdown the logging system, writing out whatever state
         is necessary so that start up can happen quickly (without
         extensive recovery.)
     */
-    public synchronized void shutdown() {
+    public void shutdown() {
         try {
+            // not synchronized: flushing pages takes buffer pool locks,
+            // which must never be acquired while holding this one
+            Database.getBufferPool().flushAllPages();
             logCheckpoint();  //simple way to shutdown is to write a checkpoint record
-            raf.close();
+            synchronized (this) {
+                raf.close();
+            }
         } catch (IOException e) {
             System.out.println("ERROR SHUTTING DOWN -- IGNORING.");
             e.printStackTrace();
         }
     }
 
+    /** Set the number of threads that replay the log in recover.
+        @param threads The number of redo threads; at least 1
+    */
+    public void setRecoveryThreads(int threads) {
+        if (threads < 1)
+            throw new IllegalArgumentException("need at least one recovery thread");
+        recoveryThreads = threads;
+    }
+
     /** Recover the database system by ensuring that the updates of
         committed transactions are installed and that the
         updates of uncommitted transactions are not installed.
+        <p>
+        Recovery follows ARIES.  Analysis reads the last checkpoint and
+        scans the log after it to rebuild the active transaction table
+        and the dirty page table.  Redo repeats history from the smallest
+        recLSN: every logged update to a page in the dirty page table, at
+        or after that page's recLSN, is reapplied.  Redo runs on several
+        threads, each owning the pages whose ids hash to it, so each page
+        still sees its updates in log order.  Undo then rolls back the
+        transactions that never committed or aborted, logging
+        compensating updates and an ABORT record for each, and a
+        checkpoint is taken.  The catalog must be loaded first.
+        <p>
+        If the crash tore the last checkpoint record, analysis starts from
+        the beginning of the log instead: logTruncate only ran for the
+        checkpoints before it, so the log still holds everything they
+        needed.
     */
     public void recover() throws IOException {
-        synchronized (Database.getBufferPool()) {
-            synchronized (this) {
-                recoveryUndecided = false;
-                // some code goes here
+        HashMap<Long,Long> losers = new HashMap<Long,Long>();
+        LinkedHashMap<PageId, ArrayList<UpdateRecord>> undo;
+        Set<PageId> redone;
+        synchronized (this) {
+            recoveryUndecided = false;
+            if (raf.length() < LONG_SIZE) {
+                // nothing was ever logged
+                raf.setLength(0);
+                raf.writeLong(NO_CHECKPOINT_ID);
+                currentOffset = raf.getFilePointer();
+                return;
+            }
+
+            // analysis
+            HashMap<PageId,Long> dpt = new HashMap<PageId,Long>();
+            raf.seek(0);
+            long cpLoc = raf.readLong();
+            long start = LONG_SIZE;
+            long maxTid = -1;
+            if (cpLoc != NO_CHECKPOINT_ID) {
+                LogRecord cp;
+                raf.seek(cpLoc);
+                try {
+                    cp = readRecord(raf);
+                } catch (IOException e) {
+                    cp = null; // torn by the crash: analyze the whole log
+                }
+                if (cp != null && cp.type != CHECKPOINT_RECORD)
+                    throw new IOException("Checkpoint pointer does not point to checkpoint record");
+                if (cp != null) {
+                    losers.putAll(cp.activeTxns);
+                    dpt.putAll(cp.dirtyPages);
+                    start = raf.getFilePointer();
+                }
+            }
+            raf.seek(start);
+            long end = start;
+            while (true) {
+                LogRecord r;
+                try {
+                    r = readRecord(raf);
+                } catch (IOException e) {
+                    break; // end of the log, or a record torn by the crash
+                }
+                end = raf.getFilePointer();
+                maxTid = Math.max(maxTid, r.tid);
+                switch (r.type) {
+                case BEGIN_RECORD:
+                    losers.put(r.tid, r.offset);
+                    break;
+                case COMMIT_RECORD:
+                case ABORT_RECORD:
+                    losers.remove(r.tid);
+                    break;
+                case UPDATE_RECORD:
+                case DELTA_RECORD:
+                    if (!dpt.containsKey(r.update.getPageId()))
+                        dpt.put(r.update.getPageId(), r.offset);
+                    break;
+                }
+            }
+            raf.setLength(end);
+            raf.seek(end);
+            currentOffset = end;
+            for (long tid : losers.keySet())
+                maxTid = Math.max(maxTid, tid);
+            if (maxTid >= 0)
+                new TransactionId(maxTid);
+
+            // redo
+            redo(dpt, end);
+            redone = dpt.keySet();
+            dirtyPages.clear();
+
+            tidToFirstLogRecord.clear();
+            tidToFirstLogRecord.putAll(losers);
+            long from = end;
+            for (long first : losers.values())
+                from = Math.min(from, first);
+            undo = readUpdates(losers.keySet(), from);
+        }
+
+        // undo; this takes buffer pool locks, so not while holding ours
+        BufferPool pool = Database.getBufferPool();
+        for (PageId pid : redone)
+            pool.discardPage(pid);
+        for (Map.Entry<PageId, ArrayList<UpdateRecord>> e : undo.entrySet()) {
+            UpdateRecord newest = e.getValue().get(0);
+            pool.rollbackPage(new TransactionId(newest.tid), e.getKey(), e.getValue());
+        }
+
+        synchronized (this) {
+            for (long tid : losers.keySet()) {
+                preAppend();
+                writeAbortRecord(tid);
+            }
+            force();
+        }
+        logCheckpoint();
+    }
+
+    /** Repeat history: reapply the logged updates to the pages of the
+        dirty page table, from each page's recLSN up to offset end, and
+        write the pages out.  Called with the LogFile lock held. */
+    private void redo(HashMap<PageId,Long> dpt, long end) throws IOException {
+        if (dpt.isEmpty())
+            return;
+        long redoLSN = Long.MAX_VALUE;
+        for (long recLSN : dpt.values())
+            redoLSN = Math.min(redoLSN, recLSN);
+
+        RedoThread[] threads = new RedoThread[recoveryThreads];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new RedoThread();
+            threads[i].start();
+        }
+        try {
+            raf.seek(redoLSN);
+            while (raf.getFilePointer() < end) {
+                LogRecord r = readRecord(raf);
+                if (r.update == null)
+                    continue;
+                PageId pid = r.update.getPageId();
+                Long recLSN = dpt.get(pid);
+                if (recLSN == null || r.offset < recLSN)
+                    continue;
+                threads[(pid.hashCode() & 0x7fffffff) % threads.length].add(r.update);
+            }
+        } finally {
+            for (RedoThread t : threads)
+                t.add(RedoThread.DONE);
+        }
+        for (RedoThread t : threads) {
+            try {
+                t.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted during redo");
+            }
+            if (t.failure != null)
+                throw new IOException("redo failed: " + t.failure, t.failure);
+        }
+        raf.seek(end);
+    }
+
+    /** Applies the updates of the pages assigned to it in the order
+        received, keeping the pages in memory, and writes them out at the
+        end. */
+    private static class RedoThread extends Thread {
+        static final UpdateRecord DONE = new UpdateRecord(-1, -1, null, null, null);
+
+        private final java.util.concurrent.BlockingQueue<UpdateRecord> queue =
+            new java.util.concurrent.ArrayBlockingQueue<UpdateRecord>(1024);
+        private final HashMap<PageId, Page> pages = new HashMap<PageId, Page>();
+        volatile Exception failure = null;
+
+        RedoThread() {
+            super("simpledb-redo");
+            setDaemon(true);
+        }
+
+        void add(UpdateRecord u) throws InterruptedIOException {
+            try {
+                queue.put(u);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted during redo");
+            }
+        }
+
+        public void run() {
+            try {
+                UpdateRecord u;
+                while ((u = queue.take()) != DONE) {
+                    if (failure != null)
+                        continue; // keep draining so the reader never blocks
+                    try {
+                        PageId pid = u.getPageId();
+                        Page page = pages.get(pid);
+                        if (page == null)
+                            page = readFromDisk(pid);
+                        pages.put(pid, u.redo(page));
+                    } catch (Exception e) {
+                        failure = e;
+                    }
+                }
+                if (failure == null) {
+                    for (Page page : pages.values()) {
+                        Database.getCatalog().getDatabaseFile(page.getId().getTableId()).writePage(page);
+                    }
+                }
+            } catch (Exception e) {
+                failure = e;
+            }
+        }
+    }
+
+    /** @return the page as it is on disk, or null if it is not there */
+    static Page readFromDisk(PageId pid) {
+        DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
+        try {
+            return file.readPage(pid);
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    /** The page update described by an UPDATE or DELTA record. */
+    static class UpdateRecord {
+        final long offset;
+        final long tid;
+        final Page before;
+        final Page after;
+        final PageDelta delta;
+
+        UpdateRecord(long offset, long tid, Page before, Page after, PageDelta delta) {
+            this.offset = offset;
+            this.tid = tid;
+            this.before = before;
+            this.after = after;
+            this.delta = delta;
+        }
+
+        PageId getPageId() {
+            return delta != null ? delta.getPageId() : after.getId();
+        }
+
+        /** @return an empty page of the kind this record updates */
+        Page emptyPage() throws IOException {
+            if (delta != null)
+                return delta.emptyPage();
+            return makePage(after.getClass().getName(), after.getId(),
+                            new byte[after.getPageData().length]);
+        }
+
+        /** @param page the page before the update, or null if it is not on disk
+            @return the page after the update */
+        Page redo(Page page) throws IOException {
+            if (delta == null)
+                return after;
+            return delta.redo(page != null ? page : delta.emptyPage());
+        }
+
+        /** Reverse the update, flipping back only the bits it changed
+            (see PageDelta.undo), so that later changes by other
+            transactions to the page survive.
+            @param page the page after the update, or null if it is not on disk
+            @return the page before the update */
+        Page undo(Page page) throws IOException {
+            if (page == null)
+                return delta == null ? before : delta.undo(delta.redo(delta.emptyPage()));
+            if (delta != null)
+                return delta.undo(page);
+            byte[] data = page.getPageData();
+            byte[] b = before.getPageData();
+            byte[] a = after.getPageData();
+            for (int i = 0; i < data.length; i++)
+                data[i] ^= b[i] ^ a[i];
+            return makePage(before.getClass().getName(), before.getId(), data);
+        }
+    }
+
+    /** A log record as read by readRecord; update is set for UPDATE and
+        DELTA records, activeTxns and dirtyPages for CHECKPOINT records. */
+    static class LogRecord {
+        int type;
+        long tid;
+        long offset;
+        UpdateRecord update;
+        HashMap<Long,Long> activeTxns;
+        HashMap<PageId,Long> dirtyPages;
+    }
+
+    /** Read the log record at the current position of raf, leaving raf
+        positioned at the next one.
+        @throws EOFException at the end of the log
+        @throws IOException if the record is incomplete or corrupt
+    */
+    LogRecord readRecord(RandomAccessFile raf) throws IOException {
+        LogRecord r = new LogRecord();
+        r.offset = raf.getFilePointer();
+        r.type = raf.readInt();
+        r.tid = raf.readLong();
+        switch (r.type) {
+        case ABORT_RECORD:
+        case COMMIT_RECORD:
+        case BEGIN_RECORD:
+            break;
+        case UPDATE_RECORD:
+            Page before = readPageData(raf);
+            Page after = readPageData(raf);
+            r.update = new UpdateRecord(r.offset, r.tid, before, after, null);
+            break;
+        case DELTA_RECORD:
+            r.update = new UpdateRecord(r.offset, r.tid, null, null, PageDelta.read(raf));
+            break;
+        case CHECKPOINT_RECORD:
+            r.activeTxns = new HashMap<Long,Long>();
+            int numXactions = raf.readInt();
+            while (numXactions-- > 0) {
+                long xid = raf.readLong();
+                r.activeTxns.put(xid, raf.readLong());
+            }
+            r.dirtyPages = new HashMap<PageId,Long>();
+            int numDirty = raf.readInt();
+            while (numDirty-- > 0) {
+                PageId pid = readPageId(raf);
+                r.dirtyPages.put(pid, raf.readLong());
             }
-         }
+            break;
+        default:
+            throw new IOException("bad log record type " + r.type + " at offset " + r.offset);
+        }
+        if (raf.readLong() != r.offset)
+            throw new IOException("bad log record at offset " + r.offset);
+        return r;
     }
 
     /** Print out a human readable represenation of the log */
     public void print() throws IOException {
-        // some code goes here
+        synchronized (this) {
+            long end = raf.length();
+            if (end < LONG_SIZE) {
+                System.out.println("<empty log>");
+                return;
+            }
+            raf.seek(0);
+            System.out.println("checkpoint at " + raf.readLong());
+            try {
+                while (raf.getFilePointer() < end) {
+                    LogRecord r = readRecord(raf);
+                    StringBuilder sb = new StringBuilder();
+                    sb.append(r.offset).append(": ");
+                    switch (r.type) {
+                    case ABORT_RECORD: sb.append("ABORT"); break;
+                    case COMMIT_RECORD: sb.append("COMMIT"); break;
+                    case BEGIN_RECORD: sb.append("BEGIN"); break;
+                    case UPDATE_RECORD: sb.append("UPDATE"); break;
+                    case DELTA_RECORD: sb.append("DELTA"); break;
+                    case CHECKPOINT_RECORD: sb.append("CHECKPOINT"); break;
+                    }
+                    if (r.type != CHECKPOINT_RECORD)
+                        sb.append(" tid ").append(r.tid);
+                    if (r.update != null)
+                        sb.append(" page ").append(r.update.getPageId());
+                    if (r.update != null && r.update.delta != null)
+                        sb.append(", ").append(r.update.delta.numBytes()).append(" bytes changed");
+                    if (r.activeTxns != null)
+                        sb.append(" active ").append(r.activeTxns).append(" dirty ").append(r.dirtyPages);
+                    System.out.println(sb);
+                }
+            } catch (IOException e) {
+                System.out.println("<unreadable record at " + raf.getFilePointer() + ": " + e.getMessage() + ">");
+            } finally {
+                raf.seek(currentOffset >= 0 ? currentOffset : end);
+            }
+        }
     }
 
     public  synchronized void force() throws IOException {
+        long target = appendedCommits;
+        long targetLSN = endLSN();
         raf.getChannel().force(true);
+        synchronized (flushLock) {
+            if (targetLSN > flushedLSN)
+                flushedLSN = targetLSN;
+            if (target > flushedCommits) {
+                flushedCommits = target;
+                flushLock.notifyAll();
+            }
+        }
+    }
+
+    /** @return whether tid has begun and not yet committed or aborted */
+    public synchronized boolean isActive(TransactionId tid) {
+        return tidToFirstLogRecord.containsKey(tid.getId());
+    }
+
+    /** @return the number of update records tid has written so far, or 0
+        if it is not active; rolling tid back undoes that many updates */
+    public synchronized long getUpdateCount(TransactionId tid) {
+        Long updates = tidToUpdateCount.get(tid.getId());
+        return updates == null ? 0 : updates;
     }
 
 }
@@ -0,0 +1,166 @@
+package simpledb;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * LRU-K replacement (O'Neil, O'Neil and Weikum). Each page remembers the
+ * times of its last K references; the victim is the page whose K-th most
+ * recent reference is oldest. Pages referenced fewer than K times have an
+ * infinite backward K-distance and go first, oldest last reference first.
+ * <p>
+ * A sequential scan touches each page once, so its pages never reach K
+ * references and are evicted before anything that has been used repeatedly
+ * (B+ tree internal pages, small dimension tables, ...). The reference
+ * history of recently evicted pages is retained for a while, so a page that
+ * is re-read soon after eviction is not mistaken for a one-off.
+ */
+public class LruKReplacementPolicy extends AbstractReplacementPolicy {
+
+    /** Default number of references tracked per page. */
+    public static final int DEFAULT_K = 2;
+
+    private final int k;
+    private final int retainedHistory;
+    private final ConcurrentHashMap<PageId, History> resident;
+    private final LinkedHashMap<PageId, History> retained;
+    // the resident pages in eviction order, kept as references arrive so
+    // that finding a victim does not sort the pool
+    private final ConcurrentSkipListMap<Key, PageId> order = new ConcurrentSkipListMap<Key, PageId>();
+
+    /**
+     * Position of a page in the eviction order: its K-th most recent
+     * reference, then its last.  Reference times come from one clock, so
+     * no two resident pages have the same key.
+     */
+    private static final class Key implements Comparable<Key> {
+        final long kth;
+        final long last;
+
+        Key(long kth, long last) {
+            this.kth = kth;
+            this.last = last;
+        }
+
+        public int compareTo(Key o) {
+            // a K-th reference of 0 means an infinite backward distance
+            if (kth != o.kth)
+                return Long.compare(kth, o.kth);
+            return Long.compare(last, o.last);
+        }
+    }
+
+    /**
+     * Reference history of one page: the last K reference times, most
+     * recent first, with 0 meaning "no such reference", and the page's key
+     * in the eviction order while it is resident.
+     */
+    private static class History {
+        final long[] times;
+        Key key;
+
+        History(int k) {
+            this.times = new long[k];
+        }
+
+        void reference(long now) {
+            System.arraycopy(times, 0, times, 1, times.length - 1);
+            times[0] = now;
+        }
+
+        Key key() {
+            return new Key(times[times.length - 1], times[0]);
+        }
+    }
+
+    /**
+     * Creates an LRU-K policy for a pool of the given size.
+     *
+     * @param k the number of references to track per page; 1 is plain LRU
+     * @param numPages the capacity of the buffer pool; history is retained
+     *            for this many evicted pages
+     */
+    public LruKReplacementPolicy(int k, int numPages) {
+        if (k < 1)
+            throw new IllegalArgumentException("k must be at least 1");
+        this.k = k;
+        this.retainedHistory = numPages;
+        this.resident = new ConcurrentHashMap<PageId, History>(numPages);
+        this.retained = new LinkedHashMap<PageId, History>() {
+            private static final long serialVersionUID = 1L;
+
+            protected boolean removeEldestEntry(Map.Entry<PageId, History> eldest) {
+                return size() > retainedHistory;
+            }
+        };
+    }
+
+    public LruKReplacementPolicy(int numPages) {
+        this(DEFAULT_K, numPages);
+    }
+
+    /** @return the number of references tracked per page */
+    public int getK() {
+        return k;
+    }
+
+    protected void onHit(PageId pid, long now) {
+        History h = resident.get(pid);
+        if (h == null)
+            return;
+        synchronized (h) {
+            // null once the page has been removed
+            if (h.key == null)
+                return;
+            order.remove(h.key);
+            h.reference(now);
+            h.key = h.key();
+            order.put(h.key, pid);
+        }
+    }
+
+    protected void onAdmit(PageId pid, long now) {
+        History h;
+        synchronized (retained) {
+            h = retained.remove(pid);
+        }
+        if (h == null)
+            h = new History(k);
+        synchronized (h) {
+            h.reference(now);
+            h.key = h.key();
+            order.put(h.key, pid);
+        }
+        History old = resident.put(pid, h);
+        if (old != null && old != h) {
+            synchronized (old) {
+                if (old.key != null)
+                    order.remove(old.key);
+                old.key = null;
+            }
+        }
+    }
+
+    protected void onRemove(PageId pid) {
+        History h = resident.remove(pid);
+        if (h == null)
+            return;
+        synchronized (h) {
+            if (h.key != null)
+                order.remove(h.key);
+            h.key = null;
+        }
+        synchronized (retained) {
+            retained.put(pid, h);
+        }
+    }
+
+    /**
+     * @return the resident pages, walked lazily in key order; a page
+     *         referenced during the walk may be offered late or not at all
+     */
+    public Iterator<PageId> evictionOrder() {
+        return Collections.unmodifiableCollection(order.values()).iterator();
+    }
+}
@@ -0,0 +1,83 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * MappedPageReader serves page reads for a DbFile out of a read-only
+ * memory mapping of the file, instead of a seek and a read system call per
+ * page. The mapping covers the file as it was when the mapping was made;
+ * when a read falls past its end (because the file has grown since) the
+ * file is mapped again at its current length.
+ * <p>
+ * Memory-mapped reads are off by default. They can be turned on for every
+ * file with the system property simpledb.mmap (-Dsimpledb.mmap=true), or
+ * per file with HeapFile.setMemoryMapped / BTreeFile.setMemoryMapped.
+ *
+ * @see HeapFile#readPage
+ * @see BTreeFile#readPage
+ */
+public class MappedPageReader {
+
+    /** Whether files use memory-mapped reads unless told otherwise. */
+    public static final boolean DEFAULT_ENABLED = Boolean.getBoolean("simpledb.mmap");
+
+    private final File file;
+    private RandomAccessFile raf;
+    private volatile MappedByteBuffer map;
+
+    public MappedPageReader(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Copy len bytes starting at offset out of the mapping.
+     *
+     * @param offset the file offset to read from
+     * @param buf the buffer to fill
+     * @param len the number of bytes to read
+     * @return false if the requested range lies past the end of the file, or
+     *         if the file is too large to be mapped; callers should then fall
+     *         back to an ordinary read
+     */
+    public boolean read(long offset, byte[] buf, int len) throws IOException {
+        MappedByteBuffer m = map;
+        if (m == null || offset + len > m.capacity()) {
+            m = remap(offset + len);
+            if (m == null)
+                return false;
+        }
+        // readers share the mapping, so each works on its own view of it
+        ByteBuffer view = m.duplicate();
+        view.position((int) offset);
+        view.get(buf, 0, len);
+        return true;
+    }
+
+    /**
+     * Map the file at its current length, unless another reader already has.
+     * @return the new mapping, or null if end is past the end of the file
+     */
+    private synchronized MappedByteBuffer remap(long end) throws IOException {
+        if (map != null && end <= map.capacity())
+            return map;
+        if (raf == null)
+            raf = new RandomAccessFile(file, "r");
+        long length = raf.length();
+        if (end > length || length > Integer.MAX_VALUE)
+            return null;
+        map = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length);
+        return map;
+    }
+
+    /** Drop the mapping and close the underlying file. */
+    public synchronized void close() throws IOException {
+        map = null;
+        if (raf != null) {
+            raf.close();
+            raf = null;
+        }
+    }
+}
@@ -3,18 +3,37 @@ package simpledb;
 import java.util.*;
 
 /**
- * OrderBy is an operator that implements a relational ORDER BY.
+ * OrderBy is an operator that implements a relational ORDER BY on one or
+ * more fields.
+ * <p>
+ * If the input fits in the memory budget it is sorted in memory. Otherwise
+ * OrderBy performs an external merge sort: each budget-sized chunk of the
+ * input is sorted and written to a temporary run, runs are merged at most
+ * MERGE_FANIN at a time until few enough remain, and the final runs are
+ * merged on the fly as tuples are read.
  */
 public class OrderBy extends Operator {
 
     private static final long serialVersionUID = 1L;
+
+    /** Default number of tuples sorted in memory before spilling a run. */
+    public static final int DEFAULT_MEMORY_BUDGET = 100000;
+    /** Maximum number of runs merged at once. */
+    public static final int MERGE_FANIN = 64;
+
     private OpIterator child;
     private TupleDesc td;
     private ArrayList<Tuple> childTups = new ArrayList<Tuple>();
-    private int orderByField;
+    private int[] orderByFields;
+    private boolean[] ascs;
     private String orderByFieldName;
     private Iterator<Tuple> it;
     private boolean asc;
+    private int memoryBudget = DEFAULT_MEMORY_BUDGET;
+
+    /** Sorted runs on disk, or null if the input was sorted in memory. */
+    transient private ArrayList<SpillFile> runs = null;
+    transient private RunMerger merger = null;
 
     /**
      * Creates a new OrderBy node over the tuples from the iterator.
@@ -27,11 +46,30 @@ public class OrderBy extends Operator {
      *            the tuples to sort.
      */
     public OrderBy(int orderbyField, boolean asc, OpIterator child) {
+        this(new int[] { orderbyField }, new boolean[] { asc }, child);
+    }
+
+    /**
+     * Creates a new OrderBy node that sorts on several fields; ties on
+     * orderbyFields[i] are broken by orderbyFields[i+1].
+     * 
+     * @param orderbyFields
+     *            the fields to which the sort is applied, most significant
+     *            first.
+     * @param asc
+     *            for each field, true if its sort order is ascending.
+     * @param child
+     *            the tuples to sort.
+     */
+    public OrderBy(int[] orderbyFields, boolean[] asc, OpIterator child) {
+        if (orderbyFields.length == 0 || orderbyFields.length != asc.length)
+            throw new IllegalArgumentException("need one sort order per ORDER BY field");
         this.child = child;
         td = child.getTupleDesc();
-        this.orderByField = orderbyField;
-        this.orderByFieldName = td.getFieldName(orderbyField);
-        this.asc = asc;
+        this.orderByFields = orderbyFields.clone();
+        this.ascs = asc.clone();
+        this.orderByFieldName = td.getFieldName(orderbyFields[0]);
+        this.asc = asc[0];
     }
     
     public boolean isASC()
@@ -41,13 +79,33 @@ public class OrderBy extends Operator {
     
     public int getOrderByField()
     {
-        return this.orderByField;
+        return this.orderByFields[0];
     }
     
     public String getOrderFieldName()
     {
 	return this.orderByFieldName;
     }
+
+    /** @return the fields sorted on, most significant first */
+    public int[] getOrderByFields() {
+        return this.orderByFields.clone();
+    }
+
+    /**
+     * Set the maximum number of tuples sorted in memory at once. Must be
+     * called before open.
+     */
+    public void setMemoryBudget(int tuples) {
+        if (tuples < 1)
+            throw new IllegalArgumentException("memory budget must be positive");
+        this.memoryBudget = tuples;
+    }
+
+    /** @return true if the last open had to sort on disk */
+    public boolean isSpilled() {
+        return runs != null;
+    }
     
     public TupleDesc getTupleDesc() {
         return td;
@@ -56,21 +114,100 @@ public class OrderBy extends Operator {
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         child.open();
-        // load all the tuples in a collection, and sort it
-        while (child.hasNext())
-            childTups.add((Tuple) child.next());
-        Collections.sort(childTups, new TupleComparator(orderByField, asc));
-        it = childTups.iterator();
+        closeRuns();
+        childTups.clear();
+        TupleComparator cmp = new TupleComparator(orderByFields, ascs);
+        try {
+            // load tuples into memory; spill a sorted run whenever the budget is full
+            while (child.hasNext()) {
+                if (childTups.size() == memoryBudget) {
+                    if (runs == null)
+                        runs = new ArrayList<SpillFile>();
+                    runs.add(writeRun(childTups, cmp));
+                    childTups.clear();
+                }
+                childTups.add((Tuple) child.next());
+            }
+            if (runs == null) {
+                Collections.sort(childTups, cmp);
+            } else {
+                // the last chunk is sorted once, as it is spilled
+                if (!childTups.isEmpty())
+                    runs.add(writeRun(childTups, cmp));
+                childTups.clear();
+                // merge passes until a single merge can produce the output
+                while (runs.size() > MERGE_FANIN)
+                    mergePass(cmp);
+                merger = new RunMerger(runs, cmp);
+                merger.open();
+            }
+        } catch (java.io.IOException e) {
+            closeRuns();
+            throw new DbException("could not write sort run: " + e.getMessage());
+        }
+        it = merger != null ? merger : childTups.iterator();
         super.open();
     }
 
+    /** Sort a chunk of the input and write it to a new run. */
+    private SpillFile writeRun(List<Tuple> tups, Comparator<Tuple> cmp)
+            throws java.io.IOException {
+        Collections.sort(tups, cmp);
+        SpillFile run = new SpillFile(td);
+        for (Tuple t : tups)
+            run.add(t);
+        run.finish();
+        return run;
+    }
+
+    /** Merge groups of MERGE_FANIN runs into longer runs. */
+    private void mergePass(Comparator<Tuple> cmp) throws java.io.IOException,
+            DbException {
+        ArrayList<SpillFile> merged = new ArrayList<SpillFile>();
+        for (int i = 0; i < runs.size(); i += MERGE_FANIN) {
+            List<SpillFile> group = runs.subList(i, Math.min(i + MERGE_FANIN, runs.size()));
+            RunMerger m = new RunMerger(group, cmp);
+            SpillFile out = new SpillFile(td);
+            m.open();
+            while (m.hasNext())
+                out.add(m.next());
+            m.close();
+            out.finish();
+            for (SpillFile run : group)
+                run.delete();
+            merged.add(out);
+        }
+        runs = merged;
+    }
+
+    private void closeRuns() {
+        if (merger != null) {
+            merger.close();
+            merger = null;
+        }
+        if (runs != null) {
+            for (SpillFile run : runs)
+                run.delete();
+            runs = null;
+        }
+    }
+
     public void close() {
         super.close();
         it = null;
+        closeRuns();
+        childTups.clear();
+        child.close();
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
-        it = childTups.iterator();
+        if (merger != null) {
+            merger.close();
+            merger.open();
+            it = merger;
+        } else {
+            it = childTups.iterator();
+        }
     }
 
     /**
@@ -98,26 +235,90 @@ public class OrderBy extends Operator {
         this.child = children[0];
     }
 
-}
+    /**
+     * K-way merge of sorted runs using a heap of the current head of each
+     * run. Ties go to the earlier run, so the sort is stable.
+     */
+    private static class RunMerger implements Iterator<Tuple> {
 
-class TupleComparator implements Comparator<Tuple> {
-    int field;
-    boolean asc;
+        private final List<SpillFile> runs;
+        private final Comparator<Tuple> cmp;
+        private OpIterator[] readers;
+        private PriorityQueue<Head> heap;
 
-    public TupleComparator(int field, boolean asc) {
-        this.field = field;
-        this.asc = asc;
-    }
+        private static class Head {
+            final Tuple tuple;
+            final int run;
 
-    public int compare(Tuple o1, Tuple o2) {
-        Field t1 = (o1).getField(field);
-        Field t2 = (o2).getField(field);
-        if (t1.compare(Predicate.Op.EQUALS, t2))
-            return 0;
-        if (t1.compare(Predicate.Op.GREATER_THAN, t2))
-            return asc ? 1 : -1;
-        else
-            return asc ? -1 : 1;
+            Head(Tuple tuple, int run) {
+                this.tuple = tuple;
+                this.run = run;
+            }
+        }
+
+        RunMerger(List<SpillFile> runs, final Comparator<Tuple> cmp) {
+            this.runs = runs;
+            this.cmp = cmp;
+        }
+
+        void open() throws DbException {
+            readers = new OpIterator[runs.size()];
+            heap = new PriorityQueue<Head>(Math.max(1, runs.size()), new Comparator<Head>() {
+                public int compare(Head a, Head b) {
+                    int c = cmp.compare(a.tuple, b.tuple);
+                    return c != 0 ? c : Integer.compare(a.run, b.run);
+                }
+            });
+            try {
+                for (int i = 0; i < readers.length; i++) {
+                    readers[i] = runs.get(i).iterator();
+                    readers[i].open();
+                    advance(i);
+                }
+            } catch (java.io.IOException e) {
+                throw new DbException("could not read sort run: " + e.getMessage());
+            } catch (TransactionAbortedException e) {
+                throw new DbException(e.getMessage());
+            }
+        }
+
+        private void advance(int run) throws DbException, TransactionAbortedException {
+            if (readers[run].hasNext())
+                heap.add(new Head(readers[run].next(), run));
+        }
+
+        public boolean hasNext() {
+            return heap != null && !heap.isEmpty();
+        }
+
+        public Tuple next() {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            Head h = heap.poll();
+            try {
+                advance(h.run);
+            } catch (DbException e) {
+                throw new RuntimeException(e);
+            } catch (TransactionAbortedException e) {
+                throw new RuntimeException(e);
+            }
+            return h.tuple;
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        void close() {
+            if (readers != null) {
+                for (OpIterator r : readers) {
+                    if (r != null)
+                        r.close();
+                }
+            }
+            readers = null;
+            heap = null;
+        }
     }
-    
+
 }
@@ -0,0 +1,195 @@
+package simpledb;
+
+import java.io.*;
+import java.util.ArrayList;
+
+/**
+ * PageDelta is the body of a compact UPDATE log record: instead of whole
+ * before and after images of a page, it holds only the byte ranges that
+ * differ between them, with their old and new contents. Redo copies the new
+ * bytes over a page image. Undo flips back only the bits the update changed,
+ * so it leaves alone changes that other transactions made to the same bytes
+ * since, such as their bits in a page header, as row-level locking needs.
+ *
+ * @see LogFile#logWrite
+ */
+public class PageDelta {
+
+    /** Changed ranges closer together than this are logged as one range. */
+    static final int MERGE_GAP = 8;
+
+    private final PageId pid;
+    private final String pageClassName;
+    private final int pageSize;
+    private final int[] offsets;
+    private final byte[][] before;
+    private final byte[][] after;
+
+    private PageDelta(PageId pid, String pageClassName, int pageSize,
+            int[] offsets, byte[][] before, byte[][] after) {
+        this.pid = pid;
+        this.pageClassName = pageClassName;
+        this.pageSize = pageSize;
+        this.offsets = offsets;
+        this.before = before;
+        this.after = after;
+    }
+
+    /**
+     * Compute the delta between two images of the same page.
+     *
+     * @return the delta, or null if the images differ in size or class and
+     *         must be logged whole
+     */
+    public static PageDelta diff(Page beforePage, Page afterPage) {
+        if (beforePage.getClass() != afterPage.getClass())
+            return null;
+        byte[] b = beforePage.getPageData();
+        byte[] a = afterPage.getPageData();
+        if (a.length != b.length)
+            return null;
+
+        ArrayList<int[]> ranges = new ArrayList<int[]>();
+        int i = 0;
+        while (i < a.length) {
+            if (a[i] == b[i]) {
+                i++;
+                continue;
+            }
+            int start = i, end = i + 1;
+            // extend the range over changes separated by short equal runs
+            for (int j = end; j < a.length && j - end < MERGE_GAP; j++) {
+                if (a[j] != b[j])
+                    end = j + 1;
+            }
+            ranges.add(new int[] { start, end });
+            i = end;
+        }
+
+        int[] offsets = new int[ranges.size()];
+        byte[][] before = new byte[ranges.size()][];
+        byte[][] after = new byte[ranges.size()][];
+        for (int r = 0; r < offsets.length; r++) {
+            int start = ranges.get(r)[0], len = ranges.get(r)[1] - start;
+            offsets[r] = start;
+            before[r] = new byte[len];
+            after[r] = new byte[len];
+            System.arraycopy(b, start, before[r], 0, len);
+            System.arraycopy(a, start, after[r], 0, len);
+        }
+        return new PageDelta(afterPage.getId(), afterPage.getClass().getName(),
+                a.length, offsets, before, after);
+    }
+
+    /** @return the page this delta applies to */
+    public PageId getPageId() {
+        return pid;
+    }
+
+    /** @return the name of the class of the page this delta applies to */
+    public String getPageClassName() {
+        return pageClassName;
+    }
+
+    /** @return the number of changed ranges */
+    public int numRanges() {
+        return offsets.length;
+    }
+
+    /** @return the number of changed bytes */
+    public int numBytes() {
+        int n = 0;
+        for (byte[] r : after)
+            n += r.length;
+        return n;
+    }
+
+    /** Apply the update to an image of the page, in place. */
+    public void redo(byte[] data) {
+        apply(data, after);
+    }
+
+    /**
+     * Reverse the update on an image of the page, in place: every bit the
+     * update changed is flipped back, and all other bits are kept.
+     */
+    public void undo(byte[] data) {
+        checkSize(data);
+        for (int r = 0; r < offsets.length; r++) {
+            for (int i = 0; i < before[r].length; i++)
+                data[offsets[r] + i] ^= before[r][i] ^ after[r][i];
+        }
+    }
+
+    /** @return page with the update applied, as a new page */
+    public Page redo(Page page) throws IOException {
+        byte[] data = page.getPageData();
+        redo(data);
+        return LogFile.makePage(pageClassName, pid, data);
+    }
+
+    /** @return page with the update reversed, as a new page */
+    public Page undo(Page page) throws IOException {
+        byte[] data = page.getPageData();
+        undo(data);
+        return LogFile.makePage(pageClassName, pid, data);
+    }
+
+    /**
+     * @return an empty page of the class and size the delta was taken on,
+     *         for redoing updates to a page that never reached disk
+     */
+    public Page emptyPage() throws IOException {
+        return LogFile.makePage(pageClassName, pid, new byte[pageSize]);
+    }
+
+    private void apply(byte[] data, byte[][] contents) {
+        checkSize(data);
+        for (int r = 0; r < offsets.length; r++)
+            System.arraycopy(contents[r], 0, data, offsets[r], contents[r].length);
+    }
+
+    private void checkSize(byte[] data) {
+        if (data.length != pageSize)
+            throw new IllegalArgumentException("page image is " + data.length
+                    + " bytes, delta was taken on " + pageSize);
+    }
+
+    /**
+     * Write this delta in the format read by {@link #read}: the page class
+     * and id as in a full-image UPDATE record, the page size, then the
+     * offset, length, old and new bytes of each range.
+     */
+    public void write(DataOutput out) throws IOException {
+        out.writeUTF(pageClassName);
+        LogFile.writePageId(out, pid);
+        out.writeInt(pageSize);
+        out.writeInt(offsets.length);
+        for (int r = 0; r < offsets.length; r++) {
+            out.writeInt(offsets[r]);
+            out.writeInt(before[r].length);
+            out.write(before[r]);
+            out.write(after[r]);
+        }
+    }
+
+    /** Read a delta written by {@link #write}. */
+    public static PageDelta read(DataInput in) throws IOException {
+        String pageClassName = in.readUTF();
+        PageId pid = LogFile.readPageId(in);
+        int pageSize = in.readInt();
+        int n = in.readInt();
+        int[] offsets = new int[n];
+        byte[][] before = new byte[n][];
+        byte[][] after = new byte[n][];
+        for (int r = 0; r < n; r++) {
+            offsets[r] = in.readInt();
+            int len = in.readInt();
+            before[r] = new byte[len];
+            after[r] = new byte[len];
+            in.readFully(before[r]);
+            in.readFully(after[r]);
+        }
+        return new PageDelta(pid, pageClassName, pageSize, offsets, before, after);
+    }
+}
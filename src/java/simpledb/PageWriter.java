@@ -0,0 +1,220 @@
+package simpledb;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * PageWriter writes dirty pages of a BufferPool to disk on a background
+ * thread. A fuzzy checkpoint does not flush the pool itself; it hands the
+ * pages that were dirty when it ran to the writer, which trickles them out
+ * one at a time so that transactions keep running, and so that the next
+ * checkpoint finds fewer dirty pages and recovery has less log to redo.
+ * <p>
+ * The pool also wakes the writer when it is nearly full. The writer then
+ * writes the dirty pages of committed transactions, so that the pages the
+ * pool evicts next are likely clean and misses do not wait for writes.
+ * Pages dirtied by running transactions are left alone. Wake-ups closer
+ * together than the minimum interval are merged into one pass.
+ * <p>
+ * Every batch is written in file order, table by table and page by page,
+ * so that the writes are as sequential as the pages allow. Pages are
+ * written through {@link BufferPool#flushPage}, so the write-ahead rule is
+ * enforced there as for any other flush; a page that was evicted or
+ * cleaned in the meantime is skipped.  A page that cannot be written stays
+ * dirty, to be written by a later pass or flush, and the error is kept for
+ * {@link #drain} to throw.
+ *
+ * @see LogFile#logCheckpoint
+ */
+public class PageWriter {
+
+    /** Default shortest time between two passes started by wake-ups. */
+    public static final long DEFAULT_MIN_INTERVAL_MILLIS = 10;
+
+    /** Orders page ids as their pages are laid out: by table, then page. */
+    public static final Comparator<PageId> FILE_ORDER = new Comparator<PageId>() {
+        public int compare(PageId a, PageId b) {
+            if (a.getTableId() != b.getTableId())
+                return Integer.compare(a.getTableId(), b.getTableId());
+            return Integer.compare(a.getPageNumber(), b.getPageNumber());
+        }
+    };
+
+    private final BufferPool pool;
+    private final ScheduledThreadPoolExecutor executor;
+    private final AtomicLong pagesWritten = new AtomicLong(0);
+    private final AtomicLong backgroundPagesWritten = new AtomicLong(0);
+    private final AtomicLong passes = new AtomicLong(0);
+    private final AtomicLong writeNanos = new AtomicLong(0);
+    private final AtomicBoolean wakeUpPending = new AtomicBoolean(false);
+    private final AtomicReference<IOException> failure =
+            new AtomicReference<IOException>();
+    private volatile boolean enabled = true;
+    private volatile long minIntervalNanos =
+            TimeUnit.MILLISECONDS.toNanos(DEFAULT_MIN_INTERVAL_MILLIS);
+    private volatile long lastPass = System.nanoTime() - minIntervalNanos;
+
+    /**
+     * Creates a writer that flushes pages of the given pool.
+     *
+     * @param pool the buffer pool whose pages to write
+     */
+    public PageWriter(BufferPool pool) {
+        this.pool = pool;
+        this.executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "simpledb-writer");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        this.executor.setKeepAliveTime(1, TimeUnit.SECONDS);
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    /** @return the number of pages this writer has written to disk */
+    public long getPagesWritten() {
+        return pagesWritten.get();
+    }
+
+    /**
+     * @return the number of pages written ahead of eviction, by passes
+     *         started with {@link #wakeUp}
+     */
+    public long getBackgroundPagesWritten() {
+        return backgroundPagesWritten.get();
+    }
+
+    /** @return the number of passes started with {@link #wakeUp} */
+    public long getPasses() {
+        return passes.get();
+    }
+
+    /**
+     * @return the pages written per second of writing time, a measure of
+     *         the rate the writer can sustain
+     */
+    public double getFlushRate() {
+        long nanos = writeNanos.get();
+        return nanos == 0 ? 0 : pagesWritten.get() * 1e9 / nanos;
+    }
+
+    /**
+     * Turn writing ahead of eviction on or off; checkpoints still schedule
+     * their pages either way.
+     */
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /** Set the shortest time between two passes started by wake-ups. */
+    public void setMinInterval(long millis) {
+        if (millis < 0)
+            throw new IllegalArgumentException("interval must not be negative");
+        minIntervalNanos = TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+
+    /**
+     * Write the given pages in the background, in file order.
+     *
+     * @param pids the pages to write; pages that are no longer dirty are
+     *            skipped
+     */
+    public void schedule(Collection<PageId> pids) {
+        final ArrayList<PageId> batch = new ArrayList<PageId>(pids);
+        if (batch.isEmpty())
+            return;
+        batch.sort(FILE_ORDER);
+        executor.execute(new Runnable() {
+            public void run() {
+                write(batch, false);
+            }
+        });
+    }
+
+    /**
+     * Ask for a pass over the pool that writes the dirty pages of committed
+     * transactions. Returns at once; a pass already pending absorbs the
+     * request.
+     */
+    public void wakeUp() {
+        if (!enabled || !wakeUpPending.compareAndSet(false, true))
+            return;
+        long delay = lastPass + minIntervalNanos - System.nanoTime();
+        try {
+            executor.schedule(new Runnable() {
+                public void run() {
+                    wakeUpPending.set(false);
+                    lastPass = System.nanoTime();
+                    passes.incrementAndGet();
+                    backgroundPagesWritten.addAndGet(
+                            write(pool.committedDirtyPageIds(), true));
+                }
+            }, Math.max(0, delay), TimeUnit.NANOSECONDS);
+        } catch (RejectedExecutionException e) {
+            wakeUpPending.set(false); // shut down
+        }
+    }
+
+    /** @return the number of the pages written */
+    private int write(ArrayList<PageId> batch, boolean committedOnly) {
+        int n = 0;
+        for (PageId pid : batch) {
+            long start = System.nanoTime();
+            try {
+                if (pool.flushPage(pid, committedOnly)) {
+                    writeNanos.addAndGet(System.nanoTime() - start);
+                    pagesWritten.incrementAndGet();
+                    n++;
+                }
+            } catch (IOException e) {
+                // flushPage left the page dirty; keep the first error for drain
+                failure.compareAndSet(null, e);
+            }
+            Thread.yield();
+        }
+        return n;
+    }
+
+    /**
+     * Wait until all pages scheduled so far have been written.
+     *
+     * @return false if interrupted while waiting
+     * @throws IOException if a page could not be written since the last
+     *             drain; the pages that failed are still dirty
+     */
+    public boolean drain() throws IOException {
+        Future<?> marker = executor.submit(new Runnable() {
+            public void run() {
+            }
+        });
+        try {
+            marker.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException e) {
+            // the marker does nothing, so it cannot fail
+        }
+        IOException e = failure.getAndSet(null);
+        if (e != null)
+            throw new IOException("could not write a page in the background: "
+                    + e.getMessage(), e);
+        return true;
+    }
+
+    /** Stop the background thread; pages not yet written stay dirty. */
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+}
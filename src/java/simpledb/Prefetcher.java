@@ -0,0 +1,150 @@
+package simpledb;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Prefetcher implements sequential read-ahead for HeapFiles. HeapFile
+ * iterators report each page they move to; once a table has been read at
+ * consecutive page numbers a few times in a row, the prefetcher starts
+ * reading the next pages of that table into the pool on a background
+ * thread, so a SeqScan finds them resident instead of waiting for the disk.
+ * Other page requests, such as the pool hits of inserts and index lookups,
+ * never reach the prefetcher.
+ * <p>
+ * Read-ahead only takes free slots or evicts clean pages: it never writes a
+ * dirty page, which is left for a miss or the PageWriter.
+ * <p>
+ * The read-ahead window (the number of pages kept in flight ahead of the
+ * reader) is configurable; a window of 0 turns read-ahead off. Detection
+ * is per table, so interleaved scans of different tables each keep their
+ * own stream.
+ *
+ * @see BufferPool#getPrefetcher
+ */
+public class Prefetcher {
+
+    /** Default number of pages read ahead of a sequential reader. */
+    public static final int DEFAULT_WINDOW = 8;
+
+    /** Number of consecutive page requests that count as a sequential scan. */
+    public static final int SEQUENTIAL_THRESHOLD = 2;
+
+    private final BufferPool pool;
+    private volatile int window;
+    private final ConcurrentHashMap<Integer, Stream> streams;
+    private final ThreadPoolExecutor executor;
+    private final AtomicLong pagesPrefetched = new AtomicLong(0);
+
+    /** Access state of one table. */
+    private static class Stream {
+        int lastPage = -1;
+        int runLength = 0;
+        int prefetchedTo = -1;
+    }
+
+    /**
+     * Creates a prefetcher that reads pages into the given pool.
+     *
+     * @param pool the buffer pool to read pages into
+     * @param window the number of pages to read ahead; 0 disables read-ahead
+     */
+    public Prefetcher(BufferPool pool, int window) {
+        this.pool = pool;
+        this.window = window;
+        this.streams = new ConcurrentHashMap<Integer, Stream>();
+        this.executor = new ThreadPoolExecutor(1, 1, 1, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "simpledb-prefetch");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    /** @return the number of pages read ahead of a sequential reader */
+    public int getWindow() {
+        return window;
+    }
+
+    /**
+     * Set the read-ahead window.
+     * @param window the number of pages to read ahead; 0 disables read-ahead
+     */
+    public void setWindow(int window) {
+        if (window < 0)
+            throw new IllegalArgumentException("window must not be negative");
+        this.window = window;
+    }
+
+    /** @return the number of pages this prefetcher has read into the pool */
+    public long getPagesPrefetched() {
+        return pagesPrefetched.get();
+    }
+
+    /**
+     * Record that a scan has moved to a page, and start reading ahead if
+     * the page continues a sequential run over its table.
+     *
+     * @param pid the page that was requested
+     */
+    public void pageRequested(PageId pid) {
+        int w = window;
+        if (w == 0 || !(pid instanceof HeapPageId))
+            return;
+        final int tableId = pid.getTableId();
+        int pgNo = pid.getPageNumber();
+
+        Stream s = streams.get(tableId);
+        if (s == null) {
+            streams.putIfAbsent(tableId, new Stream());
+            s = streams.get(tableId);
+        }
+
+        final int from, to;
+        synchronized (s) {
+            if (pgNo == s.lastPage)
+                return;
+            if (pgNo == s.lastPage + 1) {
+                s.runLength++;
+            } else {
+                s.runLength = 1;
+                s.prefetchedTo = pgNo;
+            }
+            s.lastPage = pgNo;
+            if (s.runLength < SEQUENTIAL_THRESHOLD)
+                return;
+            // top the window up only once half of it has been consumed
+            if (s.prefetchedTo - pgNo > w / 2)
+                return;
+            from = Math.max(s.prefetchedTo, pgNo) + 1;
+            to = Math.min(pgNo + w, numPages(tableId) - 1);
+            if (from > to)
+                return;
+            s.prefetchedTo = to;
+        }
+
+        executor.execute(new Runnable() {
+            public void run() {
+                for (int p = from; p <= to; p++) {
+                    if (pool.prefetchPage(new HeapPageId(tableId, p)))
+                        pagesPrefetched.incrementAndGet();
+                }
+            }
+        });
+    }
+
+    private static int numPages(int tableId) {
+        DbFile file = Database.getCatalog().getDatabaseFile(tableId);
+        if (file instanceof HeapFile)
+            return ((HeapFile) file).numPages();
+        return 0;
+    }
+
+    /** Stop the background thread; pending read-ahead is dropped. */
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+}
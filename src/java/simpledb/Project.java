@@ -3,9 +3,10 @@ package simpledb;
 import java.util.*;
 
 /**
- * Project is an operator that implements a relational projection.
+ * Project is an operator that implements a relational projection. It can be
+ * read a tuple at a time or a batch at a time.
  */
-public class Project extends Operator {
+public class Project extends Operator implements BatchOpIterator {
 
     private static final long serialVersionUID = 1L;
     private OpIterator child;
@@ -80,6 +81,23 @@ public class Project extends Operator {
         return null;
     }
 
+    /**
+     * Returns the next batch of projected tuples. The projected batch shares
+     * its column arrays with the child's batch, so no values are copied.
+     * 
+     * @return The next batch, or null if there are no more tuples
+     */
+    public TupleBatch nextBatch() throws TransactionAbortedException, DbException {
+        TupleBatch batch = RowToBatchAdapter.of(child).nextBatch();
+        if (batch == null)
+            return null;
+        int[] fields = new int[outFieldIds.size()];
+        for (int i = 0; i < fields.length; i++) {
+            fields[i] = outFieldIds.get(i);
+        }
+        return new TupleBatch(td, batch, fields);
+    }
+
     @Override
     public OpIterator[] getChildren() {
         return new OpIterator[] { this.child };
@@ -0,0 +1,70 @@
+package simpledb;
+
+import java.util.Iterator;
+
+/**
+ * ReplacementPolicy decides which resident page the BufferPool should give
+ * up when it needs room for a new one. The BufferPool reports every hit,
+ * every page it brings in and every page it drops; the policy in turn
+ * offers the resident pages in the order it would like them evicted.
+ * <p>
+ * The BufferPool walks {@link #evictionOrder()} and evicts the first page
+ * it is allowed to (for instance, the first page that is not dirty), so a
+ * policy never needs to know about dirtiness or locking.
+ *
+ * @see BufferPool
+ * @see LruKReplacementPolicy
+ * @see TwoQueueReplacementPolicy
+ */
+public interface ReplacementPolicy {
+
+    /**
+     * Called when a requested page was found in the buffer pool.
+     *
+     * @param pid the id of the page that was hit
+     */
+    public void pageHit(PageId pid);
+
+    /**
+     * Called when a requested page was not resident and has just been read
+     * into the buffer pool.
+     *
+     * @param pid the id of the page that was brought in
+     */
+    public void pageAdmitted(PageId pid);
+
+    /**
+     * Called when a page was read into the buffer pool ahead of any request
+     * for it. The first request that hits such a page counts as its first
+     * reference rather than as a repeat visit.
+     *
+     * @param pid the id of the page that was prefetched
+     */
+    public void pagePrefetched(PageId pid);
+
+    /**
+     * Called when a page leaves the buffer pool, either because it was
+     * evicted or because it was discarded.
+     *
+     * @param pid the id of the page that is no longer resident
+     */
+    public void pageRemoved(PageId pid);
+
+    /**
+     * @return the resident pages, best eviction candidate first
+     */
+    public Iterator<PageId> evictionOrder();
+
+    /**
+     * @return the number of lookups that found the page resident
+     */
+    public long getHits();
+
+    /**
+     * @return the number of lookups that had to read the page from disk
+     */
+    public long getMisses();
+
+    /** Reset the hit and miss counters to zero. */
+    public void resetStats();
+}
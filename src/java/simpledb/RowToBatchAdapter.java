@@ -0,0 +1,63 @@
+package simpledb;
+
+/**
+ * RowToBatchAdapter reads a tuple-at-a-time OpIterator in batches, so it can
+ * feed an operator's batch path.
+ */
+public class RowToBatchAdapter implements BatchOpIterator {
+
+    private static final long serialVersionUID = 1L;
+
+    private final OpIterator child;
+    private final int batchSize;
+
+    /**
+     * @param child the iterator to read tuples from
+     * @param batchSize the maximum number of tuples per batch
+     */
+    public RowToBatchAdapter(OpIterator child, int batchSize) {
+        this.child = child;
+        this.batchSize = batchSize;
+    }
+
+    public RowToBatchAdapter(OpIterator child) {
+        this(child, TupleBatch.DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @return it itself if it already supports batches, otherwise an adapter
+     *         reading it in batches. The result shares open/close state with
+     *         it, so an operator that has opened its child can use this
+     *         directly.
+     */
+    public static BatchOpIterator of(OpIterator it) {
+        if (it instanceof BatchOpIterator)
+            return (BatchOpIterator) it;
+        return new RowToBatchAdapter(it);
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+        child.open();
+    }
+
+    public TupleBatch nextBatch() throws DbException, TransactionAbortedException {
+        if (!child.hasNext())
+            return null;
+        TupleBatch batch = new TupleBatch(child.getTupleDesc(), batchSize);
+        while (!batch.isFull() && child.hasNext())
+            batch.add(child.next());
+        return batch;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        child.rewind();
+    }
+
+    public TupleDesc getTupleDesc() {
+        return child.getTupleDesc();
+    }
+
+    public void close() {
+        child.close();
+    }
+}
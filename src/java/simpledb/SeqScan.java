@@ -6,16 +6,21 @@ import java.util.*;
 /**
  * SeqScan is an implementation of a sequential scan access method that reads
  * each tuple of a table in no particular order (e.g., as they are laid out on
- * disk).
+ * disk). It can be read a tuple at a time or a batch at a time.
  */
-public class SeqScan implements OpIterator {
+public class SeqScan implements OpIterator, BatchOpIterator {
 
     private static final long serialVersionUID = 1L;
 
     private int tableId;
     private String tableAlias;
     private TransactionId transactionId;
+    private int[] fields;
     private DbFileIterator dbFileIterator;
+    // the predicate of each open Filter above this scan, on the fields of
+    // the table, and all of them in the list the file iterator reads
+    private final LinkedHashMap<Filter, Predicate> pagePredicates = new LinkedHashMap<Filter, Predicate>();
+    private final ArrayList<Predicate> skip = new ArrayList<Predicate>();
 
     /**
      * Creates a sequential scan over the specified table as a part of the
@@ -40,7 +45,50 @@ public class SeqScan implements OpIterator {
         this.tableAlias = tableAlias;
         this.transactionId = tid;
         this.tableId = tableid;
-        this.dbFileIterator = Database.getCatalog().getDatabaseFile(tableid).iterator(transactionId);
+        this.dbFileIterator = fileIterator();
+    }
+
+    /**
+     * Creates a sequential scan over the specified table that returns only
+     * some of its fields.  A table stored in a ColumnFile then reads just
+     * the pages of those columns; tuples of other tables are cut down to
+     * the fields as they are read.
+     *
+     * @param fields
+     *            the fields of the table to return, in the order the
+     *            returned tuples have them
+     * @see ColumnFile#iterator(TransactionId, int[])
+     */
+    public SeqScan(TransactionId tid, int tableid, String tableAlias, int[] fields) {
+        this(tid, tableid, tableAlias);
+        checkFields(fields);
+        this.fields = fields.clone();
+        this.dbFileIterator = fileIterator();
+    }
+
+    private void checkFields(int[] fields) {
+        TupleDesc td = Database.getCatalog().getTupleDesc(this.tableId);
+        for (int f : fields) {
+            if (f < 0 || f >= td.numFields())
+                throw new IllegalArgumentException("no field " + f + " in table " + getTableName());
+        }
+    }
+
+    /** @return an iterator over the table, reading only the fields of this scan */
+    private DbFileIterator fileIterator() {
+        DbFile file = Database.getCatalog().getDatabaseFile(this.tableId);
+        if (this.fields != null && file instanceof ColumnFile)
+            return ((ColumnFile) file).iterator(this.transactionId, this.fields);
+        // the iterator sees the predicates put in skip later
+        DbFileIterator it = file instanceof HeapFile
+                ? ((HeapFile) file).iterator(this.transactionId, this.skip)
+                : file.iterator(this.transactionId);
+        return this.fields == null ? it : project(it, file.getTupleDesc());
+    }
+
+    private DbFileIterator project(DbFileIterator it, TupleDesc td) {
+        return new ProjectingIterator(it, this.fields,
+                new TupleDesc(fieldTypes(td), fieldNames(td, null)));
     }
 
     /**
@@ -59,8 +107,20 @@ public class SeqScan implements OpIterator {
         return this.tableAlias;
     }
 
+    /** @return the id of the table this operator scans */
+    public int getTableId() {
+        return this.tableId;
+    }
+
+    /** @return the transaction this operator scans for */
+    public TransactionId getTransactionId() {
+        return this.transactionId;
+    }
+
     /**
-     * Reset the tableid, and tableAlias of this operator.
+     * Reset the tableid, and tableAlias of this operator.  The scan reads
+     * the new table when it is next opened, with no pages skipped until the
+     * Filters above it are opened again.
      * @param tableid
      *            the table to scan.
      * @param tableAlias
@@ -75,14 +135,68 @@ public class SeqScan implements OpIterator {
         if (tableAlias == null) {
             tableAlias = "null";
         }
+        int oldTableId = this.tableId;
         this.tableId = tableid;
         this.tableAlias = tableAlias;
+        if (this.fields != null) {
+            try {
+                checkFields(this.fields);
+            } catch (IllegalArgumentException e) {
+                this.tableId = oldTableId;
+                throw e;
+            }
+        }
+        this.pagePredicates.clear();
+        this.skip.clear();
+        this.dbFileIterator = fileIterator();
     }
 
     public SeqScan(TransactionId tid, int tableId) {
         this(tid, tableId, Database.getCatalog().getTableName(tableId));
     }
 
+    /**
+     * Let this scan skip the pages of a HeapFile on which, as its zone map
+     * shows, no tuple satisfies the predicate of filter; the filter calls
+     * this each time it is opened over the scan, replacing the predicate it
+     * gave before.  Takes effect when the scan is next opened or rewound,
+     * and does nothing for other files.
+     *
+     * @param filter a Filter reading from this scan, perhaps through other
+     *            Filters, whose predicate is on the fields this scan returns
+     * @see HeapFile#iterator(TransactionId, List)
+     * @see #stopSkipping(Filter)
+     */
+    public void skipPagesFailing(Filter filter) {
+        if (!(Database.getCatalog().getDatabaseFile(this.tableId) instanceof HeapFile))
+            return;
+        Predicate p = filter.getPredicate();
+        int field = this.fields == null ? p.getField() : this.fields[p.getField()];
+        this.pagePredicates.put(filter, new Predicate(field, p.getOp(), p.getOperand()));
+        updateSkip();
+    }
+
+    /**
+     * Stop skipping the pages that fail the predicate of filter, as when
+     * the filter is closed or no longer reads from this scan.
+     */
+    public void stopSkipping(Filter filter) {
+        if (this.pagePredicates.remove(filter) != null)
+            updateSkip();
+    }
+
+    private void updateSkip() {
+        this.skip.clear();
+        next:
+        for (Predicate p : this.pagePredicates.values()) {
+            for (Predicate q : this.skip) {
+                if (q.getField() == p.getField() && q.getOp() == p.getOp() && q.getOperand().equals(p.getOperand()))
+                    continue next;
+            }
+            this.skip.add(p);
+        }
+    }
+
     public void open() throws DbException, TransactionAbortedException {
         this.dbFileIterator.open();
     }
@@ -99,14 +213,31 @@ public class SeqScan implements OpIterator {
      */
     public TupleDesc getTupleDesc() {
         TupleDesc oldDesc = Database.getCatalog().getTupleDesc(this.tableId);
-        String[] names = new String[oldDesc.numFields()];
-        Type[] types = new Type[oldDesc.numFields()];
+        return new TupleDesc(fieldTypes(oldDesc), fieldNames(oldDesc, this.tableAlias));
+    }
 
-        for (int i = 0; i < oldDesc.numFields(); i++) {
-            names[i] = this.tableAlias + "." + oldDesc.getFieldName(i);
-            types[i] = oldDesc.getFieldType(i);
+    /** @return the fields this scan returns, or null if it returns all */
+    public int[] getFields() {
+        return this.fields == null ? null : this.fields.clone();
+    }
+
+    private Type[] fieldTypes(TupleDesc td) {
+        int n = this.fields == null ? td.numFields() : this.fields.length;
+        Type[] types = new Type[n];
+        for (int i = 0; i < n; i++)
+            types[i] = td.getFieldType(this.fields == null ? i : this.fields[i]);
+        return types;
+    }
+
+    /** @return the names of the returned fields, prefixed with alias and a "." */
+    private String[] fieldNames(TupleDesc td, String alias) {
+        int n = this.fields == null ? td.numFields() : this.fields.length;
+        String[] names = new String[n];
+        for (int i = 0; i < n; i++) {
+            String name = td.getFieldName(this.fields == null ? i : this.fields[i]);
+            names[i] = alias == null ? name : alias + "." + name;
         }
-        return new TupleDesc(types, names);
+        return names;
     }
 
     public boolean hasNext() throws TransactionAbortedException, DbException {
@@ -118,6 +249,16 @@ public class SeqScan implements OpIterator {
         return this.dbFileIterator.next();
     }
 
+    public TupleBatch nextBatch() throws TransactionAbortedException, DbException {
+        if (!this.dbFileIterator.hasNext())
+            return null;
+        TupleBatch batch = new TupleBatch(getTupleDesc());
+        while (!batch.isFull() && this.dbFileIterator.hasNext()) {
+            batch.add(this.dbFileIterator.next());
+        }
+        return batch;
+    }
+
     public void close() {
         this.dbFileIterator.close();
     }
@@ -126,4 +267,43 @@ public class SeqScan implements OpIterator {
             TransactionAbortedException {
         this.dbFileIterator.rewind();
     }
+
+    /** Cuts the tuples of a file's iterator down to some of their fields. */
+    private static class ProjectingIterator implements DbFileIterator {
+        private final DbFileIterator child;
+        private final int[] fields;
+        private final TupleDesc td;
+
+        ProjectingIterator(DbFileIterator child, int[] fields, TupleDesc td) {
+            this.child = child;
+            this.fields = fields;
+            this.td = td;
+        }
+
+        public void open() throws DbException, TransactionAbortedException {
+            this.child.open();
+        }
+
+        public boolean hasNext() throws DbException, TransactionAbortedException {
+            return this.child.hasNext();
+        }
+
+        public Tuple next() throws DbException, TransactionAbortedException,
+                NoSuchElementException {
+            Tuple t = this.child.next();
+            Tuple out = new Tuple(this.td);
+            for (int i = 0; i < this.fields.length; i++)
+                out.setField(i, t.getField(this.fields[i]));
+            out.setRecordId(t.getRecordId());
+            return out;
+        }
+
+        public void rewind() throws DbException, TransactionAbortedException {
+            this.child.rewind();
+        }
+
+        public void close() {
+            this.child.close();
+        }
+    }
 }
@@ -0,0 +1,396 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * SlottedHeapPage is a HeapPage that stores records of variable length,
+ * so that strings take the bytes of their value instead of a full
+ * {@link Type#STRING_LEN}. Tables choose this format in the Catalog; see
+ * {@link HeapFile.PageFormat}.
+ * <p>
+ * The page begins with a header of two unsigned shorts: the number of
+ * entries in the slot directory, and the offset at which the record area
+ * begins. The slot directory follows, one entry per slot of an offset and
+ * a length (both unsigned shorts; an offset of 0 marks an empty slot).
+ * Records are packed at the end of the page and grow towards the
+ * directory. In a record, an INT field takes its four bytes, and a STRING
+ * field a short length and then one byte per character. A page of zeroes
+ * is an empty page.
+ * <p>
+ * A record keeps its slot, and so its RecordId, for as long as it lives,
+ * but may move within the page: when a record does not fit in the gap
+ * between the directory and the records, the page is compacted to gather
+ * the space deleted records left behind. Since records move and share the
+ * page's free space, HeapFile locks a slotted page whole to change it,
+ * rather than just the slot it changes.
+ *
+ * @see HeapFile#insertTuple
+ */
+public class SlottedHeapPage extends HeapPage {
+
+    /** Bytes of the page header: the directory size and the record area start. */
+    static final int HEADER_SIZE = 4;
+
+    /** Bytes of a slot directory entry: a record's offset and length. */
+    static final int SLOT_SIZE = 4;
+
+    private final int[] offsets;
+    private final int[] lengths;
+    private int dirSlots;  // entries in the slot directory
+    private int heapStart; // where the record area begins
+    private int used;      // bytes of the records on the page
+
+    /**
+     * Create a SlottedHeapPage from a set of bytes of data read from disk,
+     * in the format described above.  Only the header and the slot
+     * directory are read here; a record is decoded when its tuple is first
+     * asked for.
+     *
+     * @throws IOException if the data is not a valid slotted page
+     */
+    public SlottedHeapPage(HeapPageId id, byte[] data) throws IOException {
+        super(id, maxSlots(Database.getCatalog().getTupleDesc(id.getTableId())), data);
+        int pageSize = pageSize();
+        this.offsets = new int[numSlots];
+        this.lengths = new int[numSlots];
+        this.dirSlots = getShort(data, 0);
+        this.heapStart = getShort(data, 2);
+        if (this.heapStart == 0)
+            this.heapStart = pageSize;
+        if (dirSlots > numSlots || heapStart < HEADER_SIZE + dirSlots * SLOT_SIZE
+                || heapStart > pageSize)
+            throw new IOException("corrupt slotted page " + id.getPageNumber());
+
+        for (int i = 0; i < dirSlots; i++) {
+            int off = getShort(data, HEADER_SIZE + i * SLOT_SIZE);
+            int len = getShort(data, HEADER_SIZE + i * SLOT_SIZE + 2);
+            if (off == 0)
+                continue;
+            if (off < heapStart || off + len > pageSize)
+                throw new IOException("corrupt slot " + i + " on slotted page " + id.getPageNumber());
+            offsets[i] = off;
+            lengths[i] = len;
+            used += len;
+            markSlotUsed(i, true);
+        }
+        setBeforeImage();
+    }
+
+    private static int pageSize() {
+        int pageSize = BufferPool.getPageSize();
+        if (pageSize > 0xFFFF)
+            throw new IllegalStateException("slotted pages hold at most 65535 bytes");
+        return pageSize;
+    }
+
+    /**
+     * @return the largest number of slots a page of tuples of the given
+     *         TupleDesc can have, if all its records are as short as they
+     *         can be
+     */
+    static int maxSlots(TupleDesc td) {
+        return (pageSize() - HEADER_SIZE) / (SLOT_SIZE + minRecordSize(td));
+    }
+
+    private static int minRecordSize(TupleDesc td) {
+        int size = 0;
+        for (int i = 0; i < td.numFields(); i++)
+            size += td.getFieldType(i) == Type.STRING_TYPE ? 2 : td.getFieldType(i).getLen();
+        return Math.max(size, 1);
+    }
+
+    /** @return the number of bytes the record of t takes on a page */
+    static int recordSize(Tuple t) {
+        int size = 0;
+        TupleDesc td = t.getTupleDesc();
+        for (int i = 0; i < td.numFields(); i++) {
+            if (td.getFieldType(i) == Type.STRING_TYPE)
+                size += 2 + Math.min(((StringField) t.getField(i)).getValue().length(), Type.STRING_LEN);
+            else
+                size += td.getFieldType(i).getLen();
+        }
+        return size;
+    }
+
+    /**
+     * @return the free space a page must have for t to be inserted into a
+     *         new slot, in the measure of {@link #getFreeSpace}
+     */
+    static int spaceNeeded(Tuple t) {
+        return recordSize(t) + SLOT_SIZE;
+    }
+
+    private static int getShort(byte[] data, int off) {
+        return ((data[off] & 0xFF) << 8) | (data[off + 1] & 0xFF);
+    }
+
+    private static void putShort(byte[] data, int off, int v) {
+        data[off] = (byte) (v >>> 8);
+        data[off + 1] = (byte) v;
+    }
+
+    private Tuple readRecord(byte[] data, int off, int len) throws IOException {
+        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data, off, len));
+        Tuple t = new Tuple(td);
+        try {
+            for (int j = 0; j < td.numFields(); j++) {
+                if (td.getFieldType(j) == Type.STRING_TYPE) {
+                    byte[] bs = new byte[dis.readUnsignedShort()];
+                    dis.readFully(bs);
+                    t.setField(j, new StringField(new String(bs), Type.STRING_LEN));
+                } else {
+                    t.setField(j, td.getFieldType(j).parse(dis));
+                }
+            }
+        } catch (java.text.ParseException e) {
+            throw new IOException("could not parse record: " + e.getMessage());
+        }
+        return t;
+    }
+
+    private static void writeRecord(Tuple t, byte[] data, int off, int len) {
+        TupleDesc td = t.getTupleDesc();
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
+        DataOutputStream dos = new DataOutputStream(baos);
+        try {
+            for (int j = 0; j < td.numFields(); j++) {
+                Field f = t.getField(j);
+                if (td.getFieldType(j) == Type.STRING_TYPE) {
+                    String s = ((StringField) f).getValue();
+                    if (s.length() > Type.STRING_LEN)
+                        s = s.substring(0, Type.STRING_LEN);
+                    dos.writeShort(s.length());
+                    dos.writeBytes(s);
+                } else {
+                    f.serialize(dos);
+                }
+            }
+            dos.flush();
+        } catch (IOException e) {
+            // this really shouldn't happen
+            e.printStackTrace();
+        }
+        System.arraycopy(baos.toByteArray(), 0, data, off, len);
+    }
+
+    /**
+     * Generates the bytes of a page holding the given tuples, in slots 0
+     * to tuples.size() - 1, for writing a slotted file directly, as
+     * HeapFileEncoder does.
+     *
+     * @throws IllegalArgumentException if the tuples do not fit on a page
+     */
+    static byte[] createPageData(List<Tuple> tuples) {
+        byte[] data = new byte[pageSize()];
+        if (tuples.isEmpty())
+            return data;
+        int end = data.length;
+        for (int i = 0; i < tuples.size(); i++) {
+            Tuple t = tuples.get(i);
+            int len = recordSize(t);
+            end -= len;
+            if (i >= maxSlots(t.getTupleDesc()) || end < HEADER_SIZE + (i + 1) * SLOT_SIZE)
+                throw new IllegalArgumentException("tuples do not fit on a page");
+            putShort(data, HEADER_SIZE + i * SLOT_SIZE, end);
+            putShort(data, HEADER_SIZE + i * SLOT_SIZE + 2, len);
+            writeRecord(t, data, end, len);
+        }
+        putShort(data, 0, tuples.size());
+        putShort(data, 2, end);
+        return data;
+    }
+
+    /**
+     * Checks that data is a slotted page of tuples of td: its directory
+     * fits before its records and ends with a used entry, and each entry
+     * points at a record that is exactly as long as its fields.  The constructor checks only the
+     * directory, leaving records to be decoded when they are asked for;
+     * this is for telling, before any of that, whether a file is slotted
+     * at all.  A page of zeroes passes.
+     *
+     * @throws IOException if data is not such a page
+     */
+    static void checkPageData(byte[] data, TupleDesc td) throws IOException {
+        int pageSize = data.length;
+        int dirSlots = getShort(data, 0);
+        int heapStart = getShort(data, 2);
+        if (heapStart == 0)
+            heapStart = pageSize;
+        if (dirSlots > maxSlots(td) || heapStart < HEADER_SIZE + dirSlots * SLOT_SIZE
+                || heapStart > pageSize)
+            throw new IOException("bad slot directory of " + dirSlots + " entries");
+        for (int i = 0; i < dirSlots; i++) {
+            int off = getShort(data, HEADER_SIZE + i * SLOT_SIZE);
+            int len = getShort(data, HEADER_SIZE + i * SLOT_SIZE + 2);
+            // deletes drop empty entries from the end of the directory
+            if (off == 0 && len == 0 && i < dirSlots - 1)
+                continue;
+            if (off < heapStart || off + len > pageSize)
+                throw new IOException("slot " + i + " points outside the records");
+            int size = 0;
+            for (int j = 0; j < td.numFields() && size <= len; j++) {
+                if (td.getFieldType(j) != Type.STRING_TYPE)
+                    size += td.getFieldType(j).getLen();
+                else if (off + size + 2 > pageSize || getShort(data, off + size) > Type.STRING_LEN)
+                    size = len + 1;
+                else
+                    size += 2 + getShort(data, off + size);
+            }
+            if (size != len)
+                throw new IOException("slot " + i + " holds " + len + " bytes, not a record");
+        }
+    }
+
+    /**
+     * Decode the record of a slot that has not been filled since the page
+     * was read.  It is where the directory says, since compaction first
+     * decodes every record it moves.
+     */
+    @Override
+    Tuple decode(int slot) {
+        try {
+            Tuple t = readRecord(this.data, offsets[slot], lengths[slot]);
+            t.setRecordId(new RecordId(pid, slot));
+            return t;
+        } catch (IOException e) {
+            throw new NoSuchElementException("could not parse record " + slot + ": " + e.getMessage());
+        }
+    }
+
+    @Override
+    HeapPage pageFrom(byte[] data) throws IOException {
+        return new SlottedHeapPage(pid, data);
+    }
+
+    /**
+     * Generates a byte array representing the contents of this page, in
+     * the format read by the constructor.  Records are written where they
+     * lie, so the bytes of records that did not change stay put; records
+     * never decoded are copied from the page's bytes.
+     */
+    @Override
+    public byte[] getPageData() {
+        byte[] data = new byte[pageSize()];
+        putShort(data, 0, dirSlots);
+        putShort(data, 2, heapStart == data.length ? 0 : heapStart);
+        for (int i = 0; i < dirSlots; i++) {
+            if (!isSlotUsed(i))
+                continue;
+            putShort(data, HEADER_SIZE + i * SLOT_SIZE, offsets[i]);
+            putShort(data, HEADER_SIZE + i * SLOT_SIZE + 2, lengths[i]);
+            if (tuples[i] == null && !filled[i])
+                System.arraycopy(this.data, offsets[i], data, offsets[i], lengths[i]);
+            else
+                writeRecord(tuples[i], data, offsets[i], lengths[i]);
+        }
+        return data;
+    }
+
+    /**
+     * Returns the number of bytes free on this page, counting the space
+     * deleted records left behind, which compaction gathers.
+     */
+    @Override
+    public int getFreeSpace() {
+        return pageSize() - HEADER_SIZE - dirSlots * SLOT_SIZE - used;
+    }
+
+    /** @return the number of bytes of the records on this page */
+    public int getUsedSpace() {
+        return used;
+    }
+
+    /**
+     * @return the slot t would be inserted into, reusing an empty entry of
+     *         the slot directory if there is one, or -1 if t does not fit
+     */
+    int slotFor(Tuple t) {
+        int len = recordSize(t);
+        for (int i = 0; i < dirSlots; i++) {
+            if (!isSlotUsed(i))
+                return len <= getFreeSpace() ? i : -1;
+        }
+        if (dirSlots < numSlots && len + SLOT_SIZE <= getFreeSpace())
+            return dirSlots;
+        return -1;
+    }
+
+    /**
+     * Adds the specified tuple to the page, in the slot {@link #slotFor}
+     * chooses.
+     * @throws DbException if the tuple does not fit or tupledesc is mismatch.
+     */
+    @Override
+    public void insertTuple(Tuple t) throws DbException {
+        int slot = slotFor(t);
+        if (slot < 0)
+            throw new DbException("page is full");
+        insertTuple(t, slot);
+    }
+
+    @Override
+    void insertTuple(Tuple t, int slot) throws DbException {
+        if (!this.td.equals(t.getTupleDesc()))
+            throw new DbException("tupledesc is mismatch");
+        if (slot < 0 || slot >= numSlots)
+            throw new DbException("no slot " + slot + " on this page");
+        if (isSlotUsed(slot))
+            throw new DbException("slot " + slot + " is in use");
+        int len = recordSize(t);
+        int newDirSlots = Math.max(dirSlots, slot + 1);
+        if (len + (newDirSlots - dirSlots) * SLOT_SIZE > getFreeSpace())
+            throw new DbException("page is full");
+        if (heapStart - len < HEADER_SIZE + newDirSlots * SLOT_SIZE)
+            compact();
+        heapStart -= len;
+        dirSlots = newDirSlots;
+        offsets[slot] = heapStart;
+        lengths[slot] = len;
+        used += len;
+        super.insertTuple(t, slot);
+    }
+
+    @Override
+    public void deleteTuple(Tuple t) throws DbException {
+        super.deleteTuple(t);
+        int slot = t.getRecordId().getTupleNumber();
+        used -= lengths[slot];
+        if (offsets[slot] == heapStart)
+            heapStart += lengths[slot];
+        offsets[slot] = 0;
+        lengths[slot] = 0;
+        // drop empty entries from the end of the directory
+        while (dirSlots > 0 && !isSlotUsed(dirSlots - 1))
+            dirSlots--;
+        if (used == 0)
+            heapStart = pageSize();
+    }
+
+    /**
+     * Move the records to the end of the page, next to each other, so that
+     * all free space lies between the directory and the records. Records
+     * already packed against the end of the page keep their place.
+     */
+    private void compact() {
+        Integer[] order = new Integer[dirSlots];
+        int n = 0;
+        for (int i = 0; i < dirSlots; i++) {
+            if (isSlotUsed(i)) {
+                tupleAt(i); // its bytes in data are about to be out of place
+                order[n++] = i;
+            }
+        }
+        Arrays.sort(order, 0, n, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                return Integer.compare(offsets[b], offsets[a]);
+            }
+        });
+        int end = pageSize();
+        for (int k = 0; k < n; k++) {
+            end -= lengths[order[k]];
+            offsets[order[k]] = end;
+        }
+        heapStart = end;
+    }
+}
@@ -0,0 +1,141 @@
+package simpledb;
+
+import java.io.*;
+import java.util.NoSuchElementException;
+
+/**
+ * SpillFile is a temporary file of tuples, used by operators that have to
+ * move intermediate results out of memory (partitions of a hash join, runs
+ * of an external sort). Tuples are appended with {@link #add} and read back,
+ * in the order they were written, through {@link #iterator}.
+ * <p>
+ * Tuples are stored in their fixed-length serialized form; RecordIds are
+ * not preserved.
+ */
+public class SpillFile {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final TupleDesc td;
+    private final File file;
+    private DataOutputStream out;
+    private long numTuples;
+
+    /**
+     * Create an empty spill file in the default temporary directory.
+     *
+     * @param td the schema of the tuples stored in this file
+     */
+    public SpillFile(TupleDesc td) throws IOException {
+        this.td = td;
+        this.file = File.createTempFile("spill", ".tmp");
+        this.file.deleteOnExit();
+        this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(this.file), BUFFER_SIZE));
+        this.numTuples = 0;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    /** @return the number of tuples written to this file */
+    public long size() {
+        return numTuples;
+    }
+
+    /**
+     * Append a tuple to this file.
+     * @throws IllegalStateException if the file has already been read from
+     */
+    public void add(Tuple t) throws IOException {
+        if (out == null)
+            throw new IllegalStateException("spill file is closed for writing");
+        for (int i = 0; i < td.numFields(); i++)
+            t.getField(i).serialize(out);
+        numTuples++;
+    }
+
+    /** Flush buffered tuples to disk; no more tuples can be added after this. */
+    public void finish() throws IOException {
+        if (out != null) {
+            out.close();
+            out = null;
+        }
+    }
+
+    /** Delete the file from disk. */
+    public void delete() {
+        try {
+            finish();
+        } catch (IOException e) {
+            // nothing more to lose; the file is going away
+        }
+        file.delete();
+    }
+
+    /**
+     * @return an iterator over the tuples of this file, in the order they
+     *         were added. Finishes the file for writing.
+     */
+    public OpIterator iterator() throws IOException {
+        finish();
+        return new SpillIterator();
+    }
+
+    private class SpillIterator implements OpIterator {
+
+        private static final long serialVersionUID = 1L;
+
+        private DataInputStream in;
+        private long remaining;
+
+        public void open() throws DbException {
+            try {
+                in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE));
+            } catch (FileNotFoundException e) {
+                throw new DbException("spill file " + file + " is gone");
+            }
+            remaining = numTuples;
+        }
+
+        public boolean hasNext() {
+            if (in == null)
+                throw new IllegalStateException("iterator not open");
+            return remaining > 0;
+        }
+
+        public Tuple next() throws DbException, NoSuchElementException {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            Tuple t = new Tuple(td);
+            try {
+                for (int i = 0; i < td.numFields(); i++)
+                    t.setField(i, td.getFieldType(i).parse(in));
+            } catch (java.text.ParseException e) {
+                throw new DbException("corrupt spill file " + file);
+            }
+            remaining--;
+            return t;
+        }
+
+        public void rewind() throws DbException {
+            close();
+            open();
+        }
+
+        public TupleDesc getTupleDesc() {
+            return td;
+        }
+
+        public void close() {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                in = null;
+            }
+        }
+    }
+}
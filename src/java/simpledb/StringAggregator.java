@@ -1,5 +1,7 @@
 package simpledb;
 
+import java.util.*;
+
 /**
  * Knows how to compute some aggregate over a set of StringFields.
  */
@@ -7,6 +9,12 @@ public class StringAggregator implements Aggregator {
 
     private static final long serialVersionUID = 1L;
 
+    private final int gbfield;
+    private final Type gbfieldtype;
+    private final int afield;
+    private final TupleDesc td;
+    private final LinkedHashMap<Field, Integer> counts;
+
     /**
      * Aggregate constructor
      * @param gbfield the 0-based index of the group-by field in the tuple, or NO_GROUPING if there is no grouping
@@ -17,7 +25,21 @@ public class StringAggregator implements Aggregator {
      */
 
     public StringAggregator(int gbfield, Type gbfieldtype, int afield, Op what) {
-        // some code goes here
+        if (what != Op.COUNT)
+            throw new IllegalArgumentException("StringAggregator only supports COUNT");
+        this.gbfield = gbfield;
+        this.gbfieldtype = gbfieldtype;
+        this.afield = afield;
+        if (gbfield == NO_GROUPING)
+            this.td = new TupleDesc(new Type[] { Type.INT_TYPE });
+        else
+            this.td = new TupleDesc(new Type[] { gbfieldtype, Type.INT_TYPE });
+        this.counts = new LinkedHashMap<Field, Integer>();
+    }
+
+    private void count(Field key) {
+        Integer n = this.counts.get(key);
+        this.counts.put(key, n == null ? 1 : n + 1);
     }
 
     /**
@@ -25,7 +47,12 @@ public class StringAggregator implements Aggregator {
      * @param tup the Tuple containing an aggregate field and a group-by field
      */
     public void mergeTupleIntoGroup(Tuple tup) {
-        // some code goes here
+        count(this.gbfield == NO_GROUPING ? null : tup.getField(this.gbfield));
+    }
+
+    public void mergeBatchIntoGroup(TupleBatch batch) {
+        for (int i = 0; i < batch.size(); i++)
+            count(this.gbfield == NO_GROUPING ? null : batch.getField(this.gbfield, i));
     }
 
     /**
@@ -37,8 +64,24 @@ public class StringAggregator implements Aggregator {
      *   aggregate specified in the constructor.
      */
     public OpIterator iterator() {
-        // some code goes here
-        throw new UnsupportedOperationException("please implement me for lab2");
+        ArrayList<Tuple> results = new ArrayList<Tuple>(this.counts.size());
+        // a count of no tuples at all is 0
+        if (this.gbfield == NO_GROUPING && this.counts.isEmpty()) {
+            Tuple t = new Tuple(this.td);
+            t.setField(0, new IntField(0));
+            results.add(t);
+        }
+        for (Map.Entry<Field, Integer> e : this.counts.entrySet()) {
+            Tuple t = new Tuple(this.td);
+            if (this.gbfield == NO_GROUPING) {
+                t.setField(0, new IntField(e.getValue()));
+            } else {
+                t.setField(0, e.getKey());
+                t.setField(1, new IntField(e.getValue()));
+            }
+            results.add(t);
+        }
+        return new TupleIterator(this.td, results);
     }
 
 }
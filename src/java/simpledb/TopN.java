@@ -0,0 +1,150 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * TopN is an operator that implements ORDER BY ... LIMIT n. Instead of
+ * sorting its whole input as {@link OrderBy} does, it keeps only the best n
+ * tuples seen so far in a bounded heap, so it needs O(n) memory and
+ * O(input log n) time. Ties are broken by input order, as in OrderBy.
+ */
+public class TopN extends Operator {
+
+    private static final long serialVersionUID = 1L;
+    private OpIterator child;
+    private TupleDesc td;
+    private int[] orderByFields;
+    private boolean[] ascs;
+    private int limit;
+    private ArrayList<Tuple> topTups = new ArrayList<Tuple>();
+    private Iterator<Tuple> it;
+
+    /** A buffered tuple and its position in the input. */
+    private static class Entry {
+        final Tuple tuple;
+        final long seq;
+
+        Entry(Tuple tuple, long seq) {
+            this.tuple = tuple;
+            this.seq = seq;
+        }
+    }
+
+    /**
+     * Creates a new TopN node over the tuples from the iterator.
+     *
+     * @param orderbyFields
+     *            the fields to which the sort is applied, most significant
+     *            first.
+     * @param asc
+     *            for each field, true if its sort order is ascending.
+     * @param limit
+     *            the number of tuples to return.
+     * @param child
+     *            the tuples to sort.
+     */
+    public TopN(int[] orderbyFields, boolean[] asc, int limit, OpIterator child) {
+        if (orderbyFields.length == 0 || orderbyFields.length != asc.length)
+            throw new IllegalArgumentException("need one sort order per ORDER BY field");
+        if (limit < 0)
+            throw new IllegalArgumentException("limit must not be negative");
+        this.child = child;
+        this.td = child.getTupleDesc();
+        this.orderByFields = orderbyFields.clone();
+        this.ascs = asc.clone();
+        this.limit = limit;
+    }
+
+    public TopN(int orderbyField, boolean asc, int limit, OpIterator child) {
+        this(new int[] { orderbyField }, new boolean[] { asc }, limit, child);
+    }
+
+    public int getOrderByField() {
+        return this.orderByFields[0];
+    }
+
+    /** @return the fields sorted on, most significant first */
+    public int[] getOrderByFields() {
+        return this.orderByFields.clone();
+    }
+
+    public int getLimit() {
+        return this.limit;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        child.open();
+        topTups.clear();
+        if (limit > 0) {
+            final TupleComparator cmp = new TupleComparator(orderByFields, ascs);
+            Comparator<Entry> order = new Comparator<Entry>() {
+                public int compare(Entry a, Entry b) {
+                    int c = cmp.compare(a.tuple, b.tuple);
+                    return c != 0 ? c : Long.compare(a.seq, b.seq);
+                }
+            };
+            // the head of the heap is the worst of the tuples kept so far;
+            // it grows with the input, so a large limit costs nothing up front
+            PriorityQueue<Entry> heap = new PriorityQueue<Entry>(Math.min(limit, 1024),
+                    Collections.reverseOrder(order));
+            long seq = 0;
+            while (child.hasNext()) {
+                Entry e = new Entry(child.next(), seq++);
+                if (heap.size() < limit) {
+                    heap.add(e);
+                } else if (order.compare(e, heap.peek()) < 0) {
+                    heap.poll();
+                    heap.add(e);
+                }
+            }
+            ArrayList<Entry> sorted = new ArrayList<Entry>(heap);
+            Collections.sort(sorted, order);
+            for (Entry e : sorted)
+                topTups.add(e.tuple);
+        }
+        it = topTups.iterator();
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        it = null;
+        topTups.clear();
+        child.close();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        it = topTups.iterator();
+    }
+
+    /**
+     * Operator.fetchNext implementation. Returns the first limit tuples of
+     * the child operator in order
+     *
+     * @return The next tuple in the ordering, or null if there are no more
+     *         tuples
+     */
+    protected Tuple fetchNext() throws NoSuchElementException,
+            TransactionAbortedException, DbException {
+        if (it != null && it.hasNext()) {
+            return it.next();
+        } else
+            return null;
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[] { this.child };
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        this.child = children[0];
+    }
+
+}
@@ -17,6 +17,17 @@ public class TransactionId implements Serializable {
         myid = counter.getAndIncrement();
     }
 
+    /**
+     * Recreate the id of a transaction found in the log during recovery.
+     * New transactions are numbered after it.
+     */
+    TransactionId(long id) {
+        myid = id;
+        long next;
+        while ((next = counter.get()) <= id && !counter.compareAndSet(next, id + 1))
+            ;
+    }
+
     public long getId() {
         return myid;
     }
@@ -1,5 +1,7 @@
 package simpledb;
 
+import java.io.IOException;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -9,6 +11,9 @@ import java.util.Iterator;
  * Tuple maintains information about the contents of a tuple. Tuples have a
  * specified schema specified by a TupleDesc object and contain Field objects
  * with the data for each field.
+ * <p>
+ * A tuple read from a page may instead keep the page's bytes and decode each
+ * field from them the first time it is asked for; see HeapPage.
  */
 public class Tuple implements Serializable {
 
@@ -18,6 +23,15 @@ public class Tuple implements Serializable {
     private RecordId recordId;
     private ArrayList<Field> fields;
 
+    // the bytes of a tuple read from a page, decoded one field at a time
+    // until the tuple is changed, when they are all copied into fields.
+    // Readers may share a page's tuples, so fields is published once,
+    // complete, before materialized is set
+    private transient final byte[] data;
+    private transient final int offset;
+    private transient final Field[] decoded;
+    private transient volatile boolean materialized;
+
     /**
      * Create a new tuple with the specified schema (type).
      *
@@ -28,6 +42,47 @@ public class Tuple implements Serializable {
     public Tuple(TupleDesc td) {
         this.tupleDesc = td;
         this.fields = new ArrayList<>(td.getSize());
+        this.data = null;
+        this.offset = 0;
+        this.decoded = null;
+    }
+
+    /**
+     * Create a tuple whose fields are stored in data, one after another
+     * from offset, in the format Field.serialize writes.  Fields are
+     * decoded as they are asked for; data must not change while the tuple
+     * is in use.
+     */
+    Tuple(TupleDesc td, byte[] data, int offset) {
+        this.tupleDesc = td;
+        this.fields = null;
+        this.data = data;
+        this.offset = offset;
+        this.decoded = new Field[td.numFields()];
+    }
+
+    /**
+     * Decode every field, so that the tuple no longer needs its bytes.
+     * Threads reading the same tuple may race to do this; the first to
+     * finish publishes its list and the others drop theirs.
+     */
+    private void materialize() {
+        if (this.data == null || this.materialized)
+            return;
+        ArrayList<Field> all = new ArrayList<Field>(this.decoded.length);
+        for (int j = 0; j < this.decoded.length; j++)
+            all.add(getField(j));
+        synchronized (this) {
+            if (!this.materialized) {
+                this.fields = all;
+                this.materialized = true;
+            }
+        }
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        materialize();
+        out.defaultWriteObject();
     }
 
     /**
@@ -64,6 +119,7 @@ public class Tuple implements Serializable {
      *            new value for the field.
      */
     public void setField(int i, Field f) {
+        materialize();
         this.fields.add(i, f);
     }
 
@@ -74,6 +130,17 @@ public class Tuple implements Serializable {
      *            field index to return. Must be a valid index.
      */
     public Field getField(int i) {
+        if (this.data != null && !this.materialized) {
+            Field f = this.decoded[i];
+            if (f == null) {
+                int off = this.offset;
+                for (int j = 0; j < i; j++)
+                    off += this.tupleDesc.getFieldType(j).getLen();
+                f = this.tupleDesc.getFieldType(i).parse(this.data, off);
+                this.decoded[i] = f;
+            }
+            return f;
+        }
         return this.fields.get(i);
     }
 
@@ -86,6 +153,7 @@ public class Tuple implements Serializable {
      * where \t is any whitespace (except a newline)
      */
     public String toString() {
+        materialize();
         StringBuffer buffer = new StringBuffer();
         for (Field f : this.fields) {
             buffer.append(f.toString());
@@ -100,6 +168,7 @@ public class Tuple implements Serializable {
      * */
     public Iterator<Field> fields()
     {
+        materialize();
         return this.fields.iterator();
     }
 
@@ -108,6 +177,7 @@ public class Tuple implements Serializable {
      * */
     public void resetTupleDesc(TupleDesc td)
     {
+        materialize();
         this.tupleDesc = td;
     }
 }
@@ -0,0 +1,241 @@
+package simpledb;
+
+import java.io.Serializable;
+
+/**
+ * TupleBatch holds a batch of tuples column by column. INT_TYPE columns are
+ * stored as int arrays and STRING_TYPE columns as String arrays, so batch
+ * operators can loop over a column without going through Tuple and Field
+ * objects.
+ * <p>
+ * A batch returned by {@link BatchOpIterator#nextBatch} belongs to the
+ * caller: operators never reuse or modify a batch after handing it out.
+ */
+public class TupleBatch implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Default number of rows in a batch. */
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    private final TupleDesc td;
+    private final int capacity;
+    private final int[][] intColumns;
+    private final String[][] stringColumns;
+    private final RecordId[] recordIds;
+    private int size;
+
+    /**
+     * Create an empty batch.
+     *
+     * @param td the schema of the rows in this batch
+     * @param capacity the maximum number of rows in this batch
+     */
+    public TupleBatch(TupleDesc td, int capacity) {
+        this.td = td;
+        this.capacity = capacity;
+        this.intColumns = new int[td.numFields()][];
+        this.stringColumns = new String[td.numFields()][];
+        for (int i = 0; i < td.numFields(); i++) {
+            if (td.getFieldType(i) == Type.INT_TYPE)
+                this.intColumns[i] = new int[capacity];
+            else
+                this.stringColumns[i] = new String[capacity];
+        }
+        this.recordIds = new RecordId[capacity];
+        this.size = 0;
+    }
+
+    public TupleBatch(TupleDesc td) {
+        this(td, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Create a batch that shares the given columns of another batch, for
+     * projections that only rearrange columns.  The new batch takes the
+     * source over: changing it, as retain does, changes the source's
+     * arrays, so the source must not be used afterwards.  A column of
+     * source may be shared more than once.
+     *
+     * @param td the schema of the new batch
+     * @param source the batch whose columns are shared
+     * @param fields for each column of the new batch, the column of source
+     *            it refers to
+     */
+    public TupleBatch(TupleDesc td, TupleBatch source, int[] fields) {
+        this.td = td;
+        this.capacity = source.capacity;
+        this.intColumns = new int[fields.length][];
+        this.stringColumns = new String[fields.length][];
+        for (int i = 0; i < fields.length; i++) {
+            this.intColumns[i] = source.intColumns[fields[i]];
+            this.stringColumns[i] = source.stringColumns[fields[i]];
+        }
+        this.recordIds = source.recordIds;
+        this.size = source.size;
+    }
+
+    /** @return the schema of the rows in this batch */
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    /** @return the number of rows in this batch */
+    public int size() {
+        return size;
+    }
+
+    /** @return the maximum number of rows in this batch */
+    public int capacity() {
+        return capacity;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public boolean isFull() {
+        return size == capacity;
+    }
+
+    /**
+     * @return the values of INT_TYPE column i; only the first size() entries
+     *         are meaningful
+     */
+    public int[] intColumn(int i) {
+        return intColumns[i];
+    }
+
+    /**
+     * @return the values of STRING_TYPE column i; only the first size()
+     *         entries are meaningful
+     */
+    public String[] stringColumn(int i) {
+        return stringColumns[i];
+    }
+
+    public int getInt(int col, int row) {
+        return intColumns[col][row];
+    }
+
+    public String getString(int col, int row) {
+        return stringColumns[col][row];
+    }
+
+    /** @return the value at (col, row) as a Field */
+    public Field getField(int col, int row) {
+        if (intColumns[col] != null)
+            return new IntField(intColumns[col][row]);
+        return new StringField(stringColumns[col][row], Type.STRING_LEN);
+    }
+
+    public RecordId getRecordId(int row) {
+        return recordIds[row];
+    }
+
+    /** @return row of this batch as a Tuple */
+    public Tuple getTuple(int row) {
+        Tuple t = new Tuple(td);
+        t.setRecordId(recordIds[row]);
+        for (int i = 0; i < td.numFields(); i++)
+            t.setField(i, getField(i, row));
+        return t;
+    }
+
+    /**
+     * Append a tuple to this batch.
+     * @throws IllegalStateException if the batch is full
+     */
+    public void add(Tuple t) {
+        if (isFull())
+            throw new IllegalStateException("batch is full");
+        for (int i = 0; i < td.numFields(); i++) {
+            Field f = t.getField(i);
+            if (intColumns[i] != null)
+                intColumns[i][size] = ((IntField) f).getValue();
+            else
+                stringColumns[i][size] = ((StringField) f).getValue();
+        }
+        recordIds[size] = t.getRecordId();
+        size++;
+    }
+
+    /**
+     * Append a row of another batch with the same schema to this batch.
+     * @throws IllegalStateException if the batch is full
+     */
+    public void add(TupleBatch other, int row) {
+        if (isFull())
+            throw new IllegalStateException("batch is full");
+        for (int i = 0; i < intColumns.length; i++) {
+            if (intColumns[i] != null)
+                intColumns[i][size] = other.intColumns[i][row];
+            else
+                stringColumns[i][size] = other.stringColumns[i][row];
+        }
+        recordIds[size] = other.recordIds[row];
+        size++;
+    }
+
+    /**
+     * Append the concatenation of a tuple and a row of another batch, as a
+     * join does.
+     * @throws IllegalStateException if the batch is full
+     */
+    public void addJoined(Tuple left, TupleBatch right, int row) {
+        if (isFull())
+            throw new IllegalStateException("batch is full");
+        int n = left.getTupleDesc().numFields();
+        for (int i = 0; i < n; i++) {
+            Field f = left.getField(i);
+            if (intColumns[i] != null)
+                intColumns[i][size] = ((IntField) f).getValue();
+            else
+                stringColumns[i][size] = ((StringField) f).getValue();
+        }
+        for (int i = n; i < intColumns.length; i++) {
+            if (intColumns[i] != null)
+                intColumns[i][size] = right.intColumns[i - n][row];
+            else
+                stringColumns[i][size] = right.stringColumns[i - n][row];
+        }
+        size++;
+    }
+
+    /**
+     * Keep only the rows listed in sel, in order, moving them to the front
+     * of the batch.
+     *
+     * @param sel indexes of the rows to keep, in increasing order
+     * @param n the number of entries of sel to use
+     */
+    public void retain(int[] sel, int n) {
+        for (int i = 0; i < intColumns.length; i++) {
+            if (sharesEarlierColumn(i))
+                continue; // already compacted
+            if (intColumns[i] != null) {
+                int[] col = intColumns[i];
+                for (int j = 0; j < n; j++)
+                    col[j] = col[sel[j]];
+            } else {
+                String[] col = stringColumns[i];
+                for (int j = 0; j < n; j++)
+                    col[j] = col[sel[j]];
+            }
+        }
+        for (int j = 0; j < n; j++)
+            recordIds[j] = recordIds[sel[j]];
+        size = n;
+    }
+
+    /** @return whether column i is the same array as an earlier column,
+        as in a view that shares a column of its source twice */
+    private boolean sharesEarlierColumn(int i) {
+        for (int k = 0; k < i; k++) {
+            if (intColumns[i] != null ? intColumns[k] == intColumns[i]
+                                      : stringColumns[k] == stringColumns[i])
+                return true;
+        }
+        return false;
+    }
+}
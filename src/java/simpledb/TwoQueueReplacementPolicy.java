@@ -0,0 +1,162 @@
+package simpledb;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 2Q replacement (Johnson and Shasha, the "full" version). Newly read pages
+ * enter a FIFO queue, A1in. Pages evicted from A1in are remembered (by id
+ * only) in a ghost queue, A1out; if such a page is read again it is
+ * admitted straight into Am, an LRU queue of pages that have proven to be
+ * hot. Hits on A1in pages do not promote them, so a burst of references
+ * from one scan does not make a page look hot.
+ * <p>
+ * Victims are taken from A1in while it holds more than its share of the
+ * pool, and from Am otherwise; a large scan therefore only ever recycles
+ * the A1in portion of the pool.
+ */
+public class TwoQueueReplacementPolicy extends AbstractReplacementPolicy {
+
+    /** Default fraction of the pool reserved for A1in. */
+    public static final double DEFAULT_KIN = 0.25;
+    /** Default size of A1out, as a fraction of the pool. */
+    public static final double DEFAULT_KOUT = 0.5;
+
+    private final int kin;
+    private final int kout;
+    private final ConcurrentHashMap<PageId, Entry> resident;
+    private final LinkedHashSet<PageId> a1out;
+    // A1in in order of admission and Am in order of last access, both
+    // keyed by the time on the policy's clock, which no two entries share
+    private final ConcurrentSkipListMap<Long, PageId> a1in = new ConcurrentSkipListMap<Long, PageId>();
+    private final ConcurrentSkipListMap<Long, PageId> am = new ConcurrentSkipListMap<Long, PageId>();
+    private final AtomicInteger a1inSize = new AtomicInteger(0);
+
+    private static class Entry {
+        final boolean hot;
+        // the entry's key in its queue, or -1 once the page is removed
+        long time;
+
+        Entry(boolean hot, long now) {
+            this.hot = hot;
+            this.time = now;
+        }
+    }
+
+    /**
+     * Creates a 2Q policy for a pool of the given size.
+     *
+     * @param numPages the capacity of the buffer pool
+     * @param kin the fraction of the pool A1in may use before it is
+     *            preferred for eviction
+     * @param kout the number of ghost entries kept in A1out, as a fraction
+     *            of the pool
+     */
+    public TwoQueueReplacementPolicy(int numPages, double kin, double kout) {
+        this.kin = Math.max(1, (int) (numPages * kin));
+        this.kout = Math.max(1, (int) (numPages * kout));
+        this.resident = new ConcurrentHashMap<PageId, Entry>(numPages);
+        this.a1out = new LinkedHashSet<PageId>();
+    }
+
+    public TwoQueueReplacementPolicy(int numPages) {
+        this(numPages, DEFAULT_KIN, DEFAULT_KOUT);
+    }
+
+    protected void onHit(PageId pid, long now) {
+        Entry e = resident.get(pid);
+        if (e == null || !e.hot)
+            return;
+        synchronized (e) {
+            if (e.time < 0)
+                return;
+            am.remove(e.time);
+            e.time = now;
+            am.put(now, pid);
+        }
+    }
+
+    protected void onAdmit(PageId pid, long now) {
+        boolean hot;
+        synchronized (a1out) {
+            hot = a1out.remove(pid);
+        }
+        Entry e = new Entry(hot, now);
+        synchronized (e) {
+            if (hot) {
+                am.put(now, pid);
+            } else {
+                a1in.put(now, pid);
+                a1inSize.incrementAndGet();
+            }
+        }
+        Entry old = resident.put(pid, e);
+        if (old != null)
+            unlink(old);
+    }
+
+    /** Take a removed page's entry out of its queue. */
+    private void unlink(Entry e) {
+        synchronized (e) {
+            if (e.time < 0)
+                return;
+            if (e.hot) {
+                am.remove(e.time);
+            } else {
+                a1in.remove(e.time);
+                a1inSize.decrementAndGet();
+            }
+            e.time = -1;
+        }
+    }
+
+    protected void onRemove(PageId pid) {
+        Entry e = resident.remove(pid);
+        if (e == null)
+            return;
+        unlink(e);
+        if (e.hot)
+            return;
+        synchronized (a1out) {
+            a1out.add(pid);
+            if (a1out.size() > kout) {
+                Iterator<PageId> it = a1out.iterator();
+                it.next();
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * @return A1in then Am while A1in holds more than its share, Am then
+     *         A1in otherwise, walked lazily; a page referenced during the
+     *         walk may be offered late or not at all
+     */
+    public Iterator<PageId> evictionOrder() {
+        final boolean fifoFirst = a1inSize.get() > kin;
+        return new Iterator<PageId>() {
+            private Iterator<PageId> current = (fifoFirst ? a1in : am).values().iterator();
+            private boolean second = false;
+
+            public boolean hasNext() {
+                if (!current.hasNext() && !second) {
+                    current = (fifoFirst ? am : a1in).values().iterator();
+                    second = true;
+                }
+                return current.hasNext();
+            }
+
+            public PageId next() {
+                if (!hasNext())
+                    throw new NoSuchElementException();
+                return current.next();
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+}
@@ -0,0 +1,232 @@
+package simpledb;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * VersionStore keeps what snapshot reads need to rebuild the committed
+ * state of a page as of the moment a read-only transaction started, so that
+ * such transactions read without locks and never wait for writers.
+ * <p>
+ * Every change a writer logs is kept here as an XOR mask of the bits it
+ * flipped, per page, until the writer finishes. At commit, the writer gets
+ * the next commit sequence number (CSN), and if snapshots are running its
+ * masks move onto the version chains of their pages, newest first. A
+ * snapshot remembers the last CSN when it began. The version of a page it
+ * reads is the page's last logged image with the masks of running writers
+ * flipped back, and then those of the chain newer than the snapshot.
+ * Masks of different writers touch different bits of a page, as they do
+ * for undo (see {@link PageDelta#undo}), so they can be flipped back in any
+ * order.
+ * <p>
+ * Versions older than the oldest running snapshot are dropped as snapshots
+ * end, and none are kept while no snapshot is running. All state is guarded
+ * by the VersionStore's monitor.
+ *
+ * @see BufferPool#beginSnapshot
+ */
+public class VersionStore {
+
+    /** A committed change to a page: the bits it flipped, and when. */
+    private static class Version {
+        final long csn;
+        final byte[] mask;
+
+        Version(long csn, byte[] mask) {
+            this.csn = csn;
+            this.mask = mask;
+        }
+    }
+
+    private long lastCsn = 0;
+    // for each page, the changes running writers have logged to it
+    private final HashMap<PageId, HashMap<TransactionId, byte[]>> pending =
+            new HashMap<PageId, HashMap<TransactionId, byte[]>>();
+    // for each running writer, the pages it has changed
+    private final HashMap<TransactionId, HashSet<PageId>> pagesOf =
+            new HashMap<TransactionId, HashSet<PageId>>();
+    // for each page, the changes committed while snapshots ran, newest first
+    private final HashMap<PageId, ArrayDeque<Version>> chains =
+            new HashMap<PageId, ArrayDeque<Version>>();
+    // for each read-only transaction, the last CSN when it began; read
+    // without the monitor on every page access
+    private final ConcurrentHashMap<TransactionId, Long> snapshots =
+            new ConcurrentHashMap<TransactionId, Long>();
+    private long versionsKept = 0;
+    private long pagesRebuilt = 0;
+
+    /** @return the number of committed page changes kept for snapshots */
+    public synchronized long getVersionsKept() {
+        return versionsKept;
+    }
+
+    /** @return the number of page versions built for snapshot reads */
+    public synchronized long getPagesRebuilt() {
+        return pagesRebuilt;
+    }
+
+    /** @return the number of snapshots running */
+    public int getSnapshotCount() {
+        return snapshots.size();
+    }
+
+    /** Start a snapshot for tid, which sees every commit made so far. */
+    public synchronized void beginSnapshot(TransactionId tid) {
+        snapshots.put(tid, lastCsn);
+    }
+
+    /** @return whether tid is a running read-only transaction */
+    public boolean isSnapshot(TransactionId tid) {
+        return tid != null && snapshots.containsKey(tid);
+    }
+
+    /**
+     * End tid's snapshot and drop the versions no running snapshot needs.
+     *
+     * @return false if tid has no snapshot
+     */
+    public synchronized boolean endSnapshot(TransactionId tid) {
+        if (tid == null || snapshots.remove(tid) == null)
+            return false;
+        if (snapshots.isEmpty()) {
+            chains.clear();
+            versionsKept = 0;
+            return true;
+        }
+        long oldest = Collections.min(snapshots.values());
+        Iterator<ArrayDeque<Version>> it = chains.values().iterator();
+        while (it.hasNext()) {
+            ArrayDeque<Version> chain = it.next();
+            while (!chain.isEmpty() && chain.peekLast().csn <= oldest) {
+                chain.removeLast();
+                versionsKept--;
+            }
+            if (chain.isEmpty())
+                it.remove();
+        }
+        return true;
+    }
+
+    /**
+     * Note a change tid has logged to a page. Call with the page latch
+     * held, so that the change and the page image agree.
+     *
+     * @param before the page image before the change
+     * @param after the page image after the change
+     */
+    public synchronized void logged(TransactionId tid, PageId pid, byte[] before, byte[] after) {
+        if (tid == null || before.length != after.length)
+            return;
+        HashMap<TransactionId, byte[]> writers = pending.get(pid);
+        byte[] mask = writers == null ? null : writers.get(tid);
+        boolean changed = false;
+        for (int i = 0; i < after.length; i++) {
+            int flip = before[i] ^ after[i];
+            if (flip == 0)
+                continue;
+            if (mask == null)
+                mask = new byte[after.length];
+            mask[i] ^= flip;
+            changed = true;
+        }
+        if (!changed)
+            return;
+        if (writers == null) {
+            writers = new HashMap<TransactionId, byte[]>();
+            pending.put(pid, writers);
+        }
+        writers.put(tid, mask);
+        HashSet<PageId> mine = pagesOf.get(tid);
+        if (mine == null) {
+            mine = new HashSet<PageId>();
+            pagesOf.put(tid, mine);
+        }
+        mine.add(pid);
+    }
+
+    /**
+     * Note that tid's changes to a page were rolled back. Call with the page
+     * latch held, once the restored image is the page's logged image.
+     */
+    public synchronized void rolledBack(TransactionId tid, PageId pid) {
+        HashMap<TransactionId, byte[]> writers = pending.get(pid);
+        if (writers == null || writers.remove(tid) == null)
+            return;
+        if (writers.isEmpty())
+            pending.remove(pid);
+        HashSet<PageId> mine = pagesOf.get(tid);
+        if (mine != null)
+            mine.remove(pid);
+    }
+
+    /** Make tid's changes visible to the snapshots that begin from now on. */
+    public synchronized void committed(TransactionId tid) {
+        HashSet<PageId> mine = pagesOf.remove(tid);
+        if (mine == null)
+            return;
+        long csn = ++lastCsn;
+        for (PageId pid : mine) {
+            HashMap<TransactionId, byte[]> writers = pending.get(pid);
+            byte[] mask = writers.remove(tid);
+            if (writers.isEmpty())
+                pending.remove(pid);
+            if (snapshots.isEmpty())
+                continue;
+            ArrayDeque<Version> chain = chains.get(pid);
+            if (chain == null) {
+                chain = new ArrayDeque<Version>();
+                chains.put(pid, chain);
+            }
+            chain.addFirst(new Version(csn, mask));
+            versionsKept++;
+        }
+    }
+
+    /** Forget the changes of an aborted transaction. */
+    public synchronized void aborted(TransactionId tid) {
+        HashSet<PageId> mine = pagesOf.remove(tid);
+        if (mine == null)
+            return;
+        for (PageId pid : mine) {
+            HashMap<TransactionId, byte[]> writers = pending.get(pid);
+            writers.remove(tid);
+            if (writers.isEmpty())
+                pending.remove(pid);
+        }
+    }
+
+    /**
+     * Turn the logged image of a page into the version tid's snapshot sees,
+     * in place. Call with the page latch held.
+     *
+     * @param data the page's last logged image, as getBeforeImage returns it
+     * @return data
+     */
+    public synchronized byte[] rebuild(TransactionId tid, PageId pid, byte[] data) {
+        Long snapshot = snapshots.get(tid);
+        if (snapshot == null)
+            throw new IllegalArgumentException("transaction " + tid.getId() + " has no snapshot");
+        HashMap<TransactionId, byte[]> writers = pending.get(pid);
+        if (writers != null) {
+            for (byte[] mask : writers.values())
+                flip(data, mask);
+        }
+        ArrayDeque<Version> chain = chains.get(pid);
+        if (chain != null) {
+            for (Version v : chain) {
+                if (v.csn <= snapshot)
+                    break;
+                flip(data, v.mask);
+            }
+        }
+        pagesRebuilt++;
+        return data;
+    }
+
+    private static void flip(byte[] data, byte[] mask) {
+        if (mask.length != data.length)
+            return; // the page was logged at another page size
+        for (int i = 0; i < data.length; i++)
+            data[i] ^= mask[i];
+    }
+}
@@ -0,0 +1,314 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * ZoneMap records, for each page of a HeapFile, the smallest and largest
+ * value of each INT column on the page, so that a scan with a predicate on
+ * such a column can skip the pages on which no tuple can satisfy it
+ * ({@link #mayMatch}).  On tables whose rows arrive roughly in the order of
+ * a column, such as the time of an event, the pages a range or equality
+ * predicate on that column needs are few and adjacent.
+ * <p>
+ * A page's entry covers every value the page has held since the map last
+ * saw it whole: inserts widen it, and deletes leave it as it is, so that it
+ * also covers the older versions of the page that snapshots and rollbacks
+ * may bring back.  A page the map has not seen has no entry, and is never
+ * skipped; it learns the page when the file first reads it.
+ * <p>
+ * The map is saved to a side file next to the heap file (the heap file's
+ * name with ".zm" appended), one record per page.  Since skipping depends
+ * on the entries covering the pages on disk, a page's record is written
+ * before the page whenever its entry has changed, and the map is trusted on
+ * loading only if it was saved after the last write of the heap file it
+ * knows of, or if it was still being kept up to date when the database
+ * stopped.  BufferPool saves it from flushAllPages and checkpoints.
+ *
+ * @see HeapFile#iterator(TransactionId, List)
+ */
+public class ZoneMap {
+
+    private static final int MAGIC = 0x5a4d5031; // "ZMP1"
+
+    /** Bytes of the side file header: magic, columns, clean flag, and
+        the heap file's length and modification time when saved. */
+    private static final int HEADER_SIZE = 4 + 4 + 4 + 8 + 8;
+
+    private final File file;
+    private final File dataFile;
+    private final int[] slotOf;  // the entry slot of each field, or -1
+    private final int width;     // INT columns, so slots per page
+    private final int recordSize;
+    private int[] mins;
+    private int[] maxs;
+    private final BitSet known = new BitSet();
+    private final BitSet dirty = new BitSet();  // changed since written
+    private int pages;           // pages with room in mins and maxs
+    private boolean clean;       // whether the side file says it is clean
+
+    /**
+     * Open the map saved in the given side file for the given heap file,
+     * or an empty map if there is none or it cannot be trusted.
+     */
+    public ZoneMap(File file, File dataFile, TupleDesc td) {
+        this.file = file;
+        this.dataFile = dataFile;
+        this.slotOf = new int[td.numFields()];
+        int n = 0;
+        for (int i = 0; i < td.numFields(); i++)
+            this.slotOf[i] = td.getFieldType(i) == Type.INT_TYPE ? n++ : -1;
+        this.width = n;
+        this.recordSize = 4 + 8 * n;
+        this.mins = new int[16 * n];
+        this.maxs = new int[16 * n];
+        this.pages = 16;
+        if (this.width == 0)
+            return;
+        try {
+            load();
+        } catch (IOException e) {
+            // start again from what pages show, and drop the stale file
+            this.known.clear();
+            this.file.delete();
+        }
+    }
+
+    /** @return the side file the map is saved in */
+    public File getFile() {
+        return file;
+    }
+
+    private void load() throws IOException {
+        if (!file.exists())
+            return;
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(file)));
+        try {
+            if (in.readInt() != MAGIC)
+                throw new IOException("not a zone map: " + file);
+            if (in.readInt() != width)
+                throw new IOException("zone map was saved for another schema: " + file);
+            boolean wasClean = in.readInt() != 0;
+            long length = in.readLong();
+            long modified = in.readLong();
+            // a clean map knows of every write of the heap file; anything
+            // since was done behind its back
+            if (wasClean && (length != dataFile.length() || modified != dataFile.lastModified()))
+                throw new IOException("heap file changed since the zone map was saved: " + file);
+            int n = (int) ((file.length() - HEADER_SIZE) / recordSize);
+            grow(n);
+            for (int p = 0; p < n; p++) {
+                boolean has = in.readInt() != 0;
+                for (int j = 0; j < width; j++) {
+                    mins[p * width + j] = in.readInt();
+                    maxs[p * width + j] = in.readInt();
+                }
+                if (has)
+                    known.set(p);
+            }
+            this.clean = wasClean;
+        } finally {
+            in.close();
+        }
+    }
+
+    private void grow(int n) {
+        if (n <= pages)
+            return;
+        pages = Math.max(n, pages * 2);
+        mins = Arrays.copyOf(mins, pages * width);
+        maxs = Arrays.copyOf(maxs, pages * width);
+    }
+
+    /** Give a page the entry of a page with no tuples. */
+    private void empty(int pageNo) {
+        grow(pageNo + 1);
+        Arrays.fill(mins, pageNo * width, (pageNo + 1) * width, Integer.MAX_VALUE);
+        Arrays.fill(maxs, pageNo * width, (pageNo + 1) * width, Integer.MIN_VALUE);
+        known.set(pageNo);
+        dirty.set(pageNo);
+    }
+
+    /** Widen a page's entry to cover a tuple, if the page has an entry. */
+    private void widen(int pageNo, Tuple t) {
+        for (int i = 0; i < slotOf.length; i++) {
+            if (slotOf[i] < 0)
+                continue;
+            int v = ((IntField) t.getField(i)).getValue();
+            int k = pageNo * width + slotOf[i];
+            if (v < mins[k]) {
+                mins[k] = v;
+                dirty.set(pageNo);
+            }
+            if (v > maxs[k]) {
+                maxs[k] = v;
+                dirty.set(pageNo);
+            }
+        }
+    }
+
+    /**
+     * Note a tuple being inserted into a page.  Call before the tuple is
+     * on the page, so that no scan skips the page while it is there.
+     */
+    public synchronized void add(int pageNo, Tuple t) {
+        if (width == 0 || !known.get(pageNo))
+            return; // unseen pages are never skipped; the map learns them whole
+        widen(pageNo, t);
+    }
+
+    /** Widen a page's entry to cover the tuples on the page, as the file
+        reads or writes it. */
+    public synchronized void learn(HeapPage page) {
+        if (width == 0)
+            return;
+        int pageNo = page.getId().getPageNumber();
+        if (!known.get(pageNo))
+            empty(pageNo);
+        Iterator<Tuple> it = page.iterator();
+        while (it.hasNext())
+            widen(pageNo, it.next());
+    }
+
+    /**
+     * Learn a page the file has read from disk, if the map has no entry
+     * for it.  An entry covers the page on disk already, so a page that
+     * has one is not decoded.
+     */
+    public synchronized void learnRead(HeapPage page) {
+        if (width == 0 || known.get(page.getId().getPageNumber()))
+            return;
+        learn(page);
+    }
+
+    /**
+     * Write the entry of a page about to be written to the heap file, if
+     * it changed, so that the side file covers the page on disk.
+     */
+    public synchronized void beforeWrite(HeapPage page) throws IOException {
+        if (width == 0)
+            return;
+        learn(page);
+        int pageNo = page.getId().getPageNumber();
+        if (!clean && !dirty.get(pageNo))
+            return;
+        RandomAccessFile raf = open();
+        try {
+            writeRecord(raf, pageNo);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /** Note that the heap file is about to grow by empty pages. */
+    public synchronized void beforeAppend() throws IOException {
+        if (width == 0 || !clean)
+            return;
+        open().close();
+    }
+
+    /**
+     * Open the side file to write it, creating it if needed and marking
+     * it as being kept up to date rather than clean.
+     */
+    private RandomAccessFile open() throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        if (clean || raf.length() < HEADER_SIZE) {
+            raf.seek(0);
+            raf.writeInt(MAGIC);
+            raf.writeInt(width);
+            raf.writeInt(0);
+            raf.writeLong(0);
+            raf.writeLong(0);
+            clean = false;
+        }
+        return raf;
+    }
+
+    private void writeRecord(RandomAccessFile raf, int pageNo) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(recordSize);
+        DataOutputStream out = new DataOutputStream(baos);
+        out.writeInt(known.get(pageNo) ? 1 : 0);
+        for (int j = 0; j < width; j++) {
+            out.writeInt(pageNo < pages ? mins[pageNo * width + j] : 0);
+            out.writeInt(pageNo < pages ? maxs[pageNo * width + j] : 0);
+        }
+        raf.seek(HEADER_SIZE + (long) pageNo * recordSize);
+        raf.write(baos.toByteArray());
+        dirty.clear(pageNo);
+    }
+
+    /**
+     * Write the entries that changed since they were last written, and mark
+     * the side file clean as of the heap file's current state.
+     */
+    public synchronized void save() throws IOException {
+        if (width == 0 || (clean && dirty.isEmpty()))
+            return;
+        RandomAccessFile raf = open();
+        try {
+            for (int p = dirty.nextSetBit(0); p >= 0; p = dirty.nextSetBit(p + 1))
+                writeRecord(raf, p);
+            raf.seek(8);
+            raf.writeInt(1);
+            raf.writeLong(dataFile.length());
+            raf.writeLong(dataFile.lastModified());
+        } finally {
+            raf.close();
+        }
+        clean = true;
+    }
+
+    /**
+     * @return the smallest value the given INT field may have on a page,
+     *         or null if the map has no entry for the page
+     */
+    public synchronized Integer getMin(int pageNo, int field) {
+        if (slotOf[field] < 0 || !known.get(pageNo))
+            return null;
+        return mins[pageNo * width + slotOf[field]];
+    }
+
+    /**
+     * @return the largest value the given INT field may have on a page,
+     *         or null if the map has no entry for the page
+     */
+    public synchronized Integer getMax(int pageNo, int field) {
+        if (slotOf[field] < 0 || !known.get(pageNo))
+            return null;
+        return maxs[pageNo * width + slotOf[field]];
+    }
+
+    /**
+     * @return false if no tuple on the page can satisfy p, as it is on
+     *         disk or in the buffer pool; true if one may
+     */
+    public synchronized boolean mayMatch(int pageNo, Predicate p) {
+        int field = p.getField();
+        if (field < 0 || field >= slotOf.length || slotOf[field] < 0
+                || !known.get(pageNo) || !(p.getOperand() instanceof IntField))
+            return true;
+        int min = mins[pageNo * width + slotOf[field]];
+        int max = maxs[pageNo * width + slotOf[field]];
+        if (min > max)
+            return false; // no tuples
+        int c = ((IntField) p.getOperand()).getValue();
+        switch (p.getOp()) {
+        case EQUALS:
+            return min <= c && c <= max;
+        case GREATER_THAN:
+            return max > c;
+        case GREATER_THAN_OR_EQ:
+            return max >= c;
+        case LESS_THAN:
+            return min < c;
+        case LESS_THAN_OR_EQ:
+            return min <= c;
+        case NOT_EQUALS:
+            return min != c || max != c;
+        default:
+            return true;
+        }
+    }
+}
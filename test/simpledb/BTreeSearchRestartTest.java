@@ -0,0 +1,114 @@
+package simpledb;
+
+import java.io.File;
+import java.util.ArrayList;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+/**
+ * Tests that a search of a BTreeFile starts again only for merges and
+ * redistributions of the pages it reads: one running elsewhere in the tree
+ * does not send it back, and one on its path holds it until it ends.
+ */
+public class BTreeSearchRestartTest extends SimpleDbTestBase {
+
+	private static final int KEYS = 5000;
+
+	private BTreeFile bf;
+	private TransactionId tid;
+
+	@Before public void setUp() throws Exception {
+		super.setUp();
+		// small pages, for a tree of several levels
+		BufferPool.setPageSize(512);
+		Database.resetBufferPool(1000);
+		ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+		for (int i = 0; i < KEYS; i++)
+			tuples.add(BTreeUtility.getBTreeTuple(new int[] { i, 0 }));
+		File f = File.createTempFile("btree", ".dat");
+		f.deleteOnExit();
+		bf = BTreeFileEncoder.bulkLoad(new TupleIterator(Utility.getTupleDesc(2), tuples), f, 0, 1.0);
+		tid = new TransactionId();
+	}
+
+	@After public void tearDown() throws Exception {
+		BufferPool.resetPageSize();
+		Database.reset();
+	}
+
+	private BTreeLeafPage find(TransactionId tid, int key) throws Exception {
+		return bf.findLeafPage(tid, bf.getRootId(tid), Permissions.READ_ONLY, new IntField(key));
+	}
+
+	/** @return the internal page above the leaf of key */
+	private BTreeInternalPage parentOf(int key) throws Exception {
+		BTreePageId parent = find(tid, key).getParentId();
+		assertEquals(BTreePageId.INTERNAL, parent.pgcateg());
+		return (BTreeInternalPage) Database.getBufferPool().getPage(tid, parent, Permissions.READ_ONLY);
+	}
+
+	@Test public void moveElsewhereDoesNotRestart() throws Exception {
+		BTreeLeafPage farLeaf = find(tid, KEYS - 1);
+		BTreeInternalPage farParent = parentOf(KEYS - 1);
+		BTreeLeafPage leaf = find(tid, 0);
+		assertTrue(!farParent.getId().equals(parentOf(0).getId()));
+
+		long restarts = bf.getSearchRestarts();
+		int[] move = bf.beginMove(farLeaf, farParent);
+		try {
+			for (int i = 0; i < 10; i++)
+				assertEquals(leaf.getId(), find(tid, i).getId());
+		} finally {
+			bf.endMove(move);
+		}
+		assertEquals(restarts, bf.getSearchRestarts());
+	}
+
+	@Test(timeout = 60000)
+	public void moveOnPathRestarts() throws Exception {
+		final BTreeLeafPage leaf = find(tid, KEYS / 2);
+		BTreeInternalPage parent = parentOf(KEYS / 2);
+		long restarts = bf.getSearchRestarts();
+
+		int[] move = bf.beginMove(parent);
+		final Exception[] failure = new Exception[1];
+		final PageId[] found = new PageId[1];
+		Thread search = new Thread() {
+			public void run() {
+				try {
+					TransactionId other = new TransactionId();
+					found[0] = find(other, KEYS / 2).getId();
+					Database.getBufferPool().transactionComplete(other);
+				} catch (Exception e) {
+					failure[0] = e;
+				}
+			}
+		};
+		search.start();
+		while (bf.getSearchRestarts() < restarts + 3)
+			Thread.sleep(1);
+		assertTrue(search.isAlive());
+		bf.endMove(move);
+		search.join();
+		if (failure[0] != null)
+			throw failure[0];
+		assertEquals(leaf.getId(), found[0]);
+
+		// once the move is over, searches go straight through again
+		restarts = bf.getSearchRestarts();
+		find(tid, KEYS / 2);
+		assertEquals(restarts, bf.getSearchRestarts());
+	}
+
+	/** Make test compatible with older version of ant. */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(BTreeSearchRestartTest.class);
+	}
+}
@@ -0,0 +1,241 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+/**
+ * Tests of the striped buffer pool under many threads: the pool never
+ * holds more pages than it was given, hits and misses return the right
+ * page, and pages evicted while other threads miss and write are not lost.
+ */
+public class BufferPoolConcurrencyTest extends SimpleDbTestBase {
+
+    private static final int BUFFER_PAGES = 8;
+    private static final int TABLE_PAGES = 40;
+    private static final int THREADS = 8;
+
+    private HeapFile f;
+    private byte[][] onDisk;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        f = SystemTestUtil.createRandomHeapFile(2, 504 * TABLE_PAGES, null, null);
+        assertEquals(TABLE_PAGES, f.numPages());
+        onDisk = new byte[TABLE_PAGES][];
+        for (int i = 0; i < TABLE_PAGES; i++)
+            onDisk[i] = f.readPage(new HeapPageId(f.getId(), i)).getPageData();
+        Database.resetBufferPool(BUFFER_PAGES);
+    }
+
+    /** Run the given bodies on their own threads and rethrow the first
+        failure. */
+    private static void runAll(List<Runnable> bodies) throws Exception {
+        final Throwable[] failure = new Throwable[1];
+        List<Thread> threads = new ArrayList<Thread>();
+        for (final Runnable body : bodies) {
+            Thread t = new Thread() {
+                public void run() {
+                    try {
+                        body.run();
+                    } catch (Throwable e) {
+                        synchronized (failure) {
+                            if (failure[0] == null)
+                                failure[0] = e;
+                        }
+                    }
+                }
+            };
+            threads.add(t);
+            t.start();
+        }
+        for (Thread t : threads)
+            t.join();
+        if (failure[0] instanceof Exception)
+            throw (Exception) failure[0];
+        if (failure[0] != null)
+            throw new RuntimeException(failure[0]);
+    }
+
+    /**
+     * Threads read random pages, mostly misses since the table is five
+     * times the pool, while another thread watches the pool's size.
+     */
+    @Test public void concurrentGetsStayWithinCapacity() throws Exception {
+        final BufferPool bp = Database.getBufferPool();
+        final AtomicBoolean done = new AtomicBoolean(false);
+        final AtomicInteger largest = new AtomicInteger(0);
+        List<Runnable> bodies = new ArrayList<Runnable>();
+        for (int i = 0; i < THREADS; i++) {
+            final long seed = i;
+            bodies.add(new Runnable() {
+                public void run() {
+                    Random r = new Random(seed);
+                    try {
+                        for (int n = 0; n < 2000; n++) {
+                            int pageNo = r.nextInt(TABLE_PAGES);
+                            HeapPageId pid = new HeapPageId(f.getId(), pageNo);
+                            TransactionId tid = new TransactionId();
+                            Page p = bp.getPage(tid, pid, Permissions.READ_ONLY);
+                            assertEquals(pid, p.getId());
+                            assertArrayEquals(onDisk[pageNo], p.getPageData());
+                            bp.transactionComplete(tid);
+                        }
+                    } catch (Exception e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            });
+        }
+        Thread watcher = new Thread() {
+            public void run() {
+                while (!done.get()) {
+                    int n = bp.getNumResident();
+                    if (n > largest.get())
+                        largest.set(n);
+                }
+            }
+        };
+        watcher.start();
+        try {
+            runAll(bodies);
+        } finally {
+            done.set(true);
+            watcher.join();
+        }
+
+        assertTrue("pool held " + largest.get() + " pages", largest.get() <= BUFFER_PAGES);
+        assertTrue(bp.getNumCached() <= BUFFER_PAGES);
+        // every reserved slot holds a page once the threads are done
+        assertEquals(bp.getNumResident(), bp.getNumCached());
+        assertTrue(bp.getEvictions() > 0);
+    }
+
+    /**
+     * Writers insert rows, committing every few rows, while read-only
+     * transactions scan the table, so dirty pages are evicted while other
+     * threads miss.  Every committed row must be found afterwards, both in
+     * the pool and, after it is flushed, on disk.
+     */
+    @Test public void evictionUnderContentionKeepsPages() throws Exception {
+        final int writers = 4;
+        final int rowsPerWriter = 1000;
+        final int rowsPerTransaction = 50;
+        final AtomicBoolean done = new AtomicBoolean(false);
+        List<Runnable> bodies = new ArrayList<Runnable>();
+        for (int w = 0; w < writers; w++) {
+            final int writer = w;
+            bodies.add(new Runnable() {
+                public void run() {
+                    try {
+                        int next = 0;
+                        while (next < rowsPerWriter) {
+                            Transaction t = new Transaction();
+                            t.start();
+                            try {
+                                for (int i = 0; i < rowsPerTransaction; i++) {
+                                    Tuple tup = new Tuple(Utility.getTupleDesc(2));
+                                    tup.setField(0, new IntField(-1 - writer));
+                                    tup.setField(1, new IntField(next + i));
+                                    Database.getBufferPool().insertTuple(t.getId(), f.getId(), tup);
+                                }
+                                t.commit();
+                                next += rowsPerTransaction;
+                            } catch (TransactionAbortedException e) {
+                                t.abort(); // deadlock victim: try the batch again
+                            }
+                        }
+                    } catch (Exception e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            });
+        }
+        for (int s = 0; s < 2; s++) {
+            bodies.add(new Runnable() {
+                public void run() {
+                    try {
+                        while (!done.get()) {
+                            Transaction t = new Transaction(true);
+                            t.start();
+                            SeqScan scan = new SeqScan(t.getId(), f.getId(), "");
+                            scan.open();
+                            while (scan.hasNext())
+                                scan.next();
+                            scan.close();
+                            t.commit();
+                        }
+                    } catch (Exception e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            });
+        }
+        final List<Runnable> writerBodies = new ArrayList<Runnable>(bodies.subList(0, writers));
+        List<Runnable> all = new ArrayList<Runnable>(bodies.subList(writers, bodies.size()));
+        all.add(new Runnable() {
+            public void run() {
+                try {
+                    runAll(writerBodies);
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                } finally {
+                    done.set(true);
+                }
+            }
+        });
+        runAll(all);
+        assertTrue(Database.getBufferPool().getDirtyEvictions()
+                + Database.getBufferPool().getPageWriter().getPagesWritten() > 0);
+
+        checkRows(writers, rowsPerWriter);
+        Database.getBufferPool().flushAllPages();
+        Database.resetBufferPool(BUFFER_PAGES);
+        checkRows(writers, rowsPerWriter);
+    }
+
+    /** Scan the table and check that each writer's rows are there once,
+        along with the table's original rows. */
+    private void checkRows(int writers, int rowsPerWriter) throws Exception {
+        List<HashSet<Integer>> seen = new ArrayList<HashSet<Integer>>();
+        for (int w = 0; w < writers; w++)
+            seen.add(new HashSet<Integer>());
+        int original = 0;
+        Transaction t = new Transaction();
+        t.start();
+        SeqScan scan = new SeqScan(t.getId(), f.getId(), "");
+        scan.open();
+        while (scan.hasNext()) {
+            Tuple tup = scan.next();
+            int a = ((IntField) tup.getField(0)).getValue();
+            int b = ((IntField) tup.getField(1)).getValue();
+            if (a < 0)
+                assertTrue("row inserted twice", seen.get(-1 - a).add(b));
+            else
+                original++;
+        }
+        scan.close();
+        t.commit();
+        assertEquals(504 * TABLE_PAGES, original);
+        for (int w = 0; w < writers; w++)
+            assertEquals("rows of writer " + w, rowsPerWriter, seen.get(w).size());
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BufferPoolConcurrencyTest.class);
+    }
+}
@@ -0,0 +1,209 @@
+package simpledb;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+/**
+ * Tests of ColumnFile: scans of some of its columns return just those
+ * fields, rows found by such a scan are deleted by their RecordIds, and
+ * a query plan scans only the columns the query refers to.
+ */
+public class ColumnFileTest extends SimpleDbTestBase {
+
+    private static final int ROWS = 2500;
+
+    private ColumnFile cf;
+
+    /** @return the values of row i of the table */
+    private static int[] values(int i) {
+        return new int[] { i, i * 2, i % 10, -i };
+    }
+
+    private static Tuple tuple(TupleDesc td, int[] values) {
+        Tuple t = new Tuple(td);
+        for (int i = 0; i < values.length; i++)
+            t.setField(i, new IntField(values[i]));
+        return t;
+    }
+
+    @Before public void createTable() throws Exception {
+        File f = File.createTempFile("columns", ".dat");
+        f.deleteOnExit();
+        TupleDesc td = Utility.getTupleDesc(4, "c");
+        cf = new ColumnFile(f, td);
+        for (int c = 0; c < 4; c++)
+            cf.getColumnFile(c).deleteOnExit();
+        Database.getCatalog().addTable(cf, "cols");
+
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < ROWS; i++)
+            Database.getBufferPool().insertTuple(tid, cf.getId(), tuple(td, values(i)));
+        Database.getBufferPool().transactionComplete(tid);
+        assertTrue(cf.numPages(0) > 1);
+    }
+
+    /** @return the rows a scan of fields returns, each as its values */
+    private List<List<Integer>> scan(TransactionId tid, int[] fields) throws Exception {
+        SeqScan scan = fields == null ? new SeqScan(tid, cf.getId(), "t")
+                : new SeqScan(tid, cf.getId(), "t", fields);
+        List<List<Integer>> rows = new ArrayList<List<Integer>>();
+        scan.open();
+        while (scan.hasNext()) {
+            Tuple t = scan.next();
+            assertNotNull(t.getRecordId());
+            List<Integer> row = new ArrayList<Integer>();
+            for (int i = 0; i < t.getTupleDesc().numFields(); i++)
+                row.add(((IntField) t.getField(i)).getValue());
+            rows.add(row);
+        }
+        scan.close();
+        return rows;
+    }
+
+    /** @return the given fields of the rows whose third value is not skipC2 */
+    private static List<List<Integer>> expected(int[] fields, int skipC2) {
+        List<List<Integer>> rows = new ArrayList<List<Integer>>();
+        for (int i = 0; i < ROWS; i++) {
+            int[] v = values(i);
+            if (v[2] == skipC2)
+                continue;
+            List<Integer> row = new ArrayList<Integer>();
+            for (int f : fields)
+                row.add(v[f]);
+            rows.add(row);
+        }
+        return rows;
+    }
+
+    @Test public void projectedScans() throws Exception {
+        TransactionId tid = new TransactionId();
+        int[][] projections = { { 3, 1 }, { 2 }, { 0, 0, 3 }, { 0, 1, 2, 3 } };
+        for (int[] fields : projections) {
+            assertEquals(Arrays.toString(fields), expected(fields, -1), scan(tid, fields));
+            SeqScan scan = new SeqScan(tid, cf.getId(), "t", fields);
+            assertEquals(fields.length, scan.getTupleDesc().numFields());
+            assertEquals("t.c" + fields[0], scan.getTupleDesc().getFieldName(0));
+        }
+        assertEquals(expected(new int[] { 0, 1, 2, 3 }, -1), scan(tid, null));
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * Delete, through a projected scan, the rows whose third column is 3,
+     * then insert as many: the table keeps its pages and holds the new rows
+     * in the deleted ones' place.
+     */
+    @Test public void deleteByRecordId() throws Exception {
+        int pages = cf.numPages(0);
+        TransactionId tid = new TransactionId();
+        SeqScan scan = new SeqScan(tid, cf.getId(), "t", new int[] { 2 });
+        Filter threes = new Filter(new Predicate(0, Predicate.Op.EQUALS, new IntField(3)), scan);
+        // as Delete does: each tuple read is deleted by its RecordId
+        int deleted = 0;
+        threes.open();
+        while (threes.hasNext()) {
+            Tuple t = threes.next();
+            assertEquals(1, t.getTupleDesc().numFields());
+            Database.getBufferPool().deleteTuple(tid, t);
+            deleted++;
+        }
+        threes.close();
+        assertEquals(ROWS / 10, deleted);
+        Database.getBufferPool().transactionComplete(tid);
+
+        tid = new TransactionId();
+        assertEquals(expected(new int[] { 0, 1, 2, 3 }, 3), scan(tid, null));
+        assertEquals(expected(new int[] { 3, 0 }, 3), scan(tid, new int[] { 3, 0 }));
+        for (int i = 0; i < ROWS / 10; i++) {
+            Tuple t = tuple(cf.getTupleDesc(), new int[] { -1, -1, 3, i });
+            Database.getBufferPool().insertTuple(tid, cf.getId(), t);
+            int row = t.getRecordId().getPageId().getPageNumber() * ColumnPage.getNumSlots(Type.INT_TYPE)
+                    + t.getRecordId().getTupleNumber();
+            assertEquals(3, row % 10);
+        }
+        Database.getBufferPool().transactionComplete(tid);
+        for (int c = 0; c < 4; c++)
+            assertEquals(pages, cf.numPages(c));
+        assertEquals(ROWS, scan(new TransactionId(), new int[] { 1 }).size());
+    }
+
+    /** @return the scan at the bottom of a plan over one table */
+    private static SeqScan scanOf(OpIterator plan) {
+        if (plan instanceof SeqScan)
+            return (SeqScan) plan;
+        return scanOf(((Operator) plan).getChildren()[0]);
+    }
+
+    private OpIterator plan(LogicalPlan lp) throws Exception {
+        HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+        stats.put("cols", new TableStats(cf.getId(), TableStats.IOCOSTPERPAGE));
+        return lp.physicalPlan(new TransactionId(), stats, false);
+    }
+
+    private LogicalPlan scanPlan() {
+        LogicalPlan lp = new LogicalPlan();
+        lp.addScan(cf.getId(), "t");
+        return lp;
+    }
+
+    @Test public void planReadsReferencedColumns() throws Exception {
+        // SELECT t.c0 FROM cols t WHERE t.c2 > 5 ORDER BY t.c3
+        LogicalPlan lp = scanPlan();
+        lp.addProjectField("t.c0", null);
+        lp.addFilter("t.c2", Predicate.Op.GREATER_THAN, "5");
+        lp.addOrderBy("t.c3", true);
+        OpIterator plan = plan(lp);
+        assertArrayEquals(new int[] { 0, 2, 3 }, scanOf(plan).getFields());
+        plan.open();
+        List<Integer> got = new ArrayList<Integer>();
+        while (plan.hasNext())
+            got.add(((IntField) plan.next().getField(0)).getValue());
+        plan.close();
+        List<Integer> expected = new ArrayList<Integer>();
+        for (int i = ROWS - 1; i >= 0; i--) {
+            if (i % 10 > 5)
+                expected.add(i);
+        }
+        assertEquals(expected, got);
+
+        // SELECT COUNT(t.c1) FROM cols t
+        lp = scanPlan();
+        lp.addProjectField("t.c1", "count");
+        lp.addAggregate("count", "t.c1", null);
+        plan = plan(lp);
+        assertArrayEquals(new int[] { 1 }, scanOf(plan).getFields());
+        plan.open();
+        assertEquals(ROWS, ((IntField) plan.next().getField(0)).getValue());
+        plan.close();
+
+        // SELECT * reads every column
+        lp = scanPlan();
+        lp.addProjectField("*", null);
+        assertNull(scanOf(plan(lp)).getFields());
+
+        // and so does a query that names all of them
+        lp = scanPlan();
+        for (int c = 0; c < 4; c++)
+            lp.addProjectField("t.c" + c, null);
+        assertNull(scanOf(plan(lp)).getFields());
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ColumnFileTest.class);
+    }
+}
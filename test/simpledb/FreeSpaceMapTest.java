@@ -0,0 +1,160 @@
+package simpledb;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+/**
+ * Tests of FreeSpaceMap: finding a page with room past the full pages the
+ * cursor skips, saving and loading the map, ignoring a map saved with
+ * another unit, and inserts into a HeapFile going to the space deletes
+ * freed instead of new pages.
+ */
+public class FreeSpaceMapTest extends SimpleDbTestBase {
+
+    private File side;
+
+    @Before public void createSideFile() throws Exception {
+        side = File.createTempFile("map", ".fsm");
+        side.delete();
+        side.deleteOnExit();
+    }
+
+    @Test public void findPage() throws Exception {
+        FreeSpaceMap map = new FreeSpaceMap(side, 1);
+        assertEquals(FreeSpaceMap.UNKNOWN, map.get(0));
+        // pages the map has not seen may have room
+        assertEquals(0, map.findPage(0, 1));
+
+        for (int i = 0; i < 10; i++)
+            map.set(i, 0);
+        map.set(10, 5);
+        assertEquals(10, map.findPage(0, 1));
+        assertEquals(10, map.findPage(0, 5));
+        assertEquals(11, map.findPage(0, 6));
+        assertEquals(11, map.findPage(11, 1));
+
+        // room freed below the cursor moves it back
+        map.set(3, 2);
+        assertEquals(3, map.findPage(0, 1));
+        assertEquals(10, map.findPage(0, 3));
+        assertEquals(10, map.findPage(4, 1));
+        map.set(3, 0);
+        assertEquals(10, map.findPage(0, 1));
+
+        // entries are capped, and pages past the last known are unknown
+        map.set(12, 1000);
+        assertEquals(FreeSpaceMap.MAX_FREE, map.get(12));
+        assertEquals(FreeSpaceMap.UNKNOWN, map.get(11));
+        assertEquals(FreeSpaceMap.UNKNOWN, map.get(13));
+        assertEquals(11, map.findPage(0, 100));
+        assertEquals(12, map.findPage(12, FreeSpaceMap.MAX_FREE + 100));
+        assertEquals(13, map.findPage(13, 1));
+    }
+
+    /** Free space is rounded down to units, and needs rounded up. */
+    @Test public void units() throws Exception {
+        FreeSpaceMap map = new FreeSpaceMap(side, 4);
+        map.set(0, 7);
+        map.set(1, 8);
+        assertEquals(1, map.get(0));
+        assertEquals(2, map.get(1));
+        assertEquals(0, map.findPage(0, 1));
+        assertEquals(0, map.findPage(0, 4));
+        assertEquals(1, map.findPage(0, 5));
+        assertEquals(2, map.findPage(0, 9));
+    }
+
+    @Test public void saveAndLoad() throws Exception {
+        FreeSpaceMap map = new FreeSpaceMap(side, 3);
+        for (int i = 0; i < 200; i++)
+            map.set(i, i % 7 == 0 ? 0 : i);
+        map.save();
+        assertTrue(side.exists());
+
+        FreeSpaceMap loaded = new FreeSpaceMap(side, 3);
+        for (int i = 0; i < 201; i++)
+            assertEquals(map.get(i), loaded.get(i));
+        for (int needed = 1; needed < 800; needed += 37)
+            assertEquals(map.findPage(0, needed), loaded.findPage(0, needed));
+
+        // an unchanged map is not written again
+        side.delete();
+        loaded.save();
+        assertFalse(side.exists());
+        loaded.set(5, 0);
+        loaded.save();
+        assertEquals(0, new FreeSpaceMap(side, 3).get(5));
+    }
+
+    @Test public void unitMismatch() throws Exception {
+        FreeSpaceMap map = new FreeSpaceMap(side, 1);
+        map.set(0, 0);
+        map.set(1, 9);
+        map.save();
+
+        FreeSpaceMap other = new FreeSpaceMap(side, 2);
+        assertEquals(FreeSpaceMap.UNKNOWN, other.get(0));
+        assertEquals(FreeSpaceMap.UNKNOWN, other.get(1));
+        assertEquals(0, other.findPage(0, 1));
+
+        // nor is a side file that is not a map read
+        FileOutputStream out = new FileOutputStream(side);
+        out.write(new byte[] { 1, 2, 3, 4, 5, 6, 7, 8, 9 });
+        out.close();
+        assertEquals(FreeSpaceMap.UNKNOWN, new FreeSpaceMap(side, 1).get(0));
+    }
+
+    /**
+     * Deletes from the middle page of a file of three full pages leave
+     * room there, which the next inserts fill before the file grows.
+     */
+    @Test public void insertsReuseFreedSpace() throws Exception {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 504 * 3, null, null);
+        assertEquals(3, f.numPages());
+        BufferPool pool = Database.getBufferPool();
+
+        Transaction deleter = new Transaction();
+        deleter.start();
+        HeapPage middle = (HeapPage) pool.getPage(deleter.getId(),
+                new HeapPageId(f.getId(), 1), Permissions.READ_WRITE);
+        List<Tuple> doomed = new ArrayList<Tuple>();
+        java.util.Iterator<Tuple> it = middle.iterator();
+        for (int i = 0; i < 10; i++)
+            doomed.add(it.next());
+        for (Tuple t : doomed)
+            pool.deleteTuple(deleter.getId(), t);
+        deleter.commit();
+        assertEquals(10, f.getFreeSpaceMap().get(1));
+
+        Transaction inserter = new Transaction();
+        inserter.start();
+        for (int i = 0; i < 11; i++) {
+            Tuple t = new Tuple(f.getTupleDesc());
+            t.setField(0, new IntField(i));
+            t.setField(1, new IntField(-i));
+            pool.insertTuple(inserter.getId(), f.getId(), t);
+            assertEquals(i < 10 ? 1 : 3, t.getRecordId().getPageId().getPageNumber());
+        }
+        inserter.commit();
+        assertEquals(4, f.numPages());
+        assertEquals(0, f.getFreeSpaceMap().get(1));
+        assertEquals(3, f.getFreeSpaceMap().findPage(0, 1));
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(FreeSpaceMapTest.class);
+    }
+}
@@ -0,0 +1,220 @@
+package simpledb;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+/**
+ * Tests of HashEquiJoin in memory and spilled to partitions on disk: both
+ * give what nested loops give, a tuple or a batch at a time, the spill
+ * files are gone once the join closes, and an exhausted join does not read
+ * its children again until it is rewound.
+ */
+public class HashEquiJoinTest extends SimpleDbTestBase {
+
+    private static final int LEFT_ROWS = 300;
+    private static final int RIGHT_ROWS = 200;
+
+    /** A TupleIterator that counts the tuples read from it. */
+    private static class CountingIterator extends TupleIterator {
+        private static final long serialVersionUID = 1L;
+        int reads = 0;
+
+        CountingIterator(List<Tuple> tuples) {
+            super(Utility.getTupleDesc(2), tuples);
+        }
+
+        public Tuple next() {
+            reads++;
+            return super.next();
+        }
+    }
+
+    /** @return rows (i % keys, i) for i below n */
+    private static List<Tuple> table(int n, int keys) {
+        List<Tuple> rows = new ArrayList<Tuple>();
+        for (int i = 0; i < n; i++) {
+            Tuple t = new Tuple(Utility.getTupleDesc(2));
+            t.setField(0, new IntField(i % keys));
+            t.setField(1, new IntField(i));
+            rows.add(t);
+        }
+        return rows;
+    }
+
+    private static List<Tuple> left() {
+        return table(LEFT_ROWS, 50);
+    }
+
+    /** Keys 50 to 69 match nothing on the left. */
+    private static List<Tuple> right() {
+        return table(RIGHT_ROWS, 70);
+    }
+
+    private static List<Integer> row(Tuple t) {
+        List<Integer> row = new ArrayList<Integer>();
+        for (int i = 0; i < t.getTupleDesc().numFields(); i++)
+            row.add(((IntField) t.getField(i)).getValue());
+        return row;
+    }
+
+    private static List<List<Integer>> sorted(List<List<Integer>> rows) {
+        Collections.sort(rows, new Comparator<List<Integer>>() {
+            public int compare(List<Integer> a, List<Integer> b) {
+                for (int i = 0; i < a.size(); i++) {
+                    int c = a.get(i).compareTo(b.get(i));
+                    if (c != 0)
+                        return c;
+                }
+                return 0;
+            }
+        });
+        return rows;
+    }
+
+    private static List<List<Integer>> nestedLoops() {
+        List<List<Integer>> rows = new ArrayList<List<Integer>>();
+        for (Tuple l : left()) {
+            for (Tuple r : right()) {
+                if (l.getField(0).equals(r.getField(0))) {
+                    List<Integer> row = row(l);
+                    row.addAll(row(r));
+                    rows.add(row);
+                }
+            }
+        }
+        return sorted(rows);
+    }
+
+    private static List<List<Integer>> rows(OpIterator it) throws Exception {
+        List<List<Integer>> rows = new ArrayList<List<Integer>>();
+        while (it.hasNext())
+            rows.add(row(it.next()));
+        return sorted(rows);
+    }
+
+    private static List<List<Integer>> batches(BatchOpIterator it) throws Exception {
+        List<List<Integer>> rows = new ArrayList<List<Integer>>();
+        for (TupleBatch b = it.nextBatch(); b != null; b = it.nextBatch()) {
+            for (int i = 0; i < b.size(); i++) {
+                List<Integer> row = new ArrayList<Integer>();
+                for (int j = 0; j < 4; j++)
+                    row.add(((IntField) b.getField(j, i)).getValue());
+                rows.add(row);
+            }
+        }
+        return sorted(rows);
+    }
+
+    private static HashEquiJoin join(OpIterator left, OpIterator right, int budget) {
+        HashEquiJoin j = new HashEquiJoin(new JoinPredicate(0, Predicate.Op.EQUALS, 0), left, right);
+        if (budget > 0) {
+            j.setMemoryBudget(budget);
+            j.setNumPartitions(4);
+        }
+        return j;
+    }
+
+    /** @return the spill files in the temporary directory */
+    private static List<String> spillFiles() throws Exception {
+        File tmp = File.createTempFile("probe", ".tmp");
+        tmp.delete();
+        String[] names = tmp.getParentFile().list(new FilenameFilter() {
+            public boolean accept(File dir, String name) {
+                return name.startsWith("spill") && name.endsWith(".tmp");
+            }
+        });
+        List<String> files = new ArrayList<String>();
+        Collections.addAll(files, names);
+        return files;
+    }
+
+    @Test public void inMemory() throws Exception {
+        HashEquiJoin j = join(new TupleIterator(Utility.getTupleDesc(2), left()),
+                new TupleIterator(Utility.getTupleDesc(2), right()), 0);
+        j.open();
+        assertFalse(j.isSpilled());
+        List<List<Integer>> expected = nestedLoops();
+        assertTrue(expected.size() > 0);
+        assertEquals(expected, rows(j));
+        j.rewind();
+        assertEquals(expected, batches(j));
+        j.close();
+    }
+
+    /** A budget of ten build tuples spills both sides to four partitions,
+        which are joined a chunk of ten at a time. */
+    @Test public void spilled() throws Exception {
+        List<String> before = spillFiles();
+        HashEquiJoin j = join(new TupleIterator(Utility.getTupleDesc(2), left()),
+                new TupleIterator(Utility.getTupleDesc(2), right()), 10);
+        j.open();
+        assertTrue(j.isSpilled());
+        assertEquals(before.size() + 8, spillFiles().size());
+
+        List<List<Integer>> expected = nestedLoops();
+        assertEquals(expected, rows(j));
+        j.rewind();
+        assertEquals(expected, batches(j));
+        j.rewind();
+        assertEquals(expected, rows(j));
+        j.close();
+        assertEquals(before, spillFiles());
+        assertFalse(j.isSpilled());
+
+        // and open again, after close
+        j.open();
+        assertEquals(expected, rows(j));
+        j.close();
+        assertEquals(before, spillFiles());
+    }
+
+    /** Asking an exhausted join for more reads neither child again. */
+    @Test public void exhaustedJoinStaysDone() throws Exception {
+        for (int budget : new int[] { 0, 10 }) {
+            CountingIterator l = new CountingIterator(left());
+            CountingIterator r = new CountingIterator(right());
+            HashEquiJoin j = join(l, r, budget);
+            j.open();
+            List<List<Integer>> all = rows(j);
+            int leftReads = l.reads;
+            int rightReads = r.reads;
+            for (int i = 0; i < 5; i++)
+                assertFalse(j.hasNext());
+            assertEquals(leftReads, l.reads);
+            assertEquals(rightReads, r.reads);
+
+            // the batch path too
+            j.rewind();
+            assertEquals(all, batches(j));
+            leftReads = l.reads;
+            rightReads = r.reads;
+            for (int i = 0; i < 5; i++)
+                assertNull(j.nextBatch());
+            assertEquals(leftReads, l.reads);
+            assertEquals(rightReads, r.reads);
+
+            // until rewound
+            j.rewind();
+            assertEquals(all, rows(j));
+            j.close();
+        }
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(HashEquiJoinTest.class);
+    }
+}
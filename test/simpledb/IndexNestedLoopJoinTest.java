@@ -0,0 +1,264 @@
+package simpledb;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import junit.framework.JUnit4TestAdapter;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+/**
+ * Tests of IndexNestedLoopJoin against nested loops over scans of the same
+ * tables, and of JoinOptimizer choosing it only when probing is cheaper.
+ */
+public class IndexNestedLoopJoinTest extends SimpleDbTestBase {
+
+    /** Keys 0 to 99 of the inner table, each twice. */
+    private static final int INNER_ROWS = 200;
+
+    private static final Predicate.Op[] PROBE_OPS = {
+        Predicate.Op.EQUALS, Predicate.Op.LESS_THAN, Predicate.Op.LESS_THAN_OR_EQ,
+        Predicate.Op.GREATER_THAN, Predicate.Op.GREATER_THAN_OR_EQ,
+    };
+
+    private BTreeFile inner;
+    private TransactionId tid;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        TupleDesc td = Utility.getTupleDesc(2, "c");
+        ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+        for (int i = 0; i < INNER_ROWS; i++) {
+            Tuple t = new Tuple(td);
+            t.setField(0, new IntField(i / 2));
+            t.setField(1, new IntField(i));
+            tuples.add(t);
+        }
+        File f = File.createTempFile("inner", ".dat");
+        f.deleteOnExit();
+        inner = BTreeFileEncoder.bulkLoad(new TupleIterator(td, tuples), f, 0, 1.0);
+        Database.getCatalog().addTable(inner, "inner");
+        tid = new TransactionId();
+    }
+
+    @After public void tearDown() {
+        TableStats.getStatsMap().remove("outer");
+        TableStats.getStatsMap().remove("inner");
+    }
+
+    /** @return a table of the given first fields, each with its position */
+    private static HeapFile outer(int... keys) throws Exception {
+        ArrayList<ArrayList<Integer>> rows = new ArrayList<ArrayList<Integer>>();
+        for (int i = 0; i < keys.length; i++)
+            rows.add(new ArrayList<Integer>(Arrays.asList(keys[i], i)));
+        File f = File.createTempFile("outer", ".dat");
+        f.deleteOnExit();
+        HeapFileEncoder.convert(rows, f, BufferPool.getPageSize(), 2);
+        HeapFile hf = new HeapFile(f, Utility.getTupleDesc(2, "c"));
+        Database.getCatalog().addTable(hf, "outer");
+        return hf;
+    }
+
+    /** @return the rows of it, as lists of their int fields, sorted */
+    private static List<List<Integer>> rows(OpIterator it) throws Exception {
+        List<List<Integer>> rows = new ArrayList<List<Integer>>();
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            List<Integer> row = new ArrayList<Integer>();
+            for (int i = 0; i < t.getTupleDesc().numFields(); i++)
+                row.add(((IntField) t.getField(i)).getValue());
+            rows.add(row);
+        }
+        Collections.sort(rows, new java.util.Comparator<List<Integer>>() {
+            public int compare(List<Integer> a, List<Integer> b) {
+                for (int i = 0; i < a.size(); i++) {
+                    int c = a.get(i).compareTo(b.get(i));
+                    if (c != 0)
+                        return c;
+                }
+                return 0;
+            }
+        });
+        return rows;
+    }
+
+    private IndexNestedLoopJoin indexJoin(HeapFile o, Predicate.Op op) {
+        return new IndexNestedLoopJoin(new JoinPredicate(0, op, 0),
+                new SeqScan(tid, o.getId(), "outer"), new SeqScan(tid, inner.getId(), "inner"));
+    }
+
+    /** @return the join of o and the inner table, by scanning both */
+    private List<List<Integer>> nestedLoops(HeapFile o, Predicate.Op op) throws Exception {
+        JoinPredicate p = new JoinPredicate(0, op, 0);
+        SeqScan left = new SeqScan(tid, o.getId(), "outer");
+        SeqScan right = new SeqScan(tid, inner.getId(), "inner");
+        ArrayList<Tuple> joined = new ArrayList<Tuple>();
+        TupleDesc td = TupleDesc.merge(left.getTupleDesc(), right.getTupleDesc());
+        left.open();
+        right.open();
+        while (left.hasNext()) {
+            Tuple t1 = left.next();
+            right.rewind();
+            while (right.hasNext()) {
+                Tuple t2 = right.next();
+                if (!p.filter(t1, t2))
+                    continue;
+                Tuple t = new Tuple(td);
+                t.setField(0, t1.getField(0));
+                t.setField(1, t1.getField(1));
+                t.setField(2, t2.getField(0));
+                t.setField(3, t2.getField(1));
+                joined.add(t);
+            }
+        }
+        left.close();
+        right.close();
+        TupleIterator it = new TupleIterator(td, joined);
+        it.open();
+        return rows(it);
+    }
+
+    /** Every operator, turned around for the probe, finds what a scan of
+        the inner table finds, including values past either end of it. */
+    @Test public void matchesNestedLoops() throws Exception {
+        HeapFile o = outer(-5, 0, 37, 37, 50, 99, 150);
+        for (Predicate.Op op : PROBE_OPS) {
+            IndexNestedLoopJoin j = indexJoin(o, op);
+            j.open();
+            List<List<Integer>> rows = rows(j);
+            j.close();
+            assertEquals(op.toString(), nestedLoops(o, op), rows);
+            assertEquals(7, j.getProbes());
+        }
+        assertEquals(10, nestedLoops(o, Predicate.Op.EQUALS).size());
+    }
+
+    /** Probes that find nothing, and an empty outer side. */
+    @Test public void emptyProbes() throws Exception {
+        HeapFile above = outer(100, 1000);
+        for (Predicate.Op op : new Predicate.Op[] { Predicate.Op.EQUALS,
+                Predicate.Op.LESS_THAN, Predicate.Op.LESS_THAN_OR_EQ }) {
+            IndexNestedLoopJoin j = indexJoin(above, op);
+            j.open();
+            assertEquals(0, rows(j).size());
+            j.close();
+            assertEquals(2, j.getProbes());
+        }
+        HeapFile below = outer(-1);
+        for (Predicate.Op op : new Predicate.Op[] { Predicate.Op.GREATER_THAN,
+                Predicate.Op.GREATER_THAN_OR_EQ }) {
+            IndexNestedLoopJoin j = indexJoin(below, op);
+            j.open();
+            assertEquals(0, rows(j).size());
+            j.close();
+        }
+        IndexNestedLoopJoin j = indexJoin(outer(), Predicate.Op.EQUALS);
+        j.open();
+        assertEquals(0, rows(j).size());
+        j.close();
+        assertEquals(0, j.getProbes());
+    }
+
+    /** Rewinding mid-probe starts again from the first outer tuple. */
+    @Test public void rewind() throws Exception {
+        HeapFile o = outer(3, 10, 60);
+        IndexNestedLoopJoin j = indexJoin(o, Predicate.Op.LESS_THAN_OR_EQ);
+        j.open();
+        List<List<Integer>> all = rows(j);
+        j.rewind();
+        for (int i = 0; i < 5; i++)
+            j.next();
+        j.rewind();
+        assertEquals(all, rows(j));
+        j.close();
+        assertEquals(nestedLoops(o, Predicate.Op.LESS_THAN_OR_EQ), all);
+    }
+
+    @Test public void rejectsOperatorsTheTreeCannotAnswer() throws Exception {
+        HeapFile o = outer(1);
+        for (Predicate.Op op : new Predicate.Op[] { Predicate.Op.LIKE, Predicate.Op.NOT_EQUALS }) {
+            try {
+                indexJoin(o, op);
+                fail(op + " accepted");
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+
+    /** Statistics of a table of the given size, scanned at the given cost,
+        whose join field matches the given fraction of it per value. */
+    private static TableStats stats(int tableid, final int card, final double scanCost,
+            final double selectivity) {
+        return new TableStats(tableid, 1) {
+            public int estimateTableCardinality(double selectivityFactor) {
+                return (int) (card * selectivityFactor);
+            }
+            public double estimateScanCost() {
+                return scanCost;
+            }
+            public double avgSelectivity(int field, Predicate.Op op) {
+                return selectivity;
+            }
+        };
+    }
+
+    private OpIterator instantiate(HeapFile o, Predicate.Op op, int outerCard, double selectivity)
+            throws Exception {
+        TableStats.setTableStats("outer", stats(o.getId(), outerCard, outerCard, 1.0));
+        TableStats.setTableStats("inner", stats(inner.getId(), 1000000, 100000, selectivity));
+        LogicalJoinNode lj = new LogicalJoinNode("outer", "inner", "c0", "c0", op);
+        return JoinOptimizer.instantiateJoin(lj, new SeqScan(tid, o.getId(), "outer"),
+                new SeqScan(tid, inner.getId(), "inner"));
+    }
+
+    /**
+     * A small outer side probes the index; a large one hashes an equality
+     * join, and a range that matches most of the inner table, where each
+     * probe reads most of the tree, uses nested loops.
+     */
+    @Test public void optimizerProbesOnlyWhenCheaper() throws Exception {
+        HeapFile o = outer(1, 2, 3);
+        assertTrue(instantiate(o, Predicate.Op.EQUALS, 10, 0.000001) instanceof IndexNestedLoopJoin);
+        assertTrue(instantiate(o, Predicate.Op.LESS_THAN, 10, 0.001) instanceof IndexNestedLoopJoin);
+        assertTrue(instantiate(o, Predicate.Op.EQUALS, 10000000, 0.000001) instanceof HashEquiJoin);
+        assertTrue(instantiate(o, Predicate.Op.GREATER_THAN, 10000000, 1.0) instanceof Join);
+        assertTrue(instantiate(o, Predicate.Op.GREATER_THAN, 10, 1.0) instanceof Join);
+        assertTrue(instantiate(o, Predicate.Op.NOT_EQUALS, 10, 0.001) instanceof Join);
+    }
+
+    /** The estimate is the join's, not the outer side's. */
+    @Test public void estimatedCardinality() throws Exception {
+        HeapFile o = outer(1, 2, 3);
+        HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+        stats.put("outer", stats(o.getId(), 5000, 5000, 1.0));
+        stats.put("inner", stats(inner.getId(), INNER_ROWS, 100, 0.01));
+        HashMap<String, Integer> aliases = new HashMap<String, Integer>();
+        aliases.put("outer", o.getId());
+        aliases.put("inner", inner.getId());
+
+        IndexNestedLoopJoin j = indexJoin(o, Predicate.Op.EQUALS);
+        Project top = new Project(new ArrayList<Integer>(Arrays.asList(0)),
+                new Type[] { Type.INT_TYPE }, j);
+        OperatorCardinality.updateOperatorCardinality(top, aliases, stats);
+        int expected = JoinOptimizer.estimateTableJoinCardinality(Predicate.Op.EQUALS,
+                "outer", "inner", "c0", "c0", 5000, INNER_ROWS, false, false, stats, aliases);
+        assertEquals(expected, j.getEstimatedCardinality());
+        assertEquals(expected, top.getEstimatedCardinality());
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(IndexNestedLoopJoinTest.class);
+    }
+}
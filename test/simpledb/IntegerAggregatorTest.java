@@ -0,0 +1,213 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+/**
+ * Tests of IntegerAggregator without grouping over no tuples, and of the
+ * IntGroupTable it groups INT keys in: the table grows past its initial
+ * capacity and keeps negative, extreme and colliding keys apart.
+ */
+public class IntegerAggregatorTest extends SimpleDbTestBase {
+
+    private static final Aggregator.Op[] OPS = {
+        Aggregator.Op.COUNT, Aggregator.Op.SUM, Aggregator.Op.MIN,
+        Aggregator.Op.MAX, Aggregator.Op.AVG,
+    };
+
+    private static List<List<Integer>> rows(OpIterator it) throws Exception {
+        List<List<Integer>> rows = new ArrayList<List<Integer>>();
+        it.open();
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            List<Integer> row = new ArrayList<Integer>();
+            for (int i = 0; i < t.getTupleDesc().numFields(); i++)
+                row.add(((IntField) t.getField(i)).getValue());
+            rows.add(row);
+        }
+        it.close();
+        return rows;
+    }
+
+    private static List<List<Integer>> one(int value) {
+        List<List<Integer>> rows = new ArrayList<List<Integer>>();
+        List<Integer> row = new ArrayList<Integer>();
+        row.add(value);
+        rows.add(row);
+        return rows;
+    }
+
+    /** COUNT of nothing is a single 0; the other aggregates have no row. */
+    @Test public void noGroupingOverNoTuples() throws Exception {
+        for (Aggregator.Op op : OPS) {
+            IntegerAggregator agg = new IntegerAggregator(Aggregator.NO_GROUPING, null, 0, op);
+            List<List<Integer>> expected = op == Aggregator.Op.COUNT
+                    ? one(0) : new ArrayList<List<Integer>>();
+            assertEquals(op.toString(), expected, rows(agg.iterator()));
+
+            Aggregate a = new Aggregate(TestUtil.createTupleList(2, new int[0]), 1,
+                    Aggregator.NO_GROUPING, op);
+            assertEquals(op.toString(), expected, rows(a));
+        }
+        StringAggregator count = new StringAggregator(Aggregator.NO_GROUPING, null, 0,
+                Aggregator.Op.COUNT);
+        assertEquals(one(0), rows(count.iterator()));
+
+        // grouped aggregates of nothing have no groups
+        IntegerAggregator grouped = new IntegerAggregator(0, Type.INT_TYPE, 1, Aggregator.Op.COUNT);
+        assertEquals(0, rows(grouped.iterator()).size());
+    }
+
+    @Test public void noGroupingOverTuples() throws Exception {
+        int[] values = { 5, -3, 12, 0, 7 };
+        int[] expected = { 5, 21, -3, 12, 4 };
+        for (int i = 0; i < OPS.length; i++) {
+            IntegerAggregator agg = new IntegerAggregator(Aggregator.NO_GROUPING, null, 0, OPS[i]);
+            for (int v : values) {
+                Tuple t = new Tuple(Utility.getTupleDesc(1));
+                t.setField(0, new IntField(v));
+                agg.mergeTupleIntoGroup(t);
+            }
+            assertEquals(OPS[i].toString(), one(expected[i]), rows(agg.iterator()));
+        }
+    }
+
+    /** @return keys that land in the same slot of a new table */
+    private static int[] colliding(int n) {
+        IntGroupTable probe = new IntGroupTable();
+        int mask = probe.capacity() - 1;
+        int[] keys = new int[n];
+        int found = 0;
+        for (int k = 0; found < n; k++) {
+            int h = k * 0x9E3779B9;
+            if (((h ^ (h >>> 16)) & mask) == 3)
+                keys[found++] = k;
+        }
+        return keys;
+    }
+
+    /**
+     * Merge many groups into a table: it grows to stay at most half full,
+     * and every group ends with the count, sum, min and max of its values.
+     */
+    @Test public void groupTableGrows() throws Exception {
+        IntGroupTable table = new IntGroupTable();
+        int initial = table.capacity();
+        Map<Integer, long[]> expected = new HashMap<Integer, long[]>();
+        Set<Integer> keys = new LinkedHashSet<Integer>();
+        for (int k : colliding(6))
+            keys.add(k);
+        for (int k = -2000; k < 2000; k += 3)
+            keys.add(k);
+        keys.add(Integer.MIN_VALUE);
+        keys.add(Integer.MAX_VALUE);
+        keys.add(-1);
+
+        Random r = new Random(7);
+        for (int round = 0; round < 4; round++) {
+            for (int key : keys) {
+                int value = r.nextInt(2001) - 1000;
+                table.merge(key, value);
+                long[] s = expected.get(key);
+                if (s == null) {
+                    s = IntegerAggregator.newState();
+                    expected.put(key, s);
+                }
+                IntegerAggregator.merge(s, value);
+            }
+        }
+
+        assertEquals(expected.size(), table.size());
+        assertTrue(table.capacity() > initial);
+        assertTrue(table.size() * 2 <= table.capacity());
+        int seen = 0;
+        for (int slot = 0; slot < table.capacity(); slot++) {
+            if (!table.isUsed(slot))
+                continue;
+            seen++;
+            long[] s = expected.get(table.key(slot));
+            assertEquals(s[IntegerAggregator.COUNT], table.get(slot, IntegerAggregator.COUNT));
+            assertEquals(s[IntegerAggregator.SUM], table.get(slot, IntegerAggregator.SUM));
+            assertEquals(s[IntegerAggregator.MIN], table.get(slot, IntegerAggregator.MIN));
+            assertEquals(s[IntegerAggregator.MAX], table.get(slot, IntegerAggregator.MAX));
+            assertEquals(4, table.get(slot, IntegerAggregator.COUNT));
+        }
+        assertEquals(expected.size(), seen);
+    }
+
+    /** Colliding keys in a table too small to grow yet keep separate groups. */
+    @Test public void collidingKeys() throws Exception {
+        IntGroupTable table = new IntGroupTable();
+        int capacity = table.capacity();
+        int[] keys = colliding(5);
+        for (int i = 0; i < keys.length; i++)
+            table.merge(keys[i], i);
+        table.merge(keys[0], 100);
+        assertEquals(keys.length, table.size());
+        assertEquals(capacity, table.capacity());
+        for (int slot = 0; slot < table.capacity(); slot++) {
+            if (table.isUsed(slot) && table.key(slot) == keys[0]) {
+                assertEquals(2, table.get(slot, IntegerAggregator.COUNT));
+                assertEquals(100, table.get(slot, IntegerAggregator.SUM));
+            }
+        }
+    }
+
+    /** Grouping on an INT field by tuple and by batch agrees with a map
+        of the same groups, for negative keys too. */
+    @Test public void groupedByTupleAndBatch() throws Exception {
+        TupleDesc td = Utility.getTupleDesc(2);
+        List<Tuple> tuples = new ArrayList<Tuple>();
+        Map<Integer, Integer> sums = new HashMap<Integer, Integer>();
+        Random r = new Random(11);
+        for (int i = 0; i < 3000; i++) {
+            int key = r.nextInt(200) - 100;
+            int value = r.nextInt(100);
+            Tuple t = new Tuple(td);
+            t.setField(0, new IntField(key));
+            t.setField(1, new IntField(value));
+            tuples.add(t);
+            Integer s = sums.get(key);
+            sums.put(key, s == null ? value : s + value);
+        }
+        IntegerAggregator byTuple = new IntegerAggregator(0, Type.INT_TYPE, 1, Aggregator.Op.SUM);
+        IntegerAggregator byBatch = new IntegerAggregator(0, Type.INT_TYPE, 1, Aggregator.Op.SUM);
+        TupleBatch batch = new TupleBatch(td);
+        for (Tuple t : tuples) {
+            byTuple.mergeTupleIntoGroup(t);
+            batch.add(t);
+            if (batch.isFull()) {
+                byBatch.mergeBatchIntoGroup(batch);
+                batch = new TupleBatch(td);
+            }
+        }
+        byBatch.mergeBatchIntoGroup(batch);
+
+        for (IntegerAggregator agg : new IntegerAggregator[] { byTuple, byBatch }) {
+            Map<Integer, Integer> got = new HashMap<Integer, Integer>();
+            for (List<Integer> row : rows(agg.iterator())) {
+                assertFalse(got.containsKey(row.get(0)));
+                got.put(row.get(0), row.get(1));
+            }
+            assertEquals(sums, got);
+        }
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(IntegerAggregatorTest.class);
+    }
+}
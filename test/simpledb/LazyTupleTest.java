@@ -0,0 +1,194 @@
+package simpledb;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import junit.framework.JUnit4TestAdapter;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+/**
+ * Tests of tuples decoded lazily from page bytes: pages write back the same
+ * bytes whether or not their tuples were decoded, before and after inserts
+ * and deletes, and threads sharing a tuple can decode it at once.
+ */
+public class LazyTupleTest extends SimpleDbTestBase {
+
+    private static final int ROWS = 300;
+
+    /** Decode every field of every tuple of page. */
+    private static void decodeAll(HeapPage page) {
+        for (Iterator<Tuple> it = page.iterator(); it.hasNext(); )
+            it.next().toString();
+    }
+
+    private static Tuple row(TupleDesc td, int a, int b) {
+        Tuple t = new Tuple(td);
+        t.setField(0, new IntField(a));
+        t.setField(1, new IntField(b));
+        return t;
+    }
+
+    /** @return the tuples of page by slot, as strings, null for empty slots */
+    private static String[] slots(HeapPage page, int n) {
+        String[] slots = new String[n];
+        for (Iterator<Tuple> it = page.iterator(); it.hasNext(); ) {
+            Tuple t = it.next();
+            slots[t.getRecordId().getTupleNumber()] = t.toString();
+        }
+        return slots;
+    }
+
+    /**
+     * Delete some tuples, some decoded and some not, insert others, and
+     * decode a few more.
+     */
+    private static void change(HeapPage page) throws DbException {
+        TupleDesc td = page.td;
+        List<Tuple> doomed = new ArrayList<Tuple>();
+        int i = 0;
+        for (Iterator<Tuple> it = page.iterator(); it.hasNext(); i++) {
+            Tuple t = it.next();
+            if (i % 7 == 0)
+                t.getField(1); // decode one field first
+            if (i % 7 == 0 || i % 11 == 0)
+                doomed.add(t);
+            if (i % 13 == 0)
+                t.toString();
+        }
+        for (Tuple t : doomed)
+            page.deleteTuple(t);
+        for (int j = 0; j < 30; j++)
+            page.insertTuple(row(td, -j, j * j));
+    }
+
+    @Test public void heapPageRoundTrip() throws Exception {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, ROWS, null, null);
+        HeapPageId pid = new HeapPageId(f.getId(), 0);
+        byte[] bytes = ((HeapPage) f.readPage(pid)).getPageData();
+
+        HeapPage lazy = new HeapPage(pid, bytes);
+        assertArrayEquals(bytes, lazy.getPageData());
+        decodeAll(lazy);
+        assertArrayEquals(bytes, lazy.getPageData());
+
+        lazy = new HeapPage(pid, bytes);
+        HeapPage decoded = new HeapPage(pid, bytes);
+        decodeAll(decoded);
+        change(lazy);
+        change(decoded);
+        byte[] changed = lazy.getPageData();
+        assertArrayEquals(decoded.getPageData(), changed);
+
+        // the same tuples, put in the same slots of an empty page
+        HeapPage built = new HeapPage(pid, HeapPage.createEmptyPageData());
+        for (Iterator<Tuple> it = lazy.iterator(); it.hasNext(); ) {
+            Tuple t = it.next();
+            Tuple copy = row(lazy.td, ((IntField) t.getField(0)).getValue(),
+                    ((IntField) t.getField(1)).getValue());
+            built.insertTuple(copy, t.getRecordId().getTupleNumber());
+        }
+        assertArrayEquals(built.getPageData(), changed);
+
+        HeapPage reread = new HeapPage(pid, changed);
+        assertEquals(Arrays.asList(slots(lazy, lazy.numSlots)),
+                Arrays.asList(slots(reread, reread.numSlots)));
+        assertArrayEquals(changed, reread.getPageData());
+    }
+
+    @Test public void slottedPageRoundTrip() throws Exception {
+        TupleDesc td = Utility.getTupleDesc(2);
+        File file = File.createTempFile("lazy", ".dat");
+        file.deleteOnExit();
+        HeapFile f = new HeapFile(file, td, HeapFile.PageFormat.SLOTTED);
+        Database.getCatalog().addTable(f, "lazy");
+        HeapPageId pid = new HeapPageId(f.getId(), 0);
+        SlottedHeapPage page = new SlottedHeapPage(pid, HeapPage.createEmptyPageData());
+        for (int i = 0; i < ROWS; i++)
+            page.insertTuple(row(td, i, 1000 - i));
+        byte[] bytes = page.getPageData();
+
+        SlottedHeapPage lazy = new SlottedHeapPage(pid, bytes);
+        assertArrayEquals(bytes, lazy.getPageData());
+        SlottedHeapPage decoded = new SlottedHeapPage(pid, bytes);
+        decodeAll(decoded);
+        assertArrayEquals(bytes, decoded.getPageData());
+
+        change(lazy);
+        change(decoded);
+        byte[] changed = lazy.getPageData();
+        assertArrayEquals(decoded.getPageData(), changed);
+        SlottedHeapPage reread = new SlottedHeapPage(pid, changed);
+        assertEquals(Arrays.asList(slots(lazy, lazy.numSlots)),
+                Arrays.asList(slots(reread, reread.numSlots)));
+        assertArrayEquals(changed, reread.getPageData());
+    }
+
+    /**
+     * Threads reading the same undecoded tuple at once, by toString,
+     * fields() and resetTupleDesc, all see each field once.
+     */
+    @Test public void concurrentMaterialize() throws Exception {
+        final TupleDesc td = Utility.getTupleDesc(4);
+        byte[] data = new byte[td.getSize()];
+        for (int i = 0; i < 4; i++)
+            data[i * 4 + 3] = (byte) (i + 1);
+        final String expected = "1\t2\t3\t4\t";
+        final int threads = 8;
+        final Throwable[] failure = new Throwable[1];
+
+        for (int round = 0; round < 2000; round++) {
+            final Tuple t = new Tuple(td, data, 0);
+            final CountDownLatch start = new CountDownLatch(1);
+            Thread[] readers = new Thread[threads];
+            for (int i = 0; i < threads; i++) {
+                final int kind = i % 3;
+                readers[i] = new Thread() {
+                    public void run() {
+                        try {
+                            start.await();
+                            if (kind == 0) {
+                                assertEquals(expected, t.toString());
+                            } else if (kind == 1) {
+                                int n = 0;
+                                for (Iterator<Field> it = t.fields(); it.hasNext(); it.next())
+                                    n++;
+                                assertEquals(4, n);
+                            } else {
+                                t.resetTupleDesc(td);
+                            }
+                        } catch (Throwable e) {
+                            synchronized (failure) {
+                                failure[0] = e;
+                            }
+                        }
+                    }
+                };
+                readers[i].start();
+            }
+            start.countDown();
+            for (Thread r : readers)
+                r.join();
+            synchronized (failure) {
+                if (failure[0] != null)
+                    throw new AssertionError("round " + round + ": " + failure[0]);
+            }
+            assertEquals(expected, t.toString());
+        }
+        assertNull(failure[0]);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LazyTupleTest.class);
+    }
+}
@@ -0,0 +1,286 @@
+package simpledb;
+
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import junit.framework.JUnit4TestAdapter;
+
+import simpledb.LockManager.Mode;
+
+/**
+ * Unit tests of LockManager's lock modes, lock escalation, and the choice
+ * of deadlock victims.
+ */
+public class LockManagerTest {
+
+    private static final Mode[] MODES = Mode.values();
+
+    private LockManager locks;
+    private PageId p0;
+    private TransactionId tid1, tid2;
+
+    @Before public void setUp() {
+        locks = new LockManager();
+        p0 = new HeapPageId(1, 0);
+        tid1 = new TransactionId();
+        tid2 = new TransactionId();
+    }
+
+    /** The compatibility matrix of multi-granularity locking. */
+    @Test public void compatibility() {
+        boolean[][] expected = {
+            //          IS     IX     S      SIX    X
+            /* IS  */ { true,  true,  true,  true,  false },
+            /* IX  */ { true,  true,  false, false, false },
+            /* S   */ { true,  false, true,  false, false },
+            /* SIX */ { true,  false, false, false, false },
+            /* X   */ { false, false, false, false, false },
+        };
+        for (Mode a : MODES) {
+            for (Mode b : MODES) {
+                assertEquals(a + " with " + b, expected[a.ordinal()][b.ordinal()],
+                        a.isCompatible(b));
+            }
+        }
+    }
+
+    /** join is the least upper bound of two modes. */
+    @Test public void join() {
+        Mode[][] expected = {
+            //          IS        IX        S         SIX       X
+            /* IS  */ { Mode.IS,  Mode.IX,  Mode.S,   Mode.SIX, Mode.X },
+            /* IX  */ { Mode.IX,  Mode.IX,  Mode.SIX, Mode.SIX, Mode.X },
+            /* S   */ { Mode.S,   Mode.SIX, Mode.S,   Mode.SIX, Mode.X },
+            /* SIX */ { Mode.SIX, Mode.SIX, Mode.SIX, Mode.SIX, Mode.X },
+            /* X   */ { Mode.X,   Mode.X,   Mode.X,   Mode.X,   Mode.X },
+        };
+        for (Mode a : MODES) {
+            for (Mode b : MODES) {
+                assertEquals(a + " join " + b, expected[a.ordinal()][b.ordinal()], a.join(b));
+                assertEquals(a.join(b), b.join(a));
+            }
+        }
+    }
+
+    /** A mode covers exactly the modes it joins to itself, and is no more
+        compatible with others than the modes it covers. */
+    @Test public void covers() {
+        for (Mode a : MODES) {
+            assertTrue(a.covers(a));
+            assertTrue(a.covers(Mode.IS));
+            assertTrue(Mode.X.covers(a));
+            for (Mode b : MODES) {
+                assertEquals(a + " covers " + b, a.join(b) == a, a.covers(b));
+                if (!a.covers(b))
+                    continue;
+                for (Mode c : MODES) {
+                    if (a.isCompatible(c))
+                        assertTrue(b.isCompatible(c));
+                }
+            }
+        }
+        assertFalse(Mode.S.covers(Mode.IX));
+        assertFalse(Mode.IX.covers(Mode.S));
+        assertTrue(Mode.SIX.covers(Mode.S));
+        assertTrue(Mode.SIX.covers(Mode.IX));
+        assertFalse(Mode.SIX.covers(Mode.X));
+    }
+
+    /** Row locks take intention locks on their page and table, and
+        conflict only on the same row. */
+    @Test public void rowLocks() throws Exception {
+        RecordId r0 = new RecordId(p0, 0);
+        RecordId r1 = new RecordId(p0, 1);
+        locks.lockRecord(tid1, r0, Permissions.READ_ONLY);
+        assertEquals(Mode.S, locks.getMode(tid1, r0));
+        assertEquals(Mode.IS, locks.getMode(tid1, p0));
+        assertEquals(Mode.IS, locks.getMode(tid1, p0.getTableId()));
+
+        assertFalse(locks.tryLockRecord(tid2, r0, Permissions.READ_WRITE));
+        assertNull(locks.getMode(tid2, r0));
+        assertTrue(locks.tryLockRecord(tid2, r0, Permissions.READ_ONLY));
+        assertTrue(locks.tryLockRecord(tid2, r1, Permissions.READ_WRITE));
+        assertEquals(Mode.IX, locks.getMode(tid2, p0));
+
+        // tid1 reads a row tid2 writes, so cannot have the page
+        assertFalse(locks.tryLockRecord(tid1, r1, Permissions.READ_ONLY));
+        locks.releaseAll(tid2);
+        assertFalse(locks.holdsLocks(tid2));
+        assertTrue(locks.tryLockRecord(tid1, r1, Permissions.READ_WRITE));
+        assertEquals(Mode.IX, locks.getMode(tid1, p0));
+    }
+
+    /**
+     * A transaction that passes the escalation threshold on a page trades
+     * its row locks for a page lock, unless another transaction holds a
+     * conflicting lock on the page; then it keeps them, without waiting,
+     * and escalates on a later row lock once the page is free.
+     */
+    @Test(timeout = 10000) public void escalationKeepsRowLocksWhenPageBusy() throws Exception {
+        locks.setEscalationThreshold(2);
+        RecordId other = new RecordId(p0, 9);
+        locks.lockRecord(tid2, other, Permissions.READ_WRITE);
+
+        for (int i = 0; i < 3; i++)
+            locks.lockRecord(tid1, new RecordId(p0, i), Permissions.READ_WRITE);
+        assertEquals(0, locks.getEscalations());
+        assertEquals(Mode.IX, locks.getMode(tid1, p0));
+        for (int i = 0; i < 3; i++)
+            assertEquals(Mode.X, locks.getMode(tid1, new RecordId(p0, i)));
+        assertEquals(Mode.X, locks.getMode(tid2, other));
+
+        locks.releaseAll(tid2);
+        locks.lockRecord(tid1, new RecordId(p0, 3), Permissions.READ_WRITE);
+        assertEquals(1, locks.getEscalations());
+        assertEquals(Mode.X, locks.getMode(tid1, p0));
+        for (int i = 0; i < 4; i++)
+            assertNull(locks.getMode(tid1, new RecordId(p0, i)));
+
+        // the page lock covers every row of the page
+        locks.lockRecord(tid1, other, Permissions.READ_WRITE);
+        assertNull(locks.getMode(tid1, other));
+        assertFalse(locks.tryLockRecord(tid2, other, Permissions.READ_ONLY));
+    }
+
+    /** Read row locks escalate to S on a page other readers intend to read. */
+    @Test(timeout = 10000) public void escalationToSharedBesideReaders() throws Exception {
+        locks.setEscalationThreshold(2);
+        locks.lockRecord(tid2, new RecordId(p0, 9), Permissions.READ_ONLY);
+        for (int i = 0; i < 3; i++)
+            locks.lockRecord(tid1, new RecordId(p0, i), Permissions.READ_ONLY);
+        assertEquals(1, locks.getEscalations());
+        assertEquals(Mode.S, locks.getMode(tid1, p0));
+        assertEquals(Mode.IS, locks.getMode(tid2, p0));
+    }
+
+    /** Let the log report the given number of updates for tid. */
+    private static void setUpdates(TransactionId tid, long updates) {
+        LogFile log = Database.getLogFile();
+        synchronized (log) {
+            log.tidToUpdateCount.put(tid.getId(), updates);
+        }
+    }
+
+    private static void clearUpdates(TransactionId... tids) {
+        LogFile log = Database.getLogFile();
+        synchronized (log) {
+            for (TransactionId tid : tids)
+                log.tidToUpdateCount.remove(tid.getId());
+        }
+    }
+
+    /**
+     * A thread that asks for an exclusive lock on a page for a transaction,
+     * and releases all its locks once it has it or is aborted.
+     */
+    private class Request extends Thread {
+        final TransactionId tid;
+        final PageId pid;
+        volatile boolean granted = false;
+        volatile boolean aborted = false;
+
+        Request(TransactionId tid, PageId pid) {
+            this.tid = tid;
+            this.pid = pid;
+        }
+
+        public void run() {
+            try {
+                locks.lockPage(tid, pid, Permissions.READ_WRITE);
+                granted = true;
+            } catch (TransactionAbortedException e) {
+                aborted = true;
+            }
+            locks.releaseAll(tid);
+        }
+    }
+
+    /** Start a request and wait until it waits. */
+    private Request startWaiting(TransactionId tid, PageId pid) throws Exception {
+        long waits = locks.getWaits();
+        Request r = new Request(tid, pid);
+        r.start();
+        while (locks.getWaits() == waits)
+            Thread.sleep(1);
+        return r;
+    }
+
+    /**
+     * Three transactions each hold a page and wait for the next one's.
+     * The one that has logged the fewest updates is aborted, and its locks
+     * let the others finish one after the other.
+     */
+    @Test(timeout = 10000) public void threeWayDeadlockAbortsFewestUpdates() throws Exception {
+        TransactionId tid3 = new TransactionId();
+        PageId p1 = new HeapPageId(1, 1), p2 = new HeapPageId(1, 2);
+        setUpdates(tid1, 5);
+        setUpdates(tid2, 1);
+        setUpdates(tid3, 3);
+        try {
+            locks.lockPage(tid1, p0, Permissions.READ_WRITE);
+            locks.lockPage(tid2, p1, Permissions.READ_WRITE);
+            locks.lockPage(tid3, p2, Permissions.READ_WRITE);
+            long waitNanos = locks.getWaitNanos();
+
+            Request r1 = startWaiting(tid1, p1);
+            Request r2 = startWaiting(tid2, p2);
+            assertEquals(0, locks.getDeadlocks());
+            // tid3 closes the cycle; tid2 has the fewest updates
+            Request r3 = new Request(tid3, p0);
+            r3.start();
+            r2.join();
+            assertTrue(r2.aborted);
+            assertEquals(1, locks.getDeadlocks());
+            r1.join();
+            assertTrue(r1.granted);
+            r3.join();
+            assertTrue(r3.granted);
+            assertEquals(3, locks.getWaits());
+            assertTrue(locks.getWaitNanos() > waitNanos);
+            assertEquals(1, locks.getDeadlocks());
+        } finally {
+            clearUpdates(tid1, tid2, tid3);
+        }
+    }
+
+    /** The transaction whose request closes the cycle is aborted at once
+        when it has the fewest updates. */
+    @Test(timeout = 10000) public void requesterAbortedWhenCheapest() throws Exception {
+        TransactionId tid3 = new TransactionId();
+        PageId p1 = new HeapPageId(1, 1), p2 = new HeapPageId(1, 2);
+        setUpdates(tid1, 2);
+        setUpdates(tid2, 7);
+        setUpdates(tid3, 0);
+        try {
+            locks.lockPage(tid1, p0, Permissions.READ_WRITE);
+            locks.lockPage(tid2, p1, Permissions.READ_WRITE);
+            locks.lockPage(tid3, p2, Permissions.READ_WRITE);
+            Request r1 = startWaiting(tid1, p1);
+            Request r2 = startWaiting(tid2, p2);
+            try {
+                locks.lockPage(tid3, p0, Permissions.READ_WRITE);
+                fail("the cheapest transaction of the cycle was not aborted");
+            } catch (TransactionAbortedException e) {
+                // expected
+            }
+            assertEquals(1, locks.getDeadlocks());
+            assertFalse(r1.aborted || r2.aborted);
+            locks.releaseAll(tid3);
+            r2.join();
+            assertTrue(r2.granted);
+            r1.join();
+            assertTrue(r1.granted);
+        } finally {
+            clearUpdates(tid1, tid2, tid3);
+        }
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LockManagerTest.class);
+    }
+}
@@ -0,0 +1,165 @@
+package simpledb;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+/**
+ * Tests of LogFile.logCommit under many committing threads, with and
+ * without group commit: every commit returns only once its COMMIT record
+ * is on disk, and the flushed LSN never moves back.
+ */
+public class LogGroupCommitTest extends SimpleDbTestBase {
+
+    private static final int THREADS = 8;
+    private static final int COMMITS_PER_THREAD = 200;
+
+    /** The size of a BEGIN or COMMIT record: type, tid and offset. */
+    private static final int RECORD_SIZE = 4 + 8 + 8;
+
+    /**
+     * Run THREADS threads of empty transactions against a new log, each
+     * noting the flushed LSN as soon as its commit returns, while another
+     * thread checks that the flushed LSN never decreases.  Then check each
+     * noted LSN against the end of the transaction's COMMIT record.
+     */
+    private void commitConcurrently(boolean groupCommit, int size, long windowMicros)
+            throws Exception {
+        File f = File.createTempFile("commitlog", ".dat");
+        f.deleteOnExit();
+        final LogFile log = new LogFile(f);
+        log.setGroupCommitEnabled(groupCommit);
+        log.setGroupCommit(size, windowMicros);
+
+        final CountDownLatch start = new CountDownLatch(1);
+        final HashMap<Long, Long> seen = new HashMap<Long, Long>();
+        final Throwable[] failure = new Throwable[1];
+        List<Thread> committers = new ArrayList<Thread>();
+        for (int i = 0; i < THREADS; i++) {
+            Thread t = new Thread() {
+                public void run() {
+                    try {
+                        start.await();
+                        for (int n = 0; n < COMMITS_PER_THREAD; n++) {
+                            TransactionId tid = new TransactionId();
+                            log.logXactionBegin(tid);
+                            log.logCommit(tid);
+                            long flushed = log.getFlushedLSN();
+                            synchronized (seen) {
+                                seen.put(tid.getId(), flushed);
+                            }
+                        }
+                    } catch (Throwable e) {
+                        synchronized (failure) {
+                            if (failure[0] == null)
+                                failure[0] = e;
+                        }
+                    }
+                }
+            };
+            committers.add(t);
+            t.start();
+        }
+
+        final AtomicBoolean done = new AtomicBoolean(false);
+        final long[] backwards = new long[2];
+        Thread watcher = new Thread() {
+            public void run() {
+                long last = log.getFlushedLSN();
+                while (!done.get()) {
+                    long now = log.getFlushedLSN();
+                    if (now < last && backwards[0] == 0) {
+                        backwards[0] = last;
+                        backwards[1] = now;
+                    }
+                    last = now;
+                }
+            }
+        };
+        watcher.start();
+        start.countDown();
+        for (Thread t : committers)
+            t.join();
+        done.set(true);
+        watcher.join();
+
+        if (failure[0] != null)
+            throw new RuntimeException("committer failed", failure[0]);
+        assertEquals("flushed LSN moved back from " + backwards[0] + " to " + backwards[1],
+                0, backwards[0]);
+
+        HashMap<Long, Long> commitEnds = readCommitEnds(f);
+        assertEquals(THREADS * COMMITS_PER_THREAD, commitEnds.size());
+        for (Long tid : seen.keySet()) {
+            Long end = commitEnds.get(tid);
+            assertNotNull("no COMMIT record for " + tid, end);
+            assertTrue("commit of " + tid + " returned with the log flushed to "
+                    + seen.get(tid) + ", before its record at " + end,
+                    seen.get(tid) >= end);
+        }
+        assertEquals(f.length(), log.getFlushedLSN());
+        f.delete();
+    }
+
+    /** @return the LSN of the end of each COMMIT record in a log of
+        BEGIN and COMMIT records only, by transaction id */
+    private static HashMap<Long, Long> readCommitEnds(File f) throws IOException {
+        HashMap<Long, Long> ends = new HashMap<Long, Long>();
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(f)));
+        try {
+            in.readLong(); // no checkpoint
+            long offset = 8;
+            while (offset < f.length()) {
+                int type = in.readInt();
+                long tid = in.readLong();
+                in.readLong();
+                offset += RECORD_SIZE;
+                assertTrue(type == LogFile.BEGIN_RECORD || type == LogFile.COMMIT_RECORD);
+                if (type == LogFile.COMMIT_RECORD)
+                    ends.put(tid, offset);
+            }
+        } finally {
+            in.close();
+        }
+        return ends;
+    }
+
+    @Test public void withoutGroupCommit() throws Exception {
+        commitConcurrently(false, 1, 0);
+    }
+
+    @Test public void groupCommitNoWindow() throws Exception {
+        commitConcurrently(true, 1, 0);
+    }
+
+    @Test public void groupCommitBatches() throws Exception {
+        commitConcurrently(true, THREADS / 2, 200);
+    }
+
+    /** A batch larger than there are threads, so leaders always wait out
+        the window. */
+    @Test public void groupCommitWindowExpires() throws Exception {
+        commitConcurrently(true, THREADS * 2, 100);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LogGroupCommitTest.class);
+    }
+}
@@ -0,0 +1,129 @@
+package simpledb;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import org.junit.Test;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+/**
+ * Tests of MappedPageReader: pages appended after the file was mapped are
+ * read from a new mapping, reads past the end of the file are left to the
+ * ordinary read, and heap and B+ tree files read the same pages whether
+ * their reads are mapped or not.
+ */
+public class MappedPageReaderTest extends SimpleDbTestBase {
+
+    private static final int PAGE = 4096;
+
+    /** @return page number n, every byte of it set to n */
+    private static byte[] page(int n) {
+        byte[] page = new byte[PAGE];
+        java.util.Arrays.fill(page, (byte) n);
+        return page;
+    }
+
+    private static void append(File f, int... pages) throws IOException {
+        FileOutputStream out = new FileOutputStream(f, true);
+        try {
+            for (int n : pages)
+                out.write(page(n));
+        } finally {
+            out.close();
+        }
+    }
+
+    private static byte[] read(MappedPageReader reader, int n) throws IOException {
+        byte[] buf = new byte[PAGE];
+        assertTrue(reader.read((long) n * PAGE, buf, PAGE));
+        return buf;
+    }
+
+    @Test public void remapsAfterGrowth() throws Exception {
+        File f = File.createTempFile("mapped", ".dat");
+        f.deleteOnExit();
+        append(f, 0, 1);
+        MappedPageReader reader = new MappedPageReader(f);
+        try {
+            assertArrayEquals(page(1), read(reader, 1));
+            assertArrayEquals(page(0), read(reader, 0));
+            assertFalse(reader.read(2L * PAGE, new byte[PAGE], PAGE));
+
+            // the file grows after the first mapping was made
+            append(f, 2, 3);
+            assertArrayEquals(page(3), read(reader, 3));
+            assertArrayEquals(page(2), read(reader, 2));
+            assertArrayEquals(page(0), read(reader, 0));
+            // a read that runs past the end is not served at all
+            assertFalse(reader.read(3L * PAGE + 1, new byte[PAGE], PAGE));
+        } finally {
+            reader.close();
+        }
+
+        // and a closed reader maps the file again on its next read
+        append(f, 4);
+        assertArrayEquals(page(4), read(reader, 4));
+        reader.close();
+    }
+
+    /** @return the bytes of every page of f, with reads mapped or not */
+    private static byte[][] pages(HeapFile f, boolean mapped) throws Exception {
+        f.setMemoryMapped(mapped);
+        byte[][] pages = new byte[f.numPages()][];
+        for (int i = 0; i < pages.length; i++)
+            pages[i] = f.readPage(new HeapPageId(f.getId(), i)).getPageData();
+        return pages;
+    }
+
+    @Test public void heapFileReads() throws Exception {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 504 * 3 + 10, null, null);
+        byte[][] plain = pages(f, false);
+        byte[][] mapped = pages(f, true);
+        assertArrayEquals(plain, mapped);
+
+        // a page written after the mapping was made is read from a new one
+        HeapPageId pid = new HeapPageId(f.getId(), f.numPages());
+        HeapPage added = new HeapPage(pid, HeapPage.createEmptyPageData());
+        Tuple t = new Tuple(f.getTupleDesc());
+        t.setField(0, new IntField(7));
+        t.setField(1, new IntField(8));
+        added.insertTuple(t);
+        f.writePage(added);
+        assertArrayEquals(added.getPageData(), f.readPage(pid).getPageData());
+
+        // past the end the mapped read falls back to the ordinary one
+        assertNull(f.readPage(new HeapPageId(f.getId(), f.numPages())));
+
+        // turned off again, reads go to the file
+        assertArrayEquals(pages(f, true), pages(f, false));
+    }
+
+    @Test public void btreeFileReads() throws Exception {
+        BTreeFile f = BTreeUtility.createRandomBTreeFile(2, 2000, null, null, 0);
+        TransactionId tid = new TransactionId();
+        BTreePageId rootPtr = BTreeRootPtrPage.getId(f.getId());
+        BTreePageId root = f.getRootPtrPage(tid, new java.util.HashMap<PageId, Page>()).getRootId();
+        Database.getBufferPool().transactionComplete(tid);
+
+        f.setMemoryMapped(false);
+        byte[] plainPtr = f.readPage(rootPtr).getPageData();
+        byte[] plainRoot = f.readPage(root).getPageData();
+        f.setMemoryMapped(true);
+        assertArrayEquals(plainPtr, f.readPage(rootPtr).getPageData());
+        assertArrayEquals(plainRoot, f.readPage(root).getPageData());
+        f.setMemoryMapped(false);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(MappedPageReaderTest.class);
+    }
+}
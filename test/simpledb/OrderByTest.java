@@ -0,0 +1,147 @@
+package simpledb;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+/**
+ * Tests of OrderBy on several fields, some ascending and some descending,
+ * in memory and as an external sort with more runs than one merge takes:
+ * both give the rows in order, ties in input order, and the runs are gone
+ * once the sort closes.
+ */
+public class OrderByTest extends SimpleDbTestBase {
+
+    private static final int ROWS = 1000;
+
+    /** @return rows (i % 5, i * 7 % 11, i) for i below ROWS, shuffled */
+    private static List<Tuple> input() {
+        List<Tuple> rows = new ArrayList<Tuple>();
+        for (int i = 0; i < ROWS; i++) {
+            Tuple t = new Tuple(Utility.getTupleDesc(3));
+            t.setField(0, new IntField(i % 5));
+            t.setField(1, new IntField(i * 7 % 11));
+            t.setField(2, new IntField(i));
+            rows.add(t);
+        }
+        Collections.shuffle(rows, new java.util.Random(3));
+        return rows;
+    }
+
+    private static List<Integer> row(Tuple t) {
+        List<Integer> row = new ArrayList<Integer>();
+        for (int i = 0; i < 3; i++)
+            row.add(((IntField) t.getField(i)).getValue());
+        return row;
+    }
+
+    /** @return the rows of input sorted stably on fields by asc */
+    private static List<List<Integer>> expected(final int[] fields, final boolean[] asc) {
+        List<List<Integer>> rows = new ArrayList<List<Integer>>();
+        for (Tuple t : input())
+            rows.add(row(t));
+        Collections.sort(rows, new Comparator<List<Integer>>() {
+            public int compare(List<Integer> a, List<Integer> b) {
+                for (int i = 0; i < fields.length; i++) {
+                    int c = a.get(fields[i]).compareTo(b.get(fields[i]));
+                    if (c != 0)
+                        return asc[i] ? c : -c;
+                }
+                return 0;
+            }
+        });
+        return rows;
+    }
+
+    private static List<List<Integer>> rows(OpIterator it) throws Exception {
+        List<List<Integer>> rows = new ArrayList<List<Integer>>();
+        while (it.hasNext())
+            rows.add(row(it.next()));
+        return rows;
+    }
+
+    /** @return the number of spill files in the temporary directory */
+    private static int spillFiles() throws Exception {
+        File tmp = File.createTempFile("probe", ".tmp");
+        tmp.delete();
+        return tmp.getParentFile().list(new FilenameFilter() {
+            public boolean accept(File dir, String name) {
+                return name.startsWith("spill") && name.endsWith(".tmp");
+            }
+        }).length;
+    }
+
+    private static OrderBy orderBy(int[] fields, boolean[] asc, int budget) {
+        OrderBy o = new OrderBy(fields, asc,
+                new TupleIterator(Utility.getTupleDesc(3), input()));
+        if (budget > 0)
+            o.setMemoryBudget(budget);
+        return o;
+    }
+
+    @Test public void inMemory() throws Exception {
+        int[] fields = { 0, 1 };
+        boolean[] asc = { true, false };
+        OrderBy o = orderBy(fields, asc, 0);
+        o.open();
+        assertFalse(o.isSpilled());
+        List<List<Integer>> expected = expected(fields, asc);
+        assertEquals(expected, rows(o));
+        o.rewind();
+        assertEquals(expected, rows(o));
+        o.close();
+    }
+
+    /**
+     * A budget of three tuples writes 334 runs, more than MERGE_FANIN, so
+     * a merge pass leaves six runs to merge as the output is read.
+     */
+    @Test public void externalSort() throws Exception {
+        int runs = (ROWS + 2) / 3;
+        assertTrue(runs > OrderBy.MERGE_FANIN);
+        int merged = (runs + OrderBy.MERGE_FANIN - 1) / OrderBy.MERGE_FANIN;
+
+        int[][] fields = { { 0, 1 }, { 1, 0 }, { 0, 1, 2 } };
+        boolean[][] asc = { { true, false }, { false, true }, { false, false, true } };
+        int before = spillFiles();
+        for (int i = 0; i < fields.length; i++) {
+            OrderBy o = orderBy(fields[i], asc[i], 3);
+            o.open();
+            assertTrue(o.isSpilled());
+            assertEquals(before + merged, spillFiles());
+            List<List<Integer>> expected = expected(fields[i], asc[i]);
+            assertEquals(expected, rows(o));
+            o.rewind();
+            assertEquals(expected, rows(o));
+            o.close();
+            assertFalse(o.isSpilled());
+            assertEquals(before, spillFiles());
+        }
+    }
+
+    /** The one-field constructor sorts on disk too, ties in input order. */
+    @Test public void singleField() throws Exception {
+        OrderBy byOne = new OrderBy(1, false, new TupleIterator(Utility.getTupleDesc(3), input()));
+        byOne.setMemoryBudget(7);
+        byOne.open();
+        assertTrue(byOne.isSpilled());
+        assertEquals(expected(new int[] { 1 }, new boolean[] { false }), rows(byOne));
+        byOne.close();
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(OrderByTest.class);
+    }
+}
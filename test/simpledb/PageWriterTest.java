@@ -0,0 +1,74 @@
+package simpledb;
+
+import java.io.IOException;
+
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import junit.framework.JUnit4TestAdapter;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+/**
+ * Tests of the background PageWriter when pages cannot be written.
+ */
+public class PageWriterTest extends SimpleDbTestBase {
+
+    private TestUtil.FailingHeapFile file;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 10, null, null);
+        file = new TestUtil.FailingHeapFile(f.getFile(), f.getTupleDesc());
+        file.failing = true;
+        Database.getCatalog().addTable(file, "failing");
+    }
+
+    /** Commit an insert, leaving its page dirty in the pool. */
+    private PageId dirtyCommittedPage() throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        Tuple tup = new Tuple(Utility.getTupleDesc(2));
+        tup.setField(0, new IntField(1));
+        tup.setField(1, new IntField(2));
+        Database.getBufferPool().insertTuple(t.getId(), file.getId(), tup);
+        t.commit();
+        assertEquals(1, Database.getBufferPool().dirtyPageIds().size());
+        return Database.getBufferPool().dirtyPageIds().get(0);
+    }
+
+    /**
+     * A failed background write is thrown from drain, once, and leaves the
+     * page dirty for the next pass to write.
+     */
+    @Test public void failedWriteKeepsPageDirty() throws Exception {
+        BufferPool bp = Database.getBufferPool();
+        PageWriter writer = bp.getPageWriter();
+        PageId pid = dirtyCommittedPage();
+
+        writer.schedule(bp.dirtyPageIds());
+        try {
+            writer.drain();
+            fail("drain should throw the failed write");
+        } catch (IOException e) {
+            assertEquals("disk full", e.getCause().getMessage());
+        }
+        assertEquals(0, writer.getPagesWritten());
+        assertTrue(bp.dirtyPageIds().contains(pid));
+        assertTrue(writer.drain()); // reported once
+
+        file.failing = false;
+        writer.schedule(bp.dirtyPageIds());
+        assertTrue(writer.drain());
+        assertEquals(1, writer.getPagesWritten());
+        assertTrue(bp.dirtyPageIds().isEmpty());
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PageWriterTest.class);
+    }
+}
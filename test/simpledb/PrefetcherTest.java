@@ -0,0 +1,150 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+/**
+ * Tests of Prefetcher: read-ahead starts once SEQUENTIAL_THRESHOLD pages of
+ * a table have been requested in a row, random requests never start it,
+ * and it takes free slots or clean pages but never evicts a dirty page.
+ */
+public class PrefetcherTest extends SimpleDbTestBase {
+
+    private static final int PAGES = 20;
+
+    private HeapFile f;
+
+    @Before public void createTable() throws Exception {
+        f = SystemTestUtil.createRandomHeapFile(2, 504 * PAGES, null, null);
+        assertEquals(PAGES, f.numPages());
+    }
+
+    private HeapPageId pid(int n) {
+        return new HeapPageId(f.getId(), n);
+    }
+
+    /** Wait for the prefetcher to have read n pages in all. */
+    private static void awaitPrefetched(Prefetcher p, long n) throws Exception {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (p.getPagesPrefetched() < n && System.currentTimeMillis() < deadline)
+            Thread.sleep(1);
+        assertEquals(n, p.getPagesPrefetched());
+    }
+
+    /** Give the background thread time to read anything it was asked to. */
+    private static void settle() throws Exception {
+        Thread.sleep(200);
+    }
+
+    @Test public void startsAfterThreshold() throws Exception {
+        BufferPool pool = Database.resetBufferPool(50);
+        Prefetcher p = pool.getPrefetcher();
+        int last = Prefetcher.SEQUENTIAL_THRESHOLD - 1;
+        for (int i = 0; i < last; i++) {
+            p.pageRequested(pid(i));
+            p.pageRequested(pid(i)); // a page asked for again is no step
+        }
+        settle();
+        assertEquals(0, p.getPagesPrefetched());
+        assertEquals(0, pool.getNumCached());
+
+        // the request that completes the run reads the window ahead of it
+        p.pageRequested(pid(last));
+        awaitPrefetched(p, p.getWindow());
+        assertEquals(p.getWindow(), pool.getNumCached());
+        TransactionId tid = new TransactionId();
+        long hits = pool.getReplacementPolicy().getHits();
+        for (int i = last + 1; i <= last + p.getWindow(); i++)
+            pool.getPage(tid, pid(i), Permissions.READ_ONLY);
+        assertEquals(hits + p.getWindow(), pool.getReplacementPolicy().getHits());
+        pool.transactionComplete(tid);
+
+        // once half the window is read, it is topped up, never past the end
+        for (int i = last + 1; i < PAGES; i++)
+            p.pageRequested(pid(i));
+        awaitPrefetched(p, PAGES - last - 1);
+        settle();
+        assertEquals(PAGES - last - 1, p.getPagesPrefetched());
+    }
+
+    @Test public void randomAccessDoesNotPrefetch() throws Exception {
+        BufferPool pool = Database.resetBufferPool(50);
+        Prefetcher p = pool.getPrefetcher();
+        int[] order = { 5, 2, 9, 0, 14, 7, 3, 19, 11, 6, 1, 16 };
+        for (int n : order)
+            p.pageRequested(pid(n));
+        settle();
+        assertEquals(0, p.getPagesPrefetched());
+        assertEquals(0, pool.getNumCached());
+
+        // nor do steps of one page that alternate between two runs
+        for (int i = 0; i < 6; i++)
+            p.pageRequested(pid(i % 2 == 0 ? 10 + i : 2 + i));
+        settle();
+        assertEquals(0, p.getPagesPrefetched());
+    }
+
+    /** @return pages first to first + n - 1, read and dirtied by tid */
+    private List<Page> dirty(BufferPool pool, TransactionId tid, int first, int n)
+            throws Exception {
+        List<Page> dirty = new ArrayList<Page>();
+        for (int i = first; i < first + n; i++) {
+            Page page = pool.getPage(tid, pid(i), Permissions.READ_WRITE);
+            page.markDirty(true, tid);
+            dirty.add(page);
+        }
+        return dirty;
+    }
+
+    private static void assertStillDirty(BufferPool pool, TransactionId tid, List<Page> pages) {
+        for (Page page : pages) {
+            assertTrue(pool.isResident(page));
+            assertEquals(tid, page.isDirty());
+        }
+    }
+
+    @Test public void neverEvictsDirtyPages() throws Exception {
+        BufferPool pool = Database.resetBufferPool(4);
+        Prefetcher p = pool.getPrefetcher();
+        TransactionId tid = new TransactionId();
+        List<Page> dirty = dirty(pool, tid, 12, 4);
+        long evictions = pool.getEvictions();
+        for (int i = 0; i < Prefetcher.SEQUENTIAL_THRESHOLD; i++)
+            p.pageRequested(pid(i));
+        settle();
+        assertEquals(0, p.getPagesPrefetched());
+        assertEquals(evictions, pool.getEvictions());
+        assertStillDirty(pool, tid, dirty);
+        pool.transactionComplete(tid, false);
+    }
+
+    /** With two dirty pages, read-ahead cycles through the other two slots. */
+    @Test public void evictsOnlyCleanPages() throws Exception {
+        BufferPool pool = Database.resetBufferPool(4);
+        Prefetcher p = pool.getPrefetcher();
+        TransactionId tid = new TransactionId();
+        List<Page> dirty = dirty(pool, tid, 15, 2);
+        for (int i = 0; i < Prefetcher.SEQUENTIAL_THRESHOLD; i++)
+            p.pageRequested(pid(i));
+        awaitPrefetched(p, p.getWindow());
+        assertEquals(p.getWindow() - 2, pool.getEvictions());
+        assertEquals(0, pool.getDirtyEvictions());
+        assertEquals(4, pool.getNumCached());
+        assertStillDirty(pool, tid, dirty);
+        pool.transactionComplete(tid, false);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PrefetcherTest.class);
+    }
+}
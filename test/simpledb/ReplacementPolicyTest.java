@@ -0,0 +1,167 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+/**
+ * Tests of the eviction order of LRU-K and 2Q, and of their resistance to
+ * scans: pages in repeated use stay in the pool while a scan of a larger
+ * table passes through it.
+ */
+public class ReplacementPolicyTest extends SimpleDbTestBase {
+
+    private static final int POOL_PAGES = 16;
+    private static final int HOT_PAGES = 4;
+    private static final int TABLE_PAGES = 120;
+
+    private HeapFile f;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        f = SystemTestUtil.createRandomHeapFile(2, 504 * TABLE_PAGES, null, null);
+        assertEquals(TABLE_PAGES, f.numPages());
+    }
+
+    private static PageId page(int n) {
+        return new HeapPageId(1, n);
+    }
+
+    private static List<PageId> order(ReplacementPolicy policy) {
+        List<PageId> order = new ArrayList<PageId>();
+        for (Iterator<PageId> it = policy.evictionOrder(); it.hasNext(); )
+            order.add(it.next());
+        return order;
+    }
+
+    /** Pages with fewer than K references go first, oldest first; then
+        the oldest K-th reference. */
+    @Test public void lruKOrder() {
+        ReplacementPolicy lru2 = new LruKReplacementPolicy(2, POOL_PAGES);
+        lru2.pageAdmitted(page(0));
+        lru2.pageAdmitted(page(1));
+        lru2.pageAdmitted(page(2));
+        lru2.pageHit(page(1));
+        lru2.pageHit(page(0));
+        lru2.pageAdmitted(page(3));
+        assertEquals(Arrays.asList(page(2), page(3), page(0), page(1)), order(lru2));
+
+        // a page read again soon after eviction keeps its history
+        lru2.pageRemoved(page(1));
+        assertEquals(Arrays.asList(page(2), page(3), page(0)), order(lru2));
+        lru2.pageAdmitted(page(1));
+        assertEquals(Arrays.asList(page(2), page(3), page(0), page(1)), order(lru2));
+        // page 2's K-th reference, its admission, is older than page 1's
+        lru2.pageHit(page(2));
+        assertEquals(Arrays.asList(page(3), page(0), page(2), page(1)), order(lru2));
+        assertEquals(3, lru2.getHits());
+        assertEquals(5, lru2.getMisses());
+    }
+
+    /** A1in is FIFO and hits do not promote; a page read again from the
+        ghost queue enters Am, which is LRU. */
+    @Test public void twoQueueOrder() {
+        // A1in's share is one page of four
+        ReplacementPolicy twoQ = new TwoQueueReplacementPolicy(4, 0.25, 0.5);
+        twoQ.pageAdmitted(page(0));
+        twoQ.pageAdmitted(page(1));
+        twoQ.pageHit(page(0));
+        assertEquals(Arrays.asList(page(0), page(1)), order(twoQ));
+
+        twoQ.pageRemoved(page(0));
+        twoQ.pageAdmitted(page(0));
+        // A1in is down to its share, so Am goes first
+        assertEquals(Arrays.asList(page(0), page(1)), order(twoQ));
+        twoQ.pageRemoved(page(1));
+        twoQ.pageAdmitted(page(1));
+        twoQ.pageAdmitted(page(2));
+        twoQ.pageHit(page(0));
+        assertEquals(Arrays.asList(page(1), page(0), page(2)), order(twoQ));
+        twoQ.pageAdmitted(page(3));
+        // A1in is over its share again
+        assertEquals(Arrays.asList(page(2), page(3), page(1), page(0)), order(twoQ));
+    }
+
+    /** Pages may come and go while the pool walks the order, which offers
+        every page resident throughout. */
+    @Test public void walkWhilePagesChange() {
+        for (ReplacementPolicy policy : new ReplacementPolicy[] {
+                new LruKReplacementPolicy(2, POOL_PAGES), new TwoQueueReplacementPolicy(POOL_PAGES) }) {
+            for (int i = 0; i < 8; i++)
+                policy.pageAdmitted(page(i));
+            Iterator<PageId> it = policy.evictionOrder();
+            assertEquals(page(0), it.next());
+            policy.pageRemoved(page(0));
+            policy.pageRemoved(page(5));
+            policy.pageAdmitted(page(8));
+            policy.pageHit(page(3));
+            List<PageId> rest = new ArrayList<PageId>();
+            while (it.hasNext())
+                rest.add(it.next());
+            for (int i : new int[] { 1, 2, 4, 6, 7 })
+                assertTrue(policy + " skipped " + i, rest.contains(page(i)));
+            assertEquals(7, order(policy).size());
+        }
+    }
+
+    private void read(BufferPool pool, TransactionId tid, int from, int to) throws Exception {
+        for (int i = from; i < to; i++)
+            pool.getPage(tid, new HeapPageId(f.getId(), i), Permissions.READ_ONLY);
+    }
+
+    /**
+     * Make pages 0 to HOT_PAGES hot: read them, push them out with other
+     * pages, and read them again.  Then scan the rest of the table, and
+     * count the hits and misses of reading the hot pages once more.
+     *
+     * @return the hits and misses of the last reads of the hot pages
+     */
+    private long[] hotPagesAfterScan(ReplacementPolicy policy) throws Exception {
+        BufferPool pool = new BufferPool(POOL_PAGES, policy);
+        TransactionId tid = new TransactionId();
+        read(pool, tid, 0, HOT_PAGES);
+        read(pool, tid, HOT_PAGES, HOT_PAGES + POOL_PAGES);
+        read(pool, tid, 0, HOT_PAGES);
+
+        policy.resetStats();
+        read(pool, tid, HOT_PAGES + POOL_PAGES, TABLE_PAGES);
+        assertEquals(0, policy.getHits());
+        assertEquals(TABLE_PAGES - HOT_PAGES - POOL_PAGES, policy.getMisses());
+
+        policy.resetStats();
+        read(pool, tid, 0, HOT_PAGES);
+        pool.transactionComplete(tid);
+        return new long[] { policy.getHits(), policy.getMisses() };
+    }
+
+    @Test public void lruKResistsScans() throws Exception {
+        assertEquals(Arrays.toString(new long[] { HOT_PAGES, 0 }),
+                Arrays.toString(hotPagesAfterScan(new LruKReplacementPolicy(POOL_PAGES))));
+    }
+
+    @Test public void twoQueueResistsScans() throws Exception {
+        assertEquals(Arrays.toString(new long[] { HOT_PAGES, 0 }),
+                Arrays.toString(hotPagesAfterScan(new TwoQueueReplacementPolicy(POOL_PAGES))));
+    }
+
+    /** Plain LRU, for contrast, loses the hot pages to the scan. */
+    @Test public void lruDoesNotResistScans() throws Exception {
+        assertEquals(Arrays.toString(new long[] { 0, HOT_PAGES }),
+                Arrays.toString(hotPagesAfterScan(new LruKReplacementPolicy(1, POOL_PAGES))));
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ReplacementPolicyTest.class);
+    }
+}
@@ -0,0 +1,151 @@
+package simpledb;
+
+import java.util.*;
+
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+/**
+ * Two transactions holding row locks change the same page, and one of
+ * them rolls back.  Its updates are undone by flipping back only the bits
+ * they changed, so the other transaction's changes to the page, even in
+ * the same bytes of the page header, survive and commit.
+ */
+public class RowRollbackTest extends TestUtil.CreateHeapFile {
+
+    private static final int ROWS = 10;
+
+    private BufferPool bp;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        Transaction t = new Transaction();
+        t.start();
+        for (int i = 0; i < ROWS; i++)
+            bp.insertTuple(t.getId(), empty.getId(), Utility.getHeapTuple(i, 2));
+        t.commit();
+        bp.flushAllPages();
+        bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+
+        t = new Transaction();
+        t.start();
+        SeqScan scan = new SeqScan(t.getId(), empty.getId(), "");
+        scan.open();
+        while (scan.hasNext()) {
+            Tuple tup = scan.next();
+            assertEquals(((IntField) tup.getField(0)).getValue(),
+                    tup.getRecordId().getTupleNumber());
+        }
+        scan.close();
+        t.commit();
+    }
+
+    private void insert(Transaction t, int v) throws Exception {
+        bp.insertTuple(t.getId(), empty.getId(), Utility.getHeapTuple(v, 2));
+    }
+
+    /** Delete one of the rows setUp inserted, which is in the slot of
+        its value, by its record id: a scan would wait on the other
+        transaction's row locks. */
+    private void delete(Transaction t, int v) throws Exception {
+        Tuple tup = Utility.getHeapTuple(v, 2);
+        tup.setRecordId(new RecordId(new HeapPageId(empty.getId(), 0), v));
+        bp.deleteTuple(t.getId(), tup);
+    }
+
+    /** @return the first field of every row of the table, sorted */
+    private List<Integer> contents() throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        ArrayList<Integer> values = new ArrayList<Integer>();
+        SeqScan scan = new SeqScan(t.getId(), empty.getId(), "");
+        scan.open();
+        while (scan.hasNext())
+            values.add(((IntField) scan.next().getField(0)).getValue());
+        scan.close();
+        t.commit();
+        Collections.sort(values);
+        return values;
+    }
+
+    /** Check the table, through the pool and then from disk. */
+    private void assertContents(List<Integer> expected) throws Exception {
+        assertEquals(expected, contents());
+        bp.flushAllPages();
+        bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        assertEquals(expected, contents());
+    }
+
+    private static List<Integer> expected(int[] removed, int[] added) {
+        ArrayList<Integer> values = new ArrayList<Integer>();
+        for (int i = 0; i < ROWS; i++)
+            values.add(i);
+        for (int v : removed)
+            values.remove(Integer.valueOf(v));
+        for (int v : added)
+            values.add(v);
+        Collections.sort(values);
+        return values;
+    }
+
+    /** Both inserts fill adjacent slots, whose header bits share a byte;
+        the page is still in the pool when t1 rolls back. */
+    @Test public void rollbackKeepsOtherInsert() throws Exception {
+        Transaction t1 = new Transaction();
+        t1.start();
+        Transaction t2 = new Transaction();
+        t2.start();
+        insert(t1, 100);
+        insert(t2, 200);
+        assertEquals(1, empty.numPages());
+
+        t1.abort();
+        t2.commit();
+        assertContents(expected(new int[0], new int[] { 200 }));
+    }
+
+    /** Inserts and deletes of both transactions on one page, written to
+        disk before t1 rolls back, so the rollback starts from disk. */
+    @Test public void rollbackOfStolenPageKeepsOtherChanges() throws Exception {
+        Transaction t1 = new Transaction();
+        t1.start();
+        Transaction t2 = new Transaction();
+        t2.start();
+        insert(t1, 100);
+        insert(t2, 200);
+        delete(t1, 3);
+        delete(t2, 4);
+        insert(t1, 101);
+        bp.flushAllPages();
+        assertTrue(bp.dirtyPageIds().isEmpty());
+
+        t1.abort();
+        t2.commit();
+        assertContents(expected(new int[] { 4 }, new int[] { 200 }));
+    }
+
+    /** The transaction that rolls back changed the page last. */
+    @Test public void rollbackOfLaterChanges() throws Exception {
+        Transaction t1 = new Transaction();
+        t1.start();
+        Transaction t2 = new Transaction();
+        t2.start();
+        insert(t2, 200);
+        delete(t2, 4);
+        insert(t1, 100);
+        delete(t1, 3);
+
+        t1.abort();
+        t2.commit();
+        assertContents(expected(new int[] { 4 }, new int[] { 200 }));
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(RowRollbackTest.class);
+    }
+}
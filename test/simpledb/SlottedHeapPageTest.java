@@ -0,0 +1,338 @@
+package simpledb;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import junit.framework.JUnit4TestAdapter;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+/**
+ * Tests of SlottedHeapPage: records of every string length survive a trip
+ * through the page's bytes, deleted space is gathered by compaction,
+ * empty slots are reused, and the slot directory shrinks when its last
+ * entries are deleted.  Also tests writing slotted files with
+ * HeapFileEncoder, and refusing a fixed-format file opened as slotted.
+ */
+public class SlottedHeapPageTest extends SimpleDbTestBase {
+
+    private TupleDesc td;
+    private HeapPageId pid;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        td = new TupleDesc(new Type[] { Type.INT_TYPE, Type.STRING_TYPE }, new String[] { "id", "s" });
+        File f = File.createTempFile("slotted", ".dat");
+        f.deleteOnExit();
+        HeapFile hf = new HeapFile(f, td, HeapFile.PageFormat.SLOTTED);
+        Database.getCatalog().addTable(hf, "slotted");
+        pid = new HeapPageId(hf.getId(), 0);
+    }
+
+    private static String string(int length, char c) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < length; i++)
+            sb.append(c);
+        return sb.toString();
+    }
+
+    private Tuple tuple(int id, String s) {
+        Tuple t = new Tuple(td);
+        t.setField(0, new IntField(id));
+        t.setField(1, new StringField(s, Type.STRING_LEN));
+        return t;
+    }
+
+    private SlottedHeapPage emptyPage() throws Exception {
+        return new SlottedHeapPage(pid, HeapPage.createEmptyPageData());
+    }
+
+    /** @return the tuples of page, by slot, as strings */
+    private static Map<Integer, String> contents(HeapPage page) {
+        Map<Integer, String> contents = new HashMap<Integer, String>();
+        for (Iterator<Tuple> it = page.iterator(); it.hasNext(); ) {
+            Tuple t = it.next();
+            contents.put(t.getRecordId().getTupleNumber(), t.toString());
+        }
+        return contents;
+    }
+
+    /** @return page, written out and read back */
+    private SlottedHeapPage reread(SlottedHeapPage page) throws Exception {
+        return new SlottedHeapPage(pid, page.getPageData());
+    }
+
+    private static int usedBytes(HeapPage page) {
+        int used = 0;
+        for (Iterator<Tuple> it = page.iterator(); it.hasNext(); )
+            used += SlottedHeapPage.recordSize(it.next());
+        return used;
+    }
+
+    /** Strings of every length up to the longest take only their bytes. */
+    @Test public void roundTripVaryingLengths() throws Exception {
+        SlottedHeapPage page = emptyPage();
+        Map<Integer, String> expected = new HashMap<Integer, String>();
+        List<Integer> lengths = new ArrayList<Integer>();
+        for (int len = 0; len <= 20; len++)
+            lengths.add(len);
+        lengths.addAll(java.util.Arrays.asList(64, 100, Type.STRING_LEN - 1, Type.STRING_LEN));
+        for (int len : lengths) {
+            Tuple t = tuple(len, string(len, (char) ('a' + len % 26)));
+            page.insertTuple(t);
+            expected.put(t.getRecordId().getTupleNumber(), t.toString());
+        }
+        // a string past the longest is cut to it
+        Tuple t = tuple(-1, string(Type.STRING_LEN + 10, 'z'));
+        page.insertTuple(t);
+        expected.put(t.getRecordId().getTupleNumber(), tuple(-1, string(Type.STRING_LEN, 'z')).toString());
+
+        assertEquals(expected, contents(page));
+        SlottedHeapPage read = reread(page);
+        assertEquals(expected, contents(read));
+        assertEquals(page.getFreeSpace(), read.getFreeSpace());
+        assertEquals(usedBytes(page), read.getUsedSpace());
+        assertEquals(BufferPool.getPageSize() - SlottedHeapPage.HEADER_SIZE
+                - expected.size() * SlottedHeapPage.SLOT_SIZE - usedBytes(page), read.getFreeSpace());
+        SlottedHeapPage.checkPageData(page.getPageData(), td);
+    }
+
+    /**
+     * Delete every other record of a full page, then insert records longer
+     * than any of the holes: they fit only once the page gathers the holes
+     * together, and every record keeps its slot and its value.
+     */
+    @Test public void compaction() throws Exception {
+        SlottedHeapPage page = emptyPage();
+        List<Tuple> inserted = new ArrayList<Tuple>();
+        for (int i = 0; page.slotFor(tuple(i, string(100, 'a'))) >= 0; i++) {
+            Tuple t = tuple(i, string(100, (char) ('a' + i % 26)));
+            page.insertTuple(t);
+            inserted.add(t);
+        }
+        int full = inserted.size();
+        assertTrue(full > 10);
+        assertTrue(page.getFreeSpace() < 106);
+
+        Map<Integer, String> expected = new HashMap<Integer, String>();
+        for (Tuple t : inserted) {
+            if (t.getRecordId().getTupleNumber() % 2 == 1)
+                page.deleteTuple(t);
+            else
+                expected.put(t.getRecordId().getTupleNumber(), t.toString());
+        }
+        // the holes add up to far more than a record, but none holds one
+        // of 120 characters, and neither does the gap before the records
+        Tuple longer = tuple(1000, string(120, 'L'));
+        assertTrue(page.getFreeSpace() > 5 * SlottedHeapPage.recordSize(longer));
+        int added = 0;
+        while (page.slotFor(longer) >= 0) {
+            Tuple t = tuple(1000 + added, string(120, (char) ('A' + added % 26)));
+            page.insertTuple(t);
+            assertEquals(1, t.getRecordId().getTupleNumber() % 2);
+            expected.put(t.getRecordId().getTupleNumber(), t.toString());
+            added++;
+        }
+        assertTrue(added > 5);
+        assertEquals(expected, contents(page));
+        SlottedHeapPage read = reread(page);
+        assertEquals(expected, contents(read));
+        assertEquals(usedBytes(page), read.getUsedSpace());
+        SlottedHeapPage.checkPageData(page.getPageData(), td);
+
+        // and again, from a page whose records were never decoded
+        Iterator<Tuple> it = read.iterator();
+        read.deleteTuple(it.next());
+        it.next();
+        read.deleteTuple(it.next());
+        for (int i = 0; read.slotFor(tuple(i, string(Type.STRING_LEN, 'x'))) >= 0; i++)
+            read.insertTuple(tuple(2000 + i, string(Type.STRING_LEN, 'x')));
+        assertEquals(contents(read), contents(reread(read)));
+    }
+
+    /** An insert takes the first empty entry of the directory. */
+    @Test public void slotReuse() throws Exception {
+        SlottedHeapPage page = emptyPage();
+        Tuple[] ts = new Tuple[6];
+        for (int i = 0; i < ts.length; i++) {
+            ts[i] = tuple(i, string(i * 3, 'r'));
+            page.insertTuple(ts[i]);
+            assertEquals(i, ts[i].getRecordId().getTupleNumber());
+        }
+        page.deleteTuple(ts[3]);
+        page.deleteTuple(ts[1]);
+        Tuple a = tuple(10, "reused");
+        Tuple b = tuple(11, "reused too");
+        Tuple c = tuple(12, "new");
+        page.insertTuple(a);
+        page.insertTuple(b);
+        page.insertTuple(c);
+        assertEquals(1, a.getRecordId().getTupleNumber());
+        assertEquals(3, b.getRecordId().getTupleNumber());
+        assertEquals(6, c.getRecordId().getTupleNumber());
+        assertEquals(a.toString(), contents(reread(page)).get(1));
+
+        // a slot of a page read from disk is reused the same way
+        SlottedHeapPage read = reread(page);
+        Tuple old = null;
+        for (Iterator<Tuple> it = read.iterator(); it.hasNext(); ) {
+            Tuple t = it.next();
+            if (t.getRecordId().getTupleNumber() == 2)
+                old = t;
+        }
+        read.deleteTuple(old);
+        Tuple d = tuple(13, "after read");
+        read.insertTuple(d);
+        assertEquals(2, d.getRecordId().getTupleNumber());
+        assertEquals(7, contents(reread(read)).size());
+    }
+
+    /** Deleting the last entries of the directory gives their room back;
+        deleting one in the middle leaves its entry in place. */
+    @Test public void directoryShrinksOnDelete() throws Exception {
+        SlottedHeapPage page = emptyPage();
+        Tuple[] ts = new Tuple[5];
+        for (int i = 0; i < ts.length; i++) {
+            ts[i] = tuple(i, string(10, 'd'));
+            page.insertTuple(ts[i]);
+        }
+        int record = SlottedHeapPage.recordSize(ts[0]);
+        int slot = SlottedHeapPage.SLOT_SIZE;
+        int free = page.getFreeSpace();
+
+        page.deleteTuple(ts[4]);
+        assertEquals(free += record + slot, page.getFreeSpace());
+        page.deleteTuple(ts[2]);
+        assertEquals(free += record, page.getFreeSpace());
+        assertEquals(4, directorySize(page));
+        // deleting 3 empties the entries of both 3 and 2
+        page.deleteTuple(ts[3]);
+        assertEquals(free += record + 2 * slot, page.getFreeSpace());
+        assertEquals(2, directorySize(page));
+
+        SlottedHeapPage read = reread(page);
+        assertEquals(page.getFreeSpace(), read.getFreeSpace());
+        assertEquals(2, contents(read).size());
+
+        page.deleteTuple(ts[0]);
+        page.deleteTuple(ts[1]);
+        assertEquals(0, directorySize(page));
+        assertEquals(BufferPool.getPageSize() - SlottedHeapPage.HEADER_SIZE, page.getFreeSpace());
+        // an empty page is all zeroes, like a new one
+        assertTrue(java.util.Arrays.equals(HeapPage.createEmptyPageData(), page.getPageData()));
+    }
+
+    private static int directorySize(SlottedHeapPage page) {
+        byte[] data = page.getPageData();
+        return ((data[0] & 0xFF) << 8) | (data[1] & 0xFF);
+    }
+
+    /** @return a text file of rows (i, a string of i % 40 characters) */
+    private static File textFile(int rows) throws Exception {
+        File f = File.createTempFile("slotted", ".txt");
+        f.deleteOnExit();
+        BufferedWriter w = new BufferedWriter(new FileWriter(f));
+        for (int i = 0; i < rows; i++)
+            w.write(i + "," + string(i % 40, (char) ('a' + i % 26)) + "\n");
+        w.close();
+        return f;
+    }
+
+    private List<String> scan(HeapFile hf) throws Exception {
+        List<String> rows = new ArrayList<String>();
+        DbFileIterator it = hf.iterator(new TransactionId());
+        it.open();
+        while (it.hasNext())
+            rows.add(it.next().toString());
+        it.close();
+        return rows;
+    }
+
+    /** HeapFileEncoder writes slotted files that read back as written, in
+        fewer pages than fixed slots take. */
+    @Test public void encodeSlottedFile() throws Exception {
+        int rows = 2000;
+        File text = textFile(rows);
+        Type[] types = { Type.INT_TYPE, Type.STRING_TYPE };
+        File slotted = File.createTempFile("slotted", ".dat");
+        slotted.deleteOnExit();
+        HeapFileEncoder.convert(text, slotted, BufferPool.getPageSize(), 2, types, ',',
+                HeapFile.PageFormat.SLOTTED);
+        File fixed = File.createTempFile("fixed", ".dat");
+        fixed.deleteOnExit();
+        HeapFileEncoder.convert(text, fixed, BufferPool.getPageSize(), 2, types, ',');
+
+        HeapFile s = new HeapFile(slotted, td, HeapFile.PageFormat.SLOTTED);
+        Database.getCatalog().addTable(s, "encoded");
+        HeapFile f = new HeapFile(fixed, td);
+        Database.getCatalog().addTable(f, "fixed");
+        List<String> expected = new ArrayList<String>();
+        for (int i = 0; i < rows; i++)
+            expected.add(tuple(i, string(i % 40, (char) ('a' + i % 26))).toString());
+        assertEquals(expected, scan(s));
+        assertEquals(expected, scan(f));
+        assertTrue(s.numPages() * 4 < f.numPages());
+
+        // an empty input is one empty page
+        File empty = File.createTempFile("empty", ".dat");
+        empty.deleteOnExit();
+        HeapFileEncoder.convert(new ArrayList<ArrayList<Integer>>(), empty,
+                BufferPool.getPageSize(), 2, HeapFile.PageFormat.SLOTTED);
+        assertEquals(BufferPool.getPageSize(), empty.length());
+        HeapFile e = new HeapFile(empty, Utility.getTupleDesc(2), HeapFile.PageFormat.SLOTTED);
+        Database.getCatalog().addTable(e, "empty");
+        assertEquals(0, scan(e).size());
+    }
+
+    /** A file of fixed-format pages is refused when opened as slotted. */
+    @Test public void refuseFixedFileAsSlotted() throws Exception {
+        for (int rows : new int[] { 1, 50, 2000 }) {
+            File fixed = File.createTempFile("fixed", ".dat");
+            fixed.deleteOnExit();
+            HeapFileEncoder.convert(textFile(rows), fixed, BufferPool.getPageSize(), 2,
+                    new Type[] { Type.INT_TYPE, Type.STRING_TYPE }, ',');
+            try {
+                new HeapFile(fixed, td, HeapFile.PageFormat.SLOTTED);
+                fail("opened a fixed file of " + rows + " rows as slotted");
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+        ArrayList<ArrayList<Integer>> ints = new ArrayList<ArrayList<Integer>>();
+        for (int i = 0; i < 10; i++) {
+            ArrayList<Integer> row = new ArrayList<Integer>();
+            row.add(i);
+            row.add(i * i);
+            ints.add(row);
+        }
+        File fixed = File.createTempFile("fixed", ".dat");
+        fixed.deleteOnExit();
+        HeapFileEncoder.convert(ints, fixed, BufferPool.getPageSize(), 2);
+        try {
+            new HeapFile(fixed, Utility.getTupleDesc(2), HeapFile.PageFormat.SLOTTED);
+            fail("opened a fixed file of ints as slotted");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        // new and empty files are fine either way
+        File none = new File(fixed.getPath() + ".none");
+        none.deleteOnExit();
+        new HeapFile(none, td, HeapFile.PageFormat.SLOTTED);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(SlottedHeapPageTest.class);
+    }
+}
@@ -0,0 +1,142 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import junit.framework.JUnit4TestAdapter;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+/**
+ * Tests of TopN: it returns the first limit tuples of the order OrderBy
+ * gives, ties in input order, and estimates no more rows than its limit.
+ */
+public class TopNTest extends SimpleDbTestBase {
+
+    /** Rows (key, position); keys 1 and 3 repeat. */
+    private static final int[] ROWS = {
+        3, 0,
+        1, 1,
+        4, 2,
+        1, 3,
+        5, 4,
+        3, 5,
+        2, 6,
+        3, 7,
+    };
+
+    /** @return the rows of it, as lists of their int fields */
+    private static List<List<Integer>> rows(OpIterator it) throws Exception {
+        List<List<Integer>> rows = new ArrayList<List<Integer>>();
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            List<Integer> row = new ArrayList<Integer>();
+            for (int i = 0; i < t.getTupleDesc().numFields(); i++)
+                row.add(((IntField) t.getField(i)).getValue());
+            rows.add(row);
+        }
+        return rows;
+    }
+
+    private static List<List<Integer>> topN(int[] fields, boolean[] asc, int limit, int[] data)
+            throws Exception {
+        TopN top = new TopN(fields, asc, limit, TestUtil.createTupleList(2, data));
+        top.open();
+        List<List<Integer>> rows = rows(top);
+        top.close();
+        return rows;
+    }
+
+    /** @return the first limit rows OrderBy gives */
+    private static List<List<Integer>> orderBy(int[] fields, boolean[] asc, int limit, int[] data)
+            throws Exception {
+        OrderBy order = new OrderBy(fields, asc, TestUtil.createTupleList(2, data));
+        order.open();
+        List<List<Integer>> rows = rows(order);
+        order.close();
+        return rows.subList(0, Math.min(limit, rows.size()));
+    }
+
+    private static List<Integer> row(int key, int position) {
+        return Arrays.asList(key, position);
+    }
+
+    /** A limit that cuts through equal keys keeps the first of them. */
+    @Test public void ties() throws Exception {
+        List<List<Integer>> top = topN(new int[] { 0 }, new boolean[] { true }, 4, ROWS);
+        assertEquals(Arrays.asList(row(1, 1), row(1, 3), row(2, 6), row(3, 0)), top);
+        for (int limit = 0; limit <= 8; limit++)
+            assertEquals(orderBy(new int[] { 0 }, new boolean[] { true }, limit, ROWS),
+                    topN(new int[] { 0 }, new boolean[] { true }, limit, ROWS));
+    }
+
+    /** A limit at or past the input size returns all of it, sorted; a huge
+        limit does not allocate room for it up front. */
+    @Test public void limitPastInput() throws Exception {
+        List<List<Integer>> all = orderBy(new int[] { 0 }, new boolean[] { true }, 8, ROWS);
+        assertEquals(8, all.size());
+        assertEquals(all, topN(new int[] { 0 }, new boolean[] { true }, 8, ROWS));
+        assertEquals(all, topN(new int[] { 0 }, new boolean[] { true }, 9, ROWS));
+        assertEquals(all, topN(new int[] { 0 }, new boolean[] { true }, Integer.MAX_VALUE, ROWS));
+        assertEquals(0, topN(new int[] { 0 }, new boolean[] { true }, 0, ROWS).size());
+    }
+
+    @Test public void descending() throws Exception {
+        assertEquals(Arrays.asList(row(5, 4), row(4, 2), row(3, 0), row(3, 5)),
+                topN(new int[] { 0 }, new boolean[] { false }, 4, ROWS));
+    }
+
+    /** Key descending, then position ascending or descending. */
+    @Test public void multipleKeys() throws Exception {
+        assertEquals(Arrays.asList(row(5, 4), row(4, 2), row(3, 7), row(3, 5), row(3, 0)),
+                topN(new int[] { 0, 1 }, new boolean[] { false, false }, 5, ROWS));
+        assertEquals(Arrays.asList(row(1, 1), row(1, 3), row(2, 6), row(3, 0), row(3, 5)),
+                topN(new int[] { 0, 1 }, new boolean[] { true, true }, 5, ROWS));
+        for (int limit = 0; limit <= 8; limit++)
+            assertEquals(orderBy(new int[] { 0, 1 }, new boolean[] { true, false }, limit, ROWS),
+                    topN(new int[] { 0, 1 }, new boolean[] { true, false }, limit, ROWS));
+    }
+
+    @Test public void rewind() throws Exception {
+        TopN top = new TopN(0, true, 3, TestUtil.createTupleList(2, ROWS));
+        top.open();
+        List<List<Integer>> first = rows(top);
+        top.rewind();
+        assertEquals(first, rows(top));
+        top.close();
+        assertEquals(3, first.size());
+    }
+
+    /** The estimate is the smaller of the limit and the input's. */
+    @Test public void estimatedCardinality() throws Exception {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 100, null, null);
+        Database.getCatalog().addTable(f, "t");
+        HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+        // TableStats leaves the estimate to the lab; give the table's size
+        stats.put("t", new TableStats(f.getId(), 1) {
+            public int estimateTableCardinality(double selectivityFactor) {
+                return (int) (100 * selectivityFactor);
+            }
+        });
+        HashMap<String, Integer> aliases = new HashMap<String, Integer>();
+        aliases.put("t", f.getId());
+
+        TopN small = new TopN(0, true, 5, new SeqScan(new TransactionId(), f.getId(), "t"));
+        OperatorCardinality.updateOperatorCardinality(small, aliases, stats);
+        assertEquals(5, small.getEstimatedCardinality());
+
+        TopN large = new TopN(0, true, 1000, new SeqScan(new TransactionId(), f.getId(), "t"));
+        OperatorCardinality.updateOperatorCardinality(large, aliases, stats);
+        assertEquals(100, large.getEstimatedCardinality());
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(TopNTest.class);
+    }
+}
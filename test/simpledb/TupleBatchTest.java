@@ -0,0 +1,77 @@
+package simpledb;
+
+import java.util.ArrayList;
+
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import junit.framework.JUnit4TestAdapter;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+/**
+ * Tests of batches that share their columns with another batch, as
+ * Project's batches do.
+ */
+public class TupleBatchTest extends SimpleDbTestBase {
+
+    /** Rows (a, b) whose matches for a &gt; 4 are not a suffix, so that
+        compacting a column twice would scramble it. */
+    private static final int[] ROWS = {
+        1, 10,
+        5, 50,
+        2, 20,
+        6, 60,
+        3, 30,
+        7, 70,
+    };
+
+    /**
+     * Filter over Project(a, a, b): the projected batch holds a's array
+     * twice, and retain must compact it once.
+     */
+    @Test public void filterOverRepeatedProjection() throws Exception {
+        ArrayList<Integer> fields = new ArrayList<Integer>();
+        fields.add(0);
+        fields.add(0);
+        fields.add(1);
+        Type[] types = { Type.INT_TYPE, Type.INT_TYPE, Type.INT_TYPE };
+        Project project = new Project(fields, types, TestUtil.createTupleList(2, ROWS));
+        Filter filter = new Filter(
+                new Predicate(0, Predicate.Op.GREATER_THAN, new IntField(4)), project);
+
+        filter.open();
+        TupleBatch batch = filter.nextBatch();
+        assertEquals(3, batch.size());
+        for (int row = 0; row < 3; row++) {
+            int a = 5 + row;
+            assertEquals(a, batch.getInt(0, row));
+            assertEquals(a, batch.getInt(1, row));
+            assertEquals(a * 10, batch.getInt(2, row));
+        }
+        assertNull(filter.nextBatch());
+        filter.close();
+    }
+
+    /** retain on a view that shares one column of its source twice. */
+    @Test public void retainSharedColumn() {
+        TupleDesc td = Utility.getTupleDesc(2);
+        TupleBatch source = new TupleBatch(td);
+        for (int i = 0; i < ROWS.length; i += 2)
+            source.add(Utility.getHeapTuple(new int[] { ROWS[i], ROWS[i + 1] }));
+        TupleBatch view = new TupleBatch(Utility.getTupleDesc(3), source, new int[] { 0, 0, 1 });
+
+        view.retain(new int[] { 1, 3, 5 }, 3);
+        assertEquals(3, view.size());
+        for (int row = 0; row < 3; row++) {
+            assertEquals(5 + row, view.getInt(0, row));
+            assertEquals(5 + row, view.getInt(1, row));
+            assertEquals((5 + row) * 10, view.getInt(2, row));
+        }
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(TupleBatchTest.class);
+    }
+}
@@ -0,0 +1,256 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+/**
+ * Tests of snapshot reads: a read-only transaction sees the table as it
+ * was committed when it began while a writer commits or aborts in the
+ * middle of its scan, takes no locks and so never waits for the writer,
+ * and the versions kept for it are dropped once no snapshot needs them.
+ */
+public class VersionStoreTest extends SimpleDbTestBase {
+
+    private static final int ROWS_PER_PAGE = 504;
+    private static final int PAGES = 6;
+
+    private HeapFile f;
+    private ArrayList<ArrayList<Integer>> rows;
+
+    private void createTable(int bufferPages) throws Exception {
+        Database.resetBufferPool(bufferPages);
+        rows = new ArrayList<ArrayList<Integer>>();
+        f = SystemTestUtil.createRandomHeapFile(2, ROWS_PER_PAGE * PAGES, null, rows);
+        assertEquals(PAGES, f.numPages());
+    }
+
+    private static Transaction begin(boolean readOnly) {
+        Transaction t = new Transaction(readOnly);
+        t.start();
+        return t;
+    }
+
+    private static List<ArrayList<Integer>> sorted(List<ArrayList<Integer>> rows) {
+        List<ArrayList<Integer>> copy = new ArrayList<ArrayList<Integer>>(rows);
+        Collections.sort(copy, new Comparator<ArrayList<Integer>>() {
+            public int compare(ArrayList<Integer> a, ArrayList<Integer> b) {
+                int c = a.get(0).compareTo(b.get(0));
+                return c != 0 ? c : a.get(1).compareTo(b.get(1));
+            }
+        });
+        return copy;
+    }
+
+    /** @return up to n more rows of scan */
+    private static List<ArrayList<Integer>> read(SeqScan scan, int n) throws Exception {
+        List<ArrayList<Integer>> read = new ArrayList<ArrayList<Integer>>();
+        while (read.size() < n && scan.hasNext())
+            read.add(SystemTestUtil.tupleToList(scan.next()));
+        return read;
+    }
+
+    /** @return all the rows tid sees */
+    private List<ArrayList<Integer>> scanAll(TransactionId tid) throws Exception {
+        SeqScan scan = new SeqScan(tid, f.getId(), "");
+        scan.open();
+        List<ArrayList<Integer>> all = read(scan, Integer.MAX_VALUE);
+        scan.close();
+        return all;
+    }
+
+    /**
+     * Under writer, delete every tenth row of every page, set the second
+     * field of the row after each to -1, and insert a few rows.
+     *
+     * @return the rows of the table once writer commits
+     */
+    private List<ArrayList<Integer>> change(Transaction writer) throws Exception {
+        BufferPool pool = Database.getBufferPool();
+        List<ArrayList<Integer>> after = new ArrayList<ArrayList<Integer>>();
+        List<Tuple> deletes = new ArrayList<Tuple>();
+        List<Tuple> inserts = new ArrayList<Tuple>();
+        SeqScan scan = new SeqScan(writer.getId(), f.getId(), "");
+        scan.open();
+        while (scan.hasNext()) {
+            Tuple t = scan.next();
+            int slot = t.getRecordId().getTupleNumber();
+            if (slot % 10 == 0) {
+                deletes.add(t);
+            } else if (slot % 10 == 1) {
+                deletes.add(t);
+                Tuple updated = new Tuple(t.getTupleDesc());
+                updated.setField(0, t.getField(0));
+                updated.setField(1, new IntField(-1));
+                inserts.add(updated);
+            } else {
+                after.add(SystemTestUtil.tupleToList(t));
+            }
+        }
+        scan.close();
+        for (Tuple t : deletes)
+            pool.deleteTuple(writer.getId(), t);
+        for (Tuple t : inserts) {
+            pool.insertTuple(writer.getId(), f.getId(), t);
+            after.add(SystemTestUtil.tupleToList(t));
+        }
+        for (int i = 0; i < 20; i++) {
+            Tuple t = new Tuple(f.getTupleDesc());
+            t.setField(0, new IntField(-2));
+            t.setField(1, new IntField(i));
+            pool.insertTuple(writer.getId(), f.getId(), t);
+            after.add(SystemTestUtil.tupleToList(t));
+        }
+        return after;
+    }
+
+    /**
+     * A reader scans part of the table, a writer changes every page and
+     * commits or aborts, and the reader scans the rest: it sees the rows as
+     * they were when it began, and a reader that begins after sees the
+     * writer's commit.  The table's rows are then the writer's.
+     */
+    private void finishMidScan(boolean commit) throws Exception {
+        Transaction reader = begin(true);
+        SeqScan scan = new SeqScan(reader.getId(), f.getId(), "");
+        scan.open();
+        List<ArrayList<Integer>> seen = read(scan, ROWS_PER_PAGE + ROWS_PER_PAGE / 2);
+
+        Transaction writer = begin(false);
+        List<ArrayList<Integer>> after = change(writer);
+        // the reader goes on while the writer holds its locks
+        seen.addAll(read(scan, ROWS_PER_PAGE));
+        if (commit)
+            writer.commit();
+        else
+            writer.abort();
+        seen.addAll(read(scan, Integer.MAX_VALUE));
+        scan.close();
+
+        // and again from the start, after the writer finished
+        scan.rewind();
+        List<ArrayList<Integer>> again = read(scan, Integer.MAX_VALUE);
+        reader.commit();
+
+        assertEquals(sorted(rows), sorted(seen));
+        assertEquals(sorted(rows), sorted(again));
+        Transaction later = begin(true);
+        assertEquals(sorted(commit ? after : rows), sorted(scanAll(later.getId())));
+        later.commit();
+        assertEquals(0, Database.getBufferPool().getVersionStore().getSnapshotCount());
+        if (commit)
+            rows = new ArrayList<ArrayList<Integer>>(after);
+    }
+
+    @Test public void writerCommitsMidScan() throws Exception {
+        createTable(50);
+        finishMidScan(true);
+    }
+
+    @Test public void writerAbortsMidScan() throws Exception {
+        createTable(50);
+        finishMidScan(false);
+    }
+
+    /** With a small pool the writer's dirty pages are stolen to disk, and
+        snapshots rebuild them from there. */
+    @Test public void writerPagesStolen() throws Exception {
+        createTable(3);
+        long stolen = Database.getBufferPool().getDirtyEvictions();
+        finishMidScan(true);
+        assertTrue(Database.getBufferPool().getDirtyEvictions() > stolen);
+        finishMidScan(false);
+    }
+
+    /**
+     * A reader scans the whole table, on another thread, while a writer
+     * holds exclusive locks on every page: it finishes without waiting
+     * and holds no locks.
+     */
+    @Test(timeout = 60000)
+    public void readerNeverBlocks() throws Exception {
+        createTable(50);
+        final Transaction writer = begin(false);
+        change(writer);
+        for (int i = 0; i < PAGES; i++) {
+            HeapPageId pid = new HeapPageId(f.getId(), i);
+            Database.getBufferPool().getPage(writer.getId(), pid, Permissions.READ_WRITE);
+        }
+
+        final Transaction reader = begin(true);
+        final Object[] result = new Object[1];
+        Thread t = new Thread() {
+            public void run() {
+                try {
+                    result[0] = scanAll(reader.getId());
+                } catch (Exception e) {
+                    result[0] = e;
+                }
+            }
+        };
+        t.start();
+        t.join(10000);
+        assertFalse("the reader waited for the writer", t.isAlive());
+        if (result[0] instanceof Exception)
+            throw (Exception) result[0];
+        assertEquals(sorted(rows), sorted((List<ArrayList<Integer>>) result[0]));
+        for (int i = 0; i < PAGES; i++) {
+            HeapPageId pid = new HeapPageId(f.getId(), i);
+            assertFalse(Database.getBufferPool().holdsLock(reader.getId(), pid));
+            assertTrue(Database.getBufferPool().holdsLock(writer.getId(), pid));
+        }
+        reader.commit();
+        writer.commit();
+    }
+
+    /** Delete, under a new transaction, the first row of each given page. */
+    private void deleteFirstRow(int... pages) throws Exception {
+        Transaction writer = begin(false);
+        for (int page : pages) {
+            HeapPage p = (HeapPage) Database.getBufferPool().getPage(writer.getId(),
+                    new HeapPageId(f.getId(), page), Permissions.READ_WRITE);
+            Database.getBufferPool().deleteTuple(writer.getId(), p.iterator().next());
+        }
+        writer.commit();
+    }
+
+    /** Versions are kept only while a snapshot older than them runs. */
+    @Test public void versionsTrimmedAsSnapshotsEnd() throws Exception {
+        createTable(50);
+        VersionStore versions = Database.getBufferPool().getVersionStore();
+        deleteFirstRow(0);
+        assertEquals(0, versions.getVersionsKept());
+
+        Transaction oldest = begin(true);
+        deleteFirstRow(1, 2);
+        assertEquals(2, versions.getVersionsKept());
+        Transaction newer = begin(true);
+        deleteFirstRow(3);
+        assertEquals(3, versions.getVersionsKept());
+
+        assertEquals(ROWS_PER_PAGE * PAGES - 1, scanAll(oldest.getId()).size());
+        assertEquals(ROWS_PER_PAGE * PAGES - 3, scanAll(newer.getId()).size());
+        // only the newer snapshot needs the last commit
+        oldest.commit();
+        assertEquals(1, versions.getVersionsKept());
+        assertEquals(ROWS_PER_PAGE * PAGES - 3, scanAll(newer.getId()).size());
+        newer.commit();
+        assertEquals(0, versions.getVersionsKept());
+        assertEquals(0, versions.getSnapshotCount());
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(VersionStoreTest.class);
+    }
+}
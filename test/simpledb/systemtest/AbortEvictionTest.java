@@ -0,0 +1,118 @@
+package simpledb.systemtest;
+
+import java.io.IOException;
+
+import simpledb.*;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ * The buffer pool may write a page dirtied by a running transaction to
+ * disk to make room (STEAL).  These tests make sure that such a page is
+ * rolled back from disk when the transaction aborts, whichever way the
+ * abort comes in.
+ */
+public class AbortEvictionTest extends SimpleDbTestBase {
+
+    private static final int BUFFER_PAGES = 2;
+
+    private static void insertMagicRow(HeapFile f, TransactionId tid)
+            throws DbException, IOException, TransactionAbortedException {
+        Tuple value = new Tuple(Utility.getTupleDesc(2));
+        value.setField(0, new IntField(-42));
+        value.setField(1, new IntField(-43));
+        Database.getBufferPool().insertTuple(tid, f.getId(), value);
+    }
+
+    private static boolean findMagicTuple(HeapFile f, TransactionId tid)
+            throws DbException, TransactionAbortedException {
+        SeqScan ss = new SeqScan(tid, f.getId(), "");
+        boolean found = false;
+        ss.open();
+        while (ss.hasNext()) {
+            Tuple v = ss.next();
+            int v0 = ((IntField) v.getField(0)).getValue();
+            int v1 = ((IntField) v.getField(1)).getValue();
+            if (v0 == -42 && v1 == -43) {
+                assertFalse(found);
+                found = true;
+            }
+        }
+        ss.close();
+        return found;
+    }
+
+    /** Insert the magic row under tid and scan the table, which evicts the
+        page the row is on while tid is still running. */
+    private static void insertAndSteal(HeapFile f, TransactionId tid)
+            throws DbException, IOException, TransactionAbortedException {
+        long dirtyEvictions = Database.getBufferPool().getDirtyEvictions();
+        insertMagicRow(f, tid);
+        assertTrue(findMagicTuple(f, tid));
+        assertTrue("the dirty page was not evicted",
+                Database.getBufferPool().getDirtyEvictions() > dirtyEvictions);
+    }
+
+    /** Check, through a new transaction and then through a new buffer pool
+        reading from disk, whether the magic row is in the table. */
+    private static void assertMagicRow(HeapFile f, boolean expected)
+            throws DbException, IOException, TransactionAbortedException {
+        Transaction t = new Transaction();
+        t.start();
+        assertEquals(expected, findMagicTuple(f, t.getId()));
+        t.commit();
+
+        Database.resetBufferPool(BUFFER_PAGES);
+        t = new Transaction();
+        t.start();
+        assertEquals(expected, findMagicTuple(f, t.getId()));
+        t.commit();
+    }
+
+    @Test public void testAbortAfterEviction()
+            throws IOException, DbException, TransactionAbortedException {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 512*10, null, null);
+        Database.resetBufferPool(BUFFER_PAGES);
+
+        Transaction t = new Transaction();
+        t.start();
+        insertAndSteal(f, t.getId());
+        t.abort();
+
+        assertMagicRow(f, false);
+    }
+
+    /** A transaction that never logged BEGIN, aborted directly through the
+        buffer pool. */
+    @Test public void testBufferPoolAbortAfterEviction()
+            throws IOException, DbException, TransactionAbortedException {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 512*10, null, null);
+        Database.resetBufferPool(BUFFER_PAGES);
+
+        TransactionId tid = new TransactionId();
+        insertAndSteal(f, tid);
+        Database.getBufferPool().transactionComplete(tid, false);
+        assertFalse(Database.getLogFile().isActive(tid));
+
+        assertMagicRow(f, false);
+    }
+
+    @Test public void testBufferPoolCommitAfterEviction()
+            throws IOException, DbException, TransactionAbortedException {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 512*10, null, null);
+        Database.resetBufferPool(BUFFER_PAGES);
+
+        TransactionId tid = new TransactionId();
+        insertAndSteal(f, tid);
+        Database.getBufferPool().transactionComplete(tid, true);
+        assertFalse(Database.getLogFile().isActive(tid));
+
+        assertMagicRow(f, true);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(AbortEvictionTest.class);
+    }
+}
@@ -0,0 +1,95 @@
+package simpledb.systemtest;
+
+import simpledb.*;
+
+import java.io.File;
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+/**
+ * Trees built by BTreeFileEncoder.bulkLoad must pass BTreeChecker, page
+ * occupancy included, whatever the number of tuples and fill factor, and
+ * hold exactly the tuples loaded.
+ */
+public class BTreeBulkLoadTest extends SimpleDbTestBase {
+	private TransactionId tid;
+
+	@Before
+	public void setUp() throws Exception {
+		super.setUp();
+		tid = new TransactionId();
+		// 124 tuples per leaf and 125 children per internal page
+		BufferPool.setPageSize(1024);
+		Database.resetBufferPool(1000);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		Database.getBufferPool().transactionComplete(tid);
+
+		// set the page size back to the default
+		BufferPool.resetPageSize();
+		Database.reset();
+	}
+
+	private void loadAndCheck(int rows, double fillFactor) throws Exception {
+		Random r = new Random(rows);
+		ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+		int[] keys = new int[rows];
+		for (int i = 0; i < rows; i++) {
+			keys[i] = r.nextInt(BTreeUtility.MAX_RAND_VALUE);
+			tuples.add(BTreeUtility.getBTreeTuple(new int[] { keys[i], i }));
+		}
+		File f = File.createTempFile("bulk", ".dat");
+		f.deleteOnExit();
+		BTreeFile bf = BTreeFileEncoder.bulkLoad(
+				new TupleIterator(Utility.getTupleDesc(2), tuples), f, 0, fillFactor);
+
+		String what = rows + " rows at fill factor " + fillFactor;
+		BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), true);
+
+		Arrays.sort(keys);
+		DbFileIterator it = bf.iterator(tid);
+		it.open();
+		for (int i = 0; i < rows; i++) {
+			assertTrue(what, it.hasNext());
+			assertEquals(what, keys[i], ((IntField) it.next().getField(0)).getValue());
+		}
+		assertFalse(what, it.hasNext());
+		it.close();
+	}
+
+	@Test public void smallTrees() throws Exception {
+		for (double fill : new double[] { 0.1, 0.5, 0.7, 1.0 }) {
+			loadAndCheck(1, fill);
+			loadAndCheck(62, fill);
+			loadAndCheck(63, fill);
+			loadAndCheck(124, fill);
+			loadAndCheck(125, fill);
+			loadAndCheck(200, fill);
+		}
+	}
+
+	/** Sizes just past what leaves or internal pages at the target fill
+	    hold, which a naive layout splits into under-full pages. */
+	@Test public void deepTrees() throws Exception {
+		for (double fill : new double[] { 0.1, 0.5, 0.7, 1.0 }) {
+			int perLeaf = (int) (124 * Math.max(fill, 0.5));
+			loadAndCheck(perLeaf * 2 + 1, fill);
+			loadAndCheck(perLeaf * 63 + 1, fill);
+			loadAndCheck(124 * 125 + 1, fill);
+			loadAndCheck(40000, fill);
+		}
+	}
+
+	/** Make test compatible with older version of ant. */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(BTreeBulkLoadTest.class);
+	}
+}
@@ -0,0 +1,264 @@
+package simpledb.systemtest;
+
+import simpledb.*;
+import simpledb.Predicate.Op;
+
+import java.io.File;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+/**
+ * Inserts that split leaf and internal pages, then deletes that merge and
+ * redistribute them, while other transactions search the tree.  Searches
+ * do not lock the internal pages they pass, so a search may read a parent
+ * before a split and its child after it; every search must still find
+ * every key committed before it began, and none deleted before it began.
+ * The tree must pass BTreeChecker after each phase.
+ */
+public class BTreeConcurrencyTest extends SimpleDbTestBase {
+	/** Keys 0, 2, 4, ... that are in the tree throughout. */
+	private static final int STABLE_KEYS = 2000;
+	private static final int WRITERS = 4;
+	private static final int KEYS_PER_WRITER = 1500;
+	private static final int KEYS_PER_TRANSACTION = 25;
+	private static final int READERS = 3;
+
+	private BTreeFile bf;
+	// keys a search must find, and keys it must not find; a writer takes
+	// keys out of present before it starts to delete them
+	private final ArrayList<Integer> present = new ArrayList<Integer>();
+	private final ArrayList<Integer> absent = new ArrayList<Integer>();
+	private final AtomicBoolean done = new AtomicBoolean(false);
+	private final Throwable[] failure = new Throwable[1];
+	private long searches;
+
+	@Before
+	public void setUp() throws Exception {
+		super.setUp();
+		// 61 tuples per leaf and 62 children per internal page, so the
+		// inserts split internal pages as well as leaves
+		BufferPool.setPageSize(512);
+		Database.resetBufferPool(2000);
+
+		ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+		for (int i = 0; i < STABLE_KEYS; i++) {
+			tuples.add(BTreeUtility.getBTreeTuple(new int[] { 2 * i, 0 }));
+			present.add(2 * i);
+		}
+		File f = File.createTempFile("btree", ".dat");
+		f.deleteOnExit();
+		bf = BTreeFileEncoder.bulkLoad(new TupleIterator(Utility.getTupleDesc(2), tuples), f, 0, 1.0);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		// set the page size back to the default
+		BufferPool.resetPageSize();
+		Database.reset();
+	}
+
+	private void fail(Throwable e) {
+		synchronized (failure) {
+			if (failure[0] == null)
+				failure[0] = e;
+		}
+		done.set(true);
+	}
+
+	/** Run the given threads to the end and rethrow the first failure. */
+	private void runAll(List<Thread> threads) throws Exception {
+		for (Thread t : threads)
+			t.start();
+		for (Thread t : threads)
+			t.join();
+		if (failure[0] instanceof Exception)
+			throw (Exception) failure[0];
+		if (failure[0] != null)
+			throw new RuntimeException(failure[0]);
+	}
+
+	/** @return the tuples with the given key, found by an index search */
+	private ArrayList<Tuple> search(TransactionId tid, int key)
+			throws DbException, TransactionAbortedException {
+		ArrayList<Tuple> found = new ArrayList<Tuple>();
+		DbFileIterator it = bf.indexIterator(tid, new IndexPredicate(Op.EQUALS, new IntField(key)));
+		it.open();
+		while (it.hasNext()) {
+			Tuple t = it.next();
+			assertEquals(key, ((IntField) t.getField(0)).getValue());
+			found.add(t);
+		}
+		it.close();
+		return found;
+	}
+
+	/** A thread that searches for keys picked from present and absent
+	    until done is set. */
+	private Thread reader(final long seed) {
+		return new Thread() {
+			public void run() {
+				Random r = new Random(seed);
+				try {
+					while (!done.get()) {
+						int key;
+						boolean expected;
+						synchronized (present) {
+							expected = absent.isEmpty() || r.nextBoolean();
+							List<Integer> from = expected ? present : absent;
+							key = from.get(r.nextInt(from.size()));
+						}
+						TransactionId tid = new TransactionId();
+						try {
+							int n = search(tid, key).size();
+							synchronized (present) {
+								// unless a writer has started to delete it since
+								if (!expected || present.contains(key)) {
+									assertEquals("searching for " + key, expected ? 1 : 0, n);
+									searches++;
+								}
+							}
+							Database.getBufferPool().transactionComplete(tid);
+						} catch (TransactionAbortedException e) {
+							Database.getBufferPool().transactionComplete(tid, false);
+						} catch (Throwable e) {
+							// release the locks, so the other threads can finish
+							Database.getBufferPool().transactionComplete(tid, false);
+							throw e;
+						}
+					}
+				} catch (Throwable e) {
+					fail(e);
+				}
+			}
+		};
+	}
+
+	/** A thread that inserts or deletes the keys of one writer, a few per
+	    transaction, retrying a transaction that is aborted. */
+	private Thread writer(final int w, final boolean insert) {
+		return new Thread() {
+			public void run() {
+				try {
+					ArrayList<Integer> keys = new ArrayList<Integer>();
+					// odd keys spread over the whole tree, so every leaf splits
+					for (int i = 0; i < KEYS_PER_WRITER; i++)
+						keys.add(2 * (i * WRITERS + w) + 1);
+					Collections.shuffle(keys, new Random(w));
+					for (int from = 0; from < keys.size() && failure[0] == null; ) {
+						List<Integer> batch = keys.subList(from, Math.min(from + KEYS_PER_TRANSACTION, keys.size()));
+						if (!insert) {
+							synchronized (present) {
+								present.removeAll(batch);
+							}
+						}
+						Transaction t = new Transaction();
+						t.start();
+						try {
+							for (int key : batch) {
+								if (insert) {
+									Database.getBufferPool().insertTuple(t.getId(), bf.getId(),
+											BTreeUtility.getBTreeTuple(new int[] { key, w }));
+								} else {
+									ArrayList<Tuple> found = search(t.getId(), key);
+									assertEquals(1, found.size());
+									Database.getBufferPool().deleteTuple(t.getId(), found.get(0));
+								}
+							}
+							t.commit();
+						} catch (TransactionAbortedException e) {
+							t.abort();
+							continue;
+						} catch (Throwable e) {
+							t.abort();
+							throw e;
+						}
+						synchronized (present) {
+							(insert ? present : absent).addAll(batch);
+						}
+						from += batch.size();
+					}
+				} catch (Throwable e) {
+					fail(e);
+				}
+			}
+		};
+	}
+
+	/** Run the writers to the end beside readers. */
+	private void runPhase(boolean insert) throws Exception {
+		ArrayList<Thread> writers = new ArrayList<Thread>();
+		for (int w = 0; w < WRITERS; w++)
+			writers.add(writer(w, insert));
+		ArrayList<Thread> readers = new ArrayList<Thread>();
+		for (int i = 0; i < READERS; i++)
+			readers.add(reader(i));
+		done.set(false);
+		for (Thread t : readers)
+			t.start();
+		try {
+			runAll(writers);
+		} finally {
+			done.set(true);
+			for (Thread t : readers)
+				t.join();
+		}
+		if (failure[0] instanceof Exception)
+			throw (Exception) failure[0];
+		if (failure[0] != null)
+			throw new RuntimeException(failure[0]);
+	}
+
+	/**
+	 * Check the tree's invariants and that it holds exactly the present
+	 * keys, in order.
+	 * @return the number of leaf pages holding tuples
+	 */
+	private int checkTree() throws Exception {
+		TransactionId tid = new TransactionId();
+		BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), true);
+
+		ArrayList<Integer> expected = new ArrayList<Integer>(present);
+		Collections.sort(expected);
+		ArrayList<Integer> keys = new ArrayList<Integer>();
+		HashSet<PageId> leaves = new HashSet<PageId>();
+		DbFileIterator it = bf.iterator(tid);
+		it.open();
+		while (it.hasNext()) {
+			Tuple t = it.next();
+			keys.add(((IntField) t.getField(0)).getValue());
+			leaves.add(t.getRecordId().getPageId());
+		}
+		it.close();
+		Database.getBufferPool().transactionComplete(tid);
+		assertEquals(expected, keys);
+		return leaves.size();
+	}
+
+	@Test(timeout = 600000)
+	public void splitsAndMergesUnderConcurrentSearches() throws Exception {
+		int leaves = checkTree();
+
+		runPhase(true);
+		int grown = checkTree();
+		assertTrue("leaves did not split: " + leaves + " -> " + grown, grown > leaves);
+
+		long searchesBefore = searches;
+		runPhase(false);
+		assertTrue(absent.size() == WRITERS * KEYS_PER_WRITER);
+		int shrunk = checkTree();
+		assertTrue("leaves did not merge: " + grown + " -> " + shrunk, shrunk < grown);
+		assertTrue("no searches overlapped the writers", searches > searchesBefore && searchesBefore > 0);
+	}
+
+	/** Make test compatible with older version of ant. */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(BTreeConcurrencyTest.class);
+	}
+}
@@ -0,0 +1,115 @@
+package simpledb.systemtest;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+import simpledb.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Measures BufferPool.getPage throughput as the number of threads grows
+ * from 1 to 32, the way TransactionTest scales its threads.  Every thread
+ * reads random pages of the same table: with a pool that holds the whole
+ * table every get is a hit, with a quarter of it gets mix hits, misses and
+ * evictions, and with a few pages nearly every get misses.  Rates are
+ * printed, not asserted; the test fails only if a thread sees an error or
+ * a wrong page.
+ */
+public class BufferPoolThroughputTest extends SimpleDbTestBase {
+    private static final int TABLE_PAGES = 64;
+    private static final long RUN_MILLIS = 500;
+
+    private void measure(int threads, int bufferPages) throws Exception {
+        int rowsPerPage = BufferPool.getPageSize() * 8 / (2 * 4 * 8 + 1);
+        final HeapFile table = SystemTestUtil.createRandomHeapFile(2, rowsPerPage * TABLE_PAGES, null, null);
+        assertEquals(TABLE_PAGES, table.numPages());
+        final BufferPool pool = Database.resetBufferPool(bufferPages);
+
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicLong gets = new AtomicLong(0);
+        final long[] stopAt = new long[1];
+        Reader[] readers = new Reader[threads];
+        for (int i = 0; i < threads; i++) {
+            readers[i] = new Reader(pool, table.getId(), start, gets, stopAt);
+            readers[i].start();
+        }
+
+        stopAt[0] = System.currentTimeMillis() + RUN_MILLIS;
+        start.countDown();
+        for (Reader r : readers) {
+            r.join();
+            if (r.exception != null)
+                throw new RuntimeException("Child thread threw an exception.", r.exception);
+        }
+        assertTrue(gets.get() > 0);
+
+        ReplacementPolicy policy = pool.getReplacementPolicy();
+        System.out.println("BufferPoolThroughputTest: " + threads + " threads, " + bufferPages
+                + " buffer pages: " + (gets.get() * 1000 / RUN_MILLIS) + " getPage/s, "
+                + (100 * policy.getHits() / Math.max(1, policy.getHits() + policy.getMisses()))
+                + "% hits");
+    }
+
+    private static class Reader extends Thread {
+        private final BufferPool pool;
+        private final int tableId;
+        private final CountDownLatch start;
+        private final AtomicLong gets;
+        private final long[] stopAt;
+        public Exception exception = null;
+
+        public Reader(BufferPool pool, int tableId, CountDownLatch start, AtomicLong gets, long[] stopAt) {
+            this.pool = pool;
+            this.tableId = tableId;
+            this.start = start;
+            this.gets = gets;
+            this.stopAt = stopAt;
+        }
+
+        public void run() {
+            try {
+                start.await();
+                Random r = new Random();
+                TransactionId tid = new TransactionId();
+                long n = 0;
+                while (System.currentTimeMillis() < stopAt[0]) {
+                    for (int i = 0; i < 100; i++) {
+                        HeapPageId pid = new HeapPageId(tableId, r.nextInt(TABLE_PAGES));
+                        Page p = pool.getPage(tid, pid, Permissions.READ_ONLY);
+                        assertEquals(pid, p.getId());
+                    }
+                    n += 100;
+                }
+                gets.addAndGet(n);
+                pool.transactionComplete(tid);
+            } catch (Exception e) {
+                exception = e;
+            }
+        }
+    }
+
+    @Test public void testAllHits() throws Exception {
+        for (int threads = 1; threads <= 32; threads *= 2)
+            measure(threads, TABLE_PAGES);
+    }
+
+    @Test public void testWithEvictions() throws Exception {
+        for (int threads = 1; threads <= 32; threads *= 2)
+            measure(threads, TABLE_PAGES / 4);
+    }
+
+    @Test public void testMostlyMisses() throws Exception {
+        for (int threads = 1; threads <= 32; threads *= 2)
+            measure(threads, 4);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(BufferPoolThroughputTest.class);
+    }
+}
@@ -0,0 +1,129 @@
+package simpledb.systemtest;
+
+import java.io.File;
+import java.util.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.*;
+import simpledb.Predicate.Op;
+
+import static org.junit.Assert.*;
+
+/**
+ * A SeqScan skips the pages that fail the predicates of the Filters open
+ * above it, and only those: a filter's predicate is replaced each time it
+ * is opened, and dropped when it is closed, rewired or the scan is reset.
+ */
+public class FilterPageSkipTest extends SimpleDbTestBase {
+    /** Rows 0, 1, 2, ... in order, so each page holds a narrow range. */
+    private static final int ROWS = 2000;
+
+    private HeapFile hf;
+    private HeapFile other;
+    private TransactionId tid;
+
+    private static HeapFile create(int first, int rows) throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        for (int i = 0; i < rows; i++)
+            tuples.add(new ArrayList<Integer>(Arrays.asList(first + i, 0)));
+        File f = File.createTempFile("skip", ".dat");
+        f.deleteOnExit();
+        new File(f.getPath() + ".zm").deleteOnExit();
+        HeapFileEncoder.convert(tuples, f, BufferPool.getPageSize(), 2);
+        return Utility.openHeapFile(2, f);
+    }
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        hf = create(0, ROWS);
+        other = create(ROWS, 10);
+        assertTrue(hf.numPages() > 2);
+        tid = new TransactionId();
+        // let the zone maps see every page
+        count(new SeqScan(tid, hf.getId(), ""));
+        count(new SeqScan(tid, other.getId(), ""));
+    }
+
+    private static int count(OpIterator it) throws Exception {
+        int n = 0;
+        it.open();
+        while (it.hasNext()) {
+            it.next();
+            n++;
+        }
+        it.close();
+        return n;
+    }
+
+    private static Predicate pred(Op op, int v) {
+        return new Predicate(0, op, new IntField(v));
+    }
+
+    /** A filter reopened with another predicate does not keep the old one. */
+    @Test public void reopenReplacesPredicate() throws Exception {
+        SeqScan scan = new SeqScan(tid, hf.getId(), "");
+        Filter low = new Filter(pred(Op.LESS_THAN, 10), scan);
+        assertEquals(10, count(low));
+        assertEquals(10, count(low));
+
+        Filter high = new Filter(pred(Op.GREATER_THAN_OR_EQ, ROWS - 10), scan);
+        assertEquals(10, count(high));
+        assertEquals(ROWS, count(scan));
+    }
+
+    /** Both filters of a chain skip pages while the chain is open. */
+    @Test public void chainOfFilters() throws Exception {
+        SeqScan scan = new SeqScan(tid, hf.getId(), "");
+        Filter chain = new Filter(pred(Op.LESS_THAN, 10),
+                new Filter(pred(Op.GREATER_THAN_OR_EQ, 5), scan));
+        assertEquals(5, count(chain));
+        chain.open();
+        chain.rewind();
+        int n = 0;
+        while (chain.hasNext()) {
+            chain.next();
+            n++;
+        }
+        chain.close();
+        assertEquals(5, n);
+        assertEquals(ROWS, count(scan));
+    }
+
+    /** A filter moved to another child no longer skips pages of the old one. */
+    @Test public void rewiredFilter() throws Exception {
+        SeqScan scan = new SeqScan(tid, hf.getId(), "");
+        Filter low = new Filter(pred(Op.LESS_THAN, 10), scan);
+        low.open();
+        assertTrue(low.hasNext());
+        scan.close();
+        low.setChildren(new OpIterator[] { new SeqScan(tid, hf.getId(), "") });
+        assertEquals(ROWS, count(scan));
+    }
+
+    /** reset scans the new table, with no pages skipped. */
+    @Test public void resetToAnotherTable() throws Exception {
+        SeqScan scan = new SeqScan(tid, hf.getId(), "");
+        Filter low = new Filter(pred(Op.LESS_THAN, 10), scan);
+        low.open();
+        assertTrue(low.hasNext());
+        scan.close();
+
+        scan.reset(other.getId(), "o");
+        assertEquals(10, count(scan));
+        assertEquals(ROWS, ((IntField) firstRow(scan).getField(0)).getValue());
+    }
+
+    private static Tuple firstRow(OpIterator it) throws Exception {
+        it.open();
+        Tuple t = it.next();
+        it.close();
+        return t;
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(FilterPageSkipTest.class);
+    }
+}
@@ -0,0 +1,110 @@
+package simpledb.systemtest;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+import simpledb.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Measures LogFile.logCommit throughput as the number of committing threads
+ * grows from 1 to 32, with group commit off and on.  Every thread runs
+ * empty transactions (a BEGIN and a COMMIT record) against the same log,
+ * so each commit forces the log.  Rates are printed, with the gain of
+ * group commit at each thread count, not asserted; the test fails only if
+ * a thread sees an error.
+ */
+public class LogCommitThroughputTest extends SimpleDbTestBase {
+    private static final long RUN_MILLIS = 500;
+
+    /** @return the commits per second of threads committing to a new log */
+    private long measure(int threads, boolean groupCommit, int size, long windowMicros)
+            throws Exception {
+        File f = File.createTempFile("commitlog", ".dat");
+        f.deleteOnExit();
+        final LogFile log = new LogFile(f);
+        log.setGroupCommitEnabled(groupCommit);
+        log.setGroupCommit(size, windowMicros);
+
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicLong commits = new AtomicLong(0);
+        final long[] stopAt = new long[1];
+        Committer[] committers = new Committer[threads];
+        for (int i = 0; i < threads; i++) {
+            committers[i] = new Committer(log, start, commits, stopAt);
+            committers[i].start();
+        }
+
+        stopAt[0] = System.currentTimeMillis() + RUN_MILLIS;
+        start.countDown();
+        for (Committer c : committers) {
+            c.join();
+            if (c.exception != null)
+                throw new RuntimeException("Child thread threw an exception.", c.exception);
+        }
+        f.delete();
+        assertTrue(commits.get() > 0);
+        return commits.get() * 1000 / RUN_MILLIS;
+    }
+
+    private static class Committer extends Thread {
+        private final LogFile log;
+        private final CountDownLatch start;
+        private final AtomicLong commits;
+        private final long[] stopAt;
+        public Exception exception = null;
+
+        public Committer(LogFile log, CountDownLatch start, AtomicLong commits, long[] stopAt) {
+            this.log = log;
+            this.start = start;
+            this.commits = commits;
+            this.stopAt = stopAt;
+        }
+
+        public void run() {
+            try {
+                start.await();
+                long n = 0;
+                while (System.currentTimeMillis() < stopAt[0]) {
+                    TransactionId tid = new TransactionId();
+                    log.logXactionBegin(tid);
+                    log.logCommit(tid);
+                    n++;
+                }
+                commits.addAndGet(n);
+            } catch (Exception e) {
+                exception = e;
+            }
+        }
+    }
+
+    private void compare(String name, int size, long windowMicros) throws Exception {
+        for (int threads = 1; threads <= 32; threads *= 2) {
+            long off = measure(threads, false, 1, 0);
+            long on = measure(threads, true, size < 0 ? threads : size, windowMicros);
+            System.out.println("LogCommitThroughputTest: " + threads + " threads: "
+                    + off + " commits/s without group commit, " + on + " commits/s with "
+                    + name + " (" + String.format("%.1f", (double) on / Math.max(1, off)) + "x)");
+        }
+    }
+
+    @Test public void testGroupCommit() throws Exception {
+        compare("group commit", LogFile.DEFAULT_GROUP_COMMIT_SIZE,
+                LogFile.DEFAULT_GROUP_COMMIT_WINDOW_MICROS);
+    }
+
+    /** A batch as large as the number of threads, waited for up to 200us. */
+    @Test public void testGroupCommitWithWindow() throws Exception {
+        compare("a 200us window", -1, 200);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(LogCommitThroughputTest.class);
+    }
+}
@@ -0,0 +1,247 @@
+package simpledb.systemtest;
+
+import java.io.*;
+
+import org.junit.Test;
+
+import simpledb.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Crash and recover the database around each kind of log record: UPDATE
+ * and DELTA records redone over pages at several states on disk, a loser
+ * that crashed in the middle of its own rollback, and a checkpoint that
+ * the crash tore.
+ */
+public class RecoveryTest extends SimpleDbTestBase {
+    File file1;
+    File file2;
+    HeapFile hf1;
+    TestUtil.FailingHeapFile hf2;
+
+    void insertRow(HeapFile hf, Transaction t, int v1)
+        throws DbException, IOException, TransactionAbortedException {
+        Tuple value = new Tuple(Utility.getTupleDesc(2));
+        value.setField(0, new IntField(v1));
+        value.setField(1, new IntField(0));
+        Database.getBufferPool().insertTuple(t.getId(), hf.getId(), value);
+    }
+
+    void deleteRow(HeapFile hf, Transaction t, int v1)
+        throws DbException, IOException, TransactionAbortedException {
+        SeqScan scan = new SeqScan(t.getId(), hf.getId(), "");
+        scan.open();
+        Tuple found = null;
+        while (scan.hasNext()) {
+            Tuple tu = scan.next();
+            if (((IntField) tu.getField(0)).getValue() == v1)
+                found = tu;
+        }
+        scan.close();
+        assertNotNull("no row " + v1 + " to delete", found);
+        Database.getBufferPool().deleteTuple(t.getId(), found);
+    }
+
+    // check that the specified tuple is, or is not, present
+    void look(HeapFile hf, int v1, boolean present)
+        throws DbException, IOException, TransactionAbortedException {
+        Transaction t = new Transaction();
+        t.start();
+        int count = 0;
+        SeqScan scan = new SeqScan(t.getId(), hf.getId(), "");
+        scan.open();
+        while (scan.hasNext()) {
+            if (((IntField) scan.next().getField(0)).getValue() == v1)
+                count++;
+        }
+        scan.close();
+        t.commit();
+        assertTrue("row " + v1 + " repeated", count <= 1);
+        assertEquals("row " + v1 + (present ? " missing" : " present but shouldn't be"),
+                present ? 1 : 0, count);
+    }
+
+    // simulate crash
+    // restart Database
+    // run log recovery
+    void crash() throws IOException {
+        Database.reset();
+        hf1 = Utility.openHeapFile(2, file1);
+        hf2 = new TestUtil.FailingHeapFile(file2, Utility.getTupleDesc(2));
+        Database.getCatalog().addTable(hf2, "failing");
+        Database.getLogFile().recover();
+    }
+
+    // create an initial database with two empty tables
+    // does *not* initiate log file recovery
+    void setup() throws IOException {
+        Database.reset();
+        file1 = new File("recovery1.db");
+        file1.delete();
+        file2 = new File("recovery2.db");
+        file2.delete();
+        hf1 = Utility.createEmptyHeapFile(file1.getAbsolutePath(), 2);
+        Utility.createEmptyHeapFile(file2.getAbsolutePath(), 2);
+        hf2 = new TestUtil.FailingHeapFile(file2, Utility.getTupleDesc(2));
+        Database.getCatalog().addTable(hf2, "failing");
+    }
+
+    /**
+     * Committed inserts and deletes on a page, some written to disk before
+     * the crash and some only logged, and a loser whose change was stolen
+     * to disk: redo must bring the page to its last committed state and
+     * undo must take the loser's change off it.
+     */
+    private void redoTest(boolean delta)
+        throws IOException, DbException, TransactionAbortedException {
+        setup();
+        Database.getLogFile().setDeltaLogging(delta);
+
+        Transaction t1 = new Transaction();
+        t1.start();
+        insertRow(hf1, t1, 1);
+        insertRow(hf1, t1, 2);
+        t1.commit();
+        Database.getBufferPool().flushAllPages();
+
+        long before = new File("log").length();
+        Transaction t2 = new Transaction();
+        t2.start();
+        insertRow(hf1, t2, 3);
+        deleteRow(hf1, t2, 1);
+        t2.commit();
+        long logged = new File("log").length() - before;
+        if (delta)
+            assertTrue("changes of a few bytes took " + logged + " bytes of log",
+                    logged < BufferPool.getPageSize());
+        else
+            assertTrue(logged > BufferPool.getPageSize());
+
+        Transaction t3 = new Transaction();
+        t3.start();
+        insertRow(hf1, t3, 4);
+        Database.getBufferPool().flushAllPages(); // steal
+
+        Transaction t4 = new Transaction();
+        t4.start();
+        insertRow(hf2, t4, 5);
+        t4.commit();
+
+        crash();
+        look(hf1, 1, false);
+        look(hf1, 2, true);
+        look(hf1, 3, true);
+        look(hf1, 4, false);
+        look(hf2, 5, true);
+
+        // recovering again changes nothing
+        crash();
+        look(hf1, 1, false);
+        look(hf1, 2, true);
+        look(hf1, 3, true);
+        look(hf1, 4, false);
+        look(hf2, 5, true);
+    }
+
+    @Test public void redoDeltaRecords()
+        throws IOException, DbException, TransactionAbortedException {
+        redoTest(true);
+    }
+
+    @Test public void redoUpdateRecords()
+        throws IOException, DbException, TransactionAbortedException {
+        redoTest(false);
+    }
+
+    /**
+     * A loser that changed two tables crashes while rolling back: the page
+     * of the first table is restored and its compensation logged, and
+     * writing the restored page of the second fails after its compensation
+     * is logged.  Recovery must undo the compensations along with the
+     * updates they compensate, leaving neither change.
+     */
+    @Test public void interruptedRollback()
+        throws IOException, DbException, TransactionAbortedException {
+        setup();
+        Transaction t1 = new Transaction();
+        t1.start();
+        insertRow(hf1, t1, 1);
+        insertRow(hf2, t1, 2);
+        t1.commit();
+        Database.getBufferPool().flushAllPages();
+
+        Transaction t2 = new Transaction();
+        t2.start();
+        insertRow(hf1, t2, 3);
+        insertRow(hf2, t2, 4);
+        Database.getBufferPool().flushAllPages(); // steal
+
+        hf2.failing = true;
+        try {
+            Database.getLogFile().logAbort(t2.getId());
+            fail("rollback should fail writing the second table");
+        } catch (IOException e) {
+            // crash in the middle of the rollback
+        }
+        assertTrue(Database.getLogFile().isActive(t2.getId()));
+
+        crash();
+        look(hf1, 1, true);
+        look(hf2, 2, true);
+        look(hf1, 3, false);
+        look(hf2, 4, false);
+
+        crash();
+        look(hf1, 3, false);
+        look(hf2, 4, false);
+    }
+
+    /**
+     * A fuzzy checkpoint taken while a loser is running and committed pages
+     * are dirty, so that log truncation keeps records from before it, then
+     * torn by the crash after the log header already points to it.
+     */
+    @Test public void tornCheckpoint()
+        throws IOException, DbException, TransactionAbortedException {
+        setup();
+        Transaction t1 = new Transaction();
+        t1.start();
+        insertRow(hf1, t1, 1);
+        t1.commit();
+        Database.getBufferPool().flushAllPages();
+
+        Transaction t2 = new Transaction();
+        t2.start();
+        insertRow(hf1, t2, 2);
+        Database.getBufferPool().flushAllPages(); // steal
+
+        Transaction t3 = new Transaction();
+        t3.start();
+        insertRow(hf2, t3, 3);
+        t3.commit();
+
+        Database.getLogFile().logCheckpoint();
+        Database.getBufferPool().getPageWriter().drain();
+
+        RandomAccessFile log = new RandomAccessFile("log", "rw");
+        long cpLoc = log.readLong();
+        assertTrue(cpLoc > 0 && cpLoc < log.length());
+        log.setLength(cpLoc + 10);
+        log.close();
+
+        crash();
+        look(hf1, 1, true);
+        look(hf1, 2, false);
+        look(hf2, 3, true);
+
+        crash();
+        look(hf1, 2, false);
+        look(hf2, 3, true);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(RecoveryTest.class);
+    }
+}